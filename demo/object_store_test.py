@@ -0,0 +1,189 @@
+"""
+Mock object store for testing database files read from s3:// and http(s):// locations.
+
+Serves local files over HTTP the way S3 and plain web servers do: HEAD with
+Content-Length, Last-Modified and (unless --no-etag) an ETag, and ranged GETs
+that honor If-Match and If-Unmodified-Since. Like real servers, an If-Match
+that is not a quoted entity tag fails with 412. Files can be served slowly, to
+watch queries wait until the catalog's local copy is ready, and replaced while
+served, to watch the copy being refreshed.
+
+Usage:
+
+    # Serve demo/mock_data.db as s3://demo/mock_data.db or http://localhost:9000/demo/mock_data.db
+    python object_store_test.py serve --file demo/mock_data.db
+    python object_store_test.py serve --file demo/mock_data.db --no-etag --delay-ms 200
+
+    # Point the catalog at it, e.g. in etc/catalog/sqlite.properties:
+    #   sqlite.db=s3://demo/mock_data.db
+    #   sqlite.object-store.endpoint=http://localhost:9000
+    # then compare every table's row count through Presto with the file's:
+    python object_store_test.py check --file demo/mock_data.db
+
+    # Replace the served object with another file, for the next check to pick up
+    python object_store_test.py replace --file demo/mock_data.db --with other.db
+"""
+
+import argparse
+import email.utils
+import http.server
+import os
+import shutil
+import socketserver
+import sqlite3
+import sys
+import time
+
+PRESTO_HOST = "localhost"
+PRESTO_PORT = 8080
+PRESTO_USER = "test"
+CATALOG = "sqlite"
+SCHEMA = "default"
+
+
+class ObjectHandler(http.server.BaseHTTPRequestHandler):
+    # Set by serve()
+    path_on_disk = None
+    send_etag = True
+    delay_seconds = 0.0
+
+    def version(self):
+        stat = os.stat(self.path_on_disk)
+        etag = '"%x-%x"' % (stat.st_size, int(stat.st_mtime * 1000))
+        return stat.st_size, int(stat.st_mtime), etag
+
+    def send_headers(self, status, size, mtime, etag, extra=None):
+        self.send_response(status)
+        self.send_header("Content-Length", str(size))
+        self.send_header("Last-Modified", email.utils.formatdate(mtime, usegmt=True))
+        self.send_header("Accept-Ranges", "bytes")
+        if self.send_etag:
+            self.send_header("ETag", etag)
+        for name, value in (extra or {}).items():
+            self.send_header(name, value)
+        self.end_headers()
+
+    def precondition_failed(self, reason):
+        self.log_message("412: %s", reason)
+        self.send_response(412)
+        self.send_header("Content-Length", "0")
+        self.end_headers()
+
+    def do_HEAD(self):
+        size, mtime, etag = self.version()
+        self.send_headers(200, size, mtime, etag)
+
+    def do_GET(self):
+        size, mtime, etag = self.version()
+        if_match = self.headers.get("If-Match")
+        if if_match is not None:
+            if not (if_match == "*" or (if_match.startswith('"') and if_match.endswith('"'))):
+                return self.precondition_failed("If-Match is not an entity tag: " + if_match)
+            if if_match != "*" and (not self.send_etag or if_match != etag):
+                return self.precondition_failed("If-Match " + if_match + " does not match")
+        if_unmodified = self.headers.get("If-Unmodified-Since")
+        if if_unmodified is not None:
+            since = email.utils.parsedate_to_datetime(if_unmodified).timestamp()
+            if mtime > since:
+                return self.precondition_failed("modified since " + if_unmodified)
+
+        start, end = 0, size - 1
+        status = 200
+        extra = {}
+        ranges = self.headers.get("Range")
+        if ranges and ranges.startswith("bytes="):
+            first, _, last = ranges[len("bytes="):].partition("-")
+            start = int(first)
+            end = min(int(last), size - 1) if last else size - 1
+            status = 206
+            extra["Content-Range"] = "bytes %d-%d/%d" % (start, end, size)
+        if self.delay_seconds:
+            time.sleep(self.delay_seconds)
+        self.send_headers(status, end - start + 1, mtime, etag, extra)
+        with open(self.path_on_disk, "rb") as f:
+            f.seek(start)
+            remaining = end - start + 1
+            while remaining > 0:
+                chunk = f.read(min(remaining, 64 * 1024))
+                if not chunk:
+                    break
+                self.wfile.write(chunk)
+                remaining -= len(chunk)
+
+
+class ThreadingServer(socketserver.ThreadingMixIn, http.server.HTTPServer):
+    daemon_threads = True
+
+
+def serve(args):
+    ObjectHandler.path_on_disk = os.path.abspath(args.file)
+    ObjectHandler.send_etag = not args.no_etag
+    ObjectHandler.delay_seconds = args.delay_ms / 1000.0
+    server = ThreadingServer(("", args.port), ObjectHandler)
+    name = os.path.basename(args.file)
+    print(f"Serving {args.file} on port {args.port} "
+          f"({'no ETag' if args.no_etag else 'with ETag'}, {args.delay_ms} ms per GET)")
+    print(f"  sqlite.db=s3://demo/{name}")
+    print(f"  sqlite.object-store.endpoint=http://localhost:{args.port}")
+    print(f"  or sqlite.db=http://localhost:{args.port}/demo/{name}")
+    server.serve_forever()
+
+
+def replace(args):
+    # Renamed into place, so the server never serves a half-written file
+    temporary = args.file + ".replacing"
+    shutil.copyfile(args.replacement, temporary)
+    os.replace(temporary, args.file)
+    print(f"Replaced {args.file} with {args.replacement}")
+
+
+def check(args):
+    import prestodb
+
+    local = sqlite3.connect(args.file)
+    tables = [row[0] for row in local.execute(
+        "SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%' ORDER BY name")]
+    cursor = prestodb.dbapi.connect(host=PRESTO_HOST, port=PRESTO_PORT, user=PRESTO_USER).cursor()
+    failures = 0
+    for table in tables:
+        expected = local.execute(f'SELECT COUNT(*) FROM "{table}"').fetchone()[0]
+        try:
+            cursor.execute(f'SELECT COUNT(*) FROM {CATALOG}."{SCHEMA}"."{table}"')
+            actual = cursor.fetchall()[0][0]
+        except Exception as e:
+            # Queries that waited longer than sqlite.object-store.wait-timeout-ms for the local copy fail with the fetch progress
+            print(f"  {table:<30s}  FAILED: {e}")
+            failures += 1
+            continue
+        status = "ok" if actual == expected else "MISMATCH"
+        failures += actual != expected
+        print(f"  {table:<30s}  {actual:>10d} rows  {status}")
+    sys.exit(1 if failures else 0)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    commands = parser.add_subparsers(dest="command", required=True)
+
+    serve_parser = commands.add_parser("serve", help="serve a file as an object")
+    serve_parser.add_argument("--file", required=True)
+    serve_parser.add_argument("--port", type=int, default=9000)
+    serve_parser.add_argument("--no-etag", action="store_true", help="send no ETag, like many plain web servers")
+    serve_parser.add_argument("--delay-ms", type=int, default=0, help="delay before each GET")
+    serve_parser.set_defaults(run=serve)
+
+    replace_parser = commands.add_parser("replace", help="replace the served file")
+    replace_parser.add_argument("--file", required=True)
+    replace_parser.add_argument("--with", dest="replacement", required=True)
+    replace_parser.set_defaults(run=replace)
+
+    check_parser = commands.add_parser("check", help="compare row counts through Presto with the file's")
+    check_parser.add_argument("--file", required=True)
+    check_parser.set_defaults(run=check)
+
+    args = parser.parse_args()
+    args.run(args)
+
+
+if __name__ == "__main__":
+    main()
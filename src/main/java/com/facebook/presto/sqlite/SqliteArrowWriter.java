@@ -0,0 +1,663 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.common.block.Block;
+import com.facebook.presto.common.type.BigintType;
+import com.facebook.presto.common.type.BooleanType;
+import com.facebook.presto.common.type.DateType;
+import com.facebook.presto.common.type.DecimalType;
+import com.facebook.presto.common.type.Decimals;
+import com.facebook.presto.common.type.DoubleType;
+import com.facebook.presto.common.type.IntegerType;
+import com.facebook.presto.common.type.RealType;
+import com.facebook.presto.common.type.SmallintType;
+import com.facebook.presto.common.type.TimestampType;
+import com.facebook.presto.common.type.TinyintType;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.common.type.VarbinaryType;
+import com.facebook.presto.common.type.VarcharType;
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.DynamicSliceOutput;
+import io.airlift.slice.Slice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes pages as an Arrow IPC file (the format of {@code .arrow} and Feather V2 files): the
+ * schema, one record batch per page, and the footer that indexes the batches. Every column is
+ * nullable and written uncompressed, without dictionaries.
+ * <p>
+ * The Arrow metadata is FlatBuffers, encoded here directly rather than through the Arrow
+ * libraries, which the plugin does not ship.
+ */
+public class SqliteArrowWriter
+{
+    private static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+    private static final int CONTINUATION = 0xFFFFFFFF;
+
+    private static final short METADATA_V5 = 4;
+    private static final byte HEADER_SCHEMA = 1;
+    private static final byte HEADER_RECORD_BATCH = 3;
+
+    // Members of the Type union
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_FLOATING_POINT = 3;
+    private static final byte TYPE_BINARY = 4;
+    private static final byte TYPE_UTF8 = 5;
+    private static final byte TYPE_BOOL = 6;
+    private static final byte TYPE_DECIMAL = 7;
+    private static final byte TYPE_DATE = 8;
+    private static final byte TYPE_TIMESTAMP = 10;
+
+    private static final short PRECISION_SINGLE = 1;
+    private static final short PRECISION_DOUBLE = 2;
+    private static final short DATE_UNIT_DAY = 0;
+    private static final short TIME_UNIT_MILLISECOND = 1;
+    private static final short TIME_UNIT_MICROSECOND = 2;
+
+    private final OutputStream output;
+    private final List<Type> types;
+    private final FlatBuffer.Table schema;
+    // Offset, metadata length and body length of each record batch, for the footer
+    private final List<long[]> batches = new ArrayList<>();
+    private long position;
+
+    public SqliteArrowWriter(OutputStream output, List<String> names, List<Type> types)
+            throws IOException
+    {
+        this.output = requireNonNull(output, "output is null");
+        this.types = ImmutableList.copyOf(requireNonNull(types, "types is null"));
+        ImmutableList.Builder<FlatBuffer.Table> fields = ImmutableList.builder();
+        for (int i = 0; i < types.size(); i++) {
+            fields.add(field(names.get(i), types.get(i)));
+        }
+        this.schema = new FlatBuffer.Table()
+                .addShort(0, (short) 0)
+                .addTables(1, fields.build());
+
+        write(MAGIC);
+        write(new byte[2]);
+        writeMessage(HEADER_SCHEMA, schema, 0);
+    }
+
+    /**
+     * Whether values of the type can be written, as the Arrow type closest to it.
+     */
+    public static boolean isSupported(Type type)
+    {
+        return arrowType(type).isPresent();
+    }
+
+    private static FlatBuffer.Table field(String name, Type type)
+    {
+        FlatBuffer.Table arrowType = arrowType(type)
+                .orElseThrow(() -> new IllegalArgumentException("Unsupported type: " + type));
+        return new FlatBuffer.Table()
+                .addString(0, name)
+                .addByte(1, (byte) 1)
+                .addByte(2, typeId(type))
+                .addTable(3, arrowType)
+                .addTables(5, ImmutableList.of());
+    }
+
+    private static byte typeId(Type type)
+    {
+        if (type instanceof BooleanType) {
+            return TYPE_BOOL;
+        }
+        if (type instanceof BigintType || type instanceof IntegerType || type instanceof SmallintType || type instanceof TinyintType) {
+            return TYPE_INT;
+        }
+        if (type instanceof DoubleType || type instanceof RealType) {
+            return TYPE_FLOATING_POINT;
+        }
+        if (type instanceof DecimalType) {
+            return TYPE_DECIMAL;
+        }
+        if (type instanceof DateType) {
+            return TYPE_DATE;
+        }
+        if (type instanceof TimestampType) {
+            return TYPE_TIMESTAMP;
+        }
+        if (type instanceof VarcharType) {
+            return TYPE_UTF8;
+        }
+        return TYPE_BINARY;
+    }
+
+    private static Optional<FlatBuffer.Table> arrowType(Type type)
+    {
+        if (type instanceof BooleanType || type instanceof VarcharType || type instanceof VarbinaryType) {
+            return Optional.of(new FlatBuffer.Table());
+        }
+        if (type instanceof BigintType || type instanceof IntegerType || type instanceof SmallintType || type instanceof TinyintType) {
+            return Optional.of(new FlatBuffer.Table()
+                    .addInt(0, getFixedWidth(type) * Byte.SIZE)
+                    .addByte(1, (byte) 1));
+        }
+        if (type instanceof DoubleType || type instanceof RealType) {
+            return Optional.of(new FlatBuffer.Table().addShort(0, type instanceof DoubleType ? PRECISION_DOUBLE : PRECISION_SINGLE));
+        }
+        if (type instanceof DecimalType) {
+            DecimalType decimal = (DecimalType) type;
+            return Optional.of(new FlatBuffer.Table()
+                    .addInt(0, decimal.getPrecision())
+                    .addInt(1, decimal.getScale())
+                    .addInt(2, 128));
+        }
+        if (type instanceof DateType) {
+            return Optional.of(new FlatBuffer.Table().addShort(0, DATE_UNIT_DAY));
+        }
+        if (type instanceof TimestampType) {
+            boolean micros = ((TimestampType) type).getPrecision() == TimeUnit.MICROSECONDS;
+            return Optional.of(new FlatBuffer.Table().addShort(0, micros ? TIME_UNIT_MICROSECOND : TIME_UNIT_MILLISECOND));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Bytes per value of a fixed-width column; 0 for bit-packed booleans and variable-width columns.
+     */
+    private static int getFixedWidth(Type type)
+    {
+        if (type instanceof BigintType || type instanceof DoubleType || type instanceof TimestampType) {
+            return Long.BYTES;
+        }
+        if (type instanceof IntegerType || type instanceof RealType || type instanceof DateType) {
+            return Integer.BYTES;
+        }
+        if (type instanceof SmallintType) {
+            return Short.BYTES;
+        }
+        if (type instanceof TinyintType) {
+            return Byte.BYTES;
+        }
+        if (type instanceof DecimalType) {
+            return 16;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the page as a record batch.
+     */
+    public void writeBatch(Page page)
+            throws IOException
+    {
+        int rows = page.getPositionCount();
+        DynamicSliceOutput body = new DynamicSliceOutput((int) Math.min(Integer.MAX_VALUE, page.getSizeInBytes() + rows + 64L * types.size()));
+        ByteBuffer nodes = ByteBuffer.allocate(16 * types.size()).order(ByteOrder.LITTLE_ENDIAN);
+        List<long[]> buffers = new ArrayList<>();
+
+        for (int field = 0; field < types.size(); field++) {
+            Type type = types.get(field);
+            Block block = page.getBlock(field);
+            int nullCount = 0;
+            for (int position = 0; position < rows; position++) {
+                if (block.isNull(position)) {
+                    nullCount++;
+                }
+            }
+            nodes.putLong(rows).putLong(nullCount);
+
+            // Validity bitmap, which readers take as all valid when it is empty
+            long start = body.size();
+            if (nullCount > 0) {
+                writeBits(body, rows, position -> !block.isNull(position));
+            }
+            buffers.add(new long[] {start, body.size() - start});
+            pad(body);
+
+            start = body.size();
+            if (type instanceof BooleanType) {
+                writeBits(body, rows, position -> !block.isNull(position) && type.getBoolean(block, position));
+            }
+            else if (type instanceof VarcharType || type instanceof VarbinaryType) {
+                // Offsets, then the values they delimit
+                int offset = 0;
+                body.writeInt(offset);
+                for (int position = 0; position < rows; position++) {
+                    if (!block.isNull(position)) {
+                        offset += block.getSliceLength(position);
+                    }
+                    body.writeInt(offset);
+                }
+                buffers.add(new long[] {start, body.size() - start});
+                pad(body);
+                start = body.size();
+                for (int position = 0; position < rows; position++) {
+                    if (!block.isNull(position)) {
+                        body.writeBytes(type.getSlice(block, position));
+                    }
+                }
+            }
+            else {
+                writeFixedWidth(body, type, block, rows);
+            }
+            buffers.add(new long[] {start, body.size() - start});
+            pad(body);
+        }
+
+        FlatBuffer.Table recordBatch = new FlatBuffer.Table()
+                .addLong(0, rows)
+                .addStructs(1, nodes.array(), types.size())
+                .addStructs(2, toStructs(buffers), buffers.size());
+        long offset = position;
+        int metadataLength = writeMessage(HEADER_RECORD_BATCH, recordBatch, body.size());
+        Slice bodySlice = body.slice();
+        bodySlice.getBytes(0, output, bodySlice.length());
+        position += bodySlice.length();
+        batches.add(new long[] {offset, metadataLength, bodySlice.length()});
+    }
+
+    private static void writeFixedWidth(DynamicSliceOutput body, Type type, Block block, int rows)
+    {
+        for (int position = 0; position < rows; position++) {
+            boolean isNull = block.isNull(position);
+            if (type instanceof DoubleType) {
+                body.writeDouble(isNull ? 0 : type.getDouble(block, position));
+            }
+            else if (type instanceof DecimalType && !((DecimalType) type).isShort()) {
+                writeDecimal(body, isNull ? BigInteger.ZERO : Decimals.decodeUnscaledValue(type.getSlice(block, position)));
+            }
+            else {
+                long value = isNull ? 0 : type.getLong(block, position);
+                switch (getFixedWidth(type)) {
+                    case Long.BYTES:
+                        body.writeLong(value);
+                        break;
+                    case Integer.BYTES:
+                        // REAL values are the bits of a float, as Arrow stores them
+                        body.writeInt((int) value);
+                        break;
+                    case Short.BYTES:
+                        body.writeShort((short) value);
+                        break;
+                    case Byte.BYTES:
+                        body.writeByte((byte) value);
+                        break;
+                    default:
+                        // Short decimals: the unscaled value, sign-extended to 128 bits
+                        body.writeLong(value);
+                        body.writeLong(value < 0 ? -1 : 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a 128-bit two's complement value, little-endian.
+     */
+    private static void writeDecimal(DynamicSliceOutput body, BigInteger value)
+    {
+        byte[] bigEndian = value.toByteArray();
+        byte[] littleEndian = new byte[16];
+        Arrays.fill(littleEndian, (byte) (value.signum() < 0 ? -1 : 0));
+        for (int i = 0; i < bigEndian.length && i < 16; i++) {
+            littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        body.writeBytes(littleEndian);
+    }
+
+    private interface PositionPredicate
+    {
+        boolean test(int position);
+    }
+
+    private static void writeBits(DynamicSliceOutput body, int rows, PositionPredicate predicate)
+    {
+        for (int base = 0; base < rows; base += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8 && base + bit < rows; bit++) {
+                if (predicate.test(base + bit)) {
+                    bits |= 1 << bit;
+                }
+            }
+            body.writeByte(bits);
+        }
+    }
+
+    /**
+     * Arrow buffers start at multiples of 8 bytes of the body.
+     */
+    private static void pad(DynamicSliceOutput body)
+    {
+        while (body.size() % 8 != 0) {
+            body.writeByte(0);
+        }
+    }
+
+    private static byte[] toStructs(List<long[]> values)
+    {
+        ByteBuffer structs = ByteBuffer.allocate(16 * values.size()).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] value : values) {
+            structs.putLong(value[0]).putLong(value[1]);
+        }
+        return structs.array();
+    }
+
+    /**
+     * Writes the end-of-stream marker and the footer, which readers of the file format need
+     * to find the batches.
+     */
+    public void finish()
+            throws IOException
+    {
+        ByteBuffer blocks = ByteBuffer.allocate(24 * batches.size()).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] batch : batches) {
+            blocks.putLong(batch[0]).putInt((int) batch[1]).putInt(0).putLong(batch[2]);
+        }
+        writeInt(CONTINUATION);
+        writeInt(0);
+
+        byte[] footer = FlatBuffer.serialize(new FlatBuffer.Table()
+                .addShort(0, METADATA_V5)
+                .addTable(1, schema)
+                .addStructs(2, new byte[0], 0)
+                .addStructs(3, blocks.array(), batches.size()));
+        write(footer);
+        writeInt(footer.length);
+        write(MAGIC);
+        output.flush();
+    }
+
+    /**
+     * Writes an encapsulated message: a continuation marker, the length of the metadata, and
+     * the metadata padded to a multiple of 8 bytes. Returns the length of all three.
+     */
+    private int writeMessage(byte headerType, FlatBuffer.Table header, long bodyLength)
+            throws IOException
+    {
+        byte[] metadata = FlatBuffer.serialize(new FlatBuffer.Table()
+                .addShort(0, METADATA_V5)
+                .addByte(1, headerType)
+                .addTable(2, header)
+                .addLong(3, bodyLength));
+        writeInt(CONTINUATION);
+        writeInt(metadata.length);
+        write(metadata);
+        return 8 + metadata.length;
+    }
+
+    private void writeInt(int value)
+            throws IOException
+    {
+        write(ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+    }
+
+    private void write(byte[] bytes)
+            throws IOException
+    {
+        output.write(bytes);
+        position += bytes.length;
+    }
+
+    /**
+     * A minimal FlatBuffers encoder for the Arrow metadata, writing front to back: each table
+     * is preceded by its vtable and followed by the objects its fields refer to, so every
+     * reference points forward as the format requires.
+     */
+    private static final class FlatBuffer
+    {
+        private ByteBuffer buffer = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+
+        static byte[] serialize(Table root)
+        {
+            FlatBuffer flatBuffer = new FlatBuffer();
+            flatBuffer.putInt(0);
+            int rootPosition = root.writeTo(flatBuffer);
+            flatBuffer.buffer.putInt(0, rootPosition);
+            flatBuffer.align(8, 0);
+            return Arrays.copyOf(flatBuffer.buffer.array(), flatBuffer.buffer.position());
+        }
+
+        private int position()
+        {
+            return buffer.position();
+        }
+
+        private void ensure(int bytes)
+        {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        /**
+         * Pads until {@code position + offset} is a multiple of the alignment.
+         */
+        private void align(int alignment, int offset)
+        {
+            while ((position() + offset) % alignment != 0) {
+                putByte((byte) 0);
+            }
+        }
+
+        private void putByte(byte value)
+        {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        private void putShort(short value)
+        {
+            ensure(2);
+            buffer.putShort(value);
+        }
+
+        private void putInt(int value)
+        {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        private void putBytes(byte[] bytes)
+        {
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private interface Child
+        {
+            int writeTo(FlatBuffer flatBuffer);
+        }
+
+        /**
+         * A table field: an inline scalar, or a reference to a child written after the table.
+         */
+        private static final class Field
+        {
+            private final int id;
+            private final int size;
+            private final long value;
+            private final Child child;
+            private int offset;
+
+            Field(int id, int size, long value, Child child)
+            {
+                this.id = id;
+                this.size = size;
+                this.value = value;
+                this.child = child;
+            }
+        }
+
+        static final class Table
+                implements Child
+        {
+            private final List<Field> fields = new ArrayList<>();
+
+            Table addByte(int id, byte value)
+            {
+                fields.add(new Field(id, 1, value, null));
+                return this;
+            }
+
+            Table addShort(int id, short value)
+            {
+                fields.add(new Field(id, 2, value, null));
+                return this;
+            }
+
+            Table addInt(int id, int value)
+            {
+                fields.add(new Field(id, 4, value, null));
+                return this;
+            }
+
+            Table addLong(int id, long value)
+            {
+                fields.add(new Field(id, 8, value, null));
+                return this;
+            }
+
+            Table addTable(int id, Table table)
+            {
+                fields.add(new Field(id, 4, 0, table));
+                return this;
+            }
+
+            Table addString(int id, String value)
+            {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                fields.add(new Field(id, 4, 0, flatBuffer -> {
+                    flatBuffer.align(4, 0);
+                    int start = flatBuffer.position();
+                    flatBuffer.putInt(bytes.length);
+                    flatBuffer.putBytes(bytes);
+                    flatBuffer.putByte((byte) 0);
+                    return start;
+                }));
+                return this;
+            }
+
+            Table addTables(int id, List<Table> tables)
+            {
+                fields.add(new Field(id, 4, 0, flatBuffer -> {
+                    flatBuffer.align(4, 0);
+                    int start = flatBuffer.position();
+                    flatBuffer.putInt(tables.size());
+                    for (int i = 0; i < tables.size(); i++) {
+                        flatBuffer.putInt(0);
+                    }
+                    for (int i = 0; i < tables.size(); i++) {
+                        int reference = start + Integer.BYTES * (i + 1);
+                        int child = tables.get(i).writeTo(flatBuffer);
+                        flatBuffer.buffer.putInt(reference, child - reference);
+                    }
+                    return start;
+                }));
+                return this;
+            }
+
+            /**
+             * A vector of structs of 8-byte aligned fields, already encoded.
+             */
+            Table addStructs(int id, byte[] structs, int count)
+            {
+                fields.add(new Field(id, 4, 0, flatBuffer -> {
+                    // The elements follow the 4-byte length
+                    flatBuffer.align(8, Integer.BYTES);
+                    int start = flatBuffer.position();
+                    flatBuffer.putInt(count);
+                    flatBuffer.putBytes(structs);
+                    return start;
+                }));
+                return this;
+            }
+
+            @Override
+            public int writeTo(FlatBuffer flatBuffer)
+            {
+                // Larger fields first, each aligned within the table
+                List<Field> layout = new ArrayList<>(fields);
+                layout.sort((left, right) -> Integer.compare(right.size, left.size));
+                int size = Integer.BYTES;
+                int alignment = Integer.BYTES;
+                int maxId = -1;
+                for (Field field : layout) {
+                    size = (size + field.size - 1) / field.size * field.size;
+                    field.offset = size;
+                    size += field.size;
+                    alignment = Math.max(alignment, field.size);
+                    maxId = Math.max(maxId, field.id);
+                }
+
+                flatBuffer.align(2, 0);
+                int vtable = flatBuffer.position();
+                flatBuffer.putShort((short) (2 * Short.BYTES + Short.BYTES * (maxId + 1)));
+                flatBuffer.putShort((short) size);
+                for (int id = 0; id <= maxId; id++) {
+                    short offset = 0;
+                    for (Field field : layout) {
+                        if (field.id == id) {
+                            offset = (short) field.offset;
+                        }
+                    }
+                    flatBuffer.putShort(offset);
+                }
+
+                flatBuffer.align(alignment, 0);
+                int table = flatBuffer.position();
+                flatBuffer.ensure(size);
+                flatBuffer.putInt(table - vtable);
+                for (Field field : layout) {
+                    flatBuffer.align(field.size, 0);
+                    switch (field.size) {
+                        case 1:
+                            flatBuffer.putByte((byte) field.value);
+                            break;
+                        case 2:
+                            flatBuffer.putShort((short) field.value);
+                            break;
+                        case 4:
+                            flatBuffer.putInt((int) field.value);
+                            break;
+                        default:
+                            flatBuffer.ensure(8);
+                            flatBuffer.buffer.putLong(field.value);
+                    }
+                }
+                flatBuffer.align(Integer.BYTES, 0);
+
+                for (Field field : layout) {
+                    if (field.child != null) {
+                        int reference = table + field.offset;
+                        int child = field.child.writeTo(flatBuffer);
+                        flatBuffer.buffer.putInt(reference, child - reference);
+                    }
+                }
+                return table;
+            }
+        }
+    }
+}
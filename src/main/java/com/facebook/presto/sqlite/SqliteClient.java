@@ -14,22 +14,91 @@
 package com.facebook.presto.sqlite;
 
 import com.facebook.presto.spi.PrestoException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.SQLiteDataSource;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.google.common.base.Throwables.throwIfUnchecked;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 
+/**
+ * Connection pool of the database file. When the file is atomically replaced (a new file
+ * renamed over it), the next borrower starts a fresh pool on the new file; connections
+ * already borrowed keep reading the old file, which stays readable while open, and the old
+ * pool is closed once the last of them is returned. Scans of a query that started before
+ * the replace keep reading the old file too. Database files attached by
+ * {@code sqlite.attach.*} are attached to every connection of the pool. The pool is started
+ * by the first borrower, so no file is opened, and created, before it is available.
+ */
 public class SqliteClient
 {
-    private final HikariDataSource dataSource;
+    private static final Logger log = LoggerFactory.getLogger(SqliteClient.class);
+
+    // How long after its last scan started a query keeps its pool pinned
+    private static final long QUERY_POOL_PIN_MILLIS = 5 * 60 * 1000;
+
+    private final SqliteConfig config;
+    private final Path dbFile;
+    private final long fileCheckIntervalNanos;
+    private final SqliteConnectionScheduler scheduler;
+    private final Runnable availabilityCheck;
+    private final List<Runnable> replacementListeners = new CopyOnWriteArrayList<>();
+    // Pool pinned by each query's scans, by query id
+    private final Cache<String, Pool> queryPools;
+    private final ScheduledExecutorService queryPoolExpirer;
+    // Held while the pool is started or the file checked, which only one borrower does at a time
+    private final Object poolStartLock = new Object();
 
-    public SqliteClient(String dbPath)
+    // Guarded by this; null until the first borrower
+    private Pool pool;
+    // Guarded by this
+    private long nextFileCheckNanos;
+
+    public SqliteClient(SqliteConfig config)
     {
-        requireNonNull(dbPath, "dbPath is null");
+        this(config, () -> {});
+    }
+
+    /**
+     * @param availabilityCheck run before every connection is opened; throws while the
+     * database files cannot be read yet, such as local copies of files in object storage
+     * that are still being fetched
+     */
+    public SqliteClient(SqliteConfig config, Runnable availabilityCheck)
+    {
+        this.config = requireNonNull(config, "config is null");
+        this.availabilityCheck = requireNonNull(availabilityCheck, "availabilityCheck is null");
 
         try {
             Class.forName("org.sqlite.JDBC");
@@ -38,22 +107,334 @@ public class SqliteClient
             throw new PrestoException(GENERIC_INTERNAL_ERROR, "SQLite JDBC driver not found", e);
         }
 
-        HikariConfig config = new HikariConfig();
-        config.setJdbcUrl("jdbc:sqlite:" + dbPath);
-        config.setMaximumPoolSize(10);
-        config.setMinimumIdle(2);
-        config.setConnectionTimeout(5000);
-        config.setPoolName("sqlite-pool");
-        this.dataSource = new HikariDataSource(config);
+        // The scheduler admits at most one borrower per pooled connection, so the
+        // pool itself never has to make a caller wait
+        this.scheduler = new SqliteConnectionScheduler(config.getScanConnections(), config.getMetadataConnections(), config.getConnectionQueueTimeoutMillis());
+
+        this.dbFile = Paths.get(config.getDbPath());
+        this.fileCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getFileCheckIntervalMillis());
+        this.queryPools = CacheBuilder.newBuilder()
+                .expireAfterAccess(QUERY_POOL_PIN_MILLIS, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<String, Pool>) notification -> releasePool(notification.getValue()))
+                .build();
+        // Expired pins would otherwise keep a replaced pool open until the next scan starts
+        this.queryPoolExpirer = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-query-pools-%s")
+                .setDaemon(true)
+                .build());
+        queryPoolExpirer.scheduleWithFixedDelay(queryPools::cleanUp, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void shutdown()
+    {
+        queryPoolExpirer.shutdownNow();
+        queryPools.invalidateAll();
+    }
+
+    private HikariDataSource createDataSource()
+    {
+        int connections = config.getScanConnections() + config.getMetadataConnections();
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setDataSource(new InitializingDataSource("jdbc:sqlite:" + config.getDbPath(), getInitStatements()));
+        hikariConfig.setMaximumPoolSize(connections);
+        hikariConfig.setMinimumIdle(Math.min(2, connections));
+        hikariConfig.setConnectionTimeout(30_000);
+        hikariConfig.setPoolName("sqlite-pool");
+        return new HikariDataSource(hikariConfig);
+    }
+
+    private List<String> getInitStatements()
+    {
+        ImmutableList.Builder<String> statements = ImmutableList.builder();
+        if (config.isWalReaderEnabled()) {
+            // A WAL reader only waits while a checkpoint restarts the log or a crashed writer is
+            // recovered; query_only keeps a connection from ever taking the write lock
+            statements.add("PRAGMA busy_timeout = " + config.getWalReaderBusyTimeoutMillis());
+            statements.add("PRAGMA query_only = 1");
+        }
+        config.getAttachedDatabases().entrySet().stream()
+                .map(database -> "ATTACH DATABASE '" + database.getValue().replace("'", "''") + "' AS " + SqliteMetadata.quote(database.getKey()))
+                .forEach(statements::add);
+        return statements.build();
+    }
+
+    /**
+     * Opens a connection outside the pool, set up like the pooled ones, for a transaction held
+     * longer than a pooled connection should be.
+     */
+    public Connection openConnection()
+            throws SQLException
+    {
+        availabilityCheck.run();
+        return new InitializingDataSource("jdbc:sqlite:" + config.getDbPath(), getInitStatements()).getConnection();
+    }
+
+    /**
+     * Registers a callback run after the database file has been replaced, to drop state
+     * derived from the old file.
+     */
+    public void addReplacementListener(Runnable listener)
+    {
+        replacementListeners.add(requireNonNull(listener, "listener is null"));
     }
 
+    /**
+     * Connection for metadata and split generation, served from the reserved metadata lane.
+     */
     public Connection getConnection()
     {
+        availabilityCheck.run();
+        scheduler.acquireMetadataSlot();
+        return borrow(this::acquirePool, scheduler::releaseMetadataSlot);
+    }
+
+    /**
+     * Connection for a split scan. Waits, fairly across queries, for a free scan slot
+     * instead of failing when all scan connections are busy. Every scan of a query reads
+     * the file the query's first scan read.
+     */
+    public Connection getScanConnection(String queryId)
+    {
+        availabilityCheck.run();
+        scheduler.acquireScanSlot(queryId);
+        return borrow(() -> acquireQueryPool(queryId), scheduler::releaseScanSlot);
+    }
+
+    private Connection borrow(Supplier<Pool> poolSupplier, Runnable releaseSlot)
+    {
+        Pool pool;
+        Connection connection;
         try {
-            return dataSource.getConnection();
+            pool = poolSupplier.get();
         }
-        catch (SQLException e) {
+        catch (RuntimeException e) {
+            releaseSlot.run();
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to open SQLite database: " + e.getMessage(), e);
+        }
+        try {
+            connection = pool.dataSource.getConnection();
+        }
+        catch (SQLException | RuntimeException e) {
+            releasePool(pool);
+            releaseSlot.run();
             throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to connect to SQLite database: " + e.getMessage(), e);
         }
+
+        // Give the slot back when the caller closes the connection
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(
+                SqliteClient.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    try {
+                        return method.invoke(connection, args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    finally {
+                        if (method.getName().equals("close") && released.compareAndSet(false, true)) {
+                            releasePool(pool);
+                            releaseSlot.run();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * The pool the query's scans read, pinned by its first scan on this node, so that a query
+     * reads one version of the file even when the file is replaced while it runs. The pin
+     * counts as a borrower of the pool until it expires, a while after the query's last scan.
+     */
+    private Pool acquireQueryPool(String queryId)
+    {
+        while (true) {
+            Pool pinned;
+            try {
+                pinned = queryPools.get(queryId, this::acquirePool);
+            }
+            catch (ExecutionException | UncheckedExecutionException e) {
+                throwIfUnchecked(e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+            synchronized (this) {
+                // A pool is closed only after its pins have expired
+                if (!pinned.closed) {
+                    pinned.borrowed++;
+                    return pinned;
+                }
+            }
+            queryPools.asMap().remove(queryId, pinned);
+        }
+    }
+
+    private Pool acquirePool()
+    {
+        synchronized (this) {
+            if (pool != null && !isFileCheckDue()) {
+                pool.borrowed++;
+                return pool;
+            }
+        }
+
+        // Starting a pool opens the file; borrowers of the current pool do not wait for it
+        synchronized (poolStartLock) {
+            Pool current;
+            synchronized (this) {
+                current = pool;
+                // Another borrower may have started the pool or checked the file meanwhile
+                if (current != null && !isFileCheckDue()) {
+                    current.borrowed++;
+                    return current;
+                }
+                nextFileCheckNanos = System.nanoTime() + fileCheckIntervalNanos;
+            }
+            FileIdentity identity = readFileIdentity();
+            if (current != null && (identity == null || identity.equals(current.fileIdentity))) {
+                synchronized (this) {
+                    current.borrowed++;
+                }
+                return current;
+            }
+
+            Pool started = new Pool(createDataSource(), identity);
+            synchronized (this) {
+                // New borrowers get the new file; the old pool drains
+                if (current != null) {
+                    current.retired = true;
+                }
+                pool = started;
+                started.borrowed++;
+            }
+            if (current != null) {
+                log.info("SQLite database {} was replaced; new connections open the new file, {} still read the old one", dbFile, current.borrowed);
+                closeIfDrained(current);
+                for (Runnable listener : replacementListeners) {
+                    listener.run();
+                }
+            }
+            return started;
+        }
+    }
+
+    // Guarded by this
+    private boolean isFileCheckDue()
+    {
+        return fileCheckIntervalNanos > 0 && System.nanoTime() - nextFileCheckNanos >= 0;
+    }
+
+    private void releasePool(Pool pool)
+    {
+        synchronized (this) {
+            pool.borrowed--;
+        }
+        closeIfDrained(pool);
+    }
+
+    private void closeIfDrained(Pool pool)
+    {
+        synchronized (this) {
+            if (!pool.retired || pool.borrowed > 0 || pool.closed) {
+                return;
+            }
+            pool.closed = true;
+        }
+        pool.dataSource.close();
+    }
+
+    /**
+     * Identifies the file by inode where the file system has one, otherwise by modification
+     * time; null while the file does not exist, e.g. in the middle of a non-atomic replace.
+     */
+    private FileIdentity readFileIdentity()
+    {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(dbFile, BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            return new FileIdentity(fileKey, fileKey == null ? attributes.lastModifiedTime().toMillis() : 0);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs statements on every new connection. The driver runs only the first statement of a
+     * script, so the pool's single init statement cannot attach more than one file.
+     */
+    private static class InitializingDataSource
+            extends SQLiteDataSource
+    {
+        private final List<String> initStatements;
+
+        InitializingDataSource(String url, List<String> initStatements)
+        {
+            setUrl(url);
+            this.initStatements = ImmutableList.copyOf(initStatements);
+        }
+
+        @Override
+        public SQLiteConnection getConnection(String username, String password)
+                throws SQLException
+        {
+            SQLiteConnection connection = super.getConnection(username, password);
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : initStatements) {
+                    statement.execute(sql);
+                }
+            }
+            catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            return connection;
+        }
+    }
+
+    private static class Pool
+    {
+        private final HikariDataSource dataSource;
+        private final FileIdentity fileIdentity;
+        // Guarded by SqliteClient.this
+        private int borrowed;
+        private boolean retired;
+        private boolean closed;
+
+        Pool(HikariDataSource dataSource, FileIdentity fileIdentity)
+        {
+            this.dataSource = dataSource;
+            this.fileIdentity = fileIdentity;
+        }
+    }
+
+    private static class FileIdentity
+    {
+        private final Object fileKey;
+        private final long modifiedMillis;
+
+        FileIdentity(Object fileKey, long modifiedMillis)
+        {
+            this.fileKey = fileKey;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            FileIdentity other = (FileIdentity) obj;
+            return Objects.equals(fileKey, other.fileKey) && modifiedMillis == other.modifiedMillis;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(fileKey, modifiedMillis);
+        }
     }
 }
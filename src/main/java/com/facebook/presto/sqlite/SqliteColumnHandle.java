@@ -19,7 +19,9 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.Objects;
+import java.util.Optional;
 
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
 import static java.util.Objects.requireNonNull;
 
 public class SqliteColumnHandle
@@ -28,16 +30,37 @@ public class SqliteColumnHandle
     private final String columnName;
     private final Type type;
     private final int ordinalPosition;
+    private final boolean inferred;
+    private final Optional<SqliteTemporalEncoding> temporalEncoding;
+    private final boolean temporalPushdown;
+    private final Kind kind;
+    private final Optional<String> jsonPath;
+    private final boolean lowCardinality;
+    private final Affinity affinity;
 
     @JsonCreator
     public SqliteColumnHandle(
             @JsonProperty("columnName") String columnName,
             @JsonProperty("type") Type type,
-            @JsonProperty("ordinalPosition") int ordinalPosition)
+            @JsonProperty("ordinalPosition") int ordinalPosition,
+            @JsonProperty("inferred") boolean inferred,
+            @JsonProperty("temporalEncoding") Optional<SqliteTemporalEncoding> temporalEncoding,
+            @JsonProperty("temporalPushdown") boolean temporalPushdown,
+            @JsonProperty("kind") Kind kind,
+            @JsonProperty("jsonPath") Optional<String> jsonPath,
+            @JsonProperty("lowCardinality") boolean lowCardinality,
+            @JsonProperty("affinity") Affinity affinity)
     {
         this.columnName = requireNonNull(columnName, "columnName is null");
         this.type = requireNonNull(type, "type is null");
         this.ordinalPosition = ordinalPosition;
+        this.inferred = inferred;
+        this.temporalEncoding = requireNonNull(temporalEncoding, "temporalEncoding is null");
+        this.temporalPushdown = temporalPushdown;
+        this.kind = requireNonNull(kind, "kind is null");
+        this.jsonPath = requireNonNull(jsonPath, "jsonPath is null");
+        this.lowCardinality = lowCardinality;
+        this.affinity = requireNonNull(affinity, "affinity is null");
     }
 
     @JsonProperty
@@ -58,9 +81,118 @@ public class SqliteColumnHandle
         return ordinalPosition;
     }
 
+    /**
+     * Whether the type was inferred from sampled values rather than the declared type. The
+     * stored values may still be text, so they are converted and checked when read.
+     */
+    @JsonProperty
+    public boolean isInferred()
+    {
+        return inferred;
+    }
+
+    /**
+     * How the values of a DATE or TIMESTAMP column are stored; empty for other types.
+     */
+    @JsonProperty
+    public Optional<SqliteTemporalEncoding> getTemporalEncoding()
+    {
+        return temporalEncoding;
+    }
+
+    /**
+     * Whether the sampled values of the DATE or TIMESTAMP column are all stored in its encoding,
+     * so that bounds on it can be pushed down written in that encoding.
+     */
+    @JsonProperty
+    public boolean isTemporalPushdown()
+    {
+        return temporalPushdown;
+    }
+
+    @JsonProperty
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * Path of the value a {@link Kind#JSON_SCALAR} column extracts from the column's JSON text.
+     */
+    @JsonProperty
+    public Optional<String> getJsonPath()
+    {
+        return jsonPath;
+    }
+
+    /**
+     * Whether the sampled values of the VARCHAR column repeat a few distinct strings, so scans
+     * return it as dictionary blocks.
+     */
+    @JsonProperty
+    public boolean isLowCardinality()
+    {
+        return lowCardinality;
+    }
+
+    /**
+     * SQLite's affinity of the column, from its declared type, which decides how SQLite
+     * compares and sorts its values.
+     */
+    @JsonProperty
+    public Affinity getAffinity()
+    {
+        return affinity;
+    }
+
+    public boolean isHidden()
+    {
+        return kind != Kind.REGULAR;
+    }
+
+    /**
+     * SQL expression that reads the column in a scan.
+     */
+    public String getSelectExpression()
+    {
+        String quotedName = "\"" + columnName + "\"";
+        switch (kind) {
+            case FTS_MATCH:
+                // The full-text query column of an FTS5 table has no value of its own
+                return "NULL";
+            case JSON_SCALAR:
+                return getJsonScalarExpression(quotedName, jsonPath.get());
+            case ROWID:
+                return "ROWID";
+            default:
+                return quotedName;
+        }
+    }
+
+    /**
+     * Extracts a scalar the way Presto's {@code json_extract_scalar} does: strings unquoted,
+     * numbers in their original text and booleans as {@code true}/{@code false}; JSON nulls,
+     * objects, arrays, missing values and malformed documents are NULL.
+     */
+    static String getJsonScalarExpression(String quotedName, String path)
+    {
+        String quotedPath = SqliteMetadata.valueToLiteral(VARCHAR, path);
+        return "CASE WHEN json_valid(" + quotedName + ") THEN CASE json_type(" + quotedName + ", " + quotedPath + ")"
+                + " WHEN 'text' THEN json_extract(" + quotedName + ", " + quotedPath + ")"
+                // -> returns a number as it is written in the document, e.g. 1.50 rather than 1.5
+                + " WHEN 'integer' THEN " + quotedName + " -> " + quotedPath
+                + " WHEN 'real' THEN " + quotedName + " -> " + quotedPath
+                + " WHEN 'true' THEN 'true'"
+                + " WHEN 'false' THEN 'false'"
+                + " END END";
+    }
+
     @Override
     public String toString()
     {
+        if (jsonPath.isPresent()) {
+            return "sqlite:" + columnName + ":" + jsonPath.get() + ":" + type;
+        }
         return "sqlite:" + columnName + ":" + type;
     }
 
@@ -74,12 +206,36 @@ public class SqliteColumnHandle
             return false;
         }
         SqliteColumnHandle that = (SqliteColumnHandle) o;
-        return Objects.equals(columnName, that.columnName);
+        return Objects.equals(columnName, that.columnName) && kind == that.kind && Objects.equals(jsonPath, that.jsonPath);
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash(columnName);
+        return Objects.hash(columnName, kind, jsonPath);
+    }
+
+    public enum Kind
+    {
+        REGULAR,
+        // The hidden column of an FTS5 table that is named after the table; a value
+        // compared to it is an FTS5 query, which SQLite answers from the full-text index
+        FTS_MATCH,
+        // FTS5's hidden rank column, the bm25 score of a row under the MATCH query
+        FTS_RANK,
+        // A scalar extracted by SQLite from the JSON text in the column, in place of the whole document
+        JSON_SCALAR,
+        // The hidden $rowid column, the ROWID of each row of a table that has one
+        ROWID,
+    }
+
+    public enum Affinity
+    {
+        INTEGER,
+        TEXT,
+        // No affinity: untyped and BLOB columns, and columns of virtual tables and expressions
+        BLOB,
+        REAL,
+        NUMERIC,
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.sqlite.SqliteConfig.TypeMismatch;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+/**
+ * Local columnar copies of tables of the main file, see {@link SqliteColumnarFile}, which
+ * scans of the tables read instead of the database file. A wide table stores every column of a
+ * row together, so SQLite reads all of a row's bytes even when a query projects two of its
+ * columns; the copy lets the scan map only those two, and skip chunks whose ranges the query's
+ * domains exclude.
+ * <p>
+ * Every node copies the tables of {@code sqlite.columnar-cache.tables} on a background thread,
+ * one file per table. A copy is tagged with the size and modification time of the database
+ * file and its write-ahead log when the copy began, and is only read while they are unchanged;
+ * once they change, scans read the database file again until the copy has been rebuilt. A copy
+ * left by a previous run is reused if the file is still unchanged.
+ */
+public class SqliteColumnarCache
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteColumnarCache.class);
+
+    private static final String BUILD_QUERY_ID = "columnar-cache";
+
+    private final SqliteClient sqliteClient;
+    private final SqliteScanLog scanLog;
+    private final SqliteIndexAdvisor indexAdvisor;
+    private final SqliteMetadata metadata;
+    private final TypeMismatch typeMismatch;
+    private final List<String> tables;
+    private final Path directory;
+    private final Path dbFile;
+    private final long checkIntervalMillis;
+    private final Map<String, SqliteColumnarFile> copies = new ConcurrentHashMap<>();
+    // Fingerprint of the database file a copy last failed for, so it is not retried until the file changes
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    public SqliteColumnarCache(SqliteClient sqliteClient, SqliteScanLog scanLog, SqliteIndexAdvisor indexAdvisor, SqliteMetadata metadata, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        this.scanLog = requireNonNull(scanLog, "scanLog is null");
+        this.indexAdvisor = requireNonNull(indexAdvisor, "indexAdvisor is null");
+        this.metadata = requireNonNull(metadata, "metadata is null");
+        requireNonNull(config, "config is null");
+        this.typeMismatch = config.getTypeMismatch();
+        this.tables = config.getColumnarCacheTables().stream()
+                .map(table -> table.toLowerCase(Locale.ENGLISH))
+                .collect(Collectors.toList());
+        this.directory = Paths.get(config.getColumnarCacheDirectory());
+        this.dbFile = Paths.get(config.getDbPath());
+        this.checkIntervalMillis = config.getColumnarCacheCheckIntervalMillis();
+        this.executor = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-columnar-cache-%s")
+                .setDaemon(true)
+                .build());
+    }
+
+    public void start()
+    {
+        if (!tables.isEmpty()) {
+            executor.scheduleWithFixedDelay(this::refresh, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The copy of a table of the main file, if it has one that is current.
+     */
+    public Optional<SqliteColumnarFile> getCopy(String table)
+    {
+        SqliteColumnarFile copy = copies.get(table.toLowerCase(Locale.ENGLISH));
+        if (copy == null) {
+            return Optional.empty();
+        }
+        // The file may have changed since the last check
+        if (!readFingerprint().map(copy.getFingerprint()::equals).orElse(false)) {
+            return Optional.empty();
+        }
+        return Optional.of(copy);
+    }
+
+    private void refresh()
+    {
+        Optional<String> fingerprint = readFingerprint();
+        if (!fingerprint.isPresent()) {
+            return;
+        }
+        for (String table : tables) {
+            SqliteColumnarFile copy = copies.get(table);
+            if (copy != null && copy.getFingerprint().equals(fingerprint.get())) {
+                continue;
+            }
+            if (copy != null) {
+                copies.remove(table);
+                log.info("SQLite database {} has changed; {} is read from it until its columnar copy is rebuilt", dbFile, table);
+            }
+            if (fingerprint.get().equals(failures.get(table))) {
+                continue;
+            }
+            try {
+                Optional<SqliteColumnarFile> current = openStored(table, fingerprint.get());
+                if (!current.isPresent()) {
+                    current = build(table, fingerprint.get());
+                }
+                current.ifPresent(file -> copies.put(table, file));
+            }
+            catch (IOException | RuntimeException e) {
+                failures.put(table, fingerprint.get());
+                log.warn("Failed to make a columnar copy of {}", table, e);
+            }
+        }
+    }
+
+    private Optional<SqliteColumnarFile> openStored(String table, String fingerprint)
+    {
+        Path path = getPath(table);
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+        try {
+            SqliteColumnarFile file = SqliteColumnarFile.open(path);
+            if (file.getFingerprint().equals(fingerprint)) {
+                log.info("Reusing columnar copy {} of {}", path, table);
+                return Optional.of(file);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable columnar copy {}", path, e);
+        }
+        return Optional.empty();
+    }
+
+    private Optional<SqliteColumnarFile> build(String table, String fingerprint)
+            throws IOException
+    {
+        List<SqliteColumnHandle> columns = metadata.getColumns(SqliteMetadata.DEFAULT_SCHEMA, table).stream()
+                .filter(column -> column.getKind() == SqliteColumnHandle.Kind.REGULAR || column.getKind() == SqliteColumnHandle.Kind.ROWID)
+                .collect(Collectors.toList());
+        if (columns.stream().noneMatch(column -> column.getKind() == SqliteColumnHandle.Kind.ROWID)) {
+            // Views and WITHOUT ROWID tables: a split's ROWID range could not be found in the copy
+            failures.put(table, fingerprint);
+            log.warn("{} has no ROWID and is not copied into a columnar file", table);
+            return Optional.empty();
+        }
+
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        Path path = getPath(table);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        List<String> names = columns.stream()
+                .map(SqliteColumnHandle::getColumnName)
+                .collect(Collectors.toList());
+        List<Type> types = columns.stream()
+                .map(SqliteColumnHandle::getType)
+                .collect(Collectors.toList());
+        SqliteTableHandle tableHandle = new SqliteTableHandle(SqliteMetadata.DEFAULT_SCHEMA, table);
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 20);
+                SqliteRecordCursor cursor = new SqliteRecordSet(sqliteClient, scanLog, indexAdvisor, BUILD_QUERY_ID, tableHandle, columns, "", -1, -1, "ROWID", Optional.empty(), typeMismatch).cursor()) {
+            SqliteColumnarFile.Writer writer = new SqliteColumnarFile.Writer(output, fingerprint, names, types);
+            while (cursor.advanceNextPosition()) {
+                writer.append(cursor);
+            }
+            writer.finish();
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        // Rows read after a change would not match the fingerprint; the next check copies the table again
+        if (!readFingerprint().equals(Optional.of(fingerprint))) {
+            Files.deleteIfExists(temporary);
+            log.info("SQLite database {} changed while {} was copied into a columnar file", dbFile, table);
+            return Optional.empty();
+        }
+        Files.move(temporary, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        SqliteColumnarFile file = SqliteColumnarFile.open(path);
+        log.info("Copied {} into columnar file {}: {} rows, {} MB in {} ms",
+                table,
+                path,
+                file.getRowCount(),
+                file.getSizeInBytes() / (1024 * 1024),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return Optional.of(file);
+    }
+
+    private Path getPath(String table)
+    {
+        return directory.resolve(table.replaceAll("[^a-z0-9_.-]", "_") + ".columnar");
+    }
+
+    /**
+     * Identity, size and modification time of the database file and of its write-ahead log if
+     * it holds any frames; empty if the database file cannot be read.
+     */
+    private Optional<String> readFingerprint()
+    {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Path file : ImmutableList.of(dbFile, Paths.get(dbFile + "-wal"))) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                // Readers create an empty log when they open a file in WAL mode
+                if (file.equals(dbFile) || attributes.size() > 0) {
+                    fingerprint.append(attributes.fileKey())
+                            .append(':').append(attributes.size())
+                            .append(':').append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+                            .append(';');
+                }
+            }
+            catch (NoSuchFileException e) {
+                if (file.equals(dbFile)) {
+                    return Optional.empty();
+                }
+            }
+            catch (IOException e) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(fingerprint.toString());
+    }
+}
@@ -0,0 +1,812 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.block.Block;
+import com.facebook.presto.common.block.BlockBuilder;
+import com.facebook.presto.common.block.DictionaryBlock;
+import com.facebook.presto.common.block.VariableWidthBlock;
+import com.facebook.presto.common.predicate.Domain;
+import com.facebook.presto.common.predicate.Range;
+import com.facebook.presto.common.predicate.ValueSet;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.common.type.VarcharType;
+import com.facebook.presto.common.type.VariableWidthType;
+import com.facebook.presto.spi.RecordCursor;
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.BasicSliceInput;
+import io.airlift.slice.DynamicSliceOutput;
+import io.airlift.slice.OutputStreamSliceOutput;
+import io.airlift.slice.Slice;
+import io.airlift.slice.SliceOutput;
+import io.airlift.slice.Slices;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.facebook.presto.common.type.RealType.REAL;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A table's rows, in ROWID order, stored column by column in chunks of {@link #CHUNK_ROWS}
+ * rows. Each column of a chunk is stored by itself: integers, dates, timestamps and booleans
+ * as bit-packed offsets from the chunk's minimum, doubles as they are, and strings as a
+ * dictionary of the distinct values and bit-packed ids where values repeat, otherwise as
+ * offsets and bytes. A footer at the end of the file holds where each column chunk is, how
+ * many of its values are NULL and its minimum and maximum, so that a scan reads only the
+ * columns it projects and can tell a chunk's ranges without reading it. All values are little
+ * endian.
+ */
+public final class SqliteColumnarFile
+{
+    public static final int CHUNK_ROWS = 16384;
+
+    private static final int MAGIC = 0x434c5153;
+    private static final int FORMAT_VERSION = 1;
+    // Chunks mapped together, so a large file needs a few mappings rather than one per chunk
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    // Minimum and maximum of longer strings are not kept
+    private static final int MAX_STATS_BYTES = 64;
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private static final byte NO_STATS = 0;
+    private static final byte LONG_STATS = 1;
+    private static final byte DOUBLE_STATS = 2;
+    private static final byte SLICE_STATS = 3;
+
+    private static final byte PLAIN = 0;
+    private static final byte DICTIONARY = 1;
+
+    private final String fingerprint;
+    private final List<String> columnNames;
+    private final List<String> columnTypes;
+    private final List<Chunk> chunks;
+    private final long rowCount;
+    private final long sizeInBytes;
+
+    private SqliteColumnarFile(String fingerprint, List<String> columnNames, List<String> columnTypes, List<Chunk> chunks, long sizeInBytes)
+    {
+        this.fingerprint = fingerprint;
+        this.columnNames = ImmutableList.copyOf(columnNames);
+        this.columnTypes = ImmutableList.copyOf(columnTypes);
+        this.chunks = ImmutableList.copyOf(chunks);
+        this.rowCount = chunks.stream().mapToLong(Chunk::getRows).sum();
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * State of the database file the rows were read from; see {@link SqliteColumnarCache}.
+     */
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    public List<Chunk> getChunks()
+    {
+        return chunks;
+    }
+
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    public long getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+    /**
+     * Index of the column with the name and type, or -1 if the file has no such column, e.g.
+     * because the column's type was inferred differently when the file was written.
+     */
+    public int getColumnIndex(String name, Type type)
+    {
+        int index = columnNames.indexOf(name);
+        if (index < 0 || !columnTypes.get(index).equals(type.getTypeSignature().toString())) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Maps the file. The mapping stays valid after the file is replaced or deleted, so scans
+     * that are reading it finish on it.
+     */
+    public static SqliteColumnarFile open(Path path)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path)) {
+            long size = channel.size();
+            Slice trailer = read(channel, size - Long.BYTES - Integer.BYTES, Long.BYTES + Integer.BYTES);
+            if (size < Long.BYTES + Integer.BYTES || trailer.getInt(Long.BYTES) != MAGIC) {
+                throw new IOException("Not a columnar file: " + path);
+            }
+            long footerOffset = trailer.getLong(0);
+            BasicSliceInput footer = read(channel, footerOffset, size - Long.BYTES - Integer.BYTES - footerOffset).getInput();
+            if (footer.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported columnar file version: " + path);
+            }
+            String fingerprint = readString(footer);
+            int columnCount = footer.readInt();
+            List<String> names = new ArrayList<>();
+            List<String> types = new ArrayList<>();
+            for (int column = 0; column < columnCount; column++) {
+                names.add(readString(footer));
+                types.add(readString(footer));
+            }
+
+            int chunkCount = footer.readInt();
+            List<Integer> chunkRows = new ArrayList<>();
+            List<long[]> chunkRegions = new ArrayList<>();
+            List<ColumnStats[]> chunkStats = new ArrayList<>();
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                chunkRows.add(footer.readInt());
+                long[] regions = new long[columnCount * 2];
+                ColumnStats[] stats = new ColumnStats[columnCount];
+                for (int column = 0; column < columnCount; column++) {
+                    regions[column * 2] = footer.readLong();
+                    regions[column * 2 + 1] = footer.readInt();
+                    stats[column] = ColumnStats.read(footer);
+                }
+                chunkRegions.add(regions);
+                chunkStats.add(stats);
+            }
+
+            List<Chunk> chunks = new ArrayList<>();
+            int first = 0;
+            while (first < chunkCount) {
+                long start = chunkStart(chunkRegions.get(first));
+                int last = first;
+                while (last + 1 < chunkCount && chunkEnd(chunkRegions.get(last + 1)) - start <= MAX_SEGMENT_BYTES) {
+                    last++;
+                }
+                long end = chunkEnd(chunkRegions.get(last));
+                checkArgument(end - start <= Integer.MAX_VALUE, "Chunk too large: %s bytes", end - start);
+                Slice segment = Slices.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                for (int chunk = first; chunk <= last; chunk++) {
+                    long[] regions = chunkRegions.get(chunk);
+                    Slice[] data = new Slice[columnCount];
+                    for (int column = 0; column < columnCount; column++) {
+                        data[column] = segment.slice((int) (regions[column * 2] - start), (int) regions[column * 2 + 1]);
+                    }
+                    chunks.add(new Chunk(chunkRows.get(chunk), data, chunkStats.get(chunk)));
+                }
+                first = last + 1;
+            }
+            return new SqliteColumnarFile(fingerprint, names, types, chunks, size);
+        }
+    }
+
+    private static long chunkStart(long[] regions)
+    {
+        long start = Long.MAX_VALUE;
+        for (int i = 0; i < regions.length; i += 2) {
+            start = Math.min(start, regions[i]);
+        }
+        return start;
+    }
+
+    private static long chunkEnd(long[] regions)
+    {
+        long end = 0;
+        for (int i = 0; i < regions.length; i += 2) {
+            end = Math.max(end, regions[i] + regions[i + 1]);
+        }
+        return end;
+    }
+
+    private static Slice read(FileChannel channel, long position, long length)
+            throws IOException
+    {
+        if (position < 0 || length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt columnar file");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated columnar file");
+            }
+        }
+        return Slices.wrappedBuffer(buffer.array());
+    }
+
+    private static String readString(BasicSliceInput input)
+    {
+        return input.readSlice(input.readInt()).toStringUtf8();
+    }
+
+    private static void writeString(SliceOutput output, String value)
+    {
+        Slice slice = Slices.utf8Slice(value);
+        output.writeInt(slice.length());
+        output.writeBytes(slice);
+    }
+
+    private static Kind kindOf(Type type)
+    {
+        Class<?> javaType = type.getJavaType();
+        if (javaType == long.class || javaType == boolean.class) {
+            return Kind.LONG;
+        }
+        if (javaType == double.class) {
+            return Kind.DOUBLE;
+        }
+        return Kind.SLICE;
+    }
+
+    private enum Kind
+    {
+        LONG,
+        DOUBLE,
+        SLICE,
+    }
+
+    public static class Chunk
+    {
+        private final int rows;
+        private final Slice[] data;
+        private final ColumnStats[] stats;
+
+        Chunk(int rows, Slice[] data, ColumnStats[] stats)
+        {
+            this.rows = rows;
+            this.data = data;
+            this.stats = stats;
+        }
+
+        public int getRows()
+        {
+            return rows;
+        }
+
+        public long getSizeInBytes(int column)
+        {
+            return data[column].length();
+        }
+
+        /**
+         * Domain that holds every value of the column in this chunk, or empty if the chunk
+         * does not record one.
+         */
+        public Optional<Domain> getDomain(int column, Type type)
+        {
+            ColumnStats columnStats = stats[column];
+            if (columnStats.nullCount == rows) {
+                return Optional.of(Domain.onlyNull(type));
+            }
+            if (columnStats.min == null) {
+                return Optional.empty();
+            }
+            Object min = columnStats.min;
+            Object max = columnStats.max;
+            if (type.getJavaType() == boolean.class) {
+                min = ((Long) min) != 0;
+                max = ((Long) max) != 0;
+            }
+            return Optional.of(Domain.create(ValueSet.ofRanges(Range.range(type, min, true, max, true)), columnStats.nullCount > 0));
+        }
+
+        /**
+         * Smallest and largest value of a column stored as integers, which has no NULLs; used
+         * for the ROWID column.
+         */
+        public long getMin(int column)
+        {
+            return (Long) stats[column].min;
+        }
+
+        public long getMax(int column)
+        {
+            return (Long) stats[column].max;
+        }
+
+        public long[] readLongs(int column)
+        {
+            Slice slice = data[column];
+            int position = stats[column].nullCount > 0 ? nullWords(rows) * Long.BYTES : 0;
+            long base = slice.getLong(position);
+            int width = slice.getByte(position + Long.BYTES);
+            int words = position + Long.BYTES + 1;
+            long[] values = new long[rows];
+            for (int row = 0; row < rows; row++) {
+                values[row] = base + unpack(slice, words, row, width);
+            }
+            return values;
+        }
+
+        /**
+         * Reads the values of the rows from {@code from} up to {@code to} of a column.
+         */
+        public Block read(int column, Type type, int from, int to)
+        {
+            int positions = to - from;
+            Slice slice = data[column];
+            int nullCount = stats[column].nullCount;
+            if (nullCount == rows) {
+                BlockBuilder builder = type.createBlockBuilder(null, positions);
+                for (int i = 0; i < positions; i++) {
+                    builder.appendNull();
+                }
+                return builder.build();
+            }
+            boolean[] nulls = null;
+            int position = 0;
+            if (nullCount > 0) {
+                nulls = new boolean[positions];
+                for (int i = 0; i < positions; i++) {
+                    nulls[i] = unpack(slice, 0, from + i, 1) != 0;
+                }
+                position = nullWords(rows) * Long.BYTES;
+            }
+
+            switch (kindOf(type)) {
+                case LONG: {
+                    long base = slice.getLong(position);
+                    int width = slice.getByte(position + Long.BYTES);
+                    int words = position + Long.BYTES + 1;
+                    BlockBuilder builder = type.createBlockBuilder(null, positions);
+                    boolean bool = type.getJavaType() == boolean.class;
+                    for (int i = 0; i < positions; i++) {
+                        if (nulls != null && nulls[i]) {
+                            builder.appendNull();
+                        }
+                        else if (bool) {
+                            type.writeBoolean(builder, unpack(slice, words, from + i, width) != 0);
+                        }
+                        else {
+                            type.writeLong(builder, base + unpack(slice, words, from + i, width));
+                        }
+                    }
+                    return builder.build();
+                }
+                case DOUBLE: {
+                    BlockBuilder builder = type.createBlockBuilder(null, positions);
+                    for (int i = 0; i < positions; i++) {
+                        if (nulls != null && nulls[i]) {
+                            builder.appendNull();
+                        }
+                        else {
+                            type.writeDouble(builder, slice.getDouble(position + (from + i) * Double.BYTES));
+                        }
+                    }
+                    return builder.build();
+                }
+                default:
+                    return readSlices(slice, position, type, from, positions, nulls);
+            }
+        }
+
+        private Block readSlices(Slice slice, int position, Type type, int from, int positions, boolean[] nulls)
+        {
+            byte encoding = slice.getByte(position);
+            position++;
+            if (encoding == DICTIONARY) {
+                int dictionarySize = slice.getInt(position);
+                int offsets = position + Integer.BYTES;
+                int bytes = offsets + (dictionarySize + 1) * Integer.BYTES;
+                int width = slice.getByte(bytes + slice.getInt(offsets + dictionarySize * Integer.BYTES));
+                int words = bytes + slice.getInt(offsets + dictionarySize * Integer.BYTES) + 1;
+                // A NULL entry after the values, for the rows that are NULL
+                Block dictionary = readValues(slice, offsets, bytes, type, 0, dictionarySize, nulls == null ? null : new boolean[dictionarySize + 1], nulls != null);
+                int[] ids = new int[positions];
+                for (int i = 0; i < positions; i++) {
+                    ids[i] = nulls != null && nulls[i] ? dictionarySize : (int) unpack(slice, words, from + i, width);
+                }
+                return new DictionaryBlock(positions, dictionary, ids);
+            }
+            int offsets = position;
+            int bytes = offsets + (rows + 1) * Integer.BYTES;
+            return readValues(slice, offsets, bytes, type, from, positions, nulls, false);
+        }
+
+        private static Block readValues(Slice slice, int offsets, int bytes, Type type, int from, int positions, boolean[] nulls, boolean nullEntry)
+        {
+            int count = nullEntry ? positions + 1 : positions;
+            if (type instanceof VariableWidthType) {
+                // The values stay in the mapped file
+                int start = slice.getInt(offsets + from * Integer.BYTES);
+                int[] valueOffsets = new int[count + 1];
+                for (int i = 0; i <= positions; i++) {
+                    valueOffsets[i] = slice.getInt(offsets + (from + i) * Integer.BYTES) - start;
+                }
+                if (nullEntry) {
+                    valueOffsets[count] = valueOffsets[positions];
+                    nulls[positions] = true;
+                }
+                Slice values = slice.slice(bytes + start, valueOffsets[positions]);
+                return new VariableWidthBlock(count, values, valueOffsets, Optional.ofNullable(nulls));
+            }
+            BlockBuilder builder = type.createBlockBuilder(null, count);
+            for (int i = 0; i < positions; i++) {
+                if (nulls != null && nulls[i]) {
+                    builder.appendNull();
+                    continue;
+                }
+                int start = slice.getInt(offsets + (from + i) * Integer.BYTES);
+                int end = slice.getInt(offsets + (from + i + 1) * Integer.BYTES);
+                type.writeSlice(builder, slice.slice(bytes + start, end - start));
+            }
+            if (nullEntry) {
+                builder.appendNull();
+            }
+            return builder.build();
+        }
+    }
+
+    private static int nullWords(int rows)
+    {
+        return (rows + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static long unpack(Slice slice, int words, int index, int width)
+    {
+        if (width == 0) {
+            return 0;
+        }
+        long bit = (long) index * width;
+        int word = (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        long value = slice.getLong(words + word * Long.BYTES) >>> shift;
+        if (shift + width > Long.SIZE) {
+            value |= slice.getLong(words + (word + 1) * Long.BYTES) << (Long.SIZE - shift);
+        }
+        return width == Long.SIZE ? value : value & ((1L << width) - 1);
+    }
+
+    private static void pack(SliceOutput output, long[] values, int count, int width)
+    {
+        if (width == 0) {
+            return;
+        }
+        long word = 0;
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            long value = values[i];
+            word |= value << bits;
+            if (bits + width >= Long.SIZE) {
+                output.writeLong(word);
+                int written = Long.SIZE - bits;
+                word = written == Long.SIZE ? 0 : value >>> written;
+                bits = bits + width - Long.SIZE;
+            }
+            else {
+                bits += width;
+            }
+        }
+        if (bits > 0) {
+            output.writeLong(word);
+        }
+    }
+
+    private static int bitWidth(long unsignedMax)
+    {
+        return Long.SIZE - Long.numberOfLeadingZeros(unsignedMax);
+    }
+
+    private static class ColumnStats
+    {
+        private final int nullCount;
+        // Longs, doubles or slices; null if not recorded
+        private final Object min;
+        private final Object max;
+
+        ColumnStats(int nullCount, Object min, Object max)
+        {
+            this.nullCount = nullCount;
+            this.min = min;
+            this.max = max;
+        }
+
+        void write(SliceOutput output)
+        {
+            output.writeInt(nullCount);
+            if (min instanceof Long) {
+                output.writeByte(LONG_STATS);
+                output.writeLong((Long) min);
+                output.writeLong((Long) max);
+            }
+            else if (min instanceof Double) {
+                output.writeByte(DOUBLE_STATS);
+                output.writeDouble((Double) min);
+                output.writeDouble((Double) max);
+            }
+            else if (min instanceof Slice) {
+                output.writeByte(SLICE_STATS);
+                output.writeInt(((Slice) min).length());
+                output.writeBytes((Slice) min);
+                output.writeInt(((Slice) max).length());
+                output.writeBytes((Slice) max);
+            }
+            else {
+                output.writeByte(NO_STATS);
+            }
+        }
+
+        static ColumnStats read(BasicSliceInput input)
+        {
+            int nullCount = input.readInt();
+            switch (input.readByte()) {
+                case LONG_STATS:
+                    return new ColumnStats(nullCount, input.readLong(), input.readLong());
+                case DOUBLE_STATS:
+                    return new ColumnStats(nullCount, input.readDouble(), input.readDouble());
+                case SLICE_STATS:
+                    Slice min = Slices.copyOf(input.readSlice(input.readInt()));
+                    return new ColumnStats(nullCount, min, Slices.copyOf(input.readSlice(input.readInt())));
+                default:
+                    return new ColumnStats(nullCount, null, null);
+            }
+        }
+    }
+
+    /**
+     * Writes rows read from a cursor, whose fields are the given columns, chunk by chunk.
+     */
+    public static class Writer
+    {
+        private final OutputStreamSliceOutput output;
+        private final String fingerprint;
+        private final List<String> columnNames;
+        private final List<Type> types;
+        private final ColumnBuffer[] buffers;
+        private final DynamicSliceOutput footer = new DynamicSliceOutput(1024);
+        private int chunkCount;
+        private int rows;
+
+        public Writer(OutputStream output, String fingerprint, List<String> columnNames, List<Type> types)
+        {
+            this.output = new OutputStreamSliceOutput(requireNonNull(output, "output is null"));
+            this.fingerprint = requireNonNull(fingerprint, "fingerprint is null");
+            this.columnNames = ImmutableList.copyOf(columnNames);
+            this.types = ImmutableList.copyOf(types);
+            this.buffers = new ColumnBuffer[types.size()];
+            for (int column = 0; column < buffers.length; column++) {
+                buffers[column] = new ColumnBuffer(types.get(column));
+            }
+        }
+
+        public void append(RecordCursor cursor)
+        {
+            for (int column = 0; column < buffers.length; column++) {
+                buffers[column].append(cursor, column, rows);
+            }
+            rows++;
+            if (rows == CHUNK_ROWS) {
+                flushChunk();
+            }
+        }
+
+        private void flushChunk()
+        {
+            footer.writeInt(rows);
+            for (ColumnBuffer buffer : buffers) {
+                footer.writeLong(output.longSize());
+                DynamicSliceOutput data = new DynamicSliceOutput(rows * Long.BYTES);
+                ColumnStats stats = buffer.write(data, rows);
+                output.writeBytes(data.slice());
+                footer.writeInt(data.size());
+                stats.write(footer);
+            }
+            chunkCount++;
+            rows = 0;
+        }
+
+        /**
+         * Writes the last chunk and the footer, and flushes the output.
+         */
+        public void finish()
+                throws IOException
+        {
+            if (rows > 0) {
+                flushChunk();
+            }
+            long footerOffset = output.longSize();
+            output.writeInt(FORMAT_VERSION);
+            writeString(output, fingerprint);
+            output.writeInt(columnNames.size());
+            for (int column = 0; column < columnNames.size(); column++) {
+                writeString(output, columnNames.get(column));
+                writeString(output, types.get(column).getTypeSignature().toString());
+            }
+            output.writeInt(chunkCount);
+            output.writeBytes(footer.slice());
+            output.writeLong(footerOffset);
+            output.writeInt(MAGIC);
+            output.flush();
+        }
+    }
+
+    private static class ColumnBuffer
+    {
+        private final Type type;
+        private final Kind kind;
+        private final boolean[] nulls = new boolean[CHUNK_ROWS];
+        private final long[] longs;
+        private final double[] doubles;
+        private final Slice[] slices;
+
+        ColumnBuffer(Type type)
+        {
+            this.type = type;
+            this.kind = kindOf(type);
+            this.longs = kind == Kind.LONG ? new long[CHUNK_ROWS] : null;
+            this.doubles = kind == Kind.DOUBLE ? new double[CHUNK_ROWS] : null;
+            this.slices = kind == Kind.SLICE ? new Slice[CHUNK_ROWS] : null;
+        }
+
+        void append(RecordCursor cursor, int field, int row)
+        {
+            nulls[row] = cursor.isNull(field);
+            if (nulls[row]) {
+                return;
+            }
+            if (kind == Kind.LONG) {
+                longs[row] = type.getJavaType() == boolean.class ? (cursor.getBoolean(field) ? 1 : 0) : cursor.getLong(field);
+            }
+            else if (kind == Kind.DOUBLE) {
+                doubles[row] = cursor.getDouble(field);
+            }
+            else {
+                slices[row] = Slices.copyOf(cursor.getSlice(field));
+            }
+        }
+
+        ColumnStats write(SliceOutput output, int rows)
+        {
+            int nullCount = 0;
+            long[] nullBits = new long[rows];
+            for (int row = 0; row < rows; row++) {
+                if (nulls[row]) {
+                    nullCount++;
+                    nullBits[row] = 1;
+                }
+            }
+            if (nullCount == rows) {
+                return new ColumnStats(nullCount, null, null);
+            }
+            if (nullCount > 0) {
+                pack(output, nullBits, rows, 1);
+            }
+            switch (kind) {
+                case LONG:
+                    return writeLongs(output, rows, nullCount);
+                case DOUBLE:
+                    return writeDoubles(output, rows, nullCount);
+                default:
+                    return writeSlices(output, rows, nullCount);
+            }
+        }
+
+        private ColumnStats writeLongs(SliceOutput output, int rows, int nullCount)
+        {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int row = 0; row < rows; row++) {
+                if (!nulls[row]) {
+                    min = Math.min(min, longs[row]);
+                    max = Math.max(max, longs[row]);
+                }
+            }
+            long[] deltas = new long[rows];
+            for (int row = 0; row < rows; row++) {
+                deltas[row] = nulls[row] ? 0 : longs[row] - min;
+            }
+            int width = bitWidth(max - min);
+            output.writeLong(min);
+            output.writeByte(width);
+            pack(output, deltas, rows, width);
+            // The bits of a REAL do not sort like its values
+            return type.equals(REAL) ? new ColumnStats(nullCount, null, null) : new ColumnStats(nullCount, min, max);
+        }
+
+        private ColumnStats writeDoubles(SliceOutput output, int rows, int nullCount)
+        {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            boolean nan = false;
+            for (int row = 0; row < rows; row++) {
+                output.writeDouble(nulls[row] ? 0 : doubles[row]);
+                if (!nulls[row]) {
+                    nan |= Double.isNaN(doubles[row]);
+                    min = Math.min(min, doubles[row]);
+                    max = Math.max(max, doubles[row]);
+                }
+            }
+            // A range cannot say whether it holds NaN
+            return nan ? new ColumnStats(nullCount, null, null) : new ColumnStats(nullCount, min, max);
+        }
+
+        private ColumnStats writeSlices(SliceOutput output, int rows, int nullCount)
+        {
+            Map<Slice, Integer> ids = new HashMap<>();
+            List<Slice> dictionary = new ArrayList<>();
+            long valueBytes = 0;
+            Slice min = null;
+            Slice max = null;
+            for (int row = 0; row < rows; row++) {
+                if (nulls[row]) {
+                    continue;
+                }
+                Slice value = slices[row];
+                valueBytes += value.length();
+                if (dictionary.size() <= MAX_DICTIONARY_SIZE && !ids.containsKey(value)) {
+                    ids.put(value, dictionary.size());
+                    dictionary.add(value);
+                }
+                if (min == null || value.compareTo(min) < 0) {
+                    min = value;
+                }
+                if (max == null || value.compareTo(max) > 0) {
+                    max = value;
+                }
+            }
+
+            // Worth it once values repeat on average
+            if (dictionary.size() <= MAX_DICTIONARY_SIZE && dictionary.size() * 2 <= rows - nullCount) {
+                output.writeByte(DICTIONARY);
+                output.writeInt(dictionary.size());
+                writeValues(output, dictionary, dictionary.size());
+                long[] values = new long[rows];
+                for (int row = 0; row < rows; row++) {
+                    values[row] = nulls[row] ? 0 : ids.get(slices[row]);
+                }
+                int width = bitWidth(dictionary.size() - 1);
+                output.writeByte(width);
+                pack(output, values, rows, width);
+            }
+            else {
+                output.writeByte(PLAIN);
+                List<Slice> values = new ArrayList<>(rows);
+                for (int row = 0; row < rows; row++) {
+                    values.add(nulls[row] ? Slices.EMPTY_SLICE : slices[row]);
+                }
+                checkArgument(valueBytes <= Integer.MAX_VALUE, "Column chunk too large: %s bytes", valueBytes);
+                writeValues(output, values, rows);
+            }
+            for (int row = 0; row < rows; row++) {
+                slices[row] = null;
+            }
+
+            // Strings compare by their bytes, other types held in slices do not
+            if (type instanceof VarcharType && min.length() <= MAX_STATS_BYTES && max.length() <= MAX_STATS_BYTES) {
+                return new ColumnStats(nullCount, min, max);
+            }
+            return new ColumnStats(nullCount, null, null);
+        }
+
+        private static void writeValues(SliceOutput output, List<Slice> values, int count)
+        {
+            int offset = 0;
+            output.writeInt(offset);
+            for (int i = 0; i < count; i++) {
+                offset += values.get(i).length();
+                output.writeInt(offset);
+            }
+            for (int i = 0; i < count; i++) {
+                output.writeBytes(values.get(i));
+            }
+        }
+    }
+}
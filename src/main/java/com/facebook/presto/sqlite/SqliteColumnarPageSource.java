@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.common.block.Block;
+import com.facebook.presto.common.predicate.Domain;
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.BigintType;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.ConnectorPageSource;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads a split from the columnar copy of its table, a page per chunk in the split's ROWID
+ * range. Chunks whose minimum and maximum fall outside the split's domains are skipped; the
+ * rows of the other chunks are all returned, for Presto to filter as it does the rows SQLite
+ * returns.
+ */
+public class SqliteColumnarPageSource
+        implements ConnectorPageSource
+{
+    private final List<SqliteColumnHandle> columns;
+    private final int[] columnIndexes;
+    private final int rowidColumn;
+    private final long rowidStart;
+    private final long rowidEnd;
+    private final Iterator<SqliteColumnarFile.Chunk> chunks;
+    private long completedBytes;
+    private long completedPositions;
+    private long readTimeNanos;
+    private boolean finished;
+
+    /**
+     * Returns a page source for the split, or empty if the copy lacks one of the columns.
+     */
+    public static Optional<ConnectorPageSource> create(SqliteColumnarFile file, List<SqliteColumnHandle> columns, SqliteSplit split)
+    {
+        int[] columnIndexes = new int[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            SqliteColumnHandle column = columns.get(i);
+            columnIndexes[i] = file.getColumnIndex(column.getColumnName(), column.getType());
+            if (columnIndexes[i] < 0) {
+                return Optional.empty();
+            }
+        }
+        int rowidColumn = file.getColumnIndex(SqliteMetadata.ROWID_COLUMN, BigintType.BIGINT);
+        if (rowidColumn < 0) {
+            return Optional.empty();
+        }
+
+        TupleDomain<ColumnHandle> constraint = split.getConstraint().orElse(TupleDomain.all());
+        long rowidStart = split.hasRowidRange() ? split.getRowidStart() : Long.MIN_VALUE;
+        long rowidEnd = split.hasRowidRange() ? split.getRowidEnd() : Long.MAX_VALUE;
+        ImmutableList.Builder<SqliteColumnarFile.Chunk> chunks = ImmutableList.builder();
+        if (!constraint.isNone()) {
+            Map<ColumnHandle, Domain> domains = constraint.getDomains().get();
+            for (SqliteColumnarFile.Chunk chunk : file.getChunks()) {
+                if (chunk.getMax(rowidColumn) >= rowidStart && chunk.getMin(rowidColumn) <= rowidEnd && mayMatch(file, chunk, domains)) {
+                    chunks.add(chunk);
+                }
+            }
+        }
+        return Optional.of(new SqliteColumnarPageSource(columns, columnIndexes, rowidColumn, rowidStart, rowidEnd, chunks.build()));
+    }
+
+    private static boolean mayMatch(SqliteColumnarFile file, SqliteColumnarFile.Chunk chunk, Map<ColumnHandle, Domain> domains)
+    {
+        for (Map.Entry<ColumnHandle, Domain> entry : domains.entrySet()) {
+            SqliteColumnHandle column = (SqliteColumnHandle) entry.getKey();
+            Domain domain = entry.getValue();
+            int index = file.getColumnIndex(column.getColumnName(), domain.getType());
+            if (index < 0) {
+                continue;
+            }
+            Optional<Domain> values = chunk.getDomain(index, domain.getType());
+            if (values.isPresent() && values.get().intersect(domain).isNone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SqliteColumnarPageSource(List<SqliteColumnHandle> columns, int[] columnIndexes, int rowidColumn, long rowidStart, long rowidEnd, List<SqliteColumnarFile.Chunk> chunks)
+    {
+        this.columns = ImmutableList.copyOf(requireNonNull(columns, "columns is null"));
+        this.columnIndexes = requireNonNull(columnIndexes, "columnIndexes is null");
+        this.rowidColumn = rowidColumn;
+        this.rowidStart = rowidStart;
+        this.rowidEnd = rowidEnd;
+        this.chunks = requireNonNull(chunks, "chunks is null").iterator();
+    }
+
+    @Override
+    public Page getNextPage()
+    {
+        if (finished || !chunks.hasNext()) {
+            finished = true;
+            return null;
+        }
+        long start = System.nanoTime();
+        SqliteColumnarFile.Chunk chunk = chunks.next();
+        int from = 0;
+        int to = chunk.getRows();
+        if (chunk.getMin(rowidColumn) < rowidStart || chunk.getMax(rowidColumn) > rowidEnd) {
+            // A chunk at either end of the split's range; ROWIDs ascend within it
+            long[] rowids = chunk.readLongs(rowidColumn);
+            from = position(rowids, rowidStart);
+            to = rowidEnd == Long.MAX_VALUE ? rowids.length : position(rowids, rowidEnd + 1);
+            completedBytes += chunk.getSizeInBytes(rowidColumn);
+        }
+
+        Block[] blocks = new Block[columns.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = chunk.read(columnIndexes[i], columns.get(i).getType(), from, to);
+            completedBytes += chunk.getSizeInBytes(columnIndexes[i]);
+        }
+        completedPositions += to - from;
+        readTimeNanos += System.nanoTime() - start;
+        return new Page(to - from, blocks);
+    }
+
+    /**
+     * Position of the first ROWID at least as large as the value.
+     */
+    private static int position(long[] rowids, long value)
+    {
+        int position = Arrays.binarySearch(rowids, value);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    @Override
+    public long getCompletedBytes()
+    {
+        return completedBytes;
+    }
+
+    @Override
+    public long getCompletedPositions()
+    {
+        return completedPositions;
+    }
+
+    @Override
+    public long getReadTimeNanos()
+    {
+        return readTimeNanos;
+    }
+
+    @Override
+    public long getSystemMemoryUsage()
+    {
+        return 0;
+    }
+
+    @Override
+    public void close()
+    {
+        finished = true;
+    }
+}
@@ -0,0 +1,746 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Catalog configuration, parsed from the properties in {@code etc/catalog/<name>.properties}.
+ */
+public class SqliteConfig
+{
+    public static final String DB_PATH = "sqlite.db";
+    public static final String SCAN_LOG_SIZE = "sqlite.scan-log-size";
+    public static final String SLOW_SCAN_THRESHOLD = "sqlite.slow-scan-threshold-ms";
+    public static final String WORKER_TASK_CONCURRENCY = "sqlite.worker-task-concurrency";
+    public static final String STORAGE_TYPE = "sqlite.storage-type";
+    public static final String METADATA_CONNECTIONS = "sqlite.metadata-connections";
+    public static final String CONNECTION_QUEUE_TIMEOUT = "sqlite.connection-queue-timeout-ms";
+    public static final String READ_AHEAD_ENABLED = "sqlite.read-ahead.enabled";
+    public static final String READ_AHEAD_BUFFER_PAGES = "sqlite.read-ahead.buffer-pages";
+    public static final String READ_AHEAD_PAGE_ROWS = "sqlite.read-ahead.page-rows";
+    public static final String READ_AHEAD_QUERY_BUFFER = "sqlite.read-ahead.query-buffer-mb";
+    public static final String CO_PARTITIONED_PREFIX = "sqlite.co-partitioned.";
+    public static final String CO_PARTITIONED_BUCKET_COUNT = "sqlite.co-partitioned-bucket-count";
+    public static final String TYPE_INFERENCE_ENABLED = "sqlite.type-inference.enabled";
+    public static final String TYPE_INFERENCE_SAMPLE_ROWS = "sqlite.type-inference.sample-rows";
+    public static final String TYPE_MISMATCH = "sqlite.type-mismatch";
+    public static final String WARMUP_TABLES = "sqlite.warmup.tables";
+    public static final String WARMUP_SCAN_PREFETCH = "sqlite.warmup.scan-prefetch";
+    public static final String FILE_CHECK_INTERVAL = "sqlite.file-check-interval-ms";
+    public static final String RTREE_INDEX_PREFIX = "sqlite.rtree-index.";
+    public static final String ATTACH_PREFIX = "sqlite.attach.";
+    public static final String JOIN_PUSHDOWN_ENABLED = "sqlite.join-pushdown.enabled";
+    public static final String WAL_READER_ENABLED = "sqlite.wal-reader.enabled";
+    public static final String WAL_READER_BUSY_TIMEOUT = "sqlite.wal-reader.busy-timeout-ms";
+    public static final String WAL_READER_SNAPSHOT_TTL = "sqlite.wal-reader.snapshot-ttl-ms";
+    public static final String COLUMNAR_CACHE_TABLES = "sqlite.columnar-cache.tables";
+    public static final String COLUMNAR_CACHE_DIRECTORY = "sqlite.columnar-cache.directory";
+    public static final String COLUMNAR_CACHE_CHECK_INTERVAL = "sqlite.columnar-cache.check-interval-ms";
+    public static final String INDEX_ADVISOR_CREATE_INDEX_ENABLED = "sqlite.index-advisor.create-index.enabled";
+    public static final String DICTIONARY_ENCODING_ENABLED = "sqlite.dictionary-encoding.enabled";
+    public static final String OBJECT_STORE_ENDPOINT = "sqlite.object-store.endpoint";
+    public static final String OBJECT_STORE_REGION = "sqlite.object-store.region";
+    public static final String OBJECT_STORE_ACCESS_KEY = "sqlite.object-store.access-key";
+    public static final String OBJECT_STORE_SECRET_KEY = "sqlite.object-store.secret-key";
+    public static final String OBJECT_STORE_CACHE_DIRECTORY = "sqlite.object-store.cache-directory";
+    public static final String OBJECT_STORE_CACHE_SIZE = "sqlite.object-store.cache-size-gb";
+    public static final String OBJECT_STORE_BLOCK_SIZE = "sqlite.object-store.block-size-mb";
+    public static final String OBJECT_STORE_FETCH_THREADS = "sqlite.object-store.fetch-threads";
+    public static final String OBJECT_STORE_CHECK_INTERVAL = "sqlite.object-store.check-interval-ms";
+    public static final String OBJECT_STORE_WAIT_TIMEOUT = "sqlite.object-store.wait-timeout-ms";
+    public static final String EXPORT_DIRECTORY = "sqlite.export.directory";
+    public static final String LATE_MATERIALIZATION_ENABLED = "sqlite.late-materialization.enabled";
+    public static final String LATE_MATERIALIZATION_MAX_SELECTIVITY = "sqlite.late-materialization.max-selectivity-percent";
+    public static final String LATE_MATERIALIZATION_MIN_ROW_BYTES = "sqlite.late-materialization.min-row-bytes";
+
+    public enum StorageType
+    {
+        SSD,
+        NETWORK,
+    }
+
+    public enum TypeMismatch
+    {
+        NULL,
+        FAIL,
+    }
+
+    /**
+     * An R*Tree table whose entries are the points of a data table: each entry's id is the
+     * ROWID of a data row, and its box on each dimension contains the value of the
+     * corresponding data column.
+     */
+    public static class RtreeIndex
+    {
+        private final String rtreeTable;
+        private final String table;
+        private final List<String> columns;
+
+        public RtreeIndex(String rtreeTable, String table, List<String> columns)
+        {
+            this.rtreeTable = requireNonNull(rtreeTable, "rtreeTable is null");
+            this.table = requireNonNull(table, "table is null");
+            this.columns = ImmutableList.copyOf(requireNonNull(columns, "columns is null"));
+        }
+
+        public String getRtreeTable()
+        {
+            return rtreeTable;
+        }
+
+        public String getTable()
+        {
+            return table;
+        }
+
+        /**
+         * Data column of each R*Tree dimension, in dimension order.
+         */
+        public List<String> getColumns()
+        {
+            return columns;
+        }
+    }
+
+    private final String dbPath;
+    private final int scanLogSize;
+    private final long slowScanThresholdMillis;
+    private final int workerTaskConcurrency;
+    private final StorageType storageType;
+    private final int metadataConnections;
+    private final long connectionQueueTimeoutMillis;
+    private final boolean readAheadEnabled;
+    private final int readAheadBufferPages;
+    private final int readAheadPageRows;
+    private final long readAheadQueryBufferBytes;
+    private final Map<String, Map<String, String>> coPartitionedGroups;
+    private final int coPartitionedBucketCount;
+    private final boolean typeInferenceEnabled;
+    private final int typeInferenceSampleRows;
+    private final TypeMismatch typeMismatch;
+    private final List<String> warmupTables;
+    private final boolean scanPrefetchEnabled;
+    private final long fileCheckIntervalMillis;
+    private final Map<String, RtreeIndex> rtreeIndexes;
+    private final Map<String, String> attachedDatabases;
+    private final boolean joinPushdownEnabled;
+    private final boolean walReaderEnabled;
+    private final long walReaderBusyTimeoutMillis;
+    private final long walSnapshotTtlMillis;
+    private final List<String> columnarCacheTables;
+    private final String columnarCacheDirectory;
+    private final long columnarCacheCheckIntervalMillis;
+    private final boolean createIndexEnabled;
+    private final boolean dictionaryEncodingEnabled;
+    private final Optional<String> objectStoreEndpoint;
+    private final String objectStoreRegion;
+    private final Optional<String> objectStoreAccessKey;
+    private final Optional<String> objectStoreSecretKey;
+    private final String objectStoreCacheDirectory;
+    private final long objectStoreCacheSizeBytes;
+    private final int objectStoreBlockSizeBytes;
+    private final int objectStoreFetchThreads;
+    private final long objectStoreCheckIntervalMillis;
+    private final long objectStoreWaitTimeoutMillis;
+    private final Optional<String> exportDirectory;
+    private final boolean lateMaterializationEnabled;
+    private final int lateMaterializationMaxSelectivityPercent;
+    private final int lateMaterializationMinRowBytes;
+
+    public SqliteConfig(Map<String, String> config)
+    {
+        requireNonNull(config, "config is null");
+
+        this.dbPath = config.get(DB_PATH);
+        if (dbPath == null) {
+            throw new IllegalArgumentException(DB_PATH + " configuration property is required. " +
+                    "Set it to the path of your SQLite database file.");
+        }
+        this.scanLogSize = getInt(config, SCAN_LOG_SIZE, 200);
+        this.slowScanThresholdMillis = getLong(config, SLOW_SCAN_THRESHOLD, 1000);
+        this.workerTaskConcurrency = Math.max(1, getInt(config, WORKER_TASK_CONCURRENCY, 16));
+        this.storageType = getEnum(config, STORAGE_TYPE, StorageType.class, StorageType.SSD);
+        this.metadataConnections = Math.max(1, getInt(config, METADATA_CONNECTIONS, 2));
+        this.connectionQueueTimeoutMillis = getLong(config, CONNECTION_QUEUE_TIMEOUT, 300_000);
+        this.readAheadEnabled = getBoolean(config, READ_AHEAD_ENABLED, false);
+        this.readAheadBufferPages = Math.max(1, getInt(config, READ_AHEAD_BUFFER_PAGES, 4));
+        this.readAheadPageRows = Math.max(1, getInt(config, READ_AHEAD_PAGE_ROWS, 1024));
+        this.readAheadQueryBufferBytes = Math.max(1, getLong(config, READ_AHEAD_QUERY_BUFFER, 64)) * 1024 * 1024;
+        this.coPartitionedGroups = parseCoPartitionedGroups(config);
+        this.coPartitionedBucketCount = Math.max(1, getInt(config, CO_PARTITIONED_BUCKET_COUNT, 16));
+        this.typeInferenceEnabled = getBoolean(config, TYPE_INFERENCE_ENABLED, false);
+        this.typeInferenceSampleRows = getInt(config, TYPE_INFERENCE_SAMPLE_ROWS, 1000);
+        this.typeMismatch = getEnum(config, TYPE_MISMATCH, TypeMismatch.class, TypeMismatch.FAIL);
+        this.warmupTables = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(config.getOrDefault(WARMUP_TABLES, ""));
+        this.scanPrefetchEnabled = getBoolean(config, WARMUP_SCAN_PREFETCH, false);
+        this.fileCheckIntervalMillis = getLong(config, FILE_CHECK_INTERVAL, 1000);
+        this.rtreeIndexes = parseRtreeIndexes(config);
+        this.attachedDatabases = parseAttachedDatabases(config);
+        this.joinPushdownEnabled = getBoolean(config, JOIN_PUSHDOWN_ENABLED, false);
+        this.walReaderEnabled = getBoolean(config, WAL_READER_ENABLED, false);
+        this.walReaderBusyTimeoutMillis = Math.max(0, getLong(config, WAL_READER_BUSY_TIMEOUT, 5000));
+        this.walSnapshotTtlMillis = Math.max(1, getLong(config, WAL_READER_SNAPSHOT_TTL, 10_000));
+        this.columnarCacheTables = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(config.getOrDefault(COLUMNAR_CACHE_TABLES, ""));
+        this.columnarCacheDirectory = config.getOrDefault(COLUMNAR_CACHE_DIRECTORY, dbPath + ".columnar").trim();
+        this.columnarCacheCheckIntervalMillis = Math.max(1, getLong(config, COLUMNAR_CACHE_CHECK_INTERVAL, 10_000));
+        this.createIndexEnabled = getBoolean(config, INDEX_ADVISOR_CREATE_INDEX_ENABLED, false);
+        this.dictionaryEncodingEnabled = getBoolean(config, DICTIONARY_ENCODING_ENABLED, true);
+        this.objectStoreEndpoint = getOptional(config, OBJECT_STORE_ENDPOINT);
+        this.objectStoreRegion = config.getOrDefault(OBJECT_STORE_REGION, "us-east-1").trim();
+        // Like the AWS tools, fall back to the standard environment variables
+        this.objectStoreAccessKey = Optional.ofNullable(getOptional(config, OBJECT_STORE_ACCESS_KEY).orElse(System.getenv("AWS_ACCESS_KEY_ID")));
+        this.objectStoreSecretKey = Optional.ofNullable(getOptional(config, OBJECT_STORE_SECRET_KEY).orElse(System.getenv("AWS_SECRET_ACCESS_KEY")));
+        this.objectStoreCacheDirectory = config.getOrDefault(OBJECT_STORE_CACHE_DIRECTORY, Paths.get(System.getProperty("java.io.tmpdir"), "presto-sqlite-cache").toString()).trim();
+        this.objectStoreCacheSizeBytes = Math.max(0, getLong(config, OBJECT_STORE_CACHE_SIZE, 0)) * 1024 * 1024 * 1024;
+        this.objectStoreBlockSizeBytes = Math.max(1, Math.min(1024, getInt(config, OBJECT_STORE_BLOCK_SIZE, 8))) * 1024 * 1024;
+        this.objectStoreFetchThreads = Math.max(1, getInt(config, OBJECT_STORE_FETCH_THREADS, 8));
+        this.objectStoreCheckIntervalMillis = Math.max(0, getLong(config, OBJECT_STORE_CHECK_INTERVAL, 60_000));
+        this.objectStoreWaitTimeoutMillis = Math.max(0, getLong(config, OBJECT_STORE_WAIT_TIMEOUT, 600_000));
+        this.exportDirectory = getOptional(config, EXPORT_DIRECTORY);
+        this.lateMaterializationEnabled = getBoolean(config, LATE_MATERIALIZATION_ENABLED, true);
+        this.lateMaterializationMaxSelectivityPercent = Math.min(100, getInt(config, LATE_MATERIALIZATION_MAX_SELECTIVITY, 10));
+        this.lateMaterializationMinRowBytes = getInt(config, LATE_MATERIALIZATION_MIN_ROW_BYTES, 256);
+    }
+
+    /**
+     * Path of the database file, or its {@code s3://} or {@code http(s)://} location in object
+     * storage; see {@link SqliteObjectStoreFileCache}.
+     */
+    public String getDbPath()
+    {
+        return dbPath;
+    }
+
+    /**
+     * Number of recent scans kept in {@code system.scan_log}; 0 disables the log.
+     */
+    public int getScanLogSize()
+    {
+        return scanLogSize;
+    }
+
+    /**
+     * Scans running at least this long are logged with their {@code EXPLAIN QUERY PLAN} output.
+     */
+    public long getSlowScanThresholdMillis()
+    {
+        return slowScanThresholdMillis;
+    }
+
+    /**
+     * Should match {@code task.concurrency} of the workers: the number of drivers, and therefore
+     * concurrent split scans, a single task can run.
+     */
+    public int getWorkerTaskConcurrency()
+    {
+        return workerTaskConcurrency;
+    }
+
+    public StorageType getStorageType()
+    {
+        return storageType;
+    }
+
+    /**
+     * Connections reserved for metadata calls, so planning is never starved by long scans.
+     */
+    public int getMetadataConnections()
+    {
+        return metadataConnections;
+    }
+
+    /**
+     * How long a split or metadata call waits in the queue for a connection; 0 waits forever.
+     */
+    public long getConnectionQueueTimeoutMillis()
+    {
+        return connectionQueueTimeoutMillis;
+    }
+
+    /**
+     * Number of concurrent scans. Scans of a local SSD are CPU bound, so there is no gain from
+     * running more than two per core; on network storage each scan mostly waits for I/O, so
+     * twice the task concurrency keeps more requests in flight.
+     */
+    public int getScanConnections()
+    {
+        if (storageType == StorageType.NETWORK) {
+            return workerTaskConcurrency * 2;
+        }
+        return Math.min(workerTaskConcurrency, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Step SQLite on a dedicated reader thread per split, decoding rows into pages ahead of
+     * the operator pipeline instead of on the driver thread.
+     */
+    public boolean isReadAheadEnabled()
+    {
+        return readAheadEnabled;
+    }
+
+    /**
+     * Number of decoded pages a read-ahead reader may buffer before it waits for the consumer.
+     */
+    public int getReadAheadBufferPages()
+    {
+        return readAheadBufferPages;
+    }
+
+    /**
+     * Upper bound on the rows of a read-ahead page; pages of wide rows are smaller, see
+     * {@link #getReadAheadSplitBufferBytes()}.
+     */
+    public int getReadAheadPageRows()
+    {
+        return readAheadPageRows;
+    }
+
+    /**
+     * Memory a single split may hold in decoded, not yet consumed pages: the per-query budget
+     * shared by the splits a task scans concurrently.
+     */
+    public long getReadAheadSplitBufferBytes()
+    {
+        return Math.max(1, readAheadQueryBufferBytes / workerTaskConcurrency);
+    }
+
+    /**
+     * Groups of tables that are partitioned on their join key into the same key ranges, so
+     * joins within a group can run co-located. Maps group name to table name to key column.
+     */
+    public Map<String, Map<String, String>> getCoPartitionedGroups()
+    {
+        return coPartitionedGroups;
+    }
+
+    public int getCoPartitionedBucketCount()
+    {
+        return coPartitionedBucketCount;
+    }
+
+    /**
+     * Infer numeric types for untyped, {@code NUMERIC} and unknown-typed columns from a sample of their values.
+     */
+    public boolean isTypeInferenceEnabled()
+    {
+        return typeInferenceEnabled;
+    }
+
+    public int getTypeInferenceSampleRows()
+    {
+        return typeInferenceSampleRows;
+    }
+
+    /**
+     * What a scan does with a value that does not fit its column's type, such as text in a
+     * column inferred as numeric from a sample that did not contain it.
+     */
+    public TypeMismatch getTypeMismatch()
+    {
+        return typeMismatch;
+    }
+
+    /**
+     * Tables whose pages are read into the OS page cache in the background when the catalog
+     * starts; {@code *} reads the whole file.
+     */
+    public List<String> getWarmupTables()
+    {
+        return warmupTables;
+    }
+
+    /**
+     * Read the pages of a split's ROWID range ahead of its scan, in file order.
+     */
+    public boolean isScanPrefetchEnabled()
+    {
+        return scanPrefetchEnabled;
+    }
+
+    /**
+     * How often the database file is checked for having been replaced by a new file; 0 disables the check.
+     */
+    public long getFileCheckIntervalMillis()
+    {
+        return fileCheckIntervalMillis;
+    }
+
+    /**
+     * R*Tree tables that index the points of a data table, by data table.
+     */
+    public Map<String, RtreeIndex> getRtreeIndexes()
+    {
+        return rtreeIndexes;
+    }
+
+    /**
+     * Database files attached to every connection, by the schema they are exposed as.
+     */
+    public Map<String, String> getAttachedDatabases()
+    {
+        return attachedDatabases;
+    }
+
+    /**
+     * Run joins of tables of this catalog, across attached files too, as one SQLite statement.
+     */
+    public boolean isJoinPushdownEnabled()
+    {
+        return joinPushdownEnabled;
+    }
+
+    /**
+     * Read a file another process writes in WAL mode: pin the splits of a query to one version
+     * of the file, and wait out the short locks WAL readers can meet instead of failing.
+     */
+    public boolean isWalReaderEnabled()
+    {
+        return walReaderEnabled;
+    }
+
+    public long getWalReaderBusyTimeoutMillis()
+    {
+        return walReaderBusyTimeoutMillis;
+    }
+
+    /**
+     * How long the read transaction that pins a query's version of the file is held for the
+     * query's split generation. Until it ends, checkpoints cannot move past that version.
+     */
+    public long getWalSnapshotTtlMillis()
+    {
+        return walSnapshotTtlMillis;
+    }
+
+    /**
+     * Tables of the main file that every node copies into a local columnar file, read instead
+     * of the table while the copy is current.
+     */
+    public List<String> getColumnarCacheTables()
+    {
+        return columnarCacheTables;
+    }
+
+    /**
+     * Local directory of the columnar copies; by default next to the database file.
+     */
+    public String getColumnarCacheDirectory()
+    {
+        return columnarCacheDirectory;
+    }
+
+    /**
+     * How often each node checks whether the database file has changed since its columnar
+     * copies were made, and rebuilds them if it has.
+     */
+    public long getColumnarCacheCheckIntervalMillis()
+    {
+        return columnarCacheCheckIntervalMillis;
+    }
+
+    /**
+     * Allow the {@code create_index} procedure to write indexes into the database files. Off by
+     * default, as the connector otherwise never writes to them.
+     */
+    public boolean isCreateIndexEnabled()
+    {
+        return createIndexEnabled;
+    }
+
+    /**
+     * Sample VARCHAR columns for their distinct values along with type inference, and return
+     * the ones that repeat a few values as dictionary blocks.
+     */
+    public boolean isDictionaryEncodingEnabled()
+    {
+        return dictionaryEncodingEnabled;
+    }
+
+    /**
+     * S3-compatible endpoint that {@code s3://<bucket>/<key>} locations are read from, addressed
+     * path-style; by default the AWS endpoint of the region.
+     */
+    public String getObjectStoreEndpoint()
+    {
+        return objectStoreEndpoint.orElse("https://s3." + objectStoreRegion + ".amazonaws.com");
+    }
+
+    public String getObjectStoreRegion()
+    {
+        return objectStoreRegion;
+    }
+
+    /**
+     * Credentials requests to {@code s3://} locations are signed with; without them the
+     * requests are anonymous.
+     */
+    public Optional<String> getObjectStoreAccessKey()
+    {
+        return objectStoreAccessKey;
+    }
+
+    public Optional<String> getObjectStoreSecretKey()
+    {
+        return objectStoreSecretKey;
+    }
+
+    /**
+     * Local directory of the blocks fetched from object storage.
+     */
+    public String getObjectStoreCacheDirectory()
+    {
+        return objectStoreCacheDirectory;
+    }
+
+    /**
+     * Bytes the object store cache directory may hold before the least recently used files not in use
+     * are evicted; 0 is unlimited.
+     */
+    public long getObjectStoreCacheSizeBytes()
+    {
+        return objectStoreCacheSizeBytes;
+    }
+
+    /**
+     * Bytes fetched by each ranged GET.
+     */
+    public int getObjectStoreBlockSizeBytes()
+    {
+        return objectStoreBlockSizeBytes;
+    }
+
+    /**
+     * Ranged GETs of one file in flight at a time.
+     */
+    public int getObjectStoreFetchThreads()
+    {
+        return objectStoreFetchThreads;
+    }
+
+    /**
+     * How often files in object storage are checked for a new version; 0 disables the check.
+     */
+    public long getObjectStoreCheckIntervalMillis()
+    {
+        return objectStoreCheckIntervalMillis;
+    }
+
+    /**
+     * How long a query waits for the local copies of files in object storage to be fetched.
+     */
+    public long getObjectStoreWaitTimeoutMillis()
+    {
+        return objectStoreWaitTimeoutMillis;
+    }
+
+    /**
+     * Local directory of the coordinator that {@code export_table} writes under; exports are
+     * disabled without it.
+     */
+    public Optional<String> getExportDirectory()
+    {
+        return exportDirectory;
+    }
+
+    /**
+     * Whether selective filters on wide rows are applied by the scan before it reads the other
+     * columns; see {@link SqliteLateMaterialization}.
+     */
+    public boolean isLateMaterializationEnabled()
+    {
+        return lateMaterializationEnabled;
+    }
+
+    /**
+     * Largest percentage of sampled rows a filter may keep for its scan to read the other
+     * columns only for the rows kept.
+     */
+    public int getLateMaterializationMaxSelectivityPercent()
+    {
+        return lateMaterializationMaxSelectivityPercent;
+    }
+
+    /**
+     * Fewest bytes per sampled row the columns outside the filter must average for its scan
+     * to read them only for the rows kept.
+     */
+    public int getLateMaterializationMinRowBytes()
+    {
+        return lateMaterializationMinRowBytes;
+    }
+
+    private static Map<String, String> parseAttachedDatabases(Map<String, String> config)
+    {
+        // sqlite.attach.<schema>=<path>
+        ImmutableMap.Builder<String, String> databases = ImmutableMap.builder();
+        for (Map.Entry<String, String> entry : new TreeMap<>(config).entrySet()) {
+            if (!entry.getKey().startsWith(ATTACH_PREFIX)) {
+                continue;
+            }
+            String schema = entry.getKey().substring(ATTACH_PREFIX.length());
+            // main and temp are SQLite's own database names
+            if (schema.isEmpty() || schema.equals(SqliteMetadata.DEFAULT_SCHEMA) || schema.equalsIgnoreCase("main") || schema.equalsIgnoreCase("temp")) {
+                throw new IllegalArgumentException(entry.getKey() + " must name a schema other than " + SqliteMetadata.DEFAULT_SCHEMA + ", main and temp");
+            }
+            if (!schema.equals(schema.toLowerCase(Locale.ENGLISH))) {
+                // Presto lowercases schema names
+                throw new IllegalArgumentException(entry.getKey() + " schema name must be lowercase");
+            }
+            if (entry.getValue().trim().isEmpty()) {
+                throw new IllegalArgumentException(entry.getKey() + " must be the path of a database file");
+            }
+            databases.put(schema, entry.getValue().trim());
+        }
+        return databases.build();
+    }
+
+    private static Map<String, RtreeIndex> parseRtreeIndexes(Map<String, String> config)
+    {
+        // sqlite.rtree-index.<rtree>=<table>.<column>,<table>.<column>,... with one column per dimension
+        Map<String, RtreeIndex> indexes = new HashMap<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(config).entrySet()) {
+            if (!entry.getKey().startsWith(RTREE_INDEX_PREFIX)) {
+                continue;
+            }
+            String rtreeTable = entry.getKey().substring(RTREE_INDEX_PREFIX.length());
+            String table = null;
+            ImmutableList.Builder<String> columns = ImmutableList.builder();
+            for (String tableColumn : Splitter.on(',').trimResults().omitEmptyStrings().split(entry.getValue())) {
+                int dot = tableColumn.lastIndexOf('.');
+                if (dot <= 0 || dot == tableColumn.length() - 1) {
+                    throw new IllegalArgumentException(entry.getKey() + " entries must be <table>.<column>: " + tableColumn);
+                }
+                if (table != null && !table.equals(tableColumn.substring(0, dot))) {
+                    throw new IllegalArgumentException(entry.getKey() + " columns must all be of one table: " + entry.getValue());
+                }
+                table = tableColumn.substring(0, dot);
+                columns.add(tableColumn.substring(dot + 1));
+            }
+            if (table == null) {
+                throw new IllegalArgumentException(entry.getKey() + " must list the indexed columns");
+            }
+            if (indexes.put(table, new RtreeIndex(rtreeTable, table, columns.build())) != null) {
+                throw new IllegalArgumentException("Table " + table + " is in more than one " + RTREE_INDEX_PREFIX + "* property");
+            }
+        }
+        return ImmutableMap.copyOf(indexes);
+    }
+
+    private static Map<String, Map<String, String>> parseCoPartitionedGroups(Map<String, String> config)
+    {
+        // sqlite.co-partitioned.<group>=<table>.<column>,<table>.<column>,...
+        ImmutableMap.Builder<String, Map<String, String>> groups = ImmutableMap.builder();
+        Set<String> partitionedTables = new HashSet<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(config).entrySet()) {
+            if (!entry.getKey().startsWith(CO_PARTITIONED_PREFIX)) {
+                continue;
+            }
+            String group = entry.getKey().substring(CO_PARTITIONED_PREFIX.length());
+            ImmutableMap.Builder<String, String> columns = ImmutableMap.builder();
+            for (String tableColumn : Splitter.on(',').trimResults().omitEmptyStrings().split(entry.getValue())) {
+                int dot = tableColumn.lastIndexOf('.');
+                if (dot <= 0 || dot == tableColumn.length() - 1) {
+                    throw new IllegalArgumentException(entry.getKey() + " entries must be <table>.<column>: " + tableColumn);
+                }
+                String table = tableColumn.substring(0, dot);
+                if (!partitionedTables.add(table)) {
+                    throw new IllegalArgumentException("Table " + table + " is in more than one " + CO_PARTITIONED_PREFIX + "* group");
+                }
+                columns.put(table, tableColumn.substring(dot + 1));
+            }
+            groups.put(group, columns.build());
+        }
+        return groups.build();
+    }
+
+    static int getInt(Map<String, String> config, String name, int defaultValue)
+    {
+        long value = getLong(config, name, defaultValue);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(name + " is too large: " + value);
+        }
+        return (int) value;
+    }
+
+    static long getLong(Map<String, String> config, String name, long defaultValue)
+    {
+        String value = config.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed < 0) {
+                throw new IllegalArgumentException(name + " must not be negative: " + value);
+            }
+            return parsed;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value, e);
+        }
+    }
+
+    static <E extends Enum<E>> E getEnum(Map<String, String> config, String name, Class<E> type, E defaultValue)
+    {
+        String value = config.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value.trim())) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException(name + " must be one of " + Arrays.toString(type.getEnumConstants()) + ": " + value);
+    }
+
+    static Optional<String> getOptional(Map<String, String> config, String name)
+    {
+        return Optional.ofNullable(config.get(name))
+                .map(String::trim)
+                .filter(value -> !value.isEmpty());
+    }
+
+    static boolean getBoolean(Map<String, String> config, String name, boolean defaultValue)
+    {
+        String value = config.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.trim().equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException(name + " must be true or false: " + value);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.PrestoException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INSUFFICIENT_RESOURCES;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Admission control in front of the connection pool. Scans queue for one of a fixed
+ * number of scan slots, and a freed slot is handed to the waiting queries in round-robin
+ * order so a query with many splits cannot starve the others. Metadata calls (planning,
+ * split generation) use a separate reserved lane and never wait behind long scans.
+ */
+public class SqliteConnectionScheduler
+{
+    private final int scanSlots;
+    private final long queueTimeoutMillis;
+    private final Semaphore metadataSlots;
+
+    // Guarded by this
+    private int activeScans;
+    // Guarded by this; iteration order is the round-robin order of waiting queries
+    private final Map<String, Deque<Waiter>> waitingScans = new LinkedHashMap<>();
+
+    public SqliteConnectionScheduler(int scanSlots, int metadataSlots, long queueTimeoutMillis)
+    {
+        if (scanSlots < 1 || metadataSlots < 1) {
+            throw new IllegalArgumentException("scanSlots and metadataSlots must be positive");
+        }
+        this.scanSlots = scanSlots;
+        this.metadataSlots = new Semaphore(metadataSlots, true);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    public void acquireScanSlot(String queryId)
+    {
+        requireNonNull(queryId, "queryId is null");
+        Waiter waiter;
+        synchronized (this) {
+            if (activeScans < scanSlots && waitingScans.isEmpty()) {
+                activeScans++;
+                return;
+            }
+            waiter = new Waiter();
+            waitingScans.computeIfAbsent(queryId, key -> new ArrayDeque<>()).addLast(waiter);
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+            boolean acquired = false;
+            try {
+                while (!waiter.granted) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (queueTimeoutMillis > 0 && remainingMillis <= 0) {
+                        throw new PrestoException(GENERIC_INSUFFICIENT_RESOURCES, "Timed out after " + queueTimeoutMillis +
+                                " ms waiting for a SQLite scan slot (" + scanSlots + " slots, " + countWaiting() + " scans queued)");
+                    }
+                    wait(queueTimeoutMillis > 0 ? remainingMillis : 0);
+                }
+                acquired = true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PrestoException(GENERIC_INSUFFICIENT_RESOURCES, "Interrupted while waiting for a SQLite scan slot", e);
+            }
+            finally {
+                if (!acquired && waiter.granted) {
+                    // Granted just as the wait was interrupted; no connection will give the slot
+                    // back, so hand it to the next waiter now
+                    releaseScanSlot();
+                }
+                else if (!acquired) {
+                    removeWaiter(queryId, waiter);
+                }
+            }
+        }
+    }
+
+    public synchronized void releaseScanSlot()
+    {
+        activeScans--;
+        // Hand the slot to the next query in round-robin order
+        Iterator<Map.Entry<String, Deque<Waiter>>> queries = waitingScans.entrySet().iterator();
+        if (!queries.hasNext()) {
+            return;
+        }
+        Map.Entry<String, Deque<Waiter>> next = queries.next();
+        queries.remove();
+        Waiter waiter = next.getValue().removeFirst();
+        if (!next.getValue().isEmpty()) {
+            waitingScans.put(next.getKey(), next.getValue());
+        }
+        waiter.granted = true;
+        activeScans++;
+        notifyAll();
+    }
+
+    public void acquireMetadataSlot()
+    {
+        try {
+            if (queueTimeoutMillis == 0) {
+                metadataSlots.acquire();
+            }
+            else if (!metadataSlots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new PrestoException(GENERIC_INSUFFICIENT_RESOURCES, "Timed out after " + queueTimeoutMillis +
+                        " ms waiting for a SQLite metadata connection");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PrestoException(GENERIC_INSUFFICIENT_RESOURCES, "Interrupted while waiting for a SQLite metadata connection", e);
+        }
+    }
+
+    public void releaseMetadataSlot()
+    {
+        metadataSlots.release();
+    }
+
+    private void removeWaiter(String queryId, Waiter waiter)
+    {
+        Deque<Waiter> waiters = waitingScans.get(queryId);
+        if (waiters != null) {
+            waiters.remove(waiter);
+            if (waiters.isEmpty()) {
+                waitingScans.remove(queryId);
+            }
+        }
+    }
+
+    private int countWaiting()
+    {
+        return waitingScans.values().stream()
+                .mapToInt(Deque::size)
+                .sum();
+    }
+
+    private static class Waiter
+    {
+        private boolean granted;
+    }
+}
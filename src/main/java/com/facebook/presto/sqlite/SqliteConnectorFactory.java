@@ -14,18 +14,30 @@
 package com.facebook.presto.sqlite;
 
 import com.facebook.presto.spi.ConnectorHandleResolver;
+import com.facebook.presto.spi.ConnectorPlanOptimizer;
+import com.facebook.presto.spi.SystemTable;
 import com.facebook.presto.spi.connector.Connector;
 import com.facebook.presto.spi.connector.ConnectorContext;
 import com.facebook.presto.spi.connector.ConnectorFactory;
 import com.facebook.presto.spi.connector.ConnectorMetadata;
-import com.facebook.presto.spi.connector.ConnectorRecordSetProvider;
+import com.facebook.presto.spi.connector.ConnectorNodePartitioningProvider;
+import com.facebook.presto.spi.connector.ConnectorPageSourceProvider;
+import com.facebook.presto.spi.connector.ConnectorPlanOptimizerProvider;
 import com.facebook.presto.spi.connector.ConnectorSplitManager;
 import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+import com.facebook.presto.spi.procedure.Procedure;
+import com.facebook.presto.spi.session.PropertyMetadata;
 import com.facebook.presto.spi.transaction.IsolationLevel;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 
 public class SqliteConnectorFactory
         implements ConnectorFactory
@@ -49,13 +61,61 @@ public class SqliteConnectorFactory
     {
         requireNonNull(config, "config is null");
 
-        String dbPath = config.get("sqlite.db");
-        if (dbPath == null) {
-            throw new IllegalArgumentException("sqlite.db configuration property is required. " +
-                    "Set it to the path of your SQLite database file.");
+        // Database files in object storage are read from local copies, fetched in the background
+        SqliteObjectStoreFileCache fileCache = new SqliteObjectStoreFileCache(new SqliteConfig(config));
+        SqliteConfig sqliteConfig = new SqliteConfig(fileCache.localize(config));
+        SqliteClient sqliteClient = new SqliteClient(sqliteConfig, fileCache::awaitAvailable);
+        SqliteScanLog scanLog = new SqliteScanLog(sqliteConfig.getScanLogSize(), sqliteConfig.getSlowScanThresholdMillis());
+        String nodeId = context.getNodeManager().getCurrentNode().getNodeIdentifier();
+        ExecutorService readAheadExecutor = newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-read-ahead-" + catalogName + "-%s")
+                .setDaemon(true)
+                .build());
+        SqliteTypeInference typeInference = new SqliteTypeInference(sqliteConfig);
+        SqliteTablePartitioning tablePartitioning = new SqliteTablePartitioning(sqliteClient, sqliteConfig);
+        SqliteRtreeIndex rtreeIndex = new SqliteRtreeIndex(sqliteClient, sqliteConfig);
+        SqliteTableKeys tableKeys = new SqliteTableKeys(sqliteClient);
+        SqliteNodePartitioningProvider nodePartitioningProvider = new SqliteNodePartitioningProvider();
+        SqliteSessionProperties sessionProperties = new SqliteSessionProperties();
+        SqliteWarmup warmup = new SqliteWarmup(sqliteClient, sqliteConfig);
+        SqliteWalSnapshots walSnapshots = new SqliteWalSnapshots(sqliteClient, sqliteConfig);
+        SqliteLateMaterialization lateMaterialization = new SqliteLateMaterialization(sqliteClient, context.getRowExpressionService().getPredicateCompiler(), sqliteConfig);
+        SqlitePlanOptimizer planOptimizer = new SqlitePlanOptimizer(
+                context.getStandardFunctionResolution(),
+                context.getFunctionMetadataManager(),
+                sqliteConfig.isJoinPushdownEnabled(),
+                lateMaterialization);
+        SqliteIndexAdvisor indexAdvisor = new SqliteIndexAdvisor(sqliteClient, sqliteConfig);
+        SqliteColumnarCache columnarCache = new SqliteColumnarCache(
+                sqliteClient,
+                scanLog,
+                indexAdvisor,
+                new SqliteMetadata(sqliteClient, tablePartitioning, typeInference, rtreeIndex, tableKeys, sqliteConfig.getAttachedDatabases().keySet()),
+                sqliteConfig);
+        SqliteRecordSetProvider recordSetProvider = new SqliteRecordSetProvider(sqliteClient, scanLog, indexAdvisor, sqliteConfig);
+        SqlitePageSourceProvider pageSourceProvider = new SqlitePageSourceProvider(recordSetProvider, sqliteConfig, readAheadExecutor, warmup, columnarCache, lateMaterialization);
+        SqliteExporter exporter = new SqliteExporter(
+                new SqliteMetadata(sqliteClient, tablePartitioning, typeInference, rtreeIndex, tableKeys, sqliteConfig.getAttachedDatabases().keySet()),
+                new SqliteSplitManager(sqliteClient, rtreeIndex, walSnapshots),
+                recordSetProvider,
+                sqliteConfig);
+        sqliteClient.addReplacementListener(() -> {
+            typeInference.invalidate();
+            tablePartitioning.invalidate();
+            rtreeIndex.invalidate();
+            tableKeys.invalidate();
+            warmup.invalidate();
+            lateMaterialization.invalidate();
+        });
+        // Right away for local files; once they are fetched for files in object storage
+        fileCache.whenReady(rtreeIndex::validate);
+        if (!sqliteConfig.getWarmupTables().isEmpty()) {
+            // Every node warms its own page cache, again whenever the file is replaced
+            fileCache.whenReady(() -> readAheadExecutor.execute(() -> warmup.warmup(sqliteConfig.getWarmupTables())));
+            sqliteClient.addReplacementListener(() -> readAheadExecutor.execute(() -> warmup.warmup(sqliteConfig.getWarmupTables())));
         }
-
-        SqliteClient sqliteClient = new SqliteClient(dbPath);
+        columnarCache.start();
+        fileCache.start();
 
         return new Connector()
         {
@@ -68,19 +128,78 @@ public class SqliteConnectorFactory
             @Override
             public ConnectorMetadata getMetadata(ConnectorTransactionHandle transaction)
             {
-                return new SqliteMetadata(sqliteClient);
+                return new SqliteMetadata(sqliteClient, tablePartitioning, typeInference, rtreeIndex, tableKeys, sqliteConfig.getAttachedDatabases().keySet());
             }
 
             @Override
             public ConnectorSplitManager getSplitManager()
             {
-                return new SqliteSplitManager(sqliteClient);
+                return new SqliteSplitManager(sqliteClient, rtreeIndex, walSnapshots);
+            }
+
+            @Override
+            public ConnectorNodePartitioningProvider getNodePartitioningProvider()
+            {
+                return nodePartitioningProvider;
+            }
+
+            @Override
+            public ConnectorPageSourceProvider getPageSourceProvider()
+            {
+                return pageSourceProvider;
+            }
+
+            @Override
+            public ConnectorPlanOptimizerProvider getConnectorPlanOptimizerProvider()
+            {
+                return new ConnectorPlanOptimizerProvider()
+                {
+                    @Override
+                    public Set<ConnectorPlanOptimizer> getLogicalPlanOptimizers()
+                    {
+                        return ImmutableSet.of(planOptimizer);
+                    }
+
+                    @Override
+                    public Set<ConnectorPlanOptimizer> getPhysicalPlanOptimizers()
+                    {
+                        return ImmutableSet.of();
+                    }
+                };
+            }
+
+            @Override
+            public Set<SystemTable> getSystemTables()
+            {
+                return ImmutableSet.of(
+                        new SqliteScanLogSystemTable(scanLog, nodeId),
+                        new SqliteWalStatusSystemTable(walSnapshots, nodeId),
+                        new SqliteIndexAdviceSystemTable(indexAdvisor, nodeId),
+                        new SqliteExportSystemTable(exporter));
+            }
+
+            @Override
+            public Set<Procedure> getProcedures()
+            {
+                return ImmutableSet.of(warmup.getProcedure(), indexAdvisor.getProcedure(), exporter.getProcedure());
+            }
+
+            @Override
+            public List<PropertyMetadata<?>> getSessionProperties()
+            {
+                return sessionProperties.getSessionProperties();
             }
 
             @Override
-            public ConnectorRecordSetProvider getRecordSetProvider()
+            public void shutdown()
             {
-                return new SqliteRecordSetProvider(sqliteClient);
+                readAheadExecutor.shutdownNow();
+                walSnapshots.shutdown();
+                columnarCache.shutdown();
+                indexAdvisor.shutdown();
+                fileCache.shutdown();
+                exporter.shutdown();
+                sqliteClient.shutdown();
             }
         };
     }
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorTableMetadata;
+import com.facebook.presto.spi.InMemoryRecordSet;
+import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.SystemTable;
+import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+import com.google.common.collect.ImmutableList;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.DoubleType.DOUBLE;
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
+import static java.util.Objects.requireNonNull;
+
+public class SqliteExportSystemTable
+        implements SystemTable
+{
+    public static final SchemaTableName NAME = new SchemaTableName("system", "exports");
+
+    private static final ConnectorTableMetadata METADATA = new ConnectorTableMetadata(NAME, ImmutableList.of(
+            column("query_id", VARCHAR),
+            column("schema_name", VARCHAR),
+            column("table_name", VARCHAR),
+            column("path", VARCHAR),
+            column("files", BIGINT),
+            column("rows", BIGINT),
+            column("bytes", BIGINT),
+            column("elapsed_ms", BIGINT),
+            column("rows_per_second", DOUBLE),
+            column("mb_per_second", DOUBLE),
+            column("error", VARCHAR)));
+
+    private final SqliteExporter exporter;
+
+    public SqliteExportSystemTable(SqliteExporter exporter)
+    {
+        this.exporter = requireNonNull(exporter, "exporter is null");
+    }
+
+    @Override
+    public Distribution getDistribution()
+    {
+        // Procedures run on the coordinator
+        return Distribution.ALL_COORDINATORS;
+    }
+
+    @Override
+    public ConnectorTableMetadata getTableMetadata()
+    {
+        return METADATA;
+    }
+
+    @Override
+    public RecordCursor cursor(ConnectorTransactionHandle transactionHandle, ConnectorSession session, TupleDomain<Integer> constraint)
+    {
+        InMemoryRecordSet.Builder table = InMemoryRecordSet.builder(METADATA);
+        for (SqliteExporter.Export export : exporter.getExports()) {
+            table.addRow(
+                    export.getQueryId(),
+                    export.getSchemaName(),
+                    export.getTableName(),
+                    export.getPath(),
+                    (long) export.getFiles(),
+                    export.getRows(),
+                    export.getBytes(),
+                    export.getElapsedMillis(),
+                    export.getRowsPerSecond(),
+                    export.getMegabytesPerSecond(),
+                    export.getError().orElse(null));
+        }
+        return table.build().cursor();
+    }
+
+    private static ColumnMetadata column(String name, Type type)
+    {
+        return ColumnMetadata.builder().setName(name).setType(type).build();
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorSplit;
+import com.facebook.presto.spi.ConnectorSplitSource;
+import com.facebook.presto.spi.ConnectorTableLayoutHandle;
+import com.facebook.presto.spi.Constraint;
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.WarningCollector;
+import com.facebook.presto.spi.connector.ConnectorSplitManager.SplitSchedulingContext;
+import com.facebook.presto.spi.procedure.Procedure;
+import com.facebook.presto.spi.procedure.Procedure.Argument;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.facebook.presto.spi.StandardErrorCode.INVALID_PROCEDURE_ARGUMENT;
+import static com.facebook.presto.spi.StandardErrorCode.NOT_FOUND;
+import static com.facebook.presto.spi.StandardErrorCode.NOT_SUPPORTED;
+import static com.facebook.presto.spi.connector.ConnectorSplitManager.SplitSchedulingStrategy.UNGROUPED_SCHEDULING;
+import static com.facebook.presto.spi.connector.NotPartitionedPartitionHandle.NOT_PARTITIONED;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * {@code CALL <catalog>.system.export_table('schema', 'table', 'directory')} writes a table to
+ * Arrow IPC files under {@code sqlite.export.directory} on the coordinator, see
+ * {@link SqliteArrowWriter}. The table is cut into the splits a scan of it would read, and each
+ * split is written to its own file by its own thread, straight from SQLite's rows into columnar
+ * batches rather than through Presto's operators, exchanges and a table writer.
+ */
+public class SqliteExporter
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteExporter.class);
+
+    private static final int BATCH_ROWS = 65536;
+    private static final long BATCH_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_EXPORTS = 100;
+    private static final String FILE_SUFFIX = ".arrow";
+
+    /**
+     * A finished or failed export, as listed in {@code system.exports}.
+     */
+    public static class Export
+    {
+        private final String queryId;
+        private final String schemaName;
+        private final String tableName;
+        private final String path;
+        private final int files;
+        private final long rows;
+        private final long bytes;
+        private final long elapsedMillis;
+        private final Optional<String> error;
+
+        public Export(String queryId, String schemaName, String tableName, String path, int files, long rows, long bytes, long elapsedMillis, Optional<String> error)
+        {
+            this.queryId = requireNonNull(queryId, "queryId is null");
+            this.schemaName = requireNonNull(schemaName, "schemaName is null");
+            this.tableName = requireNonNull(tableName, "tableName is null");
+            this.path = requireNonNull(path, "path is null");
+            this.files = files;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+            this.error = requireNonNull(error, "error is null");
+        }
+
+        public String getQueryId()
+        {
+            return queryId;
+        }
+
+        public String getSchemaName()
+        {
+            return schemaName;
+        }
+
+        public String getTableName()
+        {
+            return tableName;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public int getFiles()
+        {
+            return files;
+        }
+
+        public long getRows()
+        {
+            return rows;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getElapsedMillis()
+        {
+            return elapsedMillis;
+        }
+
+        public double getRowsPerSecond()
+        {
+            return rows * 1000.0 / Math.max(1, elapsedMillis);
+        }
+
+        public double getMegabytesPerSecond()
+        {
+            return bytes * 1000.0 / Math.max(1, elapsedMillis) / (1024 * 1024);
+        }
+
+        public Optional<String> getError()
+        {
+            return error;
+        }
+    }
+
+    private final SqliteMetadata metadata;
+    private final SqliteSplitManager splitManager;
+    private final SqliteRecordSetProvider recordSetProvider;
+    private final Optional<Path> exportDirectory;
+    private final ExecutorService executor;
+    // Guarded by this
+    private final Deque<Export> exports = new ArrayDeque<>();
+
+    public SqliteExporter(SqliteMetadata metadata, SqliteSplitManager splitManager, SqliteRecordSetProvider recordSetProvider, SqliteConfig config)
+    {
+        this.metadata = requireNonNull(metadata, "metadata is null");
+        this.splitManager = requireNonNull(splitManager, "splitManager is null");
+        this.recordSetProvider = requireNonNull(recordSetProvider, "recordSetProvider is null");
+        this.exportDirectory = requireNonNull(config, "config is null").getExportDirectory()
+                .map(directory -> Paths.get(directory).toAbsolutePath().normalize());
+        this.executor = newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-export-%s")
+                .setDaemon(true)
+                .build());
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    public Procedure getProcedure()
+    {
+        try {
+            MethodHandle exportTable = MethodHandles.lookup()
+                    .findVirtual(SqliteExporter.class, "exportTable", MethodType.methodType(void.class, ConnectorSession.class, String.class, String.class, String.class))
+                    .bindTo(this);
+            return new Procedure("system", "export_table", ImmutableList.of(
+                    new Argument("schema_name", "varchar"),
+                    new Argument("table_name", "varchar"),
+                    new Argument("directory", "varchar")), exportTable);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Recent exports, most recent first.
+     */
+    public synchronized List<Export> getExports()
+    {
+        return ImmutableList.copyOf(exports);
+    }
+
+    public void exportTable(ConnectorSession session, String schema, String table, String directory)
+    {
+        requireNonNull(schema, "schema is null");
+        requireNonNull(table, "table is null");
+        requireNonNull(directory, "directory is null");
+        if (!exportDirectory.isPresent()) {
+            throw new PrestoException(NOT_SUPPORTED, "Exports are disabled; set " + SqliteConfig.EXPORT_DIRECTORY + " to the directory they may write under");
+        }
+        Path target = exportDirectory.get().resolve(directory).normalize();
+        if (!target.startsWith(exportDirectory.get())) {
+            throw new PrestoException(INVALID_PROCEDURE_ARGUMENT, "Export directory must be within " + SqliteConfig.EXPORT_DIRECTORY + ": " + directory);
+        }
+
+        SqliteTableHandle tableHandle = (SqliteTableHandle) metadata.getTableHandle(session, new SchemaTableName(schema, table));
+        if (tableHandle == null) {
+            throw new PrestoException(NOT_FOUND, "Table not found: " + schema + "." + table);
+        }
+        List<SqliteColumnHandle> columns = metadata.getColumns(tableHandle.getSchemaName(), tableHandle.getTableName()).stream()
+                .filter(column -> column.getKind() == SqliteColumnHandle.Kind.REGULAR)
+                .collect(Collectors.toList());
+        for (SqliteColumnHandle column : columns) {
+            if (!SqliteArrowWriter.isSupported(column.getType())) {
+                throw new PrestoException(NOT_SUPPORTED, "Column " + column.getColumnName() + " of type " + column.getType() + " cannot be exported");
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Future<long[]>> futures = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        // Table names may hold characters, such as '/', that file names cannot
+        String name = tableHandle.getTableName().replaceAll("[^A-Za-z0-9_.-]", "_");
+        try {
+            Files.createDirectories(target);
+            deleteEarlierExport(target, name);
+            List<ConnectorSplit> splits = getSplits(session, tableHandle);
+            for (int i = 0; i < splits.size(); i++) {
+                ConnectorSplit split = splits.get(i);
+                Path file = target.resolve(name + "-" + i + FILE_SUFFIX);
+                files.add(file);
+                futures.add(executor.submit(() -> writeSplit(session, split, columns, file)));
+            }
+            long rows = 0;
+            long bytes = 0;
+            for (Future<long[]> future : futures) {
+                long[] written = future.get();
+                rows += written[0];
+                bytes += written[1];
+            }
+            Export export = new Export(session.getQueryId(), schema, table, target.toString(), files.size(), rows, bytes, elapsedMillis(start), Optional.empty());
+            record(export);
+            log.info("Exported {}.{} to {}: {} files, {} rows, {} MB in {} ms ({} MB/s)",
+                    schema,
+                    table,
+                    target,
+                    files.size(),
+                    rows,
+                    bytes / (1024 * 1024),
+                    export.getElapsedMillis(),
+                    Math.round(export.getMegabytesPerSecond()));
+        }
+        catch (IOException | ExecutionException | RuntimeException e) {
+            futures.forEach(future -> future.cancel(true));
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            record(new Export(session.getQueryId(), schema, table, target.toString(), files.size(), 0, 0, elapsedMillis(start), Optional.of(String.valueOf(cause.getMessage()))));
+            if (cause instanceof PrestoException) {
+                throw (PrestoException) cause;
+            }
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to export " + schema + "." + table + " to " + target + ": " + cause.getMessage(), cause);
+        }
+        catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Interrupted while exporting " + schema + "." + table, e);
+        }
+    }
+
+    /**
+     * Deletes the files of an earlier export of the table to the directory, which may have
+     * been cut into more splits than this one, so that only this export's files are left.
+     */
+    private static void deleteEarlierExport(Path directory, String name)
+            throws IOException
+    {
+        Pattern earlierFile = Pattern.compile(Pattern.quote(name) + "-\\d+" + Pattern.quote(FILE_SUFFIX) + "(?:\\.tmp)?");
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (earlierFile.matcher(entry.getFileName().toString()).matches()) {
+                    Files.delete(entry);
+                }
+            }
+        }
+    }
+
+    private List<ConnectorSplit> getSplits(ConnectorSession session, SqliteTableHandle tableHandle)
+            throws ExecutionException, InterruptedException
+    {
+        ConnectorTableLayoutHandle layout = metadata.getTableLayoutForConstraint(session, tableHandle, Constraint.alwaysTrue(), Optional.empty())
+                .getTableLayout()
+                .getHandle();
+        ImmutableList.Builder<ConnectorSplit> splits = ImmutableList.builder();
+        try (ConnectorSplitSource splitSource = splitManager.getSplits(
+                SqliteTransactionHandle.INSTANCE,
+                session,
+                layout,
+                new SplitSchedulingContext(UNGROUPED_SCHEDULING, false, WarningCollector.NOOP))) {
+            while (!splitSource.isFinished()) {
+                splits.addAll(splitSource.getNextBatch(NOT_PARTITIONED, 1000).get().getSplits());
+            }
+        }
+        return splits.build();
+    }
+
+    /**
+     * Writes the split's rows to the file, through a temporary file so a failed export leaves
+     * no partial file behind. Returns the rows and bytes written.
+     */
+    private long[] writeSplit(ConnectorSession session, ConnectorSplit split, List<SqliteColumnHandle> columns, Path file)
+            throws IOException
+    {
+        List<String> names = columns.stream()
+                .map(SqliteColumnHandle::getColumnName)
+                .collect(Collectors.toList());
+        List<Type> types = columns.stream()
+                .map(SqliteColumnHandle::getType)
+                .collect(Collectors.toList());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long rows = 0;
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 20);
+                SqliteRecordCursor cursor = recordSetProvider.getRecordSet(SqliteTransactionHandle.INSTANCE, session, split, columns).cursor()) {
+            SqliteArrowWriter writer = new SqliteArrowWriter(output, names, types);
+            SqlitePageBuilder pageBuilder = new SqlitePageBuilder(columns);
+            while (cursor.advanceNextPosition()) {
+                pageBuilder.appendRow(cursor);
+                if (pageBuilder.getPositionCount() >= BATCH_ROWS || pageBuilder.getSizeInBytes() >= BATCH_BYTES) {
+                    rows += pageBuilder.getPositionCount();
+                    writer.writeBatch(pageBuilder.build());
+                }
+            }
+            if (!pageBuilder.isEmpty()) {
+                rows += pageBuilder.getPositionCount();
+                writer.writeBatch(pageBuilder.build());
+            }
+            writer.finish();
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        return new long[] {rows, Files.size(file)};
+    }
+
+    private synchronized void record(Export export)
+    {
+        exports.addFirst(export);
+        while (exports.size() > MAX_EXPORTS) {
+            exports.removeLast();
+        }
+    }
+
+    private static long elapsedMillis(long startNanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
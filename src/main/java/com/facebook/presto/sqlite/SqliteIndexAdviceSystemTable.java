@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorTableMetadata;
+import com.facebook.presto.spi.InMemoryRecordSet;
+import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.SystemTable;
+import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.DoubleType.DOUBLE;
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
+import static java.util.Objects.requireNonNull;
+
+public class SqliteIndexAdviceSystemTable
+        implements SystemTable
+{
+    public static final SchemaTableName NAME = new SchemaTableName("system", "index_advice");
+
+    private static final ConnectorTableMetadata METADATA = new ConnectorTableMetadata(NAME, ImmutableList.of(
+            column("rank", BIGINT),
+            column("node_id", VARCHAR),
+            column("schema_name", VARCHAR),
+            column("table_name", VARCHAR),
+            column("index_columns", VARCHAR),
+            column("predicates", VARCHAR),
+            column("scans", BIGINT),
+            column("rows_scanned", BIGINT),
+            column("rows_returned", BIGINT),
+            column("selectivity", DOUBLE),
+            column("scan_ms", BIGINT),
+            column("estimated_saving_ms", BIGINT),
+            column("create_index_sql", VARCHAR)));
+
+    private final SqliteIndexAdvisor indexAdvisor;
+    private final String nodeId;
+
+    public SqliteIndexAdviceSystemTable(SqliteIndexAdvisor indexAdvisor, String nodeId)
+    {
+        this.indexAdvisor = requireNonNull(indexAdvisor, "indexAdvisor is null");
+        this.nodeId = requireNonNull(nodeId, "nodeId is null");
+    }
+
+    @Override
+    public Distribution getDistribution()
+    {
+        // Every worker ranks the scans it ran
+        return Distribution.ALL_NODES;
+    }
+
+    @Override
+    public ConnectorTableMetadata getTableMetadata()
+    {
+        return METADATA;
+    }
+
+    @Override
+    public RecordCursor cursor(ConnectorTransactionHandle transactionHandle, ConnectorSession session, TupleDomain<Integer> constraint)
+    {
+        InMemoryRecordSet.Builder table = InMemoryRecordSet.builder(METADATA);
+        List<SqliteIndexAdvisor.Recommendation> recommendations = indexAdvisor.getRecommendations();
+        for (int i = 0; i < recommendations.size(); i++) {
+            SqliteIndexAdvisor.Recommendation recommendation = recommendations.get(i);
+            table.addRow(
+                    i + 1L,
+                    nodeId,
+                    recommendation.getSchemaName(),
+                    recommendation.getTableName(),
+                    String.join(", ", recommendation.getColumns()),
+                    String.join("; ", recommendation.getPredicates()),
+                    recommendation.getScans(),
+                    recommendation.getRowsScanned(),
+                    recommendation.getRowsReturned(),
+                    recommendation.getSelectivity(),
+                    recommendation.getScanMillis(),
+                    Math.round(recommendation.getEstimatedSavingMillis()),
+                    recommendation.getCreateIndexSql());
+        }
+        return table.build().cursor();
+    }
+
+    private static ColumnMetadata column(String name, Type type)
+    {
+        return ColumnMetadata.builder().setName(name).setType(type).build();
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.predicate.Domain;
+import com.facebook.presto.common.predicate.Range;
+import com.facebook.presto.common.predicate.SortedRangeSet;
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.predicate.ValueSet;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.spi.procedure.Procedure;
+import com.facebook.presto.spi.procedure.Procedure.Argument;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.facebook.presto.spi.StandardErrorCode.INVALID_PROCEDURE_ARGUMENT;
+import static com.facebook.presto.spi.StandardErrorCode.NOT_FOUND;
+import static com.facebook.presto.spi.StandardErrorCode.NOT_SUPPORTED;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+
+/**
+ * Recommends indexes from the predicates pushed into this node's scans, exposed as
+ * {@code system.index_advice}. Every scan of a ROWID range records which columns its domains
+ * compare and how ({@code =}, {@code IN}, a range or {@code IS NULL}), with the rows in its
+ * range, the rows it returned and its time. A scan that returned few of the rows in its range
+ * read most of them only to drop them, which an index on the compared columns would have
+ * skipped: equality columns first, then one range column. Candidates that an existing index
+ * already leads with are left out, and the rest are ranked by the scan time they would save.
+ * <p>
+ * {@code CALL <catalog>.system.create_index('schema', 'table', 'column, ...')} builds a
+ * recommended index in the background, if {@code sqlite.index-advisor.create-index.enabled}
+ * allows the connector to write to its files.
+ */
+public class SqliteIndexAdvisor
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteIndexAdvisor.class);
+
+    // Distinct predicates recorded per node; scans with further ones are not recorded
+    private static final int MAX_SHAPES = 1000;
+    // An index only pays off when it skips most of the rows; past this SQLite would rather scan
+    private static final double MAX_SELECTIVITY = 0.2;
+    // Scans hold read locks that CREATE INDEX must wait out to commit
+    private static final long CREATE_INDEX_BUSY_TIMEOUT_MILLIS = 600_000;
+
+    static final String EQUAL = "=";
+    static final String IN = "IN";
+    static final String RANGE = "RANGE";
+    static final String IS_NULL = "IS NULL";
+
+    private final SqliteClient sqliteClient;
+    private final boolean createIndexEnabled;
+    private final boolean walReaderEnabled;
+    private final Map<Shape, ShapeStats> shapes = new ConcurrentHashMap<>();
+    private final ExecutorService indexBuilder;
+
+    public SqliteIndexAdvisor(SqliteClient sqliteClient, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        requireNonNull(config, "config is null");
+        this.createIndexEnabled = config.isCreateIndexEnabled();
+        this.walReaderEnabled = config.isWalReaderEnabled();
+        this.indexBuilder = newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-create-index-%s")
+                .setDaemon(true)
+                .build());
+    }
+
+    public void shutdown()
+    {
+        indexBuilder.shutdownNow();
+    }
+
+    /**
+     * Records a finished scan of a ROWID range of a table with the domains its where clause was
+     * built from. Scans without a ROWID range, which read a whole small table, are not recorded.
+     */
+    public void record(SqliteTableHandle table, TupleDomain<ColumnHandle> constraint, long rowidStart, long rowidEnd, long rows, long durationMillis)
+    {
+        if (table.isJoin() || rowidStart < 0 || rowidEnd < 0) {
+            return;
+        }
+        Map<String, String> operators = getOperators(constraint);
+        if (operators.isEmpty()) {
+            return;
+        }
+        Shape shape = new Shape(table.getSchemaName(), table.getTableName().toLowerCase(Locale.ENGLISH), operators);
+        ShapeStats stats = shapes.get(shape);
+        if (stats == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                return;
+            }
+            stats = shapes.computeIfAbsent(shape, ignored -> new ShapeStats());
+        }
+        stats.add(rowidEnd - rowidStart + 1, rows, durationMillis);
+    }
+
+    /**
+     * The operator each column of plain data is compared with in the where clause built from
+     * the domains, see {@link SqliteMetadata#buildWhereClause}, ordered by column name.
+     */
+    static Map<String, String> getOperators(TupleDomain<ColumnHandle> constraint)
+    {
+        if (!constraint.getDomains().isPresent()) {
+            return ImmutableMap.of();
+        }
+        Map<String, String> operators = new TreeMap<>();
+        for (Map.Entry<ColumnHandle, Domain> entry : constraint.getDomains().get().entrySet()) {
+            SqliteColumnHandle column = (SqliteColumnHandle) entry.getKey();
+            if (column.getKind() != SqliteColumnHandle.Kind.REGULAR) {
+                continue;
+            }
+            getOperator(entry.getValue()).ifPresent(operator -> operators.put(column.getColumnName().toLowerCase(Locale.ENGLISH), operator));
+        }
+        return operators;
+    }
+
+    private static Optional<String> getOperator(Domain domain)
+    {
+        ValueSet values = domain.getValues();
+        if (values.isNone()) {
+            return domain.isNullAllowed() ? Optional.of(IS_NULL) : Optional.empty();
+        }
+        // IS NOT NULL, OR IS NULL and values the where clause does not push down gain little from an index
+        if (values.isAll() || domain.isNullAllowed() || !(values instanceof SortedRangeSet)) {
+            return Optional.empty();
+        }
+        List<Range> ranges = ((SortedRangeSet) values).getOrderedRanges();
+        if (!ranges.stream().allMatch(Range::isSingleValue)) {
+            return Optional.of(RANGE);
+        }
+        return Optional.of(ranges.size() == 1 ? EQUAL : IN);
+    }
+
+    /**
+     * Index recommendations from the scans this node has run, best first.
+     */
+    public List<Recommendation> getRecommendations()
+    {
+        Map<Candidate, Recommendation> candidates = new LinkedHashMap<>();
+        for (Map.Entry<Shape, ShapeStats> entry : shapes.entrySet()) {
+            Shape shape = entry.getKey();
+            Candidate candidate = shape.getCandidate();
+            Recommendation recommendation = candidates.computeIfAbsent(candidate, Recommendation::new);
+            entry.getValue().addTo(recommendation);
+            recommendation.predicates.add(shape.getPredicates());
+        }
+
+        Map<List<String>, Optional<TableIndexes>> tables = new HashMap<>();
+        List<Recommendation> recommendations = new ArrayList<>();
+        try (Connection connection = sqliteClient.getConnection()) {
+            for (Recommendation recommendation : candidates.values()) {
+                Candidate candidate = recommendation.candidate;
+                Optional<TableIndexes> indexes = tables.get(ImmutableList.of(candidate.schema, candidate.table));
+                if (indexes == null) {
+                    indexes = TableIndexes.read(connection, candidate.schema, candidate.table);
+                    tables.put(ImmutableList.of(candidate.schema, candidate.table), indexes);
+                }
+                // Views and virtual tables cannot be indexed
+                if (indexes.isPresent() && !indexes.get().covers(candidate) && recommendation.getSelectivity() <= MAX_SELECTIVITY) {
+                    recommendations.add(recommendation);
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read the indexes of the database: " + e.getMessage(), e);
+        }
+        recommendations.sort(Comparator.comparingDouble(Recommendation::getEstimatedSavingMillis).reversed());
+        return recommendations;
+    }
+
+    /**
+     * {@code CALL <catalog>.system.create_index('schema', 'table', 'column, ...')} builds an
+     * index on the coordinator in the background.
+     */
+    public Procedure getProcedure()
+    {
+        try {
+            MethodHandle createIndex = MethodHandles.lookup()
+                    .findVirtual(SqliteIndexAdvisor.class, "createIndex", MethodType.methodType(void.class, String.class, String.class, String.class))
+                    .bindTo(this);
+            return new Procedure("system", "create_index", ImmutableList.of(
+                    new Argument("schema_name", "varchar"),
+                    new Argument("table_name", "varchar"),
+                    new Argument("column_names", "varchar")), createIndex);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void createIndex(String schema, String table, String columnNames)
+    {
+        if (!createIndexEnabled) {
+            throw new PrestoException(NOT_SUPPORTED, "Creating indexes is disabled; set " + SqliteConfig.INDEX_ADVISOR_CREATE_INDEX_ENABLED + "=true to allow it");
+        }
+        if (walReaderEnabled) {
+            throw new PrestoException(NOT_SUPPORTED, "The file is written by another process (" + SqliteConfig.WAL_READER_ENABLED + "); create the index there");
+        }
+        requireNonNull(schema, "schema is null");
+        requireNonNull(table, "table is null");
+        List<String> columns = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(requireNonNull(columnNames, "columnNames is null"));
+        if (columns.isEmpty()) {
+            throw new PrestoException(INVALID_PROCEDURE_ARGUMENT, "No columns given for the index on " + table);
+        }
+
+        Set<String> tableColumns = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        try (Connection connection = sqliteClient.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA " + SqliteMetadata.schemaPrefix(schema) + "table_info(" + SqliteMetadata.quote(table) + ")")) {
+            while (rs.next()) {
+                tableColumns.add(rs.getString("name"));
+            }
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read the columns of " + table + ": " + e.getMessage(), e);
+        }
+        if (tableColumns.isEmpty()) {
+            throw new PrestoException(NOT_FOUND, "Table not found: " + schema + "." + table);
+        }
+        for (String column : columns) {
+            if (!tableColumns.contains(column)) {
+                throw new PrestoException(NOT_FOUND, "Column not found: " + table + "." + column);
+            }
+        }
+
+        String sql = getCreateIndexSql(schema, table, columns);
+        indexBuilder.execute(() -> buildIndex(sql));
+    }
+
+    private void buildIndex(String sql)
+    {
+        long start = System.nanoTime();
+        try (Connection connection = sqliteClient.openConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + CREATE_INDEX_BUSY_TIMEOUT_MILLIS);
+            statement.execute(sql);
+            log.info("Built SQLite index in {} ms: {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), sql);
+        }
+        catch (SQLException | RuntimeException e) {
+            log.warn("Failed to build SQLite index: {}", sql, e);
+        }
+    }
+
+    static String getCreateIndexSql(String schema, String table, List<String> columns)
+    {
+        String name = ("presto_" + table + "_" + String.join("_", columns)).toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9_]", "_");
+        return "CREATE INDEX IF NOT EXISTS " + SqliteMetadata.qualify(schema, name) + " ON " + SqliteMetadata.quote(table) + " ("
+                + columns.stream().map(SqliteMetadata::quote).collect(Collectors.joining(", ")) + ")";
+    }
+
+    /**
+     * The columns a scan's where clause compares and how, which decide the index it could use.
+     */
+    private static class Shape
+    {
+        private final String schema;
+        private final String table;
+        private final Map<String, String> operators;
+
+        Shape(String schema, String table, Map<String, String> operators)
+        {
+            this.schema = schema;
+            this.table = table;
+            this.operators = ImmutableMap.copyOf(operators);
+        }
+
+        /**
+         * Columns compared for equality, which an index can match in any order, then the first
+         * range column; SQLite seeks an index on at most one range after its equalities.
+         */
+        Candidate getCandidate()
+        {
+            List<String> columns = new ArrayList<>();
+            Optional<String> rangeColumn = Optional.empty();
+            for (Map.Entry<String, String> entry : operators.entrySet()) {
+                if (entry.getValue().equals(RANGE)) {
+                    if (!rangeColumn.isPresent()) {
+                        rangeColumn = Optional.of(entry.getKey());
+                    }
+                }
+                else {
+                    columns.add(entry.getKey());
+                }
+            }
+            int equalityColumns = columns.size();
+            rangeColumn.ifPresent(columns::add);
+            return new Candidate(schema, table, columns, equalityColumns);
+        }
+
+        String getPredicates()
+        {
+            return operators.entrySet().stream()
+                    .map(entry -> entry.getKey() + " " + entry.getValue())
+                    .collect(Collectors.joining(" AND "));
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Shape other = (Shape) obj;
+            return schema.equals(other.schema) && table.equals(other.table) && operators.equals(other.operators);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(schema, table, operators);
+        }
+    }
+
+    private static class ShapeStats
+    {
+        private long scans;
+        private long rowsScanned;
+        private long rowsReturned;
+        private long scanMillis;
+
+        synchronized void add(long rowsScanned, long rowsReturned, long scanMillis)
+        {
+            this.scans++;
+            this.rowsScanned += rowsScanned;
+            this.rowsReturned += rowsReturned;
+            this.scanMillis += scanMillis;
+        }
+
+        synchronized void addTo(Recommendation recommendation)
+        {
+            recommendation.scans += scans;
+            recommendation.rowsScanned += rowsScanned;
+            recommendation.rowsReturned += rowsReturned;
+            recommendation.scanMillis += scanMillis;
+        }
+    }
+
+    private static class Candidate
+    {
+        private final String schema;
+        private final String table;
+        private final List<String> columns;
+        private final int equalityColumns;
+
+        Candidate(String schema, String table, List<String> columns, int equalityColumns)
+        {
+            this.schema = schema;
+            this.table = table;
+            this.columns = ImmutableList.copyOf(columns);
+            this.equalityColumns = equalityColumns;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Candidate other = (Candidate) obj;
+            return schema.equals(other.schema) && table.equals(other.table) && columns.equals(other.columns) && equalityColumns == other.equalityColumns;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(schema, table, columns, equalityColumns);
+        }
+    }
+
+    /**
+     * Leading columns of a table's indexes, and its INTEGER PRIMARY KEY, which is its ROWID.
+     */
+    private static class TableIndexes
+    {
+        private final Optional<String> rowidColumn;
+        private final List<List<String>> indexes;
+
+        private TableIndexes(Optional<String> rowidColumn, List<List<String>> indexes)
+        {
+            this.rowidColumn = rowidColumn;
+            this.indexes = indexes;
+        }
+
+        /**
+         * Empty if the relation is not a table that can be indexed.
+         */
+        static Optional<TableIndexes> read(Connection connection, String schema, String table)
+                throws SQLException
+        {
+            String prefix = SqliteMetadata.schemaPrefix(schema);
+            try (PreparedStatement statement = connection.prepareStatement("SELECT sql FROM " + prefix + "sqlite_master WHERE name = ? COLLATE NOCASE AND type = 'table'")) {
+                statement.setString(1, table);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next() || rs.getString(1) == null || rs.getString(1).toUpperCase(Locale.ENGLISH).startsWith("CREATE VIRTUAL TABLE")) {
+                        return Optional.empty();
+                    }
+                }
+            }
+
+            List<String> keyColumns = new ArrayList<>();
+            Optional<String> keyType = Optional.empty();
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("PRAGMA " + prefix + "table_info(" + SqliteMetadata.quote(table) + ")")) {
+                while (rs.next()) {
+                    if (rs.getInt("pk") > 0) {
+                        keyColumns.add(rs.getString("name").toLowerCase(Locale.ENGLISH));
+                        keyType = Optional.ofNullable(rs.getString("type"));
+                    }
+                }
+            }
+            Optional<String> rowidColumn = keyColumns.size() == 1 && keyType.map("INTEGER"::equalsIgnoreCase).orElse(false)
+                    ? Optional.of(keyColumns.get(0))
+                    : Optional.empty();
+
+            List<String> indexNames = new ArrayList<>();
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("PRAGMA " + prefix + "index_list(" + SqliteMetadata.quote(table) + ")")) {
+                while (rs.next()) {
+                    // A partial index only serves queries that imply its own where clause
+                    if (rs.getInt("partial") == 0) {
+                        indexNames.add(rs.getString("name"));
+                    }
+                }
+            }
+            ImmutableList.Builder<List<String>> indexes = ImmutableList.builder();
+            for (String indexName : indexNames) {
+                List<String> columns = new ArrayList<>();
+                try (Statement statement = connection.createStatement();
+                        ResultSet rs = statement.executeQuery("PRAGMA " + prefix + "index_info(" + SqliteMetadata.quote(indexName) + ")")) {
+                    while (rs.next()) {
+                        // Expressions have no name, and end the columns an index can be sought on
+                        String name = rs.getString("name");
+                        columns.add(name == null ? "" : name.toLowerCase(Locale.ENGLISH));
+                    }
+                }
+                indexes.add(columns);
+            }
+            return Optional.of(new TableIndexes(rowidColumn, indexes.build()));
+        }
+
+        /**
+         * Whether SQLite can already seek the candidate's columns: an index leads with its
+         * equality columns, in any order, then its range column, or they include the ROWID.
+         */
+        boolean covers(Candidate candidate)
+        {
+            List<String> equalities = candidate.columns.subList(0, candidate.equalityColumns);
+            if (rowidColumn.isPresent() && (equalities.contains(rowidColumn.get()) || (equalities.isEmpty() && candidate.columns.contains(rowidColumn.get())))) {
+                return true;
+            }
+            for (List<String> index : indexes) {
+                if (index.size() >= candidate.columns.size()
+                        && new TreeSet<>(index.subList(0, equalities.size())).equals(new TreeSet<>(equalities))
+                        && index.subList(equalities.size(), candidate.columns.size()).equals(candidate.columns.subList(equalities.size(), candidate.columns.size()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static class Recommendation
+    {
+        private final Candidate candidate;
+        private final Set<String> predicates = new TreeSet<>();
+        private long scans;
+        private long rowsScanned;
+        private long rowsReturned;
+        private long scanMillis;
+
+        private Recommendation(Candidate candidate)
+        {
+            this.candidate = candidate;
+        }
+
+        public String getSchemaName()
+        {
+            return candidate.schema;
+        }
+
+        public String getTableName()
+        {
+            return candidate.table;
+        }
+
+        public List<String> getColumns()
+        {
+            return candidate.columns;
+        }
+
+        /**
+         * The distinct predicates of the scans the index would serve.
+         */
+        public Set<String> getPredicates()
+        {
+            return predicates;
+        }
+
+        public long getScans()
+        {
+            return scans;
+        }
+
+        /**
+         * Rows in the ROWID ranges of the scans, which SQLite read without an index.
+         */
+        public long getRowsScanned()
+        {
+            return rowsScanned;
+        }
+
+        public long getRowsReturned()
+        {
+            return rowsReturned;
+        }
+
+        public long getScanMillis()
+        {
+            return scanMillis;
+        }
+
+        public double getSelectivity()
+        {
+            return rowsScanned == 0 ? 1 : Math.min(1, (double) rowsReturned / rowsScanned);
+        }
+
+        /**
+         * The scan time spent on rows the index would have skipped.
+         */
+        public double getEstimatedSavingMillis()
+        {
+            return scanMillis * (1 - getSelectivity());
+        }
+
+        public String getCreateIndexSql()
+        {
+            return SqliteIndexAdvisor.getCreateIndexSql(candidate.schema, candidate.table, candidate.columns);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.common.relation.Predicate;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.spi.relation.PredicateCompiler;
+import com.facebook.presto.sqlite.SqliteConfig.TypeMismatch;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Decides which scans read their rows in two phases. A filter SQLite cannot apply, e.g. one
+ * calling a Presto function, is applied by Presto to the rows a scan returns, so a scan reads
+ * and converts every column of every row only for the filter to drop most of them. When a
+ * sample of the rows the scan reads predicts that the filter keeps few of them and that the
+ * columns it does not read are wide, the scan first reads the ROWID and the filter's columns
+ * and applies the filter itself, then reads the other columns of the rows kept by ROWID; see
+ * {@link SqliteLateMaterializationPageSource}.
+ */
+public class SqliteLateMaterialization
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteLateMaterialization.class);
+
+    // The sample is spread over this many ROWID windows, each found with an index seek
+    private static final int SAMPLE_WINDOWS = 10;
+    private static final int SAMPLE_ROWS = 1000;
+    // A smaller sample predicts nothing, and a scan that reads so few rows has little to save
+    private static final int MIN_SAMPLE_ROWS = 100;
+    // Decisions are sampled again after a while, as the rows of a file that is written change
+    private static final long DECISION_REFRESH_MINUTES = 10;
+    private static final int MAX_DECISIONS = 10_000;
+    // A virtual table other than FTS5 or R*Tree may scan the whole table for every ROWID looked up
+    private static final Pattern VIRTUAL_TABLE = Pattern.compile("\\s*CREATE\\s+VIRTUAL\\s+TABLE\\s", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ROWID_LOOKUP_MODULE = Pattern.compile("\\sUSING\\s+(?:fts5|rtree|rtree_i32)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final SqliteClient sqliteClient;
+    private final PredicateCompiler predicateCompiler;
+    private final boolean enabled;
+    private final int maxSelectivityPercent;
+    private final int minRowBytes;
+    private final TypeMismatch typeMismatch;
+    // Decisions by table, where clause, filter and the other columns; dropped when the file is replaced
+    private final Cache<List<Object>, Boolean> decisions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DECISIONS)
+            .expireAfterWrite(DECISION_REFRESH_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    public SqliteLateMaterialization(SqliteClient sqliteClient, PredicateCompiler predicateCompiler, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        this.predicateCompiler = requireNonNull(predicateCompiler, "predicateCompiler is null");
+        requireNonNull(config, "config is null");
+        this.enabled = config.isLateMaterializationEnabled();
+        this.maxSelectivityPercent = config.getLateMaterializationMaxSelectivityPercent();
+        this.minRowBytes = config.getLateMaterializationMinRowBytes();
+        this.typeMismatch = config.getTypeMismatch();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Whether a scan of the table with the where clause should apply the filter before reading
+     * the other columns: a sample of the rows it reads predicts that the filter keeps at most
+     * {@code sqlite.late-materialization.max-selectivity-percent} of them, and that the other
+     * columns average at least {@code sqlite.late-materialization.min-row-bytes} per row.
+     */
+    public boolean isSelective(ConnectorSession session, SqliteTableHandle table, String whereClause, SqliteResidualFilter filter, List<SqliteColumnHandle> otherColumns)
+    {
+        if (!enabled || otherColumns.isEmpty() || table.isJoin()) {
+            return false;
+        }
+        // The optimizer runs more than once per query, and queries repeat; the sample is read once
+        List<Object> key = ImmutableList.of(table, whereClause, filter, ImmutableList.copyOf(otherColumns));
+        try {
+            return decisions.get(key, () -> sample(session, table, whereClause, filter, otherColumns));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throwIfUnchecked(e.getCause());
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to sample " + table + ": " + e.getMessage(), e);
+        }
+    }
+
+    public void invalidate()
+    {
+        decisions.invalidateAll();
+    }
+
+    private boolean sample(ConnectorSession session, SqliteTableHandle table, String whereClause, SqliteResidualFilter filter, List<SqliteColumnHandle> otherColumns)
+    {
+        Optional<Predicate> predicate = compile(session, filter);
+        if (!predicate.isPresent()) {
+            return false;
+        }
+
+        List<SqliteColumnHandle> columns = ImmutableList.<SqliteColumnHandle>builder()
+                .addAll(filter.getColumns())
+                .addAll(otherColumns)
+                .build();
+        SqlitePageBuilder pageBuilder = new SqlitePageBuilder(columns);
+        try (Connection connection = sqliteClient.getConnection()) {
+            if (!hasRowidLookup(connection, table)) {
+                return false;
+            }
+            long min;
+            long max;
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT MIN(ROWID), MAX(ROWID) FROM " + table.getFromSql())) {
+                rs.next();
+                min = rs.getLong(1);
+                max = rs.getLong(2);
+                if (rs.wasNull()) {
+                    return false;
+                }
+            }
+            int windowRows = SAMPLE_ROWS / SAMPLE_WINDOWS;
+            for (int window = 0; window < SAMPLE_WINDOWS; window++) {
+                long start = min + (long) (((double) max - min) * window / SAMPLE_WINDOWS);
+                SqliteRecordCursor cursor = new SqliteRecordCursor(connection, table, columns, whereClause, start, start + windowRows - 1, "", typeMismatch);
+                try {
+                    while (cursor.advanceNextPosition()) {
+                        pageBuilder.appendRow(cursor);
+                    }
+                }
+                finally {
+                    cursor.close();
+                }
+            }
+        }
+        catch (SQLException | PrestoException e) {
+            // The scan reads the table as before, and fails there if it has to
+            log.debug("Failed to sample {} for late materialization", table, e);
+            return false;
+        }
+
+        Page sample = pageBuilder.build();
+        int rows = sample.getPositionCount();
+        if (rows < MIN_SAMPLE_ROWS) {
+            return false;
+        }
+        int kept = 0;
+        try {
+            for (int position = 0; position < rows; position++) {
+                if (predicate.get().evaluate(session.getSqlFunctionProperties(), sample, position)) {
+                    kept++;
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            // E.g. a division by zero, which the query then fails with as before
+            log.debug("Failed to apply filter {} to the sample of {}", filter, table, e);
+            return false;
+        }
+        long otherBytes = 0;
+        for (int channel = filter.getColumns().size(); channel < columns.size(); channel++) {
+            otherBytes += sample.getBlock(channel).getSizeInBytes();
+        }
+        log.debug("Filter {} on {} keeps {} of {} sampled rows, whose other columns take {} bytes", filter, table, kept, rows, otherBytes);
+        return kept * 100L <= (long) maxSelectivityPercent * rows && otherBytes >= (long) minRowBytes * rows;
+    }
+
+    /**
+     * Compiles the filter, or returns empty if Presto cannot.
+     */
+    public Optional<Predicate> compile(ConnectorSession session, SqliteResidualFilter filter)
+    {
+        try {
+            return Optional.of(predicateCompiler.compilePredicate(session.getSqlFunctionProperties(), session.getSessionFunctions(), filter.getPredicate()).get());
+        }
+        catch (RuntimeException e) {
+            log.debug("Failed to compile filter {}", filter, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Whether the table is an ordinary table, an FTS5 table or an R*Tree table, whose rows
+     * SQLite finds by ROWID, and no declared column hides its ROWID.
+     */
+    private static boolean hasRowidLookup(Connection connection, SqliteTableHandle table)
+            throws SQLException
+    {
+        String schemaPrefix = SqliteMetadata.schemaPrefix(table.getSchemaName());
+        try (PreparedStatement statement = connection.prepareStatement("SELECT sql FROM " + schemaPrefix
+                + "sqlite_master WHERE name = ? COLLATE NOCASE AND type = 'table'")) {
+            statement.setString(1, table.getTableName());
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                String sql = rs.getString("sql");
+                if (sql == null || SqliteMetadata.isWithoutRowid(sql)) {
+                    return false;
+                }
+                if (VIRTUAL_TABLE.matcher(sql).lookingAt() && !ROWID_LOOKUP_MODULE.matcher(sql).find()) {
+                    return false;
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA " + schemaPrefix + "table_info(" + SqliteMetadata.quote(table.getTableName()) + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equalsIgnoreCase("rowid")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.common.block.Block;
+import com.facebook.presto.common.block.BlockBuilder;
+import com.facebook.presto.common.function.SqlFunctionProperties;
+import com.facebook.presto.common.relation.Predicate;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ConnectorPageSource;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads a split in two phases; see {@link SqliteLateMaterialization}. The scan reads the
+ * ROWID and the columns of the residual filter, and applies the filter. The other columns of
+ * the rows it keeps are then read by ROWID, a batch at a time, on the scan's connection and in
+ * its read transaction, which is held until the last batch is read. The filter stays in the
+ * plan; applying it again to the rows kept changes nothing.
+ */
+public class SqliteLateMaterializationPageSource
+        implements ConnectorPageSource
+{
+    // As SqlitePageSource: rows the scan reads per call, and the size that ends a batch early
+    private static final int ROWS_PER_REQUEST = 4096;
+    private static final long MAX_PAGE_BYTES = 1024 * 1024;
+    // Rows kept before their other columns are read with one lookup
+    private static final int LOOKUP_ROWS = 1024;
+
+    private final SqliteRecordCursor cursor;
+    private final SqlitePageBuilder scanPageBuilder;
+    private final Predicate predicate;
+    private final SqlFunctionProperties functionProperties;
+    private final List<Type> scanTypes;
+    private final int rowidChannel;
+    // The ROWID, then the columns that are not read by the scan
+    private final List<SqliteColumnHandle> lookupColumns;
+    private final SqlitePageBuilder lookupPageBuilder;
+    // For each output column, its channel in the scan's pages, or -1 minus its channel in the lookups'
+    private final int[] outputChannels;
+
+    // The rows kept so far, in the scan's columns
+    private final BlockBuilder[] kept;
+    private int keptCount;
+    private long completedBytes;
+    private long completedPositions;
+    private boolean finished;
+
+    /**
+     * Reads the columns through a scan of the record set, whose columns are those of the
+     * filter, in the filter's input order, and the ROWID.
+     */
+    public SqliteLateMaterializationPageSource(SqliteRecordSet recordSet, Predicate predicate, SqlFunctionProperties functionProperties, List<SqliteColumnHandle> columns)
+    {
+        requireNonNull(recordSet, "recordSet is null");
+        this.predicate = requireNonNull(predicate, "predicate is null");
+        this.functionProperties = requireNonNull(functionProperties, "functionProperties is null");
+        requireNonNull(columns, "columns is null");
+
+        List<SqliteColumnHandle> scanColumns = recordSet.getColumns();
+        this.scanTypes = recordSet.getColumnTypes();
+        this.rowidChannel = scanColumns.stream()
+                .map(SqliteColumnHandle::getKind)
+                .collect(Collectors.toList())
+                .indexOf(SqliteColumnHandle.Kind.ROWID);
+        checkArgument(rowidChannel >= 0, "scan does not read the ROWID");
+
+        List<SqliteColumnHandle> lookupColumns = new ArrayList<>();
+        lookupColumns.add(scanColumns.get(rowidChannel));
+        this.outputChannels = new int[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            int channel = scanColumns.indexOf(columns.get(i));
+            if (channel < 0) {
+                channel = lookupColumns.indexOf(columns.get(i));
+                if (channel < 0) {
+                    channel = lookupColumns.size();
+                    lookupColumns.add(columns.get(i));
+                }
+                channel = -1 - channel;
+            }
+            outputChannels[i] = channel;
+        }
+        this.lookupColumns = ImmutableList.copyOf(lookupColumns);
+        this.lookupPageBuilder = new SqlitePageBuilder(this.lookupColumns);
+
+        this.kept = new BlockBuilder[scanTypes.size()];
+        for (int channel = 0; channel < kept.length; channel++) {
+            kept[channel] = scanTypes.get(channel).createBlockBuilder(null, LOOKUP_ROWS);
+        }
+        this.scanPageBuilder = new SqlitePageBuilder(scanColumns);
+        this.cursor = recordSet.cursorInReadTransaction();
+    }
+
+    @Override
+    public Page getNextPage()
+    {
+        if (!finished) {
+            for (int i = 0; i < ROWS_PER_REQUEST && scanPageBuilder.getSizeInBytes() < MAX_PAGE_BYTES; i++) {
+                // The rows kept last are yet to be looked up on the scan's connection
+                if (!cursor.advanceNextPositionKeepingOpen()) {
+                    finished = true;
+                    break;
+                }
+                scanPageBuilder.appendRow(cursor);
+            }
+            if (!scanPageBuilder.isEmpty()) {
+                filter(scanPageBuilder.build());
+            }
+        }
+        Page page = null;
+        if (keptCount >= LOOKUP_ROWS || (finished && keptCount > 0)) {
+            page = lookUp();
+        }
+        if (finished && keptCount == 0) {
+            cursor.close();
+        }
+        return page;
+    }
+
+    private void filter(Page page)
+    {
+        completedPositions += page.getPositionCount();
+        for (int position = 0; position < page.getPositionCount(); position++) {
+            if (predicate.evaluate(functionProperties, page, position)) {
+                for (int channel = 0; channel < kept.length; channel++) {
+                    scanTypes.get(channel).appendTo(page.getBlock(channel), position, kept[channel]);
+                }
+                keptCount++;
+            }
+        }
+    }
+
+    /**
+     * Reads the other columns of the rows kept, and returns the rows.
+     */
+    private Page lookUp()
+    {
+        Block[] keptBlocks = new Block[kept.length];
+        for (int channel = 0; channel < kept.length; channel++) {
+            keptBlocks[channel] = kept[channel].build();
+            kept[channel] = kept[channel].newBlockBuilderLike(null);
+        }
+        int rows = keptCount;
+        keptCount = 0;
+
+        Block keptRowids = keptBlocks[rowidChannel];
+        long[] rowids = new long[rows];
+        for (int position = 0; position < rows; position++) {
+            rowids[position] = BIGINT.getLong(keptRowids, position);
+        }
+        StringBuilder whereClause = new StringBuilder("ROWID IN (");
+        for (int position = 0; position < rows; position++) {
+            whereClause.append(position == 0 ? "" : ",").append(rowids[position]);
+        }
+        whereClause.append(')');
+
+        SqliteRecordCursor lookup = cursor.lookup(lookupColumns, whereClause.toString(), "ROWID");
+        try {
+            while (lookup.advanceNextPosition()) {
+                lookupPageBuilder.appendRow(lookup);
+            }
+            completedBytes += lookup.getCompletedBytes();
+        }
+        finally {
+            lookup.close();
+        }
+        Page lookedUp = lookupPageBuilder.build();
+        long[] lookedUpRowids = new long[lookedUp.getPositionCount()];
+        for (int position = 0; position < lookedUpRowids.length; position++) {
+            lookedUpRowids[position] = BIGINT.getLong(lookedUp.getBlock(0), position);
+        }
+
+        // Matched by ROWID: the scan need not read in ROWID order
+        boolean identity = Arrays.equals(rowids, lookedUpRowids);
+        int[] keptPositions = new int[rows];
+        int[] lookedUpPositions = new int[rows];
+        int count = 0;
+        for (int position = 0; position < rows; position++) {
+            int match = identity ? position : Arrays.binarySearch(lookedUpRowids, rowids[position]);
+            if (match >= 0) {
+                keptPositions[count] = position;
+                lookedUpPositions[count] = match;
+                count++;
+            }
+        }
+
+        Block[] blocks = new Block[outputChannels.length];
+        for (int i = 0; i < outputChannels.length; i++) {
+            int channel = outputChannels[i];
+            if (channel >= 0) {
+                blocks[i] = count == rows ? keptBlocks[channel] : keptBlocks[channel].copyPositions(keptPositions, 0, count);
+            }
+            else {
+                Block block = lookedUp.getBlock(-1 - channel);
+                blocks[i] = identity ? block : block.copyPositions(lookedUpPositions, 0, count);
+            }
+        }
+        return new Page(count, blocks);
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return finished && keptCount == 0;
+    }
+
+    @Override
+    public long getCompletedBytes()
+    {
+        return cursor.getCompletedBytes() + completedBytes;
+    }
+
+    @Override
+    public long getCompletedPositions()
+    {
+        return completedPositions;
+    }
+
+    @Override
+    public long getReadTimeNanos()
+    {
+        return cursor.getReadTimeNanos();
+    }
+
+    @Override
+    public long getSystemMemoryUsage()
+    {
+        long bytes = cursor.getSystemMemoryUsage() + scanPageBuilder.getRetainedSizeInBytes() + lookupPageBuilder.getRetainedSizeInBytes();
+        for (BlockBuilder builder : kept) {
+            bytes += builder.getRetainedSizeInBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close()
+    {
+        finished = true;
+        keptCount = 0;
+        cursor.close();
+    }
+}
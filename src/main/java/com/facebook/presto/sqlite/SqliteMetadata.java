@@ -13,11 +13,15 @@
  */
 package com.facebook.presto.sqlite;
 
+import com.facebook.presto.common.block.SortOrder;
 import com.facebook.presto.common.predicate.Domain;
+import com.facebook.presto.common.predicate.Marker;
 import com.facebook.presto.common.predicate.Range;
 import com.facebook.presto.common.predicate.SortedRangeSet;
 import com.facebook.presto.common.predicate.TupleDomain;
 import com.facebook.presto.common.predicate.ValueSet;
+import com.facebook.presto.common.type.DecimalType;
+import com.facebook.presto.common.type.Decimals;
 import com.facebook.presto.common.type.Type;
 import com.facebook.presto.common.type.VarcharType;
 import com.facebook.presto.spi.ColumnHandle;
@@ -28,32 +32,51 @@ import com.facebook.presto.spi.ConnectorTableLayout;
 import com.facebook.presto.spi.ConnectorTableLayoutHandle;
 import com.facebook.presto.spi.ConnectorTableLayoutResult;
 import com.facebook.presto.spi.ConnectorTableMetadata;
+import com.facebook.presto.spi.ConnectorTablePartitioning;
 import com.facebook.presto.spi.Constraint;
+import com.facebook.presto.spi.GroupingProperty;
+import com.facebook.presto.spi.LocalProperty;
 import com.facebook.presto.spi.PrestoException;
 import com.facebook.presto.spi.SchemaTableName;
 import com.facebook.presto.spi.SchemaTablePrefix;
+import com.facebook.presto.spi.SortingProperty;
+import com.facebook.presto.spi.UniqueProperty;
 import com.facebook.presto.spi.connector.ConnectorMetadata;
+import com.facebook.presto.sqlite.SqliteTableKeys.TableKey;
+import com.facebook.presto.sqlite.SqliteTypeInference.InferredColumns;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import io.airlift.slice.Slice;
 
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static com.facebook.presto.common.type.BigintType.BIGINT;
 import static com.facebook.presto.common.type.BooleanType.BOOLEAN;
+import static com.facebook.presto.common.type.DateType.DATE;
+import static com.facebook.presto.common.type.DecimalType.createDecimalType;
 import static com.facebook.presto.common.type.DoubleType.DOUBLE;
 import static com.facebook.presto.common.type.IntegerType.INTEGER;
+import static com.facebook.presto.common.type.TimestampType.TIMESTAMP;
 import static com.facebook.presto.common.type.VarcharType.VARCHAR;
 import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.facebook.presto.spi.StandardErrorCode.NOT_SUPPORTED;
 import static java.util.Objects.requireNonNull;
 
 public class SqliteMetadata
@@ -61,17 +84,79 @@ public class SqliteMetadata
 {
     public static final String DEFAULT_SCHEMA = "default";
 
-    private final SqliteClient sqliteClient;
+    private static final Pattern DECIMAL_TYPE = Pattern.compile("(?:DECIMAL|NUMERIC)\\s*\\(\\s*(\\d+)\\s*(?:,\\s*(\\d+)\\s*)?\\)");
+    private static final Pattern FTS5_TABLE = Pattern.compile("CREATE\\s+VIRTUAL\\s+TABLE\\s.*\\bUSING\\s+fts5\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final List<String> FTS5_SHADOW_TABLES = ImmutableList.of("_data", "_idx", "_content", "_docsize", "_config");
+    private static final String FTS5_RANK_COLUMN = "rank";
+    private static final Pattern WITHOUT_ROWID = Pattern.compile("\\s*(?:STRICT\\s*,\\s*)?WITHOUT\\s+ROWID\\s*(?:,\\s*STRICT\\s*)?;?\\s*", Pattern.CASE_INSENSITIVE);
+    static final String ROWID_COLUMN = "$rowid";
 
-    public SqliteMetadata(SqliteClient sqliteClient)
+    private final SqliteClient sqliteClient;
+    private final SqliteTablePartitioning tablePartitioning;
+    private final SqliteTypeInference typeInference;
+    private final SqliteRtreeIndex rtreeIndex;
+    private final SqliteTableKeys tableKeys;
+    private final Set<String> attachedSchemas;
+
+    public SqliteMetadata(SqliteClient sqliteClient, SqliteTablePartitioning tablePartitioning, SqliteTypeInference typeInference, SqliteRtreeIndex rtreeIndex, SqliteTableKeys tableKeys,
+            Set<String> attachedSchemas)
     {
         this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        this.tablePartitioning = requireNonNull(tablePartitioning, "tablePartitioning is null");
+        this.typeInference = requireNonNull(typeInference, "typeInference is null");
+        this.rtreeIndex = requireNonNull(rtreeIndex, "rtreeIndex is null");
+        this.tableKeys = requireNonNull(tableKeys, "tableKeys is null");
+        this.attachedSchemas = ImmutableSet.copyOf(requireNonNull(attachedSchemas, "attachedSchemas is null"));
+    }
+
+    static String quote(String name)
+    {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Prefix that makes a name in a SQLite statement refer to the database file of the schema:
+     * empty for the main file, whose names SQLite looks up first, or the attachment's name.
+     */
+    static String schemaPrefix(String schemaName)
+    {
+        return DEFAULT_SCHEMA.equals(schemaName) ? "" : quote(schemaName) + ".";
+    }
+
+    static String qualify(String schemaName, String name)
+    {
+        return schemaPrefix(schemaName) + quote(name);
+    }
+
+    /**
+     * Whether a table created by the statement is a {@code WITHOUT ROWID} table, whose rows are
+     * stored by primary key instead of by ROWID.
+     */
+    static boolean isWithoutRowid(String sql)
+    {
+        return WITHOUT_ROWID.matcher(sql.substring(sql.lastIndexOf(')') + 1)).matches();
+    }
+
+    /**
+     * SQLite's name of the database file of the schema, as table-valued pragma functions take it.
+     */
+    static String databaseName(String schemaName)
+    {
+        return DEFAULT_SCHEMA.equals(schemaName) ? "main" : schemaName;
     }
 
     @Override
     public List<String> listSchemaNames(ConnectorSession session)
     {
-        return ImmutableList.of(DEFAULT_SCHEMA);
+        return ImmutableList.<String>builder()
+                .add(DEFAULT_SCHEMA)
+                .addAll(attachedSchemas)
+                .build();
+    }
+
+    private boolean isSchema(String schemaName)
+    {
+        return DEFAULT_SCHEMA.equals(schemaName) || attachedSchemas.contains(schemaName);
     }
 
     @Override
@@ -79,15 +164,18 @@ public class SqliteMetadata
     {
         requireNonNull(tableName, "tableName is null");
 
-        if (!DEFAULT_SCHEMA.equals(tableName.getSchemaName())) {
+        if (!isSchema(tableName.getSchemaName())) {
             return null;
         }
 
-        try (Connection connection = sqliteClient.getConnection()) {
-            DatabaseMetaData metadata = connection.getMetaData();
-            try (ResultSet tables = metadata.getTables(null, null, tableName.getTableName(), new String[] {"TABLE", "VIEW"})) {
+        // The driver's metadata only covers the main file; Presto lowercases the names SQLite compares without case
+        try (Connection connection = sqliteClient.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM " + schemaPrefix(tableName.getSchemaName())
+                        + "sqlite_master WHERE name = ? COLLATE NOCASE AND type IN ('table', 'view')")) {
+            statement.setString(1, tableName.getTableName());
+            try (ResultSet tables = statement.executeQuery()) {
                 if (tables.next()) {
-                    return new SqliteTableHandle(DEFAULT_SCHEMA, tableName.getTableName());
+                    return new SqliteTableHandle(tableName.getSchemaName(), tableName.getTableName());
                 }
             }
         }
@@ -108,22 +196,111 @@ public class SqliteMetadata
         SqliteTableHandle tableHandle = (SqliteTableHandle) table;
         TupleDomain<ColumnHandle> tupleDomain = constraint.getSummary();
         String whereClause = buildWhereClause(tupleDomain);
-        ConnectorTableLayout layout = new ConnectorTableLayout(
-                new SqliteTableLayoutHandle(tableHandle, whereClause));
-        return new ConnectorTableLayoutResult(layout, constraint.getSummary());
+        // Also bounds the ROWID range the splits are cut from, so a scan of the rows appended since
+        // a watermark reads only the table's last pages
+        String rowidPredicate = tupleDomain.getDomains()
+                .flatMap(domains -> domains.entrySet().stream()
+                        .filter(entry -> ((SqliteColumnHandle) entry.getKey()).getKind() == SqliteColumnHandle.Kind.ROWID)
+                        .map(entry -> domainToSql((SqliteColumnHandle) entry.getKey(), entry.getValue()))
+                        .filter(Objects::nonNull)
+                        .findFirst())
+                .orElse("");
+        // The filters still apply as they are; the R*Tree only narrows the rows they are applied to
+        Optional<String> lookup = tableHandle.isMainTable() ? rtreeIndex.getLookupPredicate(tableHandle.getTableName(), tupleDomain) : Optional.empty();
+        if (lookup.isPresent()) {
+            whereClause = whereClause.isEmpty() ? lookup.get() : whereClause + " AND " + lookup.get();
+        }
+        TableKey key = tableKeys.getKey(tableHandle);
+        String orderBy = "";
+        if (SqliteSessionProperties.isOrderedScan(session) && key.isSortable()) {
+            // Text in byte order, as Presto sorts it, whatever collation the columns declare
+            orderBy = key.getColumns().stream()
+                    .map(column -> quote(column) + " COLLATE BINARY")
+                    .collect(Collectors.joining(", "));
+        }
+
+        // Buckets are read one split each, which would break the key order of an ordered scan
+        // and repeat an R*Tree lookup in every bucket
+        Optional<SqlitePartitioningHandle> partitioning = Optional.empty();
+        Optional<String> partitionColumn = tableHandle.isMainTable() ? tablePartitioning.getPartitionColumn(tableHandle.getTableName()) : Optional.empty();
+        if (orderBy.isEmpty() && !lookup.isPresent() && partitionColumn.isPresent()) {
+            SqliteColumnHandle column = (SqliteColumnHandle) getColumnHandles(session, tableHandle).get(partitionColumn.get());
+            if (column != null && (column.getType().equals(BIGINT) || column.getType().equals(INTEGER))) {
+                partitioning = tablePartitioning.getPartitioning(tableHandle.getTableName());
+            }
+        }
+
+        SqliteTableLayoutHandle layoutHandle = new SqliteTableLayoutHandle(
+                tableHandle,
+                whereClause,
+                rowidPredicate,
+                tupleDomain,
+                orderBy,
+                partitioning,
+                partitioning.isPresent() ? partitionColumn : Optional.empty(),
+                lookup.isPresent(),
+                Optional.empty(),
+                Optional.empty());
+        // Full-text queries are answered by the MATCH in the scan; the hidden column holds no value to filter on
+        TupleDomain<ColumnHandle> unenforced = tupleDomain.getDomains()
+                .map(domains -> TupleDomain.withColumnDomains(domains.entrySet().stream()
+                        .filter(entry -> ((SqliteColumnHandle) entry.getKey()).getKind() != SqliteColumnHandle.Kind.FTS_MATCH)
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue))))
+                .orElse(tupleDomain);
+        return new ConnectorTableLayoutResult(getTableLayout(session, layoutHandle, key.getColumns()), unenforced);
     }
 
     @Override
     public ConnectorTableLayout getTableLayout(ConnectorSession session, ConnectorTableLayoutHandle handle)
     {
-        return new ConnectorTableLayout(handle);
+        SqliteTableLayoutHandle layoutHandle = (SqliteTableLayoutHandle) handle;
+        return getTableLayout(session, layoutHandle, tableKeys.getKey(layoutHandle.getTable()).getColumns());
+    }
+
+    private ConnectorTableLayout getTableLayout(ConnectorSession session, SqliteTableLayoutHandle layoutHandle, List<String> key)
+    {
+        // A key is unique across the whole table, so rows are trivially grouped by it in any
+        // split order; sorting only holds for ordered scans, which read a single split
+        List<LocalProperty<ColumnHandle>> localProperties = ImmutableList.of();
+        Map<String, ColumnHandle> columnHandles = key.isEmpty() && !layoutHandle.getPartitioning().isPresent()
+                ? ImmutableMap.of()
+                : getColumnHandles(session, layoutHandle.getTable());
+        if (!key.isEmpty() && columnHandles.keySet().containsAll(key)) {
+            List<ColumnHandle> keyColumns = key.stream()
+                    .map(columnHandles::get)
+                    .collect(Collectors.toList());
+            if (!layoutHandle.getOrderBy().isEmpty()) {
+                localProperties = keyColumns.stream()
+                        .map(column -> new SortingProperty<>(column, SortOrder.ASC_NULLS_FIRST))
+                        .collect(Collectors.toList());
+            }
+            else if (keyColumns.size() == 1) {
+                localProperties = ImmutableList.of(new UniqueProperty<>(keyColumns.get(0)));
+            }
+            else {
+                localProperties = ImmutableList.of(new GroupingProperty<>(keyColumns));
+            }
+        }
+
+        Optional<ConnectorTablePartitioning> tablePartitioning = layoutHandle.getPartitioning()
+                .map(partitioning -> new ConnectorTablePartitioning(
+                        partitioning,
+                        ImmutableList.of(columnHandles.get(layoutHandle.getPartitionColumn().get()))));
+        return new ConnectorTableLayout(
+                layoutHandle,
+                Optional.empty(),
+                TupleDomain.all(),
+                tablePartitioning,
+                Optional.empty(),
+                Optional.empty(),
+                localProperties);
     }
 
     @Override
     public ConnectorTableMetadata getTableMetadata(ConnectorSession session, ConnectorTableHandle table)
     {
         SqliteTableHandle sqliteTableHandle = (SqliteTableHandle) table;
-        List<ColumnMetadata> columns = getColumnsMetadata(sqliteTableHandle.getTableName());
+        List<ColumnMetadata> columns = getColumnsMetadata(sqliteTableHandle.getSchemaName(), sqliteTableHandle.getTableName());
         return new ConnectorTableMetadata(
                 new SchemaTableName(sqliteTableHandle.getSchemaName(), sqliteTableHandle.getTableName()),
                 columns);
@@ -133,13 +310,9 @@ public class SqliteMetadata
     public Map<String, ColumnHandle> getColumnHandles(ConnectorSession session, ConnectorTableHandle tableHandle)
     {
         SqliteTableHandle sqliteTableHandle = (SqliteTableHandle) tableHandle;
-        List<ColumnMetadata> columns = getColumnsMetadata(sqliteTableHandle.getTableName());
-
         ImmutableMap.Builder<String, ColumnHandle> builder = ImmutableMap.builder();
-        int ordinalPosition = 0;
-        for (ColumnMetadata column : columns) {
-            builder.put(column.getName(), new SqliteColumnHandle(column.getName(), column.getType(), ordinalPosition));
-            ordinalPosition++;
+        for (SqliteColumnHandle column : getColumns(sqliteTableHandle.getSchemaName(), sqliteTableHandle.getTableName())) {
+            builder.put(column.getColumnName(), column);
         }
         return builder.build();
     }
@@ -148,7 +321,7 @@ public class SqliteMetadata
     public ColumnMetadata getColumnMetadata(ConnectorSession session, ConnectorTableHandle tableHandle, ColumnHandle columnHandle)
     {
         SqliteColumnHandle sqliteColumnHandle = (SqliteColumnHandle) columnHandle;
-        return ColumnMetadata.builder().setName(sqliteColumnHandle.getColumnName()).setType(sqliteColumnHandle.getType()).build();
+        return toColumnMetadata(sqliteColumnHandle);
     }
 
     @Override
@@ -157,7 +330,7 @@ public class SqliteMetadata
         ImmutableMap.Builder<SchemaTableName, List<ColumnMetadata>> columns = ImmutableMap.builder();
         for (SchemaTableName tableName : listTables(session, Optional.ofNullable(prefix.getSchemaName()))) {
             if (prefix.getTableName() == null || tableName.getTableName().equals(prefix.getTableName())) {
-                columns.put(tableName, getColumnsMetadata(tableName.getTableName()));
+                columns.put(tableName, getColumnsMetadata(tableName.getSchemaName(), tableName.getTableName()));
             }
         }
         return columns.build();
@@ -166,17 +339,35 @@ public class SqliteMetadata
     @Override
     public List<SchemaTableName> listTables(ConnectorSession session, Optional<String> schemaName)
     {
-        if (schemaName.isPresent() && !DEFAULT_SCHEMA.equals(schemaName.get())) {
-            return ImmutableList.of();
-        }
+        List<String> schemaNames = schemaName.isPresent() ? ImmutableList.of(schemaName.get()) : listSchemaNames(session);
 
         ImmutableList.Builder<SchemaTableName> tables = ImmutableList.builder();
         try (Connection connection = sqliteClient.getConnection()) {
-            DatabaseMetaData metadata = connection.getMetaData();
-            try (ResultSet rs = metadata.getTables(null, null, "%", new String[] {"TABLE", "VIEW"})) {
-                while (rs.next()) {
-                    String tableName = rs.getString("TABLE_NAME");
-                    tables.add(new SchemaTableName(DEFAULT_SCHEMA, tableName));
+            for (String schema : schemaNames) {
+                if (!isSchema(schema)) {
+                    continue;
+                }
+                // The tables FTS5 and R*Tree keep their index in are implementation details of the virtual table
+                Set<String> shadowTables = new HashSet<>();
+                for (String ftsTable : getFts5Tables(connection, schema)) {
+                    for (String suffix : FTS5_SHADOW_TABLES) {
+                        shadowTables.add(ftsTable + suffix);
+                    }
+                }
+                for (String rtreeTable : SqliteRtreeIndex.getRtreeTables(connection, schema)) {
+                    for (String suffix : SqliteRtreeIndex.SHADOW_TABLES) {
+                        shadowTables.add(rtreeTable + suffix);
+                    }
+                }
+                try (Statement statement = connection.createStatement();
+                        ResultSet rs = statement.executeQuery("SELECT name FROM " + schemaPrefix(schema)
+                                + "sqlite_master WHERE type IN ('table', 'view') AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\'")) {
+                    while (rs.next()) {
+                        String tableName = rs.getString("name");
+                        if (!shadowTables.contains(tableName)) {
+                            tables.add(new SchemaTableName(schema, tableName));
+                        }
+                    }
                 }
             }
         }
@@ -186,30 +377,221 @@ public class SqliteMetadata
         return tables.build();
     }
 
-    private List<ColumnMetadata> getColumnsMetadata(String tableName)
+    private List<ColumnMetadata> getColumnsMetadata(String schemaName, String tableName)
     {
-        List<ColumnMetadata> columns = new ArrayList<>();
+        return getColumns(schemaName, tableName).stream()
+                .map(SqliteMetadata::toColumnMetadata)
+                .collect(Collectors.toList());
+    }
+
+    private static ColumnMetadata toColumnMetadata(SqliteColumnHandle column)
+    {
+        return ColumnMetadata.builder()
+                .setName(column.getColumnName())
+                .setType(column.getType())
+                .setHidden(column.isHidden())
+                .build();
+    }
+
+    List<SqliteColumnHandle> getColumns(String schemaName, String tableName)
+    {
+        List<String> names = new ArrayList<>();
+        List<Type> declaredTypes = new ArrayList<>();
+        List<SqliteColumnHandle.Affinity> affinities = new ArrayList<>();
+        List<String> looselyTyped = new ArrayList<>();
+        Map<String, Type> temporal = new LinkedHashMap<>();
+        List<String> text = new ArrayList<>();
+        Map<String, SqliteColumnHandle.Kind> kinds = new HashMap<>();
         try (Connection connection = sqliteClient.getConnection()) {
-            DatabaseMetaData metadata = connection.getMetaData();
-            try (ResultSet rs = metadata.getColumns(null, null, tableName, null)) {
+            boolean fts5 = getFts5Tables(connection, schemaName).contains(tableName);
+            boolean hasRowid = hasRowid(connection, schemaName, tableName);
+            Optional<SqliteRtreeIndex.Rtree> rtree = SqliteRtreeIndex.getRtree(connection, schemaName, tableName);
+            // The driver's metadata only covers the main file, and its type names drop the precision and scale of DECIMAL(p, s);
+            // table_info leaves out the hidden columns of virtual tables, which FTS5 queries go through
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("PRAGMA " + schemaPrefix(schemaName) + "table_xinfo(" + quote(tableName) + ")")) {
                 while (rs.next()) {
-                    String columnName = rs.getString("COLUMN_NAME");
-                    String typeName = rs.getString("TYPE_NAME").toUpperCase();
-                    int sqlType = rs.getInt("DATA_TYPE");
-                    Type prestoType = sqliteTypeToPrestoType(typeName, sqlType);
-                    columns.add(ColumnMetadata.builder().setName(columnName).setType(prestoType).build());
+                    String columnName = rs.getString("name");
+                    boolean hidden = rs.getInt("hidden") == 1;
+                    if (fts5 && hidden && (columnName.equals(tableName) || columnName.equals(FTS5_RANK_COLUMN))) {
+                        // FTS5's hidden columns: the one named after the table takes a full-text
+                        // query, rank scores the rows it matches
+                        SqliteColumnHandle.Kind kind = columnName.equals(tableName) ? SqliteColumnHandle.Kind.FTS_MATCH : SqliteColumnHandle.Kind.FTS_RANK;
+                        names.add(columnName);
+                        declaredTypes.add(kind == SqliteColumnHandle.Kind.FTS_MATCH ? VARCHAR : DOUBLE);
+                        affinities.add(SqliteColumnHandle.Affinity.BLOB);
+                        kinds.put(columnName, kind);
+                        continue;
+                    }
+                    if (hidden || rs.getInt("hidden") > 1) {
+                        // Other hidden columns of virtual tables, and generated columns, which table_info also left out
+                        continue;
+                    }
+                    if (rtree.isPresent() && !rtree.get().isAuxiliary(columnName)) {
+                        // R*Tree columns are untyped, but always hold the id and the coordinates
+                        names.add(columnName);
+                        declaredTypes.add(rtree.get().getColumnType(rtree.get().getColumns().indexOf(columnName)));
+                        affinities.add(SqliteColumnHandle.Affinity.BLOB);
+                        continue;
+                    }
+                    String typeName = rs.getString("type").toUpperCase().trim();
+                    Type type = sqliteTypeToPrestoType(typeName, toJdbcType(typeName));
+                    names.add(columnName);
+                    declaredTypes.add(type);
+                    affinities.add(getAffinity(typeName));
+                    if (type.equals(DATE) || type.equals(TIMESTAMP)) {
+                        temporal.put(columnName, type);
+                    }
+                    else if (isLooselyTyped(typeName)) {
+                        looselyTyped.add(columnName);
+                    }
+                    else if (type instanceof VarcharType) {
+                        text.add(columnName);
+                    }
+                }
+            }
+
+            // A declared column named rowid hides the ROWID behind it
+            if (hasRowid && names.stream().noneMatch("rowid"::equalsIgnoreCase)) {
+                names.add(ROWID_COLUMN);
+                declaredTypes.add(BIGINT);
+                affinities.add(SqliteColumnHandle.Affinity.INTEGER);
+                kinds.put(ROWID_COLUMN, SqliteColumnHandle.Kind.ROWID);
+            }
+
+            // Sampled on the same connection: a second metadata connection could wait on this one
+            InferredColumns inferred = typeInference.infer(connection, schemaName, tableName, looselyTyped, temporal, text);
+
+            List<SqliteColumnHandle> columns = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                Type inferredType = inferred.getTypes().get(name);
+                Optional<SqliteTemporalEncoding> encoding = Optional.empty();
+                if (temporal.containsKey(name)) {
+                    encoding = Optional.of(inferred.getEncodings().getOrDefault(name, SqliteTemporalEncoding.ISO_TEXT));
                 }
+                Type type = inferredType != null ? inferredType : declaredTypes.get(i);
+                columns.add(new SqliteColumnHandle(
+                        name,
+                        type,
+                        i,
+                        inferredType != null,
+                        encoding,
+                        inferred.getUniformlyEncoded().contains(name),
+                        kinds.getOrDefault(name, SqliteColumnHandle.Kind.REGULAR),
+                        Optional.empty(),
+                        type instanceof VarcharType && inferred.getLowCardinality().contains(name),
+                        affinities.get(i)));
             }
+            return columns;
         }
         catch (SQLException e) {
             throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to get columns for table " + tableName + ": " + e.getMessage(), e);
         }
-        return columns;
+    }
+
+    /**
+     * Whether the table has a ROWID, that is, it is not a view or a {@code WITHOUT ROWID} table.
+     */
+    private static boolean hasRowid(Connection connection, String schemaName, String tableName)
+            throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT type, sql FROM " + schemaPrefix(schemaName)
+                + "sqlite_master WHERE name = ? COLLATE NOCASE AND type IN ('table', 'view')")) {
+            statement.setString(1, tableName);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next() || !rs.getString("type").equals("table")) {
+                    return false;
+                }
+                String sql = rs.getString("sql");
+                return sql != null && !isWithoutRowid(sql);
+            }
+        }
+    }
+
+    /**
+     * JDBC type the SQLite driver reports for a declared type, by the column affinity rules.
+     */
+    private static int toJdbcType(String typeName)
+    {
+        if (typeName.contains("INT")) {
+            return java.sql.Types.INTEGER;
+        }
+        if (typeName.contains("CHAR") || typeName.contains("CLOB") || typeName.contains("TEXT")) {
+            return java.sql.Types.VARCHAR;
+        }
+        if (typeName.contains("BLOB") || typeName.isEmpty()) {
+            return java.sql.Types.BLOB;
+        }
+        if (typeName.contains("REAL") || typeName.contains("FLOA") || typeName.contains("DOUB") || typeName.contains("NUM") || typeName.contains("DEC")) {
+            return java.sql.Types.FLOAT;
+        }
+        return java.sql.Types.VARCHAR;
+    }
+
+    private static Set<String> getFts5Tables(Connection connection, String schemaName)
+            throws SQLException
+    {
+        Set<String> tables = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT name, sql FROM " + schemaPrefix(schemaName) + "sqlite_master WHERE type = 'table' AND sql LIKE 'CREATE VIRTUAL TABLE%'")) {
+            while (rs.next()) {
+                if (FTS5_TABLE.matcher(rs.getString("sql")).matches()) {
+                    tables.add(rs.getString("name"));
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Declared types that say nothing reliable about the stored values: none at all,
+     * {@code NUMERIC}/{@code DECIMAL} without a precision, or a name SQLite does not recognize.
+     */
+    static boolean isLooselyTyped(String typeName)
+    {
+        return !(typeName.contains("INT")
+                || typeName.contains("REAL") || typeName.contains("FLOA") || typeName.contains("DOUB")
+                || typeName.contains("BOOL")
+                || typeName.contains("CHAR") || typeName.contains("TEXT") || typeName.contains("CLOB")
+                || typeName.contains("BLOB")
+                || DECIMAL_TYPE.matcher(typeName).matches()
+                || typeName.contains("DATE") || typeName.contains("TIME"));
+    }
+
+    /**
+     * The affinity SQLite gives a column declared with the (upper case) type name, by the
+     * rules of section 3.1 of SQLite's datatype documentation.
+     */
+    static SqliteColumnHandle.Affinity getAffinity(String typeName)
+    {
+        if (typeName.contains("INT")) {
+            return SqliteColumnHandle.Affinity.INTEGER;
+        }
+        if (typeName.contains("CHAR") || typeName.contains("CLOB") || typeName.contains("TEXT")) {
+            return SqliteColumnHandle.Affinity.TEXT;
+        }
+        if (typeName.contains("BLOB") || typeName.isEmpty()) {
+            return SqliteColumnHandle.Affinity.BLOB;
+        }
+        if (typeName.contains("REAL") || typeName.contains("FLOA") || typeName.contains("DOUB")) {
+            return SqliteColumnHandle.Affinity.REAL;
+        }
+        return SqliteColumnHandle.Affinity.NUMERIC;
     }
 
     static Type sqliteTypeToPrestoType(String typeName, int sqlType)
     {
         // SQLite has flexible typing; map by declared type name and JDBC type
+        Matcher decimal = DECIMAL_TYPE.matcher(typeName);
+        if (decimal.matches()) {
+            int precision = Integer.parseInt(decimal.group(1));
+            int scale = decimal.group(2) == null ? 0 : Integer.parseInt(decimal.group(2));
+            if (precision >= 1 && precision <= Decimals.MAX_PRECISION && scale <= precision) {
+                return createDecimalType(precision, scale);
+            }
+            return DOUBLE;
+        }
         if (typeName.contains("INT")) {
             if (typeName.contains("BIGINT")) {
                 return BIGINT;
@@ -228,6 +610,12 @@ public class SqliteMetadata
         if (typeName.contains("BLOB") || typeName.isEmpty()) {
             return VARCHAR;
         }
+        if (typeName.contains("TIMESTAMP") || typeName.contains("DATETIME")) {
+            return TIMESTAMP;
+        }
+        if (typeName.contains("DATE")) {
+            return DATE;
+        }
         if (typeName.contains("NUMERIC") || typeName.contains("DECIMAL")) {
             return DOUBLE;
         }
@@ -295,10 +683,19 @@ public class SqliteMetadata
             return "1 = 0";
         }
 
-        String quotedName = "\"" + column.getColumnName() + "\"";
+        String quotedName = column.getKind() == SqliteColumnHandle.Kind.ROWID ? column.getSelectExpression() : "\"" + column.getColumnName() + "\"";
+
+        if (column.getKind() == SqliteColumnHandle.Kind.FTS_MATCH) {
+            return ftsDomainToSql(quotedName, domain);
+        }
+
+        if (column.getTemporalEncoding().isPresent()) {
+            // A column that also holds other storage classes or text forms would lose rows to a bound in one of them
+            return column.isTemporalPushdown() ? temporalDomainToSql(column, quotedName, domain) : null;
+        }
 
         if (domain.isSingleValue()) {
-            return quotedName + " = " + valueToLiteral(domain.getSingleValue());
+            return quotedName + " = " + valueToLiteral(column, domain.getSingleValue());
         }
 
         ValueSet values = domain.getValues();
@@ -318,7 +715,7 @@ public class SqliteMetadata
                     equalities.add(range.getSingleValue());
                 }
                 else {
-                    String r = rangeToSql(quotedName, range);
+                    String r = rangeToSql(column, quotedName, range);
                     if (r != null) {
                         rangeSql.add(r);
                     }
@@ -327,11 +724,11 @@ public class SqliteMetadata
 
             if (!equalities.isEmpty()) {
                 if (equalities.size() == 1) {
-                    disjuncts.add(quotedName + " = " + valueToLiteral(equalities.get(0)));
+                    disjuncts.add(quotedName + " = " + valueToLiteral(column, equalities.get(0)));
                 }
                 else {
                     String inList = equalities.stream()
-                            .map(SqliteMetadata::valueToLiteral)
+                            .map(value -> valueToLiteral(column, value))
                             .collect(Collectors.joining(", "));
                     disjuncts.add(quotedName + " IN (" + inList + ")");
                 }
@@ -356,7 +753,75 @@ public class SqliteMetadata
         return "(" + String.join(" OR ", disjuncts) + ")";
     }
 
-    private static String rangeToSql(String quotedName, Range range)
+    /**
+     * A value compared to the hidden column of an FTS5 table is a full-text query, so
+     * {@code WHERE docs = 'sqlite AND NOT oracle'} becomes {@code "docs" MATCH 'sqlite AND NOT oracle'};
+     * several values, as from {@code IN}, are OR-ed into one query.
+     */
+    private static String ftsDomainToSql(String quotedName, Domain domain)
+    {
+        List<Object> queries = new ArrayList<>();
+        if (domain.getValues() instanceof SortedRangeSet) {
+            for (Range range : ((SortedRangeSet) domain.getValues()).getOrderedRanges()) {
+                queries.add(range.isSingleValue() ? range.getSingleValue() : null);
+            }
+        }
+        if (domain.isNullAllowed() || queries.isEmpty() || queries.contains(null)) {
+            throw new PrestoException(NOT_SUPPORTED, "Full-text column " + quotedName + " can only be compared to queries with = or IN");
+        }
+        String query = queries.size() == 1
+                ? ((Slice) queries.get(0)).toStringUtf8()
+                : queries.stream()
+                        .map(value -> "(" + ((Slice) value).toStringUtf8() + ")")
+                        .collect(Collectors.joining(" OR "));
+        return quotedName + " MATCH " + valueToLiteral(VARCHAR, query);
+    }
+
+    /**
+     * Dates and timestamps are pushed down as half-open ranges in the column's storage encoding,
+     * so {@code d = DATE '2024-01-31'} on ISO text becomes {@code d >= '2024-01-31' AND d < '2024-02-01'},
+     * which also matches values stored with a time of day and can be answered from an index.
+     * Only used for columns whose sample is uniformly encoded; see {@link SqliteColumnHandle#isTemporalPushdown()}.
+     */
+    private static String temporalDomainToSql(SqliteColumnHandle column, String quotedName, Domain domain)
+    {
+        if (!(domain.getValues() instanceof SortedRangeSet)) {
+            return null;
+        }
+        SqliteTemporalEncoding encoding = column.getTemporalEncoding().get();
+        boolean timestamp = column.getType().equals(TIMESTAMP);
+
+        List<String> disjuncts = new ArrayList<>();
+        for (Range range : ((SortedRangeSet) domain.getValues()).getOrderedRanges()) {
+            if (range.isAll()) {
+                return null;
+            }
+            long low = Long.MIN_VALUE;
+            if (!range.getLow().isLowerUnbounded()) {
+                long value = (long) range.getLow().getValue();
+                low = range.getLow().getBound() == Marker.Bound.ABOVE ? value + 1 : value;
+            }
+            long high = Long.MAX_VALUE;
+            if (!range.getHigh().isUpperUnbounded()) {
+                long value = (long) range.getHigh().getValue();
+                high = range.getHigh().getBound() == Marker.Bound.EXACTLY ? value + 1 : value;
+            }
+            disjuncts.add(encoding.rangeToSql(quotedName, timestamp, low, high));
+        }
+        if (domain.isNullAllowed()) {
+            disjuncts.add(quotedName + " IS NULL");
+        }
+
+        if (disjuncts.isEmpty()) {
+            return null;
+        }
+        if (disjuncts.size() == 1) {
+            return disjuncts.get(0);
+        }
+        return "(" + String.join(" OR ", disjuncts) + ")";
+    }
+
+    private static String rangeToSql(SqliteColumnHandle column, String quotedName, Range range)
     {
         if (range.isAll()) {
             return null;
@@ -367,10 +832,10 @@ public class SqliteMetadata
         if (!range.getLow().isLowerUnbounded()) {
             switch (range.getLow().getBound()) {
                 case ABOVE:
-                    parts.add(quotedName + " > " + valueToLiteral(range.getLow().getValue()));
+                    parts.add(quotedName + " > " + valueToLiteral(column, range.getLow().getValue()));
                     break;
                 case EXACTLY:
-                    parts.add(quotedName + " >= " + valueToLiteral(range.getLow().getValue()));
+                    parts.add(quotedName + " >= " + valueToLiteral(column, range.getLow().getValue()));
                     break;
                 case BELOW:
                     break;
@@ -380,10 +845,10 @@ public class SqliteMetadata
         if (!range.getHigh().isUpperUnbounded()) {
             switch (range.getHigh().getBound()) {
                 case BELOW:
-                    parts.add(quotedName + " < " + valueToLiteral(range.getHigh().getValue()));
+                    parts.add(quotedName + " < " + valueToLiteral(column, range.getHigh().getValue()));
                     break;
                 case EXACTLY:
-                    parts.add(quotedName + " <= " + valueToLiteral(range.getHigh().getValue()));
+                    parts.add(quotedName + " <= " + valueToLiteral(column, range.getHigh().getValue()));
                     break;
                 case ABOVE:
                     break;
@@ -396,11 +861,26 @@ public class SqliteMetadata
         return String.join(" AND ", parts);
     }
 
-    static String valueToLiteral(Object value)
+    static String valueToLiteral(SqliteColumnHandle column, Object value)
+    {
+        String literal = valueToLiteral(column.getType(), value);
+        if (column.isInferred() && value != null) {
+            // Numbers stored as text in a column without numeric affinity never compare equal to
+            // a plain number; a NUMERIC-typed operand makes SQLite convert the column value first
+            return "CAST(" + literal + " AS NUMERIC)";
+        }
+        return literal;
+    }
+
+    static String valueToLiteral(Type type, Object value)
     {
         if (value == null) {
             return "NULL";
         }
+        if (type instanceof DecimalType) {
+            int scale = ((DecimalType) type).getScale();
+            return value instanceof Slice ? Decimals.toString((Slice) value, scale) : Decimals.toString((long) value, scale);
+        }
         if (value instanceof Slice) {
             String s = ((Slice) value).toStringUtf8();
             return "'" + s.replace("'", "''") + "'";
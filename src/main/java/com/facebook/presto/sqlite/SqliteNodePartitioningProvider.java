@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.block.Block;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.BucketFunction;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorSplit;
+import com.facebook.presto.spi.Node;
+import com.facebook.presto.spi.connector.ConnectorBucketNodeMap;
+import com.facebook.presto.spi.connector.ConnectorNodePartitioningProvider;
+import com.facebook.presto.spi.connector.ConnectorPartitioningHandle;
+import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import static com.facebook.presto.spi.connector.ConnectorBucketNodeMap.createBucketNodeMap;
+
+public class SqliteNodePartitioningProvider
+        implements ConnectorNodePartitioningProvider
+{
+    @Override
+    public ConnectorBucketNodeMap getBucketNodeMap(ConnectorTransactionHandle transaction, ConnectorSession session, ConnectorPartitioningHandle partitioning, List<Node> sortedNodes)
+    {
+        // Every node reads the same file, so any node can scan any bucket
+        return createBucketNodeMap(((SqlitePartitioningHandle) partitioning).getBucketCount());
+    }
+
+    @Override
+    public ToIntFunction<ConnectorSplit> getSplitBucketFunction(ConnectorTransactionHandle transaction, ConnectorSession session, ConnectorPartitioningHandle partitioning)
+    {
+        return split -> ((SqliteSplit) split).getBucket();
+    }
+
+    @Override
+    public BucketFunction getBucketFunction(ConnectorTransactionHandle transaction, ConnectorSession session, ConnectorPartitioningHandle partitioning, List<Type> partitionChannelTypes, int bucketCount)
+    {
+        SqlitePartitioningHandle handle = (SqlitePartitioningHandle) partitioning;
+        Type keyType = partitionChannelTypes.get(0);
+        return (page, position) -> {
+            Block block = page.getBlock(0);
+            if (block.isNull(position)) {
+                return 0;
+            }
+            return handle.getBucket(keyType.getLong(block, position));
+        };
+    }
+
+    @Override
+    public int getBucketCount(ConnectorTransactionHandle transaction, ConnectorSession session, ConnectorPartitioningHandle partitioning)
+    {
+        return ((SqlitePartitioningHandle) partitioning).getBucketCount();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads objects by HTTP range requests: {@code http(s)://} URLs as they are, and
+ * {@code s3://<bucket>/<key>} locations path-style from the configured S3-compatible endpoint,
+ * signed with AWS Signature Version 4 when credentials are configured.
+ */
+public class SqliteObjectStoreClient
+{
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'", Locale.ENGLISH);
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    /**
+     * Size and version of an object: its entity tag, or its modification time if the server
+     * sends none.
+     */
+    public static class ObjectVersion
+    {
+        private final long size;
+        private final Optional<String> etag;
+        private final long lastModified;
+
+        public ObjectVersion(long size, Optional<String> etag, long lastModified)
+        {
+            this.size = size;
+            this.etag = requireNonNull(etag, "etag is null");
+            this.lastModified = lastModified;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public Optional<String> getEtag()
+        {
+            return etag;
+        }
+
+        /**
+         * Modification time in milliseconds, or 0 if the server sends none.
+         */
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        /**
+         * The entity tag, or {@code @<lastModified>} without one; with the size, identifies the version.
+         */
+        public String getTag()
+        {
+            return etag.orElse("@" + lastModified);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof ObjectVersion)) {
+                return false;
+            }
+            return size == ((ObjectVersion) other).size && getTag().equals(((ObjectVersion) other).getTag());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Long.hashCode(size) * 31 + getTag().hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return size + " bytes, " + getTag();
+        }
+    }
+
+    private final String endpoint;
+    private final String region;
+    private final Optional<String> accessKey;
+    private final Optional<String> secretKey;
+
+    public SqliteObjectStoreClient(SqliteConfig config)
+    {
+        requireNonNull(config, "config is null");
+        this.endpoint = config.getObjectStoreEndpoint().replaceAll("/+$", "");
+        this.region = config.getObjectStoreRegion();
+        this.accessKey = config.getObjectStoreAccessKey();
+        this.secretKey = config.getObjectStoreSecretKey();
+    }
+
+    public static boolean isObjectStoreLocation(String location)
+    {
+        String lower = location.toLowerCase(Locale.ENGLISH);
+        return lower.startsWith("s3://") || lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    public ObjectVersion getVersion(String location)
+            throws IOException
+    {
+        HttpURLConnection connection = open("HEAD", location);
+        try {
+            checkStatus(connection, location, HttpURLConnection.HTTP_OK);
+            long size = connection.getContentLengthLong();
+            if (size < 0) {
+                throw new IOException("No Content-Length for " + location);
+            }
+            return new ObjectVersion(size, Optional.ofNullable(connection.getHeaderField("ETag")), connection.getLastModified());
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Writes bytes {@code [offset, offset + length)} of the version of the object into the
+     * file at the same offset; fails if the object is no longer that version. The version is
+     * checked with {@code If-Match} if it has an entity tag, otherwise with
+     * {@code If-Unmodified-Since} and the object size the response reports.
+     */
+    public void read(String location, ObjectVersion version, long offset, long length, FileChannel output)
+            throws IOException
+    {
+        HttpURLConnection connection = open("GET", location);
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        if (version.getEtag().isPresent()) {
+            connection.setRequestProperty("If-Match", version.getEtag().get());
+        }
+        else if (version.getLastModified() > 0) {
+            connection.setRequestProperty("If-Unmodified-Since", HTTP_DATE.format(Instant.ofEpochMilli(version.getLastModified()).atZone(ZoneOffset.UTC)));
+        }
+        try {
+            checkStatus(connection, location, HttpURLConnection.HTTP_PARTIAL);
+            Matcher contentRange = CONTENT_RANGE.matcher(Strings.nullToEmpty(connection.getHeaderField("Content-Range")));
+            if (contentRange.matches() && Long.parseLong(contentRange.group(1)) != version.getSize()) {
+                throw new IOException(location + " changed while it was read");
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = offset;
+            try (InputStream input = connection.getInputStream()) {
+                int read;
+                while (position < offset + length && (read = input.read(buffer, 0, (int) Math.min(buffer.length, offset + length - position))) >= 0) {
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                    while (bytes.hasRemaining()) {
+                        position += output.write(bytes, position);
+                    }
+                }
+            }
+            if (position != offset + length) {
+                throw new IOException("Read " + (position - offset) + " of " + length + " bytes at " + offset + " of " + location);
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void checkStatus(HttpURLConnection connection, String location, int expected)
+            throws IOException
+    {
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_PRECON_FAILED) {
+            throw new IOException(location + " changed while it was read");
+        }
+        if (status != expected) {
+            throw new IOException("HTTP " + status + " " + connection.getResponseMessage() + " for " + location);
+        }
+    }
+
+    private HttpURLConnection open(String method, String location)
+            throws IOException
+    {
+        URL url;
+        if (location.toLowerCase(Locale.ENGLISH).startsWith("s3://")) {
+            String bucketKey = location.substring("s3://".length());
+            int slash = bucketKey.indexOf('/');
+            if (slash <= 0 || slash == bucketKey.length() - 1) {
+                throw new IOException("Object store location must be s3://<bucket>/<key>: " + location);
+            }
+            url = new URL(endpoint + "/" + encodePath(bucketKey));
+        }
+        else {
+            url = new URL(location);
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setInstanceFollowRedirects(true);
+        if (location.toLowerCase(Locale.ENGLISH).startsWith("s3://") && accessKey.isPresent() && secretKey.isPresent()) {
+            sign(connection, method, url);
+        }
+        return connection;
+    }
+
+    /**
+     * Adds an AWS Signature Version 4 authorization header, signing the host and date but
+     * not the payload.
+     */
+    private void sign(HttpURLConnection connection, String method, URL url)
+            throws IOException
+    {
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        String amzDate = AMZ_DATE.format(now);
+        String date = amzDate.substring(0, 8);
+        String host = url.getHost() + (url.getPort() == -1 ? "" : ":" + url.getPort());
+        String canonicalHeaders = "host:" + host + "\n" +
+                "x-amz-content-sha256:" + UNSIGNED_PAYLOAD + "\n" +
+                "x-amz-date:" + amzDate + "\n";
+        String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        String canonicalRequest = method + "\n" + url.getPath() + "\n\n" + canonicalHeaders + "\n" + signedHeaders + "\n" + UNSIGNED_PAYLOAD;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+
+        byte[] key = hmac(("AWS4" + secretKey.get()).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        String signature = hex(hmac(key, stringToSign));
+
+        connection.setRequestProperty("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        connection.setRequestProperty("x-amz-date", amzDate);
+        connection.setRequestProperty("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey.get() + "/" + scope +
+                ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    }
+
+    /**
+     * Percent-encodes each segment of a path as S3 canonicalizes it, keeping only the
+     * unreserved characters.
+     */
+    private static String encodePath(String path)
+    {
+        StringBuilder encoded = new StringBuilder();
+        for (String segment : Splitter.on('/').split(path)) {
+            if (encoded.length() > 0) {
+                encoded.append('/');
+            }
+            for (byte b : segment.getBytes(StandardCharsets.UTF_8)) {
+                char c = (char) (b & 0xff);
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~') {
+                    encoded.append(c);
+                }
+                else {
+                    encoded.append('%').append(String.format("%02X", b & 0xff));
+                }
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] sha256(String value)
+            throws IOException
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value)
+            throws IOException
+    {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        return BaseEncoding.base16().lowerCase().encode(bytes);
+    }
+}
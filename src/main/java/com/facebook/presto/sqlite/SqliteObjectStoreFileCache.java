@@ -0,0 +1,492 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.sqlite.SqliteObjectStoreClient.ObjectVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+/**
+ * Whole-file local copies of database files kept in object storage, for {@code sqlite.db} and
+ * {@code sqlite.attach.*} locations such as {@code s3://archive/2023.db}. SQLite reads its
+ * files through the operating system, so each file is fetched in full into a local file that
+ * the connector opens in place of the location: in blocks of {@code sqlite.object-store.block-size-mb},
+ * by ranged GETs issued in file order, several at a time. Fetched blocks are recorded as they
+ * complete, so a fetch that fails or is interrupted resumes with the blocks it is missing.
+ * <p>
+ * Files are fetched in the background once the catalog starts; until every file has a local
+ * copy, {@link #awaitAvailable()} holds the queries that need one, for up to
+ * {@code sqlite.object-store.wait-timeout-ms}, and a failed fetch is retried. Reads are not
+ * served from the blocks fetched so far: a query starts once the whole file is local. A copy is tagged with the object's size, modification time and entity tag and is
+ * served right away by later catalog starts, while the object is checked for a new version.
+ * The main file is checked again every {@code sqlite.object-store.check-interval-ms}; a new
+ * version is fetched next to the copy and renamed over it, which the connection pool handles
+ * like any replaced file. When the cache directory outgrows {@code sqlite.object-store.cache-size-gb},
+ * the least recently used files that no catalog of this server has open are evicted.
+ */
+public class SqliteObjectStoreFileCache
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteObjectStoreFileCache.class);
+
+    private static final int FETCH_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 500;
+    private static final long FAILED_FETCH_RETRY_MILLIS = 30_000;
+    private static final String VERSION_SUFFIX = ".version";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String BLOCKS_SUFFIX = ".blocks";
+
+    // Local files of the locations every catalog of this server has open, so none evicts another's
+    private static final Map<Path, Boolean> IN_USE = new ConcurrentHashMap<>();
+
+    private final SqliteObjectStoreClient client;
+    private final Path directory;
+    private final long maxBytes;
+    private final int blockSize;
+    private final int fetchThreads;
+    private final long checkIntervalMillis;
+    private final long waitTimeoutMillis;
+    // Local files of this catalog's locations, by location
+    private final Map<String, Path> localFiles = new ConcurrentHashMap<>();
+    // Locations without a local copy yet, with the state of their fetch
+    private final Map<String, String> pending = new ConcurrentHashMap<>();
+    // Guarded by this, which is notified once no location is pending; run then
+    private final List<Runnable> readyListeners = new ArrayList<>();
+    // Fetches, refreshes and retries, one at a time
+    private final ScheduledExecutorService checker;
+    private Optional<String> mainLocation = Optional.empty();
+
+    public SqliteObjectStoreFileCache(SqliteConfig config)
+    {
+        requireNonNull(config, "config is null");
+        this.client = new SqliteObjectStoreClient(config);
+        this.directory = Paths.get(config.getObjectStoreCacheDirectory());
+        this.maxBytes = config.getObjectStoreCacheSizeBytes();
+        this.blockSize = config.getObjectStoreBlockSizeBytes();
+        this.fetchThreads = config.getObjectStoreFetchThreads();
+        this.checkIntervalMillis = config.getObjectStoreCheckIntervalMillis();
+        this.waitTimeoutMillis = config.getObjectStoreWaitTimeoutMillis();
+        this.checker = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-object-store-check-%s")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Returns the catalog properties with each object storage location among the database
+     * files replaced by the path of its local copy. Copies are fetched once {@link #start()}
+     * is called; the path of a copy that does not exist yet must not be opened before then.
+     */
+    public Map<String, String> localize(Map<String, String> config)
+    {
+        Map<String, String> localized = new HashMap<>(config);
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            String location = entry.getValue().trim();
+            boolean database = entry.getKey().equals(SqliteConfig.DB_PATH) || entry.getKey().startsWith(SqliteConfig.ATTACH_PREFIX);
+            if (!database || !SqliteObjectStoreClient.isObjectStoreLocation(location)) {
+                continue;
+            }
+            Path file = directory.resolve(getFileName(location));
+            localFiles.put(location, file);
+            IN_USE.put(file, true);
+            if (!readVersion(file).isPresent() || !Files.exists(file)) {
+                pending.put(location, "fetch starting");
+            }
+            localized.put(entry.getKey(), file.toString());
+            if (entry.getKey().equals(SqliteConfig.DB_PATH)) {
+                mainLocation = Optional.of(location);
+            }
+        }
+        return localized;
+    }
+
+    /**
+     * Starts fetching the files without a local copy, checking the others for a new version,
+     * and checking the main file periodically.
+     */
+    public void start()
+    {
+        for (String location : localFiles.keySet()) {
+            if (pending.containsKey(location)) {
+                checker.execute(() -> fetchMissing(location));
+            }
+            else {
+                log.info("Reading local copy {} of {}", localFiles.get(location), location);
+                checker.execute(() -> refresh(location));
+            }
+        }
+        if (mainLocation.isPresent() && checkIntervalMillis > 0) {
+            checker.scheduleWithFixedDelay(() -> refresh(mainLocation.get()), checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown()
+    {
+        checker.shutdownNow();
+        localFiles.values().forEach(IN_USE::remove);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every database file has a local copy. Fails with the state of a fetch that
+     * has not finished when the wait times out or is interrupted, or the catalog shuts down.
+     */
+    public void awaitAvailable()
+    {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+        synchronized (this) {
+            try {
+                while (!pending.isEmpty() && !checker.isShutdown()) {
+                    long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        pending.entrySet().stream().findFirst().ifPresent(entry -> {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, format("Local copy of %s is not ready yet (%s)", entry.getKey(), entry.getValue()));
+        });
+    }
+
+    /**
+     * Runs the listener once every database file has a local copy: right away if they do,
+     * otherwise on the fetching thread, logging a failure instead of throwing it.
+     */
+    public void whenReady(Runnable listener)
+    {
+        requireNonNull(listener, "listener is null");
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                readyListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void fetchMissing(String location)
+    {
+        Path file = localFiles.get(location);
+        try {
+            fetchVersion(location, client.getVersion(location), file);
+        }
+        catch (IOException | RuntimeException e) {
+            log.warn("Failed to fetch {}; retrying in {} s", location, TimeUnit.MILLISECONDS.toSeconds(FAILED_FETCH_RETRY_MILLIS), e);
+            pending.put(location, "fetch failed: " + e.getMessage() + "; retrying");
+            if (!checker.isShutdown()) {
+                checker.schedule(() -> fetchMissing(location), FAILED_FETCH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        List<Runnable> listeners;
+        synchronized (this) {
+            pending.remove(location);
+            if (!pending.isEmpty()) {
+                return;
+            }
+            listeners = ImmutableList.copyOf(readyListeners);
+            readyListeners.clear();
+            notifyAll();
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to set up the catalog on the local copies of its database files", e);
+            }
+        }
+    }
+
+    private void refresh(String location)
+    {
+        Path file = localFiles.get(location);
+        try {
+            // Keeps the file ahead of unused ones in the eviction order
+            touch(file);
+            ObjectVersion version = client.getVersion(location);
+            if (!version.equals(readVersion(file).orElse(null))) {
+                log.info("{} has a new version ({}); fetching it", location, version);
+                fetchVersion(location, version, file);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            log.warn("Failed to check {} for a new version; reading the copy fetched before, {}", location, file, e);
+        }
+    }
+
+    /**
+     * Fetches the missing blocks of the version into a partial file, then renames it over
+     * the local copy.
+     */
+    private void fetchVersion(String location, ObjectVersion version, Path file)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        String versionName = Hashing.sha256().hashString(version.getTag(), StandardCharsets.UTF_8).toString().substring(0, 16);
+        Path partial = file.resolveSibling(file.getFileName() + "." + versionName + PARTIAL_SUFFIX);
+        Path blocks = file.resolveSibling(partial.getFileName() + BLOCKS_SUFFIX);
+        int blockCount = (int) ((version.getSize() + blockSize - 1) / blockSize);
+
+        IN_USE.put(partial, true);
+        try {
+            evict(version.getSize());
+            byte[] fetched = new byte[blockCount];
+            if (Files.exists(partial) && Files.exists(blocks) && Files.size(blocks) == blockCount) {
+                fetched = Files.readAllBytes(blocks);
+            }
+            else {
+                Files.deleteIfExists(partial);
+                Files.deleteIfExists(blocks);
+            }
+            List<Integer> missing = new ArrayList<>();
+            for (int block = 0; block < blockCount; block++) {
+                if (fetched[block] == 0) {
+                    missing.add(block);
+                }
+            }
+            if (missing.size() < blockCount) {
+                log.info("Resuming fetch of {}: {} of {} blocks missing", location, missing.size(), blockCount);
+            }
+
+            ExecutorService executor = newFixedThreadPool(fetchThreads, new ThreadFactoryBuilder()
+                    .setNameFormat("sqlite-object-store-fetch-%s")
+                    .setDaemon(true)
+                    .build());
+            try (FileChannel output = FileChannel.open(partial, CREATE, READ, WRITE);
+                    FileChannel blockState = FileChannel.open(blocks, CREATE, READ, WRITE)) {
+                if (blockState.size() != blockCount) {
+                    blockState.write(ByteBuffer.wrap(fetched), 0);
+                }
+                // Submitted in file order, so the pool works through consecutive blocks
+                List<Future<?>> futures = new ArrayList<>();
+                AtomicInteger fetchedBlocks = new AtomicInteger(blockCount - missing.size());
+                for (int block : missing) {
+                    futures.add(executor.submit(() -> {
+                        fetchBlock(location, version, block, output);
+                        blockState.write(ByteBuffer.wrap(new byte[] {1}), block);
+                        // Reported to queries while the location has no copy yet
+                        pending.computeIfPresent(location, (key, state) -> fetchedBlocks.incrementAndGet() + " of " + blockCount + " blocks fetched");
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                output.force(true);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching " + location, e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+            finally {
+                executor.shutdownNow();
+            }
+
+            Files.move(partial, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            writeVersion(file, version);
+            Files.deleteIfExists(blocks);
+        }
+        finally {
+            IN_USE.remove(partial);
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info("Fetched {} into {}: {} blocks, {} MB in {} ms ({} MB/s)",
+                location,
+                file,
+                blockCount,
+                version.getSize() / (1024 * 1024),
+                millis,
+                version.getSize() * 1000 / millis / (1024 * 1024));
+    }
+
+    private void fetchBlock(String location, ObjectVersion version, int block, FileChannel output)
+            throws IOException, InterruptedException
+    {
+        long offset = (long) block * blockSize;
+        long length = Math.min(blockSize, version.getSize() - offset);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                client.read(location, version, offset, length, output);
+                // Data before its block is marked fetched, so a resumed fetch never trusts a lost write
+                output.force(false);
+                return;
+            }
+            catch (IOException e) {
+                if (attempt >= FETCH_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Retrying block {} of {}", block, location, e);
+                Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files of the cache directory that are not in use until
+     * the bytes needed fit under the limit.
+     */
+    private void evict(long neededBytes)
+            throws IOException
+    {
+        if (maxBytes == 0) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                    totalBytes += Files.size(entry);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(SqliteObjectStoreFileCache::lastUsed));
+        for (Path file : files) {
+            if (totalBytes + neededBytes <= maxBytes) {
+                return;
+            }
+            // Sidecar files go with the file they describe
+            String name = file.getFileName().toString();
+            if (name.endsWith(VERSION_SUFFIX) || name.endsWith(BLOCKS_SUFFIX) || IN_USE.containsKey(file)) {
+                continue;
+            }
+            for (Path evicted : ImmutableList.of(file, file.resolveSibling(name + VERSION_SUFFIX), file.resolveSibling(name + BLOCKS_SUFFIX))) {
+                if (Files.exists(evicted)) {
+                    totalBytes -= Files.size(evicted);
+                    Files.delete(evicted);
+                }
+            }
+            log.info("Evicted {} from the object store file cache", file);
+        }
+        if (totalBytes + neededBytes > maxBytes) {
+            log.warn("Object store file cache {} holds {} MB in use; {} MB more exceed {}", directory, totalBytes / (1024 * 1024), neededBytes / (1024 * 1024), SqliteConfig.OBJECT_STORE_CACHE_SIZE);
+        }
+    }
+
+    /**
+     * Readable name of the local copy of a location, made unique by a hash of the location.
+     */
+    private static String getFileName(String location)
+    {
+        String name = location.substring(location.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9_.-]", "_");
+        String hash = Hashing.sha256().hashString(location, StandardCharsets.UTF_8).toString().substring(0, 16);
+        return hash + "-" + name;
+    }
+
+    private static Optional<ObjectVersion> readVersion(Path file)
+    {
+        Path versionFile = file.resolveSibling(file.getFileName() + VERSION_SUFFIX);
+        try {
+            // The size, the modification time, and the entity tag if there is one
+            String[] fields = new String(Files.readAllBytes(versionFile), StandardCharsets.UTF_8).split("\n", 3);
+            return Optional.of(new ObjectVersion(Long.parseLong(fields[0]), fields.length > 2 ? Optional.of(fields[2]) : Optional.empty(), Long.parseLong(fields[1])));
+        }
+        catch (IOException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static void writeVersion(Path file, ObjectVersion version)
+            throws IOException
+    {
+        Path versionFile = file.resolveSibling(file.getFileName() + VERSION_SUFFIX);
+        Path temporary = file.resolveSibling(versionFile.getFileName() + ".tmp");
+        String fields = version.getSize() + "\n" + version.getLastModified() + version.getEtag().map(etag -> "\n" + etag).orElse("");
+        Files.write(temporary, fields.getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, versionFile, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Marks a copy as used. The time is kept on its version file: the copy's own modification
+     * time is part of what identifies the database file to the connection pool and the
+     * columnar cache.
+     */
+    private static void touch(Path file)
+    {
+        try {
+            Files.setLastModifiedTime(file.resolveSibling(file.getFileName() + VERSION_SUFFIX), FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+            // Only moves the file in the eviction order
+        }
+    }
+
+    private static long lastUsed(Path file)
+    {
+        Path versionFile = file.resolveSibling(file.getFileName() + VERSION_SUFFIX);
+        try {
+            return Files.getLastModifiedTime(Files.exists(versionFile) ? versionFile : file).toMillis();
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.common.block.Block;
+import com.facebook.presto.common.block.BlockBuilder;
+import com.facebook.presto.common.block.DictionaryBlock;
+import com.facebook.presto.common.block.DictionaryId;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.common.type.VarcharType;
+import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+import io.airlift.slice.Slices;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Builds pages from the rows of a scan. Low-cardinality VARCHAR columns, see
+ * {@link SqliteColumnHandle#isLowCardinality()}, become {@link DictionaryBlock}s over one
+ * dictionary of the distinct values the split has read so far: each distinct string is stored
+ * once per split rather than once per row, and pages that add no new value share the
+ * dictionary block of the page before, which Presto's dictionary-aware projections, grouping
+ * and joins process once per dictionary rather than once per row.
+ */
+public class SqlitePageBuilder
+{
+    private static final int INITIAL_POSITIONS = 1024;
+
+    private final List<Type> types;
+    // Null for the dictionary columns
+    private final BlockBuilder[] blockBuilders;
+    // Null for the other columns
+    private final DictionaryColumn[] dictionaryColumns;
+    private int positionCount;
+
+    public SqlitePageBuilder(List<SqliteColumnHandle> columns)
+    {
+        requireNonNull(columns, "columns is null");
+        this.types = columns.stream()
+                .map(SqliteColumnHandle::getType)
+                .collect(Collectors.toList());
+        this.blockBuilders = new BlockBuilder[columns.size()];
+        this.dictionaryColumns = new DictionaryColumn[columns.size()];
+        for (int field = 0; field < columns.size(); field++) {
+            if (isDictionaryColumn(columns.get(field))) {
+                dictionaryColumns[field] = new DictionaryColumn(types.get(field));
+            }
+            else {
+                blockBuilders[field] = types.get(field).createBlockBuilder(null, INITIAL_POSITIONS);
+            }
+        }
+    }
+
+    /**
+     * Whether a scan of the columns builds any dictionary blocks, which Presto's own
+     * record-to-page adapter cannot.
+     */
+    public static boolean hasDictionaryColumns(List<SqliteColumnHandle> columns)
+    {
+        return columns.stream().anyMatch(SqlitePageBuilder::isDictionaryColumn);
+    }
+
+    private static boolean isDictionaryColumn(SqliteColumnHandle column)
+    {
+        // Converted columns are read with their own conversions rather than as text
+        return column.isLowCardinality()
+                && column.getType() instanceof VarcharType
+                && !column.isInferred()
+                && !column.getTemporalEncoding().isPresent()
+                && column.getKind() == SqliteColumnHandle.Kind.REGULAR;
+    }
+
+    public void appendRow(SqliteRecordCursor cursor)
+    {
+        for (int field = 0; field < types.size(); field++) {
+            if (dictionaryColumns[field] != null) {
+                dictionaryColumns[field].append(cursor.getString(field));
+            }
+            else {
+                writeField(cursor, field, types.get(field), blockBuilders[field]);
+            }
+        }
+        positionCount++;
+    }
+
+    private static void writeField(RecordCursor cursor, int field, Type type, BlockBuilder output)
+    {
+        if (cursor.isNull(field)) {
+            output.appendNull();
+            return;
+        }
+        Class<?> javaType = type.getJavaType();
+        if (javaType == boolean.class) {
+            type.writeBoolean(output, cursor.getBoolean(field));
+        }
+        else if (javaType == long.class) {
+            type.writeLong(output, cursor.getLong(field));
+        }
+        else if (javaType == double.class) {
+            type.writeDouble(output, cursor.getDouble(field));
+        }
+        else {
+            type.writeSlice(output, cursor.getSlice(field));
+        }
+    }
+
+    public int getPositionCount()
+    {
+        return positionCount;
+    }
+
+    public boolean isEmpty()
+    {
+        return positionCount == 0;
+    }
+
+    /**
+     * Bytes of the page being built, counting each dictionary once.
+     */
+    public long getSizeInBytes()
+    {
+        long bytes = 0;
+        for (int field = 0; field < types.size(); field++) {
+            bytes += dictionaryColumns[field] != null ? dictionaryColumns[field].getSizeInBytes() : blockBuilders[field].getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    public long getRetainedSizeInBytes()
+    {
+        long bytes = 0;
+        for (int field = 0; field < types.size(); field++) {
+            bytes += dictionaryColumns[field] != null ? dictionaryColumns[field].getRetainedSizeInBytes() : blockBuilders[field].getRetainedSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the rows appended since the last page, and starts the next page.
+     */
+    public Page build()
+    {
+        if (types.isEmpty()) {
+            Page page = new Page(positionCount);
+            positionCount = 0;
+            return page;
+        }
+        Block[] blocks = new Block[types.size()];
+        for (int field = 0; field < blocks.length; field++) {
+            if (dictionaryColumns[field] != null) {
+                blocks[field] = dictionaryColumns[field].build();
+            }
+            else {
+                blocks[field] = blockBuilders[field].build();
+                blockBuilders[field] = blockBuilders[field].newBlockBuilderLike(null);
+            }
+        }
+        Page page = new Page(positionCount, blocks);
+        positionCount = 0;
+        return page;
+    }
+
+    /**
+     * Ids of a page's values in the split's dictionary. A column whose split turns out to have
+     * many distinct values, despite its sample, reverts to plain blocks for the rest of the split.
+     */
+    private static class DictionaryColumn
+    {
+        // Distinct values a split's dictionary may hold before the column reverts to plain blocks
+        private static final int MAX_DICTIONARY_SIZE = 16384;
+        // Rows read before the dictionary is checked against them
+        private static final int MIN_CHECKED_ROWS = 4096;
+        // Rows a distinct value must account for on average to keep the dictionary
+        private static final int MIN_ROWS_PER_VALUE = 4;
+
+        private final Type type;
+        private Map<String, Integer> ids = new HashMap<>();
+        private BlockBuilder dictionary;
+        private int nullId = -1;
+        // The dictionary block of the last page, reused until a value is added
+        private Block dictionaryBlock;
+        private DictionaryId dictionaryId;
+        private int[] positions = new int[INITIAL_POSITIONS];
+        private int positionCount;
+        private long rows;
+        // Set once the column has reverted to plain blocks
+        private BlockBuilder plain;
+
+        DictionaryColumn(Type type)
+        {
+            this.type = type;
+            this.dictionary = type.createBlockBuilder(null, INITIAL_POSITIONS);
+        }
+
+        void append(String value)
+        {
+            if (plain != null) {
+                writePlain(value);
+                return;
+            }
+            rows++;
+            Integer id = value == null ? (nullId >= 0 ? Integer.valueOf(nullId) : null) : ids.get(value);
+            if (id == null) {
+                if (ids.size() >= MAX_DICTIONARY_SIZE || (rows >= MIN_CHECKED_ROWS && ids.size() * MIN_ROWS_PER_VALUE > rows)) {
+                    revertToPlain();
+                    writePlain(value);
+                    return;
+                }
+                id = dictionary.getPositionCount();
+                if (value == null) {
+                    dictionary.appendNull();
+                    nullId = id;
+                }
+                else {
+                    type.writeSlice(dictionary, Slices.utf8Slice(value));
+                    ids.put(value, id);
+                }
+            }
+            if (positionCount == positions.length) {
+                positions = Arrays.copyOf(positions, positionCount * 2);
+            }
+            positions[positionCount++] = id;
+        }
+
+        private void writePlain(String value)
+        {
+            if (value == null) {
+                plain.appendNull();
+            }
+            else {
+                type.writeSlice(plain, Slices.utf8Slice(value));
+            }
+        }
+
+        private void revertToPlain()
+        {
+            Block values = dictionary.build();
+            plain = type.createBlockBuilder(null, Math.max(positionCount, INITIAL_POSITIONS));
+            for (int position = 0; position < positionCount; position++) {
+                type.appendTo(values, positions[position], plain);
+            }
+            ids = null;
+            dictionary = null;
+            dictionaryBlock = null;
+            dictionaryId = null;
+            positions = null;
+            positionCount = 0;
+        }
+
+        long getSizeInBytes()
+        {
+            if (plain != null) {
+                return plain.getSizeInBytes();
+            }
+            return (long) positionCount * Integer.BYTES + (dictionaryBlock == null || dictionaryBlock.getPositionCount() != dictionary.getPositionCount() ? dictionary.getSizeInBytes() : 0);
+        }
+
+        long getRetainedSizeInBytes()
+        {
+            if (plain != null) {
+                return plain.getRetainedSizeInBytes();
+            }
+            return (long) positions.length * Integer.BYTES + dictionary.getRetainedSizeInBytes();
+        }
+
+        Block build()
+        {
+            if (plain != null) {
+                Block block = plain.build();
+                plain = plain.newBlockBuilderLike(null);
+                return block;
+            }
+            if (dictionaryBlock == null || dictionaryBlock.getPositionCount() != dictionary.getPositionCount()) {
+                // Positions already built are never rewritten, so earlier pages keep their view
+                dictionaryBlock = dictionary.build();
+                dictionaryId = DictionaryId.randomDictionaryId();
+            }
+            Block block = new DictionaryBlock(positionCount, dictionaryBlock, Arrays.copyOf(positions, positionCount), dictionaryId);
+            positionCount = 0;
+            return block;
+        }
+    }
+}
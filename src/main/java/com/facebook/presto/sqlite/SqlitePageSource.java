@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.spi.ConnectorPageSource;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads a split into pages on the driver's thread, like Presto's {@code RecordPageSource},
+ * but with {@link SqlitePageBuilder}, so low-cardinality columns come back as dictionary blocks.
+ */
+public class SqlitePageSource
+        implements ConnectorPageSource
+{
+    // As RecordPageSource: rows read per call, and the page size that ends a page early
+    private static final int ROWS_PER_REQUEST = 4096;
+    private static final long MAX_PAGE_BYTES = 1024 * 1024;
+    // Dictionary columns add few bytes per row, so pages of them are also bounded in rows
+    private static final int MAX_PAGE_ROWS = 8192;
+
+    private final SqliteRecordCursor cursor;
+    private final SqlitePageBuilder pageBuilder;
+    private long completedPositions;
+    private boolean closed;
+
+    public SqlitePageSource(SqliteRecordSet recordSet)
+    {
+        requireNonNull(recordSet, "recordSet is null");
+        this.pageBuilder = new SqlitePageBuilder(recordSet.getColumns());
+        this.cursor = recordSet.cursor();
+    }
+
+    @Override
+    public Page getNextPage()
+    {
+        if (!closed) {
+            for (int i = 0; i < ROWS_PER_REQUEST && !isPageFull(); i++) {
+                if (!cursor.advanceNextPosition()) {
+                    closed = true;
+                    break;
+                }
+                pageBuilder.appendRow(cursor);
+            }
+        }
+        if ((closed && !pageBuilder.isEmpty()) || isPageFull()) {
+            completedPositions += pageBuilder.getPositionCount();
+            return pageBuilder.build();
+        }
+        return null;
+    }
+
+    private boolean isPageFull()
+    {
+        return pageBuilder.getPositionCount() >= MAX_PAGE_ROWS || pageBuilder.getSizeInBytes() >= MAX_PAGE_BYTES;
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return closed && pageBuilder.isEmpty();
+    }
+
+    @Override
+    public long getCompletedBytes()
+    {
+        return cursor.getCompletedBytes();
+    }
+
+    @Override
+    public long getCompletedPositions()
+    {
+        return completedPositions;
+    }
+
+    @Override
+    public long getReadTimeNanos()
+    {
+        return cursor.getReadTimeNanos();
+    }
+
+    @Override
+    public long getSystemMemoryUsage()
+    {
+        return cursor.getSystemMemoryUsage() + pageBuilder.getRetainedSizeInBytes();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        cursor.close();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.RuntimeStats;
+import com.facebook.presto.common.relation.Predicate;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.ConnectorPageSource;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorSplit;
+import com.facebook.presto.spi.ConnectorTableLayoutHandle;
+import com.facebook.presto.spi.RecordPageSource;
+import com.facebook.presto.spi.SplitContext;
+import com.facebook.presto.spi.connector.ConnectorPageSourceProvider;
+import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static java.util.Objects.requireNonNull;
+
+public class SqlitePageSourceProvider
+        implements ConnectorPageSourceProvider
+{
+    private final SqliteRecordSetProvider recordSetProvider;
+    private final SqliteConfig config;
+    private final ExecutorService readAheadExecutor;
+    private final SqliteWarmup warmup;
+    private final SqliteColumnarCache columnarCache;
+    private final SqliteLateMaterialization lateMaterialization;
+
+    public SqlitePageSourceProvider(SqliteRecordSetProvider recordSetProvider, SqliteConfig config, ExecutorService readAheadExecutor, SqliteWarmup warmup,
+            SqliteColumnarCache columnarCache, SqliteLateMaterialization lateMaterialization)
+    {
+        this.recordSetProvider = requireNonNull(recordSetProvider, "recordSetProvider is null");
+        this.config = requireNonNull(config, "config is null");
+        this.readAheadExecutor = requireNonNull(readAheadExecutor, "readAheadExecutor is null");
+        this.warmup = requireNonNull(warmup, "warmup is null");
+        this.columnarCache = requireNonNull(columnarCache, "columnarCache is null");
+        this.lateMaterialization = requireNonNull(lateMaterialization, "lateMaterialization is null");
+    }
+
+    @Override
+    public ConnectorPageSource createPageSource(
+            ConnectorTransactionHandle transaction,
+            ConnectorSession session,
+            ConnectorSplit split,
+            ConnectorTableLayoutHandle layout,
+            List<ColumnHandle> columns,
+            SplitContext splitContext,
+            RuntimeStats runtimeStats)
+    {
+        SqliteSplit sqliteSplit = (SqliteSplit) split;
+        Optional<ConnectorPageSource> columnarPageSource = getColumnarPageSource((SqliteTableLayoutHandle) layout, sqliteSplit, columns);
+        if (columnarPageSource.isPresent()) {
+            return columnarPageSource.get();
+        }
+        Optional<ConnectorPageSource> lateMaterializationPageSource = getLateMaterializationPageSource(transaction, session, sqliteSplit, columns);
+        if (lateMaterializationPageSource.isPresent()) {
+            return lateMaterializationPageSource.get();
+        }
+        if (config.isScanPrefetchEnabled() && sqliteSplit.getTable().isMainTable() && sqliteSplit.getRowidStart() >= 0 && sqliteSplit.getRowidEnd() >= 0) {
+            // Races ahead of the scan with large reads in file order, so the scan's own page
+            // reads are served from the OS page cache
+            readAheadExecutor.execute(() -> warmup.prefetchRowidRange(sqliteSplit.getTableName(), sqliteSplit.getRowidStart(), sqliteSplit.getRowidEnd()));
+        }
+        SqliteRecordSet recordSet = recordSetProvider.getRecordSet(transaction, session, split, columns);
+        if (config.isReadAheadEnabled()) {
+            return new SqliteReadAheadPageSource(
+                    recordSet,
+                    readAheadExecutor,
+                    config.getReadAheadBufferPages(),
+                    config.getReadAheadPageRows(),
+                    config.getReadAheadSplitBufferBytes());
+        }
+        if (SqlitePageBuilder.hasDictionaryColumns(recordSet.getColumns())) {
+            return new SqlitePageSource(recordSet);
+        }
+        return new RecordPageSource(recordSet);
+    }
+
+    private Optional<ConnectorPageSource> getLateMaterializationPageSource(ConnectorTransactionHandle transaction, ConnectorSession session, SqliteSplit split, List<ColumnHandle> columns)
+    {
+        if (!split.getResidualFilter().isPresent()) {
+            return Optional.empty();
+        }
+        SqliteResidualFilter filter = split.getResidualFilter().get();
+        ImmutableList.Builder<SqliteColumnHandle> sqliteColumns = ImmutableList.builder();
+        columns.forEach(column -> sqliteColumns.add((SqliteColumnHandle) column));
+        // Columns pruned from the scan since it was planned can leave nothing to read later
+        if (filter.getColumns().containsAll(columns)) {
+            return Optional.empty();
+        }
+        Optional<Predicate> predicate = lateMaterialization.compile(session, filter);
+        if (!predicate.isPresent()) {
+            return Optional.empty();
+        }
+        List<SqliteColumnHandle> scanColumns = new ArrayList<>(filter.getColumns());
+        if (scanColumns.stream().noneMatch(column -> column.getKind() == SqliteColumnHandle.Kind.ROWID)) {
+            scanColumns.add(new SqliteColumnHandle(SqliteMetadata.ROWID_COLUMN, BIGINT, scanColumns.size(), false, Optional.empty(), false, SqliteColumnHandle.Kind.ROWID, Optional.empty(), false, SqliteColumnHandle.Affinity.INTEGER));
+        }
+        SqliteRecordSet recordSet = recordSetProvider.getRecordSet(transaction, session, split, scanColumns);
+        return Optional.of(new SqliteLateMaterializationPageSource(recordSet, predicate.get(), session.getSqlFunctionProperties(), sqliteColumns.build()));
+    }
+
+    private Optional<ConnectorPageSource> getColumnarPageSource(SqliteTableLayoutHandle layout, SqliteSplit split, List<ColumnHandle> columns)
+    {
+        // Splits that select their rows by more than ROWID range and the query's domains read the file
+        if (!split.getConstraint().isPresent() || !split.getTable().isMainTable()) {
+            return Optional.empty();
+        }
+        // So do scans with a domain the copy cannot apply, such as a full-text MATCH, which
+        // the engine leaves to the scan
+        boolean copyableDomains = layout.getConstraint().getDomains()
+                .map(domains -> domains.keySet().stream().allMatch(column -> isCopied((SqliteColumnHandle) column)))
+                .orElse(true);
+        if (!copyableDomains) {
+            return Optional.empty();
+        }
+        Optional<SqliteColumnarFile> copy = columnarCache.getCopy(split.getTableName());
+        if (!copy.isPresent()) {
+            return Optional.empty();
+        }
+        ImmutableList.Builder<SqliteColumnHandle> sqliteColumns = ImmutableList.builder();
+        for (ColumnHandle column : columns) {
+            SqliteColumnHandle sqliteColumn = (SqliteColumnHandle) column;
+            if (!isCopied(sqliteColumn)) {
+                return Optional.empty();
+            }
+            sqliteColumns.add(sqliteColumn);
+        }
+        return SqliteColumnarPageSource.create(copy.get(), sqliteColumns.build(), split);
+    }
+
+    private static boolean isCopied(SqliteColumnHandle column)
+    {
+        return column.getKind() == SqliteColumnHandle.Kind.REGULAR || column.getKind() == SqliteColumnHandle.Kind.ROWID;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.connector.ConnectorPartitioningHandle;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Key-range partitioning shared by the tables of a co-partitioned group. Bucket {@code i}
+ * holds keys in {@code [boundaries[i - 1], boundaries[i])}; the first bucket is open below
+ * (and also holds NULL keys) and the last is open above, so every row has a bucket even if
+ * the boundaries were computed before the data changed.
+ */
+public class SqlitePartitioningHandle
+        implements ConnectorPartitioningHandle
+{
+    private final String group;
+    private final List<Long> boundaries;
+
+    @JsonCreator
+    public SqlitePartitioningHandle(
+            @JsonProperty("group") String group,
+            @JsonProperty("boundaries") List<Long> boundaries)
+    {
+        this.group = requireNonNull(group, "group is null");
+        this.boundaries = ImmutableList.copyOf(requireNonNull(boundaries, "boundaries is null"));
+    }
+
+    @JsonProperty
+    public String getGroup()
+    {
+        return group;
+    }
+
+    @JsonProperty
+    public List<Long> getBoundaries()
+    {
+        return boundaries;
+    }
+
+    public int getBucketCount()
+    {
+        return boundaries.size() + 1;
+    }
+
+    public int getBucket(long key)
+    {
+        int index = Collections.binarySearch(boundaries, key);
+        // A key equal to a boundary starts the next bucket
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * SQL predicate selecting the rows of a bucket.
+     */
+    public String getBucketPredicate(String columnName, int bucket)
+    {
+        String quotedName = "\"" + columnName + "\"";
+        if (boundaries.isEmpty()) {
+            return "";
+        }
+        if (bucket == 0) {
+            return "(" + quotedName + " < " + boundaries.get(0) + " OR " + quotedName + " IS NULL)";
+        }
+        if (bucket == boundaries.size()) {
+            return quotedName + " >= " + boundaries.get(bucket - 1);
+        }
+        return quotedName + " >= " + boundaries.get(bucket - 1) + " AND " + quotedName + " < " + boundaries.get(bucket);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(group, boundaries);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        SqlitePartitioningHandle other = (SqlitePartitioningHandle) obj;
+        return Objects.equals(this.group, other.group) &&
+                Objects.equals(this.boundaries, other.boundaries);
+    }
+
+    @Override
+    public String toString()
+    {
+        return group + ":" + getBucketCount();
+    }
+}
@@ -0,0 +1,877 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.function.OperatorType;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.common.type.VarcharType;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.ConnectorPlanOptimizer;
+import com.facebook.presto.spi.ConnectorPlanRewriter;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorTableLayoutHandle;
+import com.facebook.presto.spi.TableHandle;
+import com.facebook.presto.spi.VariableAllocator;
+import com.facebook.presto.spi.function.FunctionMetadata;
+import com.facebook.presto.spi.function.FunctionMetadataManager;
+import com.facebook.presto.spi.function.StandardFunctionResolution;
+import com.facebook.presto.spi.plan.Assignments;
+import com.facebook.presto.spi.plan.EquiJoinClause;
+import com.facebook.presto.spi.plan.FilterNode;
+import com.facebook.presto.spi.plan.JoinNode;
+import com.facebook.presto.spi.plan.JoinType;
+import com.facebook.presto.spi.plan.PlanNode;
+import com.facebook.presto.spi.plan.PlanNodeIdAllocator;
+import com.facebook.presto.spi.plan.ProjectNode;
+import com.facebook.presto.spi.plan.TableScanNode;
+import com.facebook.presto.spi.relation.CallExpression;
+import com.facebook.presto.spi.relation.ConstantExpression;
+import com.facebook.presto.spi.relation.InputReferenceExpression;
+import com.facebook.presto.spi.relation.LambdaDefinitionExpression;
+import com.facebook.presto.spi.relation.RowExpression;
+import com.facebook.presto.spi.relation.SpecialFormExpression;
+import com.facebook.presto.spi.relation.VariableReferenceExpression;
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.Slice;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.BooleanType.BOOLEAN;
+import static com.facebook.presto.common.type.DoubleType.DOUBLE;
+import static com.facebook.presto.common.type.IntegerType.INTEGER;
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
+import static com.facebook.presto.spi.ConnectorPlanRewriter.rewriteWith;
+import static com.facebook.presto.spi.relation.SpecialFormExpression.Form.AND;
+import static com.facebook.presto.spi.relation.SpecialFormExpression.Form.IN;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Pushes work on scanned columns into the SQL the scan runs.
+ * <ul>
+ * <li>{@code LIKE} filters become SQLite {@code GLOB} patterns. GLOB is case-sensitive like
+ * Presto's LIKE, so it selects exactly the same rows, and SQLite can answer it from an index: a
+ * prefix pattern seeks an index on the column, and any pattern on an FTS5 table with the trigram
+ * tokenizer is looked up in the full-text index.</li>
+ * <li>{@code json_extract_scalar(column, path)} in filters and projections is read as a column
+ * SQLite extracts with its JSON functions, so only the scalar is transferred instead of the whole
+ * document, and comparisons to it become {@code json_extract} predicates that an index on the
+ * same {@code json_extract} expression can answer.</li>
+ * <li>{@code TABLESAMPLE BERNOULLI}, which reaches connectors as the filter
+ * {@code rand() < ratio}, is done by the scan; see {@link SqliteSplitManager}.</li>
+ * <li>An inner equi-join of two filtered scans of this catalog, the main file's tables or those
+ * of files attached with {@code sqlite.attach.*}, becomes one scan of the join run by SQLite, so
+ * only the joined rows are transferred instead of both tables. The filters are applied on top of
+ * it as before.</li>
+ * <li>A filter that stays in the plan is also applied by the scan, before it reads the other
+ * columns, if a sample predicts that it keeps few rows and that the other columns are wide;
+ * see {@link SqliteLateMaterialization}.</li>
+ * </ul>
+ * Other filters stay in the plan and are still applied to the rows read.
+ */
+public class SqlitePlanOptimizer
+        implements ConnectorPlanOptimizer
+{
+    // Paths whose meaning is the same in Presto and SQLite: member names and array subscripts
+    private static final Pattern JSON_PATH = Pattern.compile("\\$(?:\\.[A-Za-z_][A-Za-z0-9_]*|\\[\\d+])*");
+    private static final Pattern JSON_NUMBER = Pattern.compile("-?(?:0|[1-9]\\d*)(?:\\.\\d+)?(?:[eE][+-]?\\d+)?");
+
+    private final StandardFunctionResolution functionResolution;
+    private final FunctionMetadataManager functionMetadataManager;
+    private final boolean joinPushdownEnabled;
+    private final SqliteLateMaterialization lateMaterialization;
+
+    public SqlitePlanOptimizer(StandardFunctionResolution functionResolution, FunctionMetadataManager functionMetadataManager, boolean joinPushdownEnabled,
+            SqliteLateMaterialization lateMaterialization)
+    {
+        this.functionResolution = requireNonNull(functionResolution, "functionResolution is null");
+        this.functionMetadataManager = requireNonNull(functionMetadataManager, "functionMetadataManager is null");
+        this.joinPushdownEnabled = joinPushdownEnabled;
+        this.lateMaterialization = requireNonNull(lateMaterialization, "lateMaterialization is null");
+    }
+
+    @Override
+    public PlanNode optimize(PlanNode maxSubplan, ConnectorSession session, VariableAllocator variableAllocator, PlanNodeIdAllocator idAllocator)
+    {
+        return rewriteWith(new Rewriter(session, variableAllocator, idAllocator), maxSubplan);
+    }
+
+    private class Rewriter
+            extends ConnectorPlanRewriter<Void>
+    {
+        private final ConnectorSession session;
+        private final VariableAllocator variableAllocator;
+        private final PlanNodeIdAllocator idAllocator;
+
+        Rewriter(ConnectorSession session, VariableAllocator variableAllocator, PlanNodeIdAllocator idAllocator)
+        {
+            this.session = session;
+            this.variableAllocator = variableAllocator;
+            this.idAllocator = idAllocator;
+        }
+
+        @Override
+        public PlanNode visitJoin(JoinNode node, RewriteContext<Void> context)
+        {
+            PlanNode rewritten = context.defaultRewrite(node);
+            if (!joinPushdownEnabled || !(rewritten instanceof JoinNode)) {
+                return rewritten;
+            }
+            return pushDownJoin((JoinNode) rewritten, idAllocator).orElse(rewritten);
+        }
+
+        @Override
+        public PlanNode visitProject(ProjectNode node, RewriteContext<Void> context)
+        {
+            PlanNode source = context.rewrite(node.getSource());
+            Optional<ScanRewrite> scan = ScanRewrite.of(source, variableAllocator);
+            if (!scan.isPresent()) {
+                return source == node.getSource() ? node : node.replaceChildren(ImmutableList.of(source));
+            }
+
+            Assignments.Builder assignments = Assignments.builder();
+            node.getAssignments().forEach((variable, expression) -> assignments.put(variable, extractJsonScalars(expression, scan.get())));
+            if (!scan.get().isChanged()) {
+                return source == node.getSource() ? node : node.replaceChildren(ImmutableList.of(source));
+            }
+
+            // The documents the scalars came from are no longer read unless something else uses them
+            Assignments newAssignments = assignments.build();
+            Set<VariableReferenceExpression> referenced = new HashSet<>();
+            newAssignments.getExpressions().forEach(expression -> collectVariables(expression, referenced));
+            scan.get().getFilter().ifPresent(filter -> collectVariables(filter.getPredicate(), referenced));
+            return new ProjectNode(node.getSourceLocation(), node.getId(), scan.get().build(Optional.of(referenced)), newAssignments, node.getLocality());
+        }
+
+        @Override
+        public PlanNode visitFilter(FilterNode node, RewriteContext<Void> context)
+        {
+            Optional<ScanRewrite> scan = node.getSource() instanceof TableScanNode ? ScanRewrite.of(node.getSource(), variableAllocator) : Optional.empty();
+            if (!scan.isPresent()) {
+                return context.defaultRewrite(node);
+            }
+
+            RowExpression predicate = extractJsonScalars(node.getPredicate(), scan.get());
+            List<RowExpression> remaining = new ArrayList<>();
+            for (RowExpression conjunct : extractConjuncts(predicate)) {
+                // A sample is taken by the scan instead, so the filter must not sample again
+                Optional<Double> sampleRatio = toSampleRatio(conjunct);
+                if (sampleRatio.isPresent()) {
+                    scan.get().sample(sampleRatio.get());
+                    continue;
+                }
+                remaining.add(conjunct);
+                Optional<String> sql = toGlob(conjunct, scan.get().getAssignments());
+                if (!sql.isPresent()) {
+                    sql = toJsonComparison(conjunct, scan.get().getAssignments());
+                }
+                sql.ifPresent(scan.get()::pushFilter);
+            }
+            if (!remaining.isEmpty() && !scan.get().getResidualFilter().isPresent() && lateMaterialization.isEnabled()) {
+                toResidualFilter(combineConjuncts(remaining), scan.get(), session).ifPresent(scan.get()::setResidualFilter);
+            }
+            if (!scan.get().isChanged()) {
+                return node;
+            }
+            if (remaining.isEmpty()) {
+                return scan.get().build(Optional.empty());
+            }
+            return new FilterNode(node.getSourceLocation(), node.getId(), scan.get().build(Optional.empty()), combineConjuncts(remaining));
+        }
+    }
+
+    /**
+     * Returns the filter for the scan to apply before reading its other columns, if it reads
+     * only regular columns, its own ROWID and JSON scalars, and a sample predicts the filter
+     * keeps few of the rows the scan reads and the other columns are wide.
+     */
+    private Optional<SqliteResidualFilter> toResidualFilter(RowExpression predicate, ScanRewrite scan, ConnectorSession session)
+    {
+        // Applied by the scan and again by the plan; a lambda's arguments are variables of its own
+        if (!isDeterministic(predicate) || containsLambda(predicate)) {
+            return Optional.empty();
+        }
+        Set<VariableReferenceExpression> variables = new LinkedHashSet<>();
+        collectVariables(predicate, variables);
+        Map<VariableReferenceExpression, Integer> inputs = new LinkedHashMap<>();
+        List<SqliteColumnHandle> filterColumns = new ArrayList<>();
+        for (VariableReferenceExpression variable : variables) {
+            ColumnHandle column = scan.getAssignments().get(variable);
+            if (column == null || !isRowColumn((SqliteColumnHandle) column)) {
+                return Optional.empty();
+            }
+            inputs.put(variable, filterColumns.size());
+            filterColumns.add((SqliteColumnHandle) column);
+        }
+        List<SqliteColumnHandle> otherColumns = new ArrayList<>();
+        for (VariableReferenceExpression variable : scan.getOutputs()) {
+            SqliteColumnHandle column = (SqliteColumnHandle) scan.getAssignments().get(variable);
+            if (!isRowColumn(column)) {
+                // FTS5's rank exists only in the MATCH query that selects the rows
+                return Optional.empty();
+            }
+            if (!variables.contains(variable)) {
+                otherColumns.add(column);
+            }
+        }
+        SqliteResidualFilter filter = new SqliteResidualFilter(toInputReferences(predicate, inputs), filterColumns);
+        if (!lateMaterialization.isSelective(session, scan.getTable(), scan.getWhereClause(), filter, otherColumns)) {
+            return Optional.empty();
+        }
+        return Optional.of(filter);
+    }
+
+    private static boolean isRowColumn(SqliteColumnHandle column)
+    {
+        return column.getKind() == SqliteColumnHandle.Kind.REGULAR
+                || column.getKind() == SqliteColumnHandle.Kind.ROWID
+                || column.getKind() == SqliteColumnHandle.Kind.JSON_SCALAR;
+    }
+
+    private static boolean containsLambda(RowExpression expression)
+    {
+        return expression instanceof LambdaDefinitionExpression || expression.getChildren().stream().anyMatch(SqlitePlanOptimizer::containsLambda);
+    }
+
+    private static RowExpression toInputReferences(RowExpression expression, Map<VariableReferenceExpression, Integer> inputs)
+    {
+        if (expression instanceof VariableReferenceExpression) {
+            return new InputReferenceExpression(expression.getSourceLocation(), inputs.get(expression), expression.getType());
+        }
+        if (expression instanceof CallExpression) {
+            CallExpression call = (CallExpression) expression;
+            List<RowExpression> arguments = call.getArguments().stream()
+                    .map(argument -> toInputReferences(argument, inputs))
+                    .collect(Collectors.toList());
+            return new CallExpression(call.getSourceLocation(), call.getDisplayName(), call.getFunctionHandle(), call.getType(), arguments);
+        }
+        if (expression instanceof SpecialFormExpression) {
+            SpecialFormExpression specialForm = (SpecialFormExpression) expression;
+            List<RowExpression> arguments = specialForm.getArguments().stream()
+                    .map(argument -> toInputReferences(argument, inputs))
+                    .collect(Collectors.toList());
+            return new SpecialFormExpression(specialForm.getSourceLocation(), specialForm.getForm(), specialForm.getType(), arguments);
+        }
+        return expression;
+    }
+
+    /**
+     * A table scan, and the filter directly on top of it if there is one, being given new
+     * columns and WHERE conjuncts.
+     */
+    private static class ScanRewrite
+    {
+        private final TableScanNode scan;
+        private final Optional<FilterNode> filter;
+        private final SqliteTableLayoutHandle layout;
+        private final VariableAllocator variableAllocator;
+        private final List<VariableReferenceExpression> outputs;
+        private final Map<VariableReferenceExpression, ColumnHandle> assignments;
+        private final List<String> conjuncts = new ArrayList<>();
+        private Optional<Double> sampleRatio;
+        private Optional<SqliteResidualFilter> residualFilter;
+        private boolean changed;
+
+        private ScanRewrite(TableScanNode scan, Optional<FilterNode> filter, SqliteTableLayoutHandle layout, VariableAllocator variableAllocator)
+        {
+            this.scan = scan;
+            this.filter = filter;
+            this.layout = layout;
+            this.variableAllocator = variableAllocator;
+            this.outputs = new ArrayList<>(scan.getOutputVariables());
+            this.assignments = new LinkedHashMap<>(scan.getAssignments());
+            this.sampleRatio = layout.getSampleRatio();
+            this.residualFilter = layout.getResidualFilter();
+            if (!layout.getWhereClause().isEmpty()) {
+                conjuncts.add(layout.getWhereClause());
+            }
+        }
+
+        static Optional<ScanRewrite> of(PlanNode node, VariableAllocator variableAllocator)
+        {
+            Optional<FilterNode> filter = Optional.empty();
+            if (node instanceof FilterNode) {
+                filter = Optional.of((FilterNode) node);
+                node = ((FilterNode) node).getSource();
+            }
+            if (!(node instanceof TableScanNode)) {
+                return Optional.empty();
+            }
+            TableScanNode scan = (TableScanNode) node;
+            Optional<ConnectorTableLayoutHandle> layout = scan.getTable().getLayout();
+            if (!layout.isPresent() || !(layout.get() instanceof SqliteTableLayoutHandle)) {
+                return Optional.empty();
+            }
+            return Optional.of(new ScanRewrite(scan, filter, (SqliteTableLayoutHandle) layout.get(), variableAllocator));
+        }
+
+        Optional<FilterNode> getFilter()
+        {
+            return filter;
+        }
+
+        Map<VariableReferenceExpression, ColumnHandle> getAssignments()
+        {
+            return assignments;
+        }
+
+        SqliteTableHandle getTable()
+        {
+            return layout.getTable();
+        }
+
+        String getWhereClause()
+        {
+            return String.join(" AND ", conjuncts);
+        }
+
+        List<VariableReferenceExpression> getOutputs()
+        {
+            return outputs;
+        }
+
+        Optional<SqliteResidualFilter> getResidualFilter()
+        {
+            return residualFilter;
+        }
+
+        boolean isChanged()
+        {
+            return changed;
+        }
+
+        VariableReferenceExpression getVariable(SqliteColumnHandle column)
+        {
+            for (Map.Entry<VariableReferenceExpression, ColumnHandle> entry : assignments.entrySet()) {
+                if (entry.getValue().equals(column)) {
+                    return entry.getKey();
+                }
+            }
+            VariableReferenceExpression variable = variableAllocator.newVariable(column.getColumnName(), column.getType());
+            outputs.add(variable);
+            assignments.put(variable, column);
+            changed = true;
+            return variable;
+        }
+
+        void pushFilter(String sql)
+        {
+            // The optimizer can run more than once over the same plan
+            if (!layout.getWhereClause().contains(sql) && !conjuncts.contains(sql)) {
+                conjuncts.add(sql);
+                changed = true;
+            }
+        }
+
+        void setResidualFilter(SqliteResidualFilter filter)
+        {
+            residualFilter = Optional.of(filter);
+            changed = true;
+        }
+
+        void sample(double ratio)
+        {
+            sampleRatio = Optional.of(sampleRatio.orElse(1.0) * ratio);
+            changed = true;
+        }
+
+        /**
+         * Builds the scan and its filter, keeping only the given outputs if any are given.
+         */
+        PlanNode build(Optional<Set<VariableReferenceExpression>> referenced)
+        {
+            SqliteTableLayoutHandle newLayout = new SqliteTableLayoutHandle(
+                    layout.getTable(),
+                    getWhereClause(),
+                    layout.getRowidPredicate(),
+                    layout.getConstraint(),
+                    layout.getOrderBy(),
+                    layout.getPartitioning(),
+                    layout.getPartitionColumn(),
+                    layout.isIndexLookup(),
+                    sampleRatio,
+                    residualFilter);
+            List<VariableReferenceExpression> newOutputs = outputs.stream()
+                    .filter(variable -> !referenced.isPresent() || referenced.get().contains(variable))
+                    .collect(Collectors.toList());
+            Map<VariableReferenceExpression, ColumnHandle> newAssignments = new LinkedHashMap<>();
+            newOutputs.forEach(variable -> newAssignments.put(variable, assignments.get(variable)));
+            TableHandle table = scan.getTable();
+            PlanNode node = new TableScanNode(
+                    scan.getSourceLocation(),
+                    scan.getId(),
+                    new TableHandle(table.getConnectorId(), table.getConnectorHandle(), table.getTransaction(), Optional.of(newLayout), table.getDynamicFilter()),
+                    newOutputs,
+                    newAssignments,
+                    scan.getTableConstraints(),
+                    scan.getCurrentConstraint(),
+                    scan.getEnforcedConstraint(),
+                    scan.getCteMaterializationInfo());
+            if (filter.isPresent()) {
+                node = new FilterNode(filter.get().getSourceLocation(), filter.get().getId(), node, filter.get().getPredicate());
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Replaces an inner equi-join of two scans, each under an optional filter, with a scan of
+     * the join. Each side is read by a subquery that the SQLite query planner flattens into the
+     * join, so the join can seek an index on the key of either side.
+     */
+    private Optional<PlanNode> pushDownJoin(JoinNode join, PlanNodeIdAllocator idAllocator)
+    {
+        if (join.getType() != JoinType.INNER || join.getCriteria().isEmpty() || !join.getDynamicFilters().isEmpty()
+                || join.getLeftHashVariable().isPresent() || join.getRightHashVariable().isPresent()) {
+            return Optional.empty();
+        }
+        Optional<JoinSide> left = JoinSide.of(join.getLeft());
+        Optional<JoinSide> right = JoinSide.of(join.getRight());
+        if (!left.isPresent() || !right.isPresent()) {
+            return Optional.empty();
+        }
+        TableHandle leftTable = left.get().scan.getTable();
+        TableHandle rightTable = right.get().scan.getTable();
+        if (!leftTable.getConnectorId().equals(rightTable.getConnectorId())) {
+            return Optional.empty();
+        }
+
+        // The filters are applied on top of the join instead; moving one that is not deterministic
+        // would change how often it is evaluated
+        List<RowExpression> filters = new ArrayList<>();
+        left.get().filter.ifPresent(filter -> filters.add(filter.getPredicate()));
+        right.get().filter.ifPresent(filter -> filters.add(filter.getPredicate()));
+        join.getFilter().ifPresent(filters::add);
+        if (!filters.stream().allMatch(this::isDeterministic)) {
+            return Optional.empty();
+        }
+
+        List<String> conditions = new ArrayList<>();
+        for (EquiJoinClause clause : join.getCriteria()) {
+            Optional<String> condition = toJoinCondition(left.get().getColumn(clause.getLeft()), right.get().getColumn(clause.getRight()));
+            if (!condition.isPresent()) {
+                return Optional.empty();
+            }
+            conditions.add("\"l\"." + SqliteMetadata.quote(clause.getLeft().getName()) + " = \"r\"." + SqliteMetadata.quote(clause.getRight().getName()) + condition.get());
+        }
+
+        // The variables are unique in the plan, so they name the columns of the join
+        List<VariableReferenceExpression> outputs = new ArrayList<>();
+        Map<VariableReferenceExpression, ColumnHandle> assignments = new LinkedHashMap<>();
+        for (JoinSide side : ImmutableList.of(left.get(), right.get())) {
+            for (VariableReferenceExpression variable : side.scan.getOutputVariables()) {
+                SqliteColumnHandle column = side.getColumn(variable);
+                outputs.add(variable);
+                assignments.put(variable, new SqliteColumnHandle(
+                        variable.getName(),
+                        column.getType(),
+                        assignments.size(),
+                        column.isInferred(),
+                        column.getTemporalEncoding(),
+                        column.isTemporalPushdown(),
+                        SqliteColumnHandle.Kind.REGULAR,
+                        Optional.empty(),
+                        column.isLowCardinality(),
+                        column.getAffinity()));
+            }
+        }
+        String relation = "(SELECT * FROM (" + left.get().toSql() + ") AS \"l\" JOIN (" + right.get().toSql() + ") AS \"r\" ON "
+                + String.join(" AND ", conditions) + ")";
+        SqliteTableHandle leftHandle = left.get().layout.getTable();
+        SqliteTableHandle joinHandle = new SqliteTableHandle(leftHandle.getSchemaName(), leftHandle + " JOIN " + right.get().layout.getTable(), relation);
+        PlanNode node = new TableScanNode(
+                join.getSourceLocation(),
+                idAllocator.getNextId(),
+                new TableHandle(leftTable.getConnectorId(), joinHandle, leftTable.getTransaction(), Optional.of(new SqliteTableLayoutHandle(joinHandle))),
+                outputs,
+                assignments);
+        if (!filters.isEmpty()) {
+            node = new FilterNode(join.getSourceLocation(), idAllocator.getNextId(), node, combineConjuncts(filters));
+        }
+        if (!outputs.equals(join.getOutputVariables())) {
+            // Join keys and filtered columns the join does not output
+            Assignments.Builder projections = Assignments.builder();
+            join.getOutputVariables().forEach(variable -> projections.put(variable, variable));
+            node = new ProjectNode(idAllocator.getNextId(), node, projections.build());
+        }
+        return Optional.of(node);
+    }
+
+    /**
+     * Returns what follows the equality of two join keys if SQLite compares them the way Presto
+     * does, that is, both are read as they are stored and their type is compared by value.
+     */
+    private static Optional<String> toJoinCondition(SqliteColumnHandle left, SqliteColumnHandle right)
+    {
+        for (SqliteColumnHandle column : ImmutableList.of(left, right)) {
+            boolean key = column.getKind() == SqliteColumnHandle.Kind.REGULAR || column.getKind() == SqliteColumnHandle.Kind.ROWID;
+            if (!key || column.isInferred() || column.getTemporalEncoding().isPresent()) {
+                return Optional.empty();
+            }
+        }
+        Type type = left.getType();
+        if (!type.equals(right.getType())) {
+            return Optional.empty();
+        }
+        if (type.equals(BIGINT) || type.equals(INTEGER) || type.equals(DOUBLE)) {
+            return Optional.of("");
+        }
+        if (type instanceof VarcharType && left.getAffinity() == SqliteColumnHandle.Affinity.TEXT && right.getAffinity() == SqliteColumnHandle.Affinity.TEXT) {
+            // Untyped and BLOB columns read as VARCHAR may hold numbers or blobs, which SQLite
+            // compares by storage class rather than as their text. A collation declared on
+            // either column, e.g. NOCASE, would otherwise apply
+            return Optional.of(" COLLATE BINARY");
+        }
+        return Optional.empty();
+    }
+
+    private boolean isDeterministic(RowExpression expression)
+    {
+        if (expression instanceof CallExpression && !functionMetadataManager.getFunctionMetadata(((CallExpression) expression).getFunctionHandle()).isDeterministic()) {
+            return false;
+        }
+        return expression.getChildren().stream().allMatch(this::isDeterministic);
+    }
+
+    /**
+     * A side of a join that is a plain scan of a table, or of a join pushed down before, under an
+     * optional filter and column pruning.
+     */
+    private static class JoinSide
+    {
+        private final TableScanNode scan;
+        private final Optional<FilterNode> filter;
+        private final SqliteTableLayoutHandle layout;
+
+        private JoinSide(TableScanNode scan, Optional<FilterNode> filter, SqliteTableLayoutHandle layout)
+        {
+            this.scan = scan;
+            this.filter = filter;
+            this.layout = layout;
+        }
+
+        static Optional<JoinSide> of(PlanNode node)
+        {
+            if (node instanceof ProjectNode) {
+                // Pruning the columns of a pushed-down join; the scan's other columns are just not used
+                ProjectNode project = (ProjectNode) node;
+                if (!project.getAssignments().getMap().entrySet().stream().allMatch(entry -> entry.getKey().equals(entry.getValue()))) {
+                    return Optional.empty();
+                }
+                node = project.getSource();
+            }
+            Optional<FilterNode> filter = Optional.empty();
+            if (node instanceof FilterNode) {
+                filter = Optional.of((FilterNode) node);
+                node = ((FilterNode) node).getSource();
+            }
+            if (!(node instanceof TableScanNode)) {
+                return Optional.empty();
+            }
+            TableScanNode scan = (TableScanNode) node;
+            Optional<ConnectorTableLayoutHandle> layout = scan.getTable().getLayout();
+            if (!layout.isPresent() || !(layout.get() instanceof SqliteTableLayoutHandle)) {
+                return Optional.empty();
+            }
+            // Ordered, bucketed, sampled and R*Tree scans depend on how the table is split
+            SqliteTableLayoutHandle sqliteLayout = (SqliteTableLayoutHandle) layout.get();
+            if (!sqliteLayout.getOrderBy().isEmpty() || sqliteLayout.getPartitioning().isPresent() || sqliteLayout.getSampleRatio().isPresent() || sqliteLayout.isIndexLookup()) {
+                return Optional.empty();
+            }
+            return Optional.of(new JoinSide(scan, filter, sqliteLayout));
+        }
+
+        SqliteColumnHandle getColumn(VariableReferenceExpression variable)
+        {
+            return (SqliteColumnHandle) scan.getAssignments().get(variable);
+        }
+
+        String toSql()
+        {
+            String columns = scan.getOutputVariables().stream()
+                    .map(variable -> getColumn(variable).getSelectExpression() + " AS " + SqliteMetadata.quote(variable.getName()))
+                    .collect(Collectors.joining(", "));
+            String where = layout.getWhereClause().isEmpty() ? "" : " WHERE " + layout.getWhereClause();
+            // A side without columns still has to produce its rows
+            return "SELECT " + (columns.isEmpty() ? "1" : columns) + " FROM " + layout.getTable().getFromSql() + where;
+        }
+    }
+
+    private static List<RowExpression> extractConjuncts(RowExpression expression)
+    {
+        if (expression instanceof SpecialFormExpression && ((SpecialFormExpression) expression).getForm() == AND) {
+            ImmutableList.Builder<RowExpression> conjuncts = ImmutableList.builder();
+            for (RowExpression argument : ((SpecialFormExpression) expression).getArguments()) {
+                conjuncts.addAll(extractConjuncts(argument));
+            }
+            return conjuncts.build();
+        }
+        return ImmutableList.of(expression);
+    }
+
+    private static RowExpression combineConjuncts(List<RowExpression> conjuncts)
+    {
+        RowExpression combined = conjuncts.get(0);
+        for (int i = 1; i < conjuncts.size(); i++) {
+            combined = new SpecialFormExpression(AND, BOOLEAN, combined, conjuncts.get(i));
+        }
+        return combined;
+    }
+
+    private static void collectVariables(RowExpression expression, Set<VariableReferenceExpression> variables)
+    {
+        if (expression instanceof VariableReferenceExpression) {
+            variables.add((VariableReferenceExpression) expression);
+        }
+        for (RowExpression child : expression.getChildren()) {
+            collectVariables(child, variables);
+        }
+    }
+
+    /**
+     * Replaces each {@code json_extract_scalar} of a scanned text column with a column the scan
+     * extracts in SQLite.
+     */
+    private RowExpression extractJsonScalars(RowExpression expression, ScanRewrite scan)
+    {
+        if (expression instanceof CallExpression) {
+            CallExpression call = (CallExpression) expression;
+            Optional<SqliteColumnHandle> column = toJsonScalarColumn(call, scan.getAssignments());
+            if (column.isPresent()) {
+                return scan.getVariable(column.get());
+            }
+            List<RowExpression> arguments = call.getArguments().stream()
+                    .map(argument -> extractJsonScalars(argument, scan))
+                    .collect(Collectors.toList());
+            return arguments.equals(call.getArguments())
+                    ? call
+                    : new CallExpression(call.getSourceLocation(), call.getDisplayName(), call.getFunctionHandle(), call.getType(), arguments);
+        }
+        if (expression instanceof SpecialFormExpression) {
+            SpecialFormExpression specialForm = (SpecialFormExpression) expression;
+            List<RowExpression> arguments = specialForm.getArguments().stream()
+                    .map(argument -> extractJsonScalars(argument, scan))
+                    .collect(Collectors.toList());
+            return arguments.equals(specialForm.getArguments())
+                    ? specialForm
+                    : new SpecialFormExpression(specialForm.getSourceLocation(), specialForm.getForm(), specialForm.getType(), arguments);
+        }
+        return expression;
+    }
+
+    private Optional<SqliteColumnHandle> toJsonScalarColumn(CallExpression call, Map<VariableReferenceExpression, ColumnHandle> assignments)
+    {
+        if (call.getArguments().size() != 2
+                || !(call.getType() instanceof VarcharType)
+                || !functionMetadataManager.getFunctionMetadata(call.getFunctionHandle()).getName().getObjectName().equals("json_extract_scalar")) {
+            return Optional.empty();
+        }
+        Optional<SqliteColumnHandle> column = getTextColumn(call.getArguments().get(0), assignments);
+        // The path is CAST('$.a.b' AS JsonPath)
+        RowExpression pathArgument = call.getArguments().get(1);
+        if (pathArgument instanceof CallExpression && functionResolution.isCastFunction(((CallExpression) pathArgument).getFunctionHandle())) {
+            pathArgument = ((CallExpression) pathArgument).getArguments().get(0);
+        }
+        Optional<String> path = getStringConstant(pathArgument);
+        if (!column.isPresent() || !path.isPresent() || !JSON_PATH.matcher(path.get()).matches()) {
+            return Optional.empty();
+        }
+        return Optional.of(new SqliteColumnHandle(
+                column.get().getColumnName(),
+                call.getType(),
+                column.get().getOrdinalPosition(),
+                false,
+                Optional.empty(),
+                false,
+                SqliteColumnHandle.Kind.JSON_SCALAR,
+                path,
+                false,
+                SqliteColumnHandle.Affinity.BLOB));
+    }
+
+    /**
+     * Translates {@code scalar = 'value'} or {@code scalar IN (...)} on an extracted JSON scalar
+     * into a condition on {@code json_extract}, which SQLite returns as a number for numbers and
+     * 1/0 for booleans, so each value is compared in every form it may come back in. It selects
+     * the matching rows and possibly a few more, which the filter then removes.
+     */
+    private Optional<String> toJsonComparison(RowExpression expression, Map<VariableReferenceExpression, ColumnHandle> assignments)
+    {
+        List<RowExpression> operands;
+        if (expression instanceof CallExpression && functionResolution.isEqualsFunction(((CallExpression) expression).getFunctionHandle())) {
+            operands = new ArrayList<>(((CallExpression) expression).getArguments());
+            if (operands.get(1) instanceof VariableReferenceExpression) {
+                operands = ImmutableList.of(operands.get(1), operands.get(0));
+            }
+        }
+        else if (expression instanceof SpecialFormExpression && ((SpecialFormExpression) expression).getForm() == IN) {
+            operands = ((SpecialFormExpression) expression).getArguments();
+        }
+        else {
+            return Optional.empty();
+        }
+
+        ColumnHandle handle = operands.get(0) instanceof VariableReferenceExpression ? assignments.get(operands.get(0)) : null;
+        if (!(handle instanceof SqliteColumnHandle) || ((SqliteColumnHandle) handle).getKind() != SqliteColumnHandle.Kind.JSON_SCALAR) {
+            return Optional.empty();
+        }
+        SqliteColumnHandle column = (SqliteColumnHandle) handle;
+        List<String> literals = new ArrayList<>();
+        for (RowExpression operand : operands.subList(1, operands.size())) {
+            Optional<String> value = getStringConstant(operand);
+            if (!value.isPresent()) {
+                return Optional.empty();
+            }
+            literals.add(SqliteMetadata.valueToLiteral(VARCHAR, value.get()));
+            if (JSON_NUMBER.matcher(value.get()).matches()) {
+                literals.add(value.get());
+            }
+            else if (value.get().equals("true")) {
+                literals.add("1");
+            }
+            else if (value.get().equals("false")) {
+                literals.add("0");
+            }
+        }
+
+        // Malformed documents make json_extract fail rather than return NULL
+        String quotedName = "\"" + column.getColumnName() + "\"";
+        return Optional.of("(json_valid(" + quotedName + ") AND json_extract(" + quotedName + ", " + SqliteMetadata.valueToLiteral(VARCHAR, column.getJsonPath().get()) + ")"
+                + " IN (" + String.join(", ", literals) + "))");
+    }
+
+    /**
+     * Column of a text value that SQLite stores as Presto reads it.
+     */
+    private static Optional<SqliteColumnHandle> getTextColumn(RowExpression expression, Map<VariableReferenceExpression, ColumnHandle> assignments)
+    {
+        ColumnHandle handle = expression instanceof VariableReferenceExpression ? assignments.get(expression) : null;
+        if (!(handle instanceof SqliteColumnHandle)) {
+            return Optional.empty();
+        }
+        SqliteColumnHandle column = (SqliteColumnHandle) handle;
+        // Inferred columns are converted after reading, so SQLite sees different values than Presto
+        if (column.getKind() != SqliteColumnHandle.Kind.REGULAR || !(column.getType() instanceof VarcharType) || column.isInferred()) {
+            return Optional.empty();
+        }
+        return Optional.of(column);
+    }
+
+    /**
+     * Returns the ratio of a {@code rand() < ratio} filter, the form a {@code TABLESAMPLE BERNOULLI}
+     * takes in the plan; empty for anything else.
+     */
+    private Optional<Double> toSampleRatio(RowExpression expression)
+    {
+        if (!(expression instanceof CallExpression)) {
+            return Optional.empty();
+        }
+        CallExpression call = (CallExpression) expression;
+        FunctionMetadata metadata = functionMetadataManager.getFunctionMetadata(call.getFunctionHandle());
+        if (!metadata.getOperatorType().equals(Optional.of(OperatorType.LESS_THAN))) {
+            return Optional.empty();
+        }
+        RowExpression left = call.getArguments().get(0);
+        RowExpression right = call.getArguments().get(1);
+        if (!(left instanceof CallExpression) || !((CallExpression) left).getArguments().isEmpty()
+                || !(right instanceof ConstantExpression) || !right.getType().equals(DOUBLE) || ((ConstantExpression) right).getValue() == null) {
+            return Optional.empty();
+        }
+        String name = functionMetadataManager.getFunctionMetadata(((CallExpression) left).getFunctionHandle()).getName().getObjectName();
+        if (!name.equals("rand") && !name.equals("random")) {
+            return Optional.empty();
+        }
+        return Optional.of((Double) ((ConstantExpression) right).getValue());
+    }
+
+    /**
+     * Translates {@code column LIKE 'pattern' [ESCAPE 'c']} on a plain text column; empty for
+     * anything else.
+     */
+    private Optional<String> toGlob(RowExpression expression, Map<VariableReferenceExpression, ColumnHandle> assignments)
+    {
+        if (!(expression instanceof CallExpression) || !functionResolution.isLikeFunction(((CallExpression) expression).getFunctionHandle())) {
+            return Optional.empty();
+        }
+        List<RowExpression> arguments = ((CallExpression) expression).getArguments();
+        Optional<SqliteColumnHandle> column = getTextColumn(arguments.get(0), assignments);
+        if (!column.isPresent() || !(arguments.get(1) instanceof CallExpression)) {
+            return Optional.empty();
+        }
+
+        // The pattern is either CAST('pattern' AS LikePattern) or like_pattern('pattern', 'escape')
+        CallExpression patternCall = (CallExpression) arguments.get(1);
+        List<RowExpression> patternArguments = patternCall.getArguments();
+        if (!functionResolution.isCastFunction(patternCall.getFunctionHandle()) && !functionResolution.isLikePatternFunction(patternCall.getFunctionHandle())) {
+            return Optional.empty();
+        }
+        Optional<String> pattern = getStringConstant(patternArguments.get(0));
+        Optional<String> escape = patternArguments.size() > 1 ? getStringConstant(patternArguments.get(1)) : Optional.of("");
+        if (!pattern.isPresent() || !escape.isPresent() || escape.get().length() > 1) {
+            return Optional.empty();
+        }
+
+        String glob = likeToGlob(pattern.get(), escape.get().isEmpty() ? Optional.empty() : Optional.of(escape.get().charAt(0)));
+        return Optional.of("\"" + column.get().getColumnName() + "\" GLOB " + SqliteMetadata.valueToLiteral(VARCHAR, glob));
+    }
+
+    private static Optional<String> getStringConstant(RowExpression expression)
+    {
+        if (expression instanceof ConstantExpression && ((ConstantExpression) expression).getValue() instanceof Slice) {
+            return Optional.of(((Slice) ((ConstantExpression) expression).getValue()).toStringUtf8());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Rewrites a LIKE pattern as a GLOB pattern: {@code %} becomes {@code *}, {@code _} becomes
+     * {@code ?}, and characters GLOB treats as wildcards are matched literally with a one
+     * character class, e.g. {@code [*]}.
+     */
+    static String likeToGlob(String pattern, Optional<Character> escape)
+    {
+        StringBuilder glob = new StringBuilder(pattern.length() + 8);
+        boolean escaped = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (!escaped && escape.isPresent() && c == escape.get()) {
+                escaped = true;
+                continue;
+            }
+            if (!escaped && c == '%') {
+                glob.append('*');
+            }
+            else if (!escaped && c == '_') {
+                glob.append('?');
+            }
+            else if (c == '*' || c == '?' || c == '[') {
+                glob.append('[').append(c).append(']');
+            }
+            else {
+                glob.append(c);
+            }
+            escaped = false;
+        }
+        return glob.toString();
+    }
+}
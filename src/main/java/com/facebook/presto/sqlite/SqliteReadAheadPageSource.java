@@ -0,0 +1,270 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.Page;
+import com.facebook.presto.common.type.FixedWidthType;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.common.type.VarcharType;
+import com.facebook.presto.spi.ConnectorPageSource;
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.sqlite.SqliteRecordSet.SqliteRecordCursor;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Page source that steps the SQLite statement on a dedicated reader thread. The reader
+ * decodes rows into pages and hands them over through a bounded queue, so page faults
+ * inside SQLite overlap with downstream operators instead of stalling the driver, and
+ * {@link #isBlocked()} lets the driver yield while the queue is empty.
+ *
+ * <p>Pages are sized in bytes rather than rows: the first page from the projected column
+ * widths, later ones from the row size measured so far, so that the queue and the page
+ * being built stay within the split's buffer budget whether rows are a few numbers or
+ * large TEXT/BLOB values. Buffered bytes are reported as system memory.
+ */
+public class SqliteReadAheadPageSource
+        implements ConnectorPageSource
+{
+    // Assumed width of a value whose type does not bound it, until rows have been measured
+    private static final int UNBOUNDED_VALUE_BYTES = 64;
+    // Recheck the size of the page being built every this many rows
+    private static final int MEMORY_CHECK_ROWS = 64;
+
+    private final List<Type> types;
+    private final int maxPageRows;
+    private final long targetPageBytes;
+    private final BlockingQueue<Page> pages;
+    private final Future<?> reader;
+    private volatile SqliteRecordCursor cursor;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private CompletableFuture<?> pageAvailable = new CompletableFuture<>();
+
+    private volatile boolean readerFinished;
+    private volatile Throwable readerFailure;
+    private volatile boolean closed;
+    private volatile long completedBytes;
+    private volatile long readTimeNanos;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile long builderBytes;
+    private long completedPositions;
+    private boolean finished;
+
+    public SqliteReadAheadPageSource(SqliteRecordSet recordSet, ExecutorService executor, int bufferPages, int maxPageRows, long bufferBytes)
+    {
+        requireNonNull(recordSet, "recordSet is null");
+        requireNonNull(executor, "executor is null");
+        this.types = recordSet.getColumnTypes();
+        this.maxPageRows = maxPageRows;
+        // The queued pages plus the one being built
+        this.targetPageBytes = Math.max(1, bufferBytes / (bufferPages + 1));
+        this.pages = new ArrayBlockingQueue<>(bufferPages);
+        this.reader = executor.submit(() -> read(recordSet));
+    }
+
+    private void read(SqliteRecordSet recordSet)
+    {
+        try (SqliteRecordCursor cursor = recordSet.cursor()) {
+            this.cursor = cursor;
+            if (closed) {
+                return;
+            }
+            long start = System.nanoTime();
+            SqlitePageBuilder pageBuilder = new SqlitePageBuilder(recordSet.getColumns());
+            int pageRows = pageRowsFor(estimateRowBytes(types));
+            int positions = 0;
+            while (!closed && cursor.advanceNextPosition()) {
+                pageBuilder.appendRow(cursor);
+                positions++;
+                if (positions % MEMORY_CHECK_ROWS == 0) {
+                    builderBytes = pageBuilder.getRetainedSizeInBytes();
+                }
+                if (positions >= pageRows || pageBuilder.getSizeInBytes() >= targetPageBytes) {
+                    readTimeNanos = System.nanoTime() - start;
+                    completedBytes = cursor.getCompletedBytes();
+                    if (!types.isEmpty()) {
+                        // Adapt to the rows actually seen, which may be much wider or narrower than estimated
+                        pageRows = pageRowsFor(pageBuilder.getSizeInBytes() / positions);
+                    }
+                    enqueue(pageBuilder.build());
+                    builderBytes = pageBuilder.getRetainedSizeInBytes();
+                    positions = 0;
+                }
+            }
+            if (positions > 0) {
+                enqueue(pageBuilder.build());
+            }
+            readTimeNanos = System.nanoTime() - start;
+            completedBytes = cursor.getCompletedBytes();
+        }
+        catch (InterruptedException e) {
+            // Closed by the consumer
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable t) {
+            readerFailure = t;
+        }
+        finally {
+            builderBytes = 0;
+            readerFinished = true;
+            signalPageAvailable();
+        }
+    }
+
+    private int pageRowsFor(long rowBytes)
+    {
+        return (int) Math.max(1, Math.min(maxPageRows, targetPageBytes / Math.max(1, rowBytes)));
+    }
+
+    private static long estimateRowBytes(List<Type> types)
+    {
+        long bytes = 0;
+        for (Type type : types) {
+            // One byte for the null flag
+            bytes += 1;
+            if (type instanceof FixedWidthType) {
+                bytes += ((FixedWidthType) type).getFixedSize();
+            }
+            else if (type instanceof VarcharType && !((VarcharType) type).isUnbounded()) {
+                bytes += Integer.BYTES + Math.min(((VarcharType) type).getLengthSafe(), UNBOUNDED_VALUE_BYTES);
+            }
+            else {
+                bytes += Integer.BYTES + UNBOUNDED_VALUE_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private void enqueue(Page page)
+            throws InterruptedException
+    {
+        long bytes = page.getRetainedSizeInBytes();
+        queuedBytes.addAndGet(bytes);
+        try {
+            pages.put(page);
+        }
+        catch (InterruptedException e) {
+            queuedBytes.addAndGet(-bytes);
+            throw e;
+        }
+        signalPageAvailable();
+    }
+
+    private void signalPageAvailable()
+    {
+        synchronized (lock) {
+            pageAvailable.complete(null);
+        }
+    }
+
+    @Override
+    public Page getNextPage()
+    {
+        Page page = pages.poll();
+        if (page == null) {
+            if (readerFailure != null) {
+                propagate(readerFailure);
+            }
+            if (readerFinished && pages.isEmpty()) {
+                finished = true;
+            }
+            return null;
+        }
+        queuedBytes.addAndGet(-page.getRetainedSizeInBytes());
+        completedPositions += page.getPositionCount();
+        return page;
+    }
+
+    @Override
+    public CompletableFuture<?> isBlocked()
+    {
+        synchronized (lock) {
+            if (!pages.isEmpty() || readerFinished) {
+                return NOT_BLOCKED;
+            }
+            if (pageAvailable.isDone()) {
+                pageAvailable = new CompletableFuture<>();
+            }
+            return pageAvailable;
+        }
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return finished || closed;
+    }
+
+    @Override
+    public long getCompletedBytes()
+    {
+        return completedBytes;
+    }
+
+    @Override
+    public long getCompletedPositions()
+    {
+        return completedPositions;
+    }
+
+    @Override
+    public long getReadTimeNanos()
+    {
+        return readTimeNanos;
+    }
+
+    @Override
+    public long getSystemMemoryUsage()
+    {
+        return queuedBytes.get() + builderBytes;
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        SqliteRecordCursor cursor = this.cursor;
+        if (cursor != null) {
+            // Stops a step that is still running inside SQLite
+            cursor.interrupt();
+        }
+        // Wakes the reader if it is waiting for queue space, or interrupts it while it is still
+        // starting the statement; it closes its cursor on the way out
+        reader.cancel(true);
+        pages.clear();
+        queuedBytes.set(0);
+    }
+
+    private static void propagate(Throwable failure)
+    {
+        if (failure instanceof PrestoException) {
+            throw (PrestoException) failure;
+        }
+        throw new PrestoException(GENERIC_INTERNAL_ERROR, "SQLite read-ahead failed: " + failure.getMessage(), failure);
+    }
+}
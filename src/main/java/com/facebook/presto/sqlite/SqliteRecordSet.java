@@ -13,41 +13,67 @@
  */
 package com.facebook.presto.sqlite;
 
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.DecimalType;
+import com.facebook.presto.common.type.Decimals;
 import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.PrestoException;
 import com.facebook.presto.spi.RecordCursor;
 import com.facebook.presto.spi.RecordSet;
+import com.facebook.presto.sqlite.SqliteConfig.TypeMismatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import io.airlift.slice.Slice;
 import io.airlift.slice.Slices;
+import org.sqlite.ProgressHandler;
+import org.sqlite.SQLiteConnection;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
+import static com.facebook.presto.common.type.DateType.DATE;
 import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
 public class SqliteRecordSet
         implements RecordSet
 {
     private final SqliteClient sqliteClient;
-    private final String tableName;
+    private final SqliteScanLog scanLog;
+    private final SqliteIndexAdvisor indexAdvisor;
+    private final String queryId;
+    private final SqliteTableHandle table;
     private final List<SqliteColumnHandle> columns;
     private final List<Type> columnTypes;
     private final String whereClause;
     private final long rowidStart;
     private final long rowidEnd;
+    private final String orderBy;
+    private final Optional<TupleDomain<ColumnHandle>> constraint;
+    private final TypeMismatch typeMismatch;
 
-    public SqliteRecordSet(SqliteClient sqliteClient, String tableName, List<SqliteColumnHandle> columns,
-            String whereClause, long rowidStart, long rowidEnd)
+    public SqliteRecordSet(SqliteClient sqliteClient, SqliteScanLog scanLog, SqliteIndexAdvisor indexAdvisor, String queryId, SqliteTableHandle table,
+            List<SqliteColumnHandle> columns, String whereClause, long rowidStart, long rowidEnd, String orderBy, Optional<TupleDomain<ColumnHandle>> constraint,
+            TypeMismatch typeMismatch)
     {
         this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
-        this.tableName = requireNonNull(tableName, "tableName is null");
+        this.scanLog = requireNonNull(scanLog, "scanLog is null");
+        this.indexAdvisor = requireNonNull(indexAdvisor, "indexAdvisor is null");
+        this.queryId = requireNonNull(queryId, "queryId is null");
+        this.table = requireNonNull(table, "table is null");
         this.columns = ImmutableList.copyOf(requireNonNull(columns, "columns is null"));
         this.columnTypes = columns.stream()
                 .map(SqliteColumnHandle::getType)
@@ -55,6 +81,14 @@ public class SqliteRecordSet
         this.whereClause = whereClause == null ? "" : whereClause;
         this.rowidStart = rowidStart;
         this.rowidEnd = rowidEnd;
+        this.orderBy = orderBy == null ? "" : orderBy;
+        this.constraint = requireNonNull(constraint, "constraint is null");
+        this.typeMismatch = requireNonNull(typeMismatch, "typeMismatch is null");
+    }
+
+    public List<SqliteColumnHandle> getColumns()
+    {
+        return columns;
     }
 
     @Override
@@ -64,9 +98,19 @@ public class SqliteRecordSet
     }
 
     @Override
-    public RecordCursor cursor()
+    public SqliteRecordCursor cursor()
+    {
+        return new SqliteRecordCursor(sqliteClient, scanLog, indexAdvisor, queryId, table, columns, whereClause, rowidStart, rowidEnd, orderBy, constraint, typeMismatch, false);
+    }
+
+    /**
+     * Like {@link #cursor()}, but the scan runs in a read transaction held until the cursor is
+     * closed, so that rows {@link SqliteRecordCursor#lookup looked up} after its last row are
+     * still read from the scan's version of the file.
+     */
+    public SqliteRecordCursor cursorInReadTransaction()
     {
-        return new SqliteRecordCursor(sqliteClient, tableName, columns, whereClause, rowidStart, rowidEnd);
+        return new SqliteRecordCursor(sqliteClient, scanLog, indexAdvisor, queryId, table, columns, whereClause, rowidStart, rowidEnd, orderBy, constraint, typeMismatch, true);
     }
 
     private static String buildWhereFragment(String whereClause, long rowidStart, long rowidEnd)
@@ -87,31 +131,118 @@ public class SqliteRecordSet
     public static class SqliteRecordCursor
             implements RecordCursor
     {
+        // SQLite virtual machine instructions between checks for an abandoned scan
+        private static final int PROGRESS_CHECK_INSTRUCTIONS = 10_000;
+
         private final List<SqliteColumnHandle> columns;
+        private final SqliteScanLog scanLog;
+        private final SqliteIndexAdvisor indexAdvisor;
+        private final String queryId;
+        private final SqliteTableHandle table;
+        private final String tableName;
+        private final long rowidStart;
+        private final long rowidEnd;
+        private final Optional<TupleDomain<ColumnHandle>> constraint;
+        private final String sql;
+        private final long startTimeMillis;
+        private final long startNanos;
         private final Connection connection;
+        // False for reads on a connection the caller holds, which are neither logged nor release it
+        private final boolean ownsConnection;
+        // Whether the scan runs in a transaction of its own, ended when the connection is released
+        private final boolean readTransaction;
         private final Statement statement;
         private final ResultSet resultSet;
         private boolean closed;
+        // Set once every row of the scan has been read, unlike a scan cut short by a LIMIT or cancellation
+        private boolean exhausted;
         private long completedBytes;
         private final boolean countMode;
         private long countRemaining;
+        private long rowCount;
+
+        // Columns whose values are converted in Java rather than read with the JDBC getters,
+        // with the converted value of the current row cached per field
+        private final boolean[] converted;
+        private final Object[] convertedValues;
+        private final long[] convertedRows;
+        private final TypeMismatch typeMismatch;
 
-        public SqliteRecordCursor(SqliteClient sqliteClient, String tableName, List<SqliteColumnHandle> columns,
-                String whereClause, long rowidStart, long rowidEnd)
+        private final Object interruptLock = new Object();
+        private volatile boolean interrupted;
+        // Guarded by interruptLock; once set the connection may belong to another scan
+        private boolean released;
+
+        public SqliteRecordCursor(SqliteClient sqliteClient, SqliteScanLog scanLog, SqliteIndexAdvisor indexAdvisor, String queryId, SqliteTableHandle table,
+                List<SqliteColumnHandle> columns, String whereClause, long rowidStart, long rowidEnd, String orderBy, Optional<TupleDomain<ColumnHandle>> constraint,
+                TypeMismatch typeMismatch, boolean readTransaction)
+        {
+            this(requireNonNull(scanLog, "scanLog is null"), requireNonNull(indexAdvisor, "indexAdvisor is null"), requireNonNull(queryId, "queryId is null"), table,
+                    columns, whereClause, rowidStart, rowidEnd, orderBy, constraint, typeMismatch, sqliteClient.getScanConnection(queryId), true, readTransaction);
+        }
+
+        /**
+         * Reads rows with a query of its own on a connection the caller holds, such as that of a
+         * running scan, whose read transaction it then shares.
+         */
+        SqliteRecordCursor(Connection connection, SqliteTableHandle table, List<SqliteColumnHandle> columns, String whereClause, long rowidStart, long rowidEnd,
+                String orderBy, TypeMismatch typeMismatch)
+        {
+            this(null, null, "", table, columns, whereClause, rowidStart, rowidEnd, orderBy, Optional.empty(), typeMismatch, requireNonNull(connection, "connection is null"), false, false);
+        }
+
+        private SqliteRecordCursor(SqliteScanLog scanLog, SqliteIndexAdvisor indexAdvisor, String queryId, SqliteTableHandle table, List<SqliteColumnHandle> columns,
+                String whereClause, long rowidStart, long rowidEnd, String orderBy, Optional<TupleDomain<ColumnHandle>> constraint, TypeMismatch typeMismatch,
+                Connection connection, boolean ownsConnection, boolean readTransaction)
         {
             this.columns = requireNonNull(columns, "columns is null");
+            this.typeMismatch = requireNonNull(typeMismatch, "typeMismatch is null");
+            this.converted = new boolean[columns.size()];
+            for (int field = 0; field < columns.size(); field++) {
+                SqliteColumnHandle column = columns.get(field);
+                converted[field] = column.isInferred() || column.getType() instanceof DecimalType || column.getTemporalEncoding().isPresent();
+            }
+            this.convertedValues = new Object[columns.size()];
+            this.convertedRows = new long[columns.size()];
+            this.scanLog = scanLog;
+            this.indexAdvisor = indexAdvisor;
+            this.queryId = queryId;
+            this.table = requireNonNull(table, "table is null");
+            this.tableName = table.getTableName();
+            this.rowidStart = rowidStart;
+            this.rowidEnd = rowidEnd;
+            this.constraint = requireNonNull(constraint, "constraint is null");
+            this.startTimeMillis = System.currentTimeMillis();
+            this.startNanos = System.nanoTime();
 
+            this.connection = connection;
+            this.ownsConnection = ownsConnection;
+            this.readTransaction = readTransaction;
             try {
-                this.connection = sqliteClient.getConnection();
+                if (readTransaction) {
+                    // BEGIN; the read lock is taken by the scan's first step
+                    connection.setAutoCommit(false);
+                }
+                if (ownsConnection) {
+                    // Aborts a running step (sort, aggregate, selective filter) once the scan is abandoned
+                    // or the thread driving it is interrupted, e.g. by query cancellation
+                    ProgressHandler.setHandler(connection.unwrap(SQLiteConnection.class), PROGRESS_CHECK_INSTRUCTIONS, new ProgressHandler()
+                    {
+                        @Override
+                        protected int progress()
+                        {
+                            return interrupted || Thread.currentThread().isInterrupted() ? 1 : 0;
+                        }
+                    });
+                }
                 this.statement = connection.createStatement();
-                this.statement.setFetchSize(10000);
 
                 String whereFragment = buildWhereFragment(whereClause, rowidStart, rowidEnd);
 
                 if (columns.isEmpty()) {
                     // COUNT(*) optimization: get the count from SQLite and use a counter
-                    String countSql = "SELECT COUNT(*) FROM \"" + tableName + "\"" + whereFragment;
-                    ResultSet countRs = statement.executeQuery(countSql);
+                    this.sql = "SELECT COUNT(*) FROM " + table.getFromSql() + whereFragment;
+                    ResultSet countRs = statement.executeQuery(sql);
                     if (countRs.next()) {
                         this.countRemaining = countRs.getLong(1);
                     }
@@ -119,20 +250,28 @@ public class SqliteRecordSet
                         this.countRemaining = 0;
                     }
                     countRs.close();
+                    this.rowCount = countRemaining;
                     this.countMode = true;
                     this.resultSet = null;
                 }
                 else {
                     String columnList = columns.stream()
-                            .map(col -> "\"" + col.getColumnName() + "\"")
+                            .map(SqliteColumnHandle::getSelectExpression)
                             .collect(Collectors.joining(", "));
-                    String sql = "SELECT " + columnList + " FROM \"" + tableName + "\"" + whereFragment;
+                    String orderByFragment = orderBy.isEmpty() ? "" : " ORDER BY " + orderBy;
+                    this.sql = "SELECT " + columnList + " FROM " + table.getFromSql() + whereFragment + orderByFragment;
                     this.resultSet = statement.executeQuery(sql);
                     this.countMode = false;
                     this.countRemaining = 0;
                 }
             }
             catch (SQLException e) {
+                synchronized (interruptLock) {
+                    released = true;
+                }
+                if (ownsConnection) {
+                    releaseConnection();
+                }
                 throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to execute SQLite query: " + e.getMessage(), e);
             }
         }
@@ -157,6 +296,20 @@ public class SqliteRecordSet
 
         @Override
         public boolean advanceNextPosition()
+        {
+            return advance(true);
+        }
+
+        /**
+         * Like {@link #advanceNextPosition()}, but leaves the cursor open after its last row, so
+         * that it can still {@link #lookup} rows until it is closed.
+         */
+        boolean advanceNextPositionKeepingOpen()
+        {
+            return advance(false);
+        }
+
+        private boolean advance(boolean closeAtEnd)
         {
             if (closed) {
                 return false;
@@ -167,18 +320,30 @@ public class SqliteRecordSet
                     countRemaining--;
                     return true;
                 }
-                close();
+                exhausted = true;
+                if (closeAtEnd) {
+                    close();
+                }
                 return false;
             }
 
             try {
                 boolean hasNext = resultSet.next();
                 if (!hasNext) {
-                    close();
+                    exhausted = true;
+                    if (closeAtEnd) {
+                        close();
+                    }
+                    return false;
                 }
-                return hasNext;
+                rowCount++;
+                return true;
             }
             catch (SQLException e) {
+                if (interrupted) {
+                    close();
+                    return false;
+                }
                 throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to advance cursor: " + e.getMessage(), e);
             }
         }
@@ -197,6 +362,10 @@ public class SqliteRecordSet
         @Override
         public long getLong(int field)
         {
+            if (converted[field]) {
+                completedBytes += Long.BYTES;
+                return (long) getConvertedValue(field);
+            }
             try {
                 long value = resultSet.getLong(field + 1);
                 completedBytes += Long.BYTES;
@@ -210,6 +379,10 @@ public class SqliteRecordSet
         @Override
         public double getDouble(int field)
         {
+            if (converted[field]) {
+                completedBytes += Double.BYTES;
+                return (double) getConvertedValue(field);
+            }
             try {
                 double value = resultSet.getDouble(field + 1);
                 completedBytes += Double.BYTES;
@@ -223,6 +396,11 @@ public class SqliteRecordSet
         @Override
         public Slice getSlice(int field)
         {
+            if (converted[field]) {
+                Slice slice = (Slice) getConvertedValue(field);
+                completedBytes += slice.length();
+                return slice;
+            }
             try {
                 String value = resultSet.getString(field + 1);
                 if (value == null) {
@@ -237,6 +415,24 @@ public class SqliteRecordSet
             }
         }
 
+        /**
+         * The text of a VARCHAR column that is not converted, or null for NULL. Reads the value
+         * once, where {@link #isNull} and then {@link #getSlice} read it twice.
+         */
+        String getString(int field)
+        {
+            try {
+                String value = resultSet.getString(field + 1);
+                if (value != null) {
+                    completedBytes += value.length();
+                }
+                return value;
+            }
+            catch (SQLException e) {
+                throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read string: " + e.getMessage(), e);
+            }
+        }
+
         @Override
         public Object getObject(int field)
         {
@@ -246,6 +442,9 @@ public class SqliteRecordSet
         @Override
         public boolean isNull(int field)
         {
+            if (converted[field]) {
+                return getConvertedValue(field) == null;
+            }
             try {
                 resultSet.getObject(field + 1);
                 return resultSet.wasNull();
@@ -255,6 +454,103 @@ public class SqliteRecordSet
             }
         }
 
+        private Object getConvertedValue(int field)
+        {
+            if (convertedRows[field] != rowCount) {
+                try {
+                    convertedValues[field] = convert(field, resultSet.getObject(field + 1));
+                }
+                catch (SQLException e) {
+                    throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read value: " + e.getMessage(), e);
+                }
+                convertedRows[field] = rowCount;
+            }
+            return convertedValues[field];
+        }
+
+        private Object convert(int field, Object value)
+        {
+            if (value == null) {
+                return null;
+            }
+            Type type = columns.get(field).getType();
+            Optional<SqliteTemporalEncoding> encoding = columns.get(field).getTemporalEncoding();
+            if (encoding.isPresent()) {
+                Long decoded = type.equals(DATE) ? encoding.get().decodeDays(value) : encoding.get().decodeMillis(value);
+                return decoded != null ? decoded : mismatch(field, value);
+            }
+            if (type instanceof DecimalType) {
+                BigDecimal decimal = toDecimal((DecimalType) type, value);
+                if (decimal == null) {
+                    return mismatch(field, value);
+                }
+                BigInteger unscaled = decimal.unscaledValue();
+                return ((DecimalType) type).isShort() ? (Object) unscaled.longValue() : Decimals.encodeUnscaledValue(unscaled);
+            }
+            if (type.getJavaType() == long.class) {
+                if (value instanceof Integer || value instanceof Long) {
+                    return ((Number) value).longValue();
+                }
+                if (value instanceof Double && (double) value == Math.rint((double) value) && Math.abs((double) value) < 0x1p63) {
+                    return (long) (double) value;
+                }
+                Long parsed = value instanceof String ? SqliteTypeInference.parseCanonicalLong((String) value) : null;
+                return parsed != null ? parsed : mismatch(field, value);
+            }
+            if (type.getJavaType() == double.class) {
+                if (value instanceof Number) {
+                    return ((Number) value).doubleValue();
+                }
+                BigDecimal parsed = value instanceof String ? SqliteTypeInference.parseCanonicalDecimal((String) value) : null;
+                return parsed != null ? parsed.doubleValue() : mismatch(field, value);
+            }
+            return mismatch(field, value);
+        }
+
+        private static BigDecimal toDecimal(DecimalType type, Object value)
+        {
+            BigDecimal decimal;
+            if (value instanceof Double) {
+                // Stored as a binary float, so the exact digits are already lost; round to the scale
+                decimal = BigDecimal.valueOf((double) value).setScale(type.getScale(), RoundingMode.HALF_UP);
+            }
+            else {
+                if (value instanceof Integer || value instanceof Long) {
+                    decimal = BigDecimal.valueOf(((Number) value).longValue());
+                }
+                else if (value instanceof String) {
+                    decimal = SqliteTypeInference.parseCanonicalDecimal((String) value);
+                    if (decimal == null) {
+                        return null;
+                    }
+                }
+                else {
+                    return null;
+                }
+                if (decimal.scale() > type.getScale()) {
+                    return null;
+                }
+                decimal = decimal.setScale(type.getScale());
+            }
+            return decimal.precision() <= type.getPrecision() ? decimal : null;
+        }
+
+        private Object mismatch(int field, Object value)
+        {
+            if (typeMismatch == TypeMismatch.NULL) {
+                return null;
+            }
+            SqliteColumnHandle column = columns.get(field);
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, format(
+                    "Value '%s' in column %s.%s does not fit its %s type %s; set %s=NULL to read such values as NULL",
+                    value instanceof byte[] ? "<blob>" : value,
+                    tableName,
+                    column.getColumnName(),
+                    column.isInferred() ? "inferred" : "declared",
+                    column.getType(),
+                    SqliteConfig.TYPE_MISMATCH));
+        }
+
         @Override
         public void close()
         {
@@ -267,17 +563,110 @@ public class SqliteRecordSet
                     catch (SQLException ignored) {
                     }
                 }
+                if (ownsConnection) {
+                    recordScan();
+                }
                 try {
                     statement.close();
                 }
                 catch (SQLException ignored) {
                 }
+                synchronized (interruptLock) {
+                    released = true;
+                }
+                if (ownsConnection) {
+                    releaseConnection();
+                }
+            }
+        }
+
+        /**
+         * Reads other columns of the table, by a where clause of their own, in the scan's read
+         * transaction, so from the same version of the file. Must be closed before the scan.
+         */
+        SqliteRecordCursor lookup(List<SqliteColumnHandle> columns, String whereClause, String orderBy)
+        {
+            return new SqliteRecordCursor(connection, table, columns, whereClause, -1, -1, orderBy, typeMismatch);
+        }
+
+        /**
+         * Stops the statement from another thread. Unlike {@link #close()}, which has to run
+         * on the thread stepping the cursor, this returns immediately and the running step
+         * fails with SQLITE_INTERRUPT; the cursor then reports no more rows.
+         */
+        public void interrupt()
+        {
+            interrupted = true;
+            synchronized (interruptLock) {
+                if (released) {
+                    return;
+                }
                 try {
-                    connection.close();
+                    // sqlite3_interrupt
+                    statement.cancel();
                 }
                 catch (SQLException ignored) {
                 }
             }
         }
+
+        private void releaseConnection()
+        {
+            if (readTransaction) {
+                try {
+                    // COMMIT, which ends the read transaction; nothing was written
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
+                catch (SQLException ignored) {
+                }
+            }
+            try {
+                ProgressHandler.clearHandler(connection.unwrap(SQLiteConnection.class));
+            }
+            catch (SQLException ignored) {
+            }
+            try {
+                connection.close();
+            }
+            catch (SQLException ignored) {
+            }
+        }
+
+        private void recordScan()
+        {
+            long durationMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            Optional<String> queryPlan = Optional.empty();
+            if (scanLog.isSlow(durationMillis)) {
+                queryPlan = Optional.of(explainQueryPlan());
+            }
+            scanLog.record(new SqliteScanLog.ScanRecord(queryId, tableName, sql, rowidStart, rowidEnd,
+                    startTimeMillis, durationMillis, rowCount, queryPlan));
+            // Scans whose split selects rows by more than the query's domains say nothing of their
+            // selectivity, nor do scans that stopped early, whose row count and time are partial
+            if (!exhausted || interrupted) {
+                return;
+            }
+            constraint.ifPresent(domains -> indexAdvisor.record(table, domains, rowidStart, rowidEnd, rowCount, durationMillis));
+        }
+
+        private String explainQueryPlan()
+        {
+            // One line per plan step, indented by depth: "SCAN t" means no index was usable
+            List<String> lines = new ArrayList<>();
+            Map<Integer, Integer> depths = new HashMap<>();
+            try (Statement explain = connection.createStatement();
+                    ResultSet plan = explain.executeQuery("EXPLAIN QUERY PLAN " + sql)) {
+                while (plan.next()) {
+                    int depth = depths.getOrDefault(plan.getInt("parent"), -1) + 1;
+                    depths.put(plan.getInt("id"), depth);
+                    lines.add(Strings.repeat("  ", depth) + plan.getString("detail"));
+                }
+            }
+            catch (SQLException e) {
+                return "EXPLAIN QUERY PLAN failed: " + e.getMessage();
+            }
+            return String.join("\n", lines);
+        }
     }
 }
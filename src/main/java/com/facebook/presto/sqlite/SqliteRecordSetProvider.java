@@ -16,7 +16,6 @@ package com.facebook.presto.sqlite;
 import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.ConnectorSession;
 import com.facebook.presto.spi.ConnectorSplit;
-import com.facebook.presto.spi.RecordSet;
 import com.facebook.presto.spi.connector.ConnectorRecordSetProvider;
 import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
 import com.google.common.collect.ImmutableList;
@@ -29,14 +28,20 @@ public class SqliteRecordSetProvider
         implements ConnectorRecordSetProvider
 {
     private final SqliteClient sqliteClient;
+    private final SqliteScanLog scanLog;
+    private final SqliteIndexAdvisor indexAdvisor;
+    private final SqliteConfig config;
 
-    public SqliteRecordSetProvider(SqliteClient sqliteClient)
+    public SqliteRecordSetProvider(SqliteClient sqliteClient, SqliteScanLog scanLog, SqliteIndexAdvisor indexAdvisor, SqliteConfig config)
     {
         this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        this.scanLog = requireNonNull(scanLog, "scanLog is null");
+        this.indexAdvisor = requireNonNull(indexAdvisor, "indexAdvisor is null");
+        this.config = requireNonNull(config, "config is null");
     }
 
     @Override
-    public RecordSet getRecordSet(ConnectorTransactionHandle transaction, ConnectorSession session, ConnectorSplit split, List<? extends ColumnHandle> columns)
+    public SqliteRecordSet getRecordSet(ConnectorTransactionHandle transaction, ConnectorSession session, ConnectorSplit split, List<? extends ColumnHandle> columns)
     {
         SqliteSplit sqliteSplit = (SqliteSplit) split;
 
@@ -45,7 +50,8 @@ public class SqliteRecordSetProvider
             builder.add((SqliteColumnHandle) column);
         }
 
-        return new SqliteRecordSet(sqliteClient, sqliteSplit.getTableName(), builder.build(),
-                sqliteSplit.getWhereClause(), sqliteSplit.getRowidStart(), sqliteSplit.getRowidEnd());
+        return new SqliteRecordSet(sqliteClient, scanLog, indexAdvisor, session.getQueryId(), sqliteSplit.getTable(), builder.build(),
+                sqliteSplit.getWhereClause(), sqliteSplit.getRowidStart(), sqliteSplit.getRowidEnd(), sqliteSplit.getOrderBy(), sqliteSplit.getConstraint(),
+                config.getTypeMismatch());
     }
 }
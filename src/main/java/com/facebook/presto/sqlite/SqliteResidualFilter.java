@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.relation.RowExpression;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Objects;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A filter that stays in the plan because SQLite cannot apply it, which a scan applies itself
+ * before it reads the rest of each row; see {@link SqliteLateMaterialization}.
+ */
+public class SqliteResidualFilter
+{
+    private final RowExpression predicate;
+    private final List<SqliteColumnHandle> columns;
+
+    @JsonCreator
+    public SqliteResidualFilter(
+            @JsonProperty("predicate") RowExpression predicate,
+            @JsonProperty("columns") List<SqliteColumnHandle> columns)
+    {
+        this.predicate = requireNonNull(predicate, "predicate is null");
+        this.columns = ImmutableList.copyOf(requireNonNull(columns, "columns is null"));
+    }
+
+    /**
+     * The filter, with input {@code i} the value of column {@code i} of {@link #getColumns()}.
+     */
+    @JsonProperty
+    public RowExpression getPredicate()
+    {
+        return predicate;
+    }
+
+    /**
+     * The columns the filter reads, each of them at least once.
+     */
+    @JsonProperty
+    public List<SqliteColumnHandle> getColumns()
+    {
+        return columns;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        SqliteResidualFilter other = (SqliteResidualFilter) obj;
+        return Objects.equals(this.predicate, other.predicate) &&
+                Objects.equals(this.columns, other.columns);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(predicate, columns);
+    }
+
+    @Override
+    public String toString()
+    {
+        return predicate.toString();
+    }
+}
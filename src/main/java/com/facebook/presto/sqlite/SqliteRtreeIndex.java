@@ -0,0 +1,451 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.predicate.Domain;
+import com.facebook.presto.common.predicate.Range;
+import com.facebook.presto.common.predicate.SortedRangeSet;
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ColumnHandle;
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.sqlite.SqliteConfig.RtreeIndex;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.DoubleType.DOUBLE;
+import static com.facebook.presto.common.type.IntegerType.INTEGER;
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.facebook.presto.sqlite.SqliteMetadata.DEFAULT_SCHEMA;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Scans of SQLite R*Tree tables, and of data tables whose points an R*Tree indexes
+ * ({@code sqlite.rtree-index.<rtree>}). An R*Tree can only look up boxes, not ROWID ranges, so
+ * a large R*Tree is split into slabs of its first dimension, bounded where the boxes of the
+ * root node's children start. Range filters on the indexed columns of a data table are answered
+ * by looking up the matching ROWIDs in the R*Tree.
+ */
+public class SqliteRtreeIndex
+{
+    static final List<String> SHADOW_TABLES = ImmutableList.of("_node", "_parent", "_rowid");
+
+    private static final Pattern RTREE_TABLE = Pattern.compile("CREATE\\s+VIRTUAL\\s+TABLE\\s.*\\bUSING\\s+(rtree|rtree_i32)\\b\\s*(?:\\((.*)\\))?\\s*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    // The root only steers split boundaries and whether a lookup pays off, never which rows are read
+    private static final long ROOT_REFRESH_MINUTES = 10;
+    // Rows found by a lookup are read in random order; beyond this fraction of the table a scan is faster
+    private static final double MAX_LOOKUP_FRACTION = 0.1;
+
+    private final SqliteClient sqliteClient;
+    private final Map<String, RtreeIndex> indexes;
+    private final Cache<String, Optional<Root>> roots = CacheBuilder.newBuilder()
+            .expireAfterWrite(ROOT_REFRESH_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    public SqliteRtreeIndex(SqliteClient sqliteClient, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        this.indexes = requireNonNull(config, "config is null").getRtreeIndexes();
+    }
+
+    /**
+     * Checks that each {@code sqlite.rtree-index.<rtree>} names an R*Tree of the main database
+     * file with one dimension per indexed column.
+     */
+    public void validate()
+    {
+        for (RtreeIndex index : indexes.values()) {
+            Optional<Root> root = getRoot(index.getRtreeTable());
+            if (!root.isPresent() || root.get().getDimensions() != index.getColumns().size()) {
+                throw new IllegalArgumentException("Table " + index.getRtreeTable() + " is not an R*Tree with one dimension per column of "
+                        + SqliteConfig.RTREE_INDEX_PREFIX + index.getRtreeTable());
+            }
+        }
+    }
+
+    public void invalidate()
+    {
+        roots.invalidateAll();
+    }
+
+    /**
+     * Whether a table of the main database file is an R*Tree.
+     */
+    public boolean isRtree(String tableName)
+    {
+        return getRoot(tableName).isPresent();
+    }
+
+    /**
+     * Returns a predicate for each split of a scan of an R*Tree table, or an empty list if the
+     * table is not an R*Tree or is too small to split.
+     */
+    public List<String> getSplitPredicates(String tableName, int maxSplits, long minRowsPerSplit)
+    {
+        Optional<Root> root = getRoot(tableName);
+        if (!root.isPresent() || root.get().depth == 0) {
+            return ImmutableList.of();
+        }
+        int splitCount = (int) Math.min(maxSplits, root.get().estimatedRows / minRowsPerSplit);
+        if (splitCount < 2) {
+            return ImmutableList.of();
+        }
+
+        // Every row lies in exactly one slab, by where its box starts on the first dimension.
+        // Children's boxes often start at the edge of the data, so the slabs are bounded by
+        // their centers, which are spread about as the rows are.
+        double[] centers = root.get().boxes.stream()
+                .mapToDouble(box -> (box[0] + box[1]) / 2)
+                .sorted()
+                .toArray();
+        List<String> boundaries = new ArrayList<>();
+        for (int i = 1; i < splitCount; i++) {
+            String boundary = root.get().toLiteral(centers[i * centers.length / splitCount]);
+            if (!boundaries.contains(boundary)) {
+                boundaries.add(boundary);
+            }
+        }
+        String column = "\"" + root.get().rtree.getColumns().get(1) + "\"";
+        List<String> predicates = new ArrayList<>();
+        predicates.add(column + " < " + boundaries.get(0));
+        for (int i = 1; i < boundaries.size(); i++) {
+            predicates.add(column + " >= " + boundaries.get(i - 1) + " AND " + column + " < " + boundaries.get(i));
+        }
+        predicates.add(column + " >= " + boundaries.get(boundaries.size() - 1));
+        return predicates;
+    }
+
+    /**
+     * Returns a predicate that restricts a data table to the ROWIDs its R*Tree finds in the box
+     * the filters on the indexed columns describe, if the table has an R*Tree and the box is
+     * small enough for a lookup to read less than a scan. The filters themselves still apply;
+     * the box only has to contain every row they select.
+     */
+    public Optional<String> getLookupPredicate(String tableName, TupleDomain<ColumnHandle> tupleDomain)
+    {
+        RtreeIndex index = indexes.get(tableName);
+        if (index == null || !tupleDomain.getDomains().isPresent()) {
+            return Optional.empty();
+        }
+        Optional<Root> root = getRoot(index.getRtreeTable());
+        if (!root.isPresent() || root.get().getDimensions() != index.getColumns().size()) {
+            // Checked at startup; a file replaced since is scanned without the lookup
+            return Optional.empty();
+        }
+
+        int dimensions = index.getColumns().size();
+        double[] low = new double[dimensions];
+        double[] high = new double[dimensions];
+        Arrays.fill(low, Double.NEGATIVE_INFINITY);
+        Arrays.fill(high, Double.POSITIVE_INFINITY);
+        boolean bounded = false;
+        for (Map.Entry<ColumnHandle, Domain> entry : tupleDomain.getDomains().get().entrySet()) {
+            SqliteColumnHandle column = (SqliteColumnHandle) entry.getKey();
+            Domain domain = entry.getValue();
+            int dimension = index.getColumns().indexOf(column.getColumnName());
+            // Rows with a NULL coordinate have no entry in the R*Tree
+            if (dimension < 0 || column.getKind() != SqliteColumnHandle.Kind.REGULAR || !isNumeric(column.getType())
+                    || domain.isNullAllowed() || domain.isNone() || !(domain.getValues() instanceof SortedRangeSet)) {
+                continue;
+            }
+            Range span = ((SortedRangeSet) domain.getValues()).getSpan();
+            if (!span.getLow().isLowerUnbounded()) {
+                low[dimension] = toDouble(span.getLow().getValue(), false);
+                bounded = true;
+            }
+            if (!span.getHigh().isUpperUnbounded()) {
+                high[dimension] = toDouble(span.getHigh().getValue(), true);
+                bounded = true;
+            }
+        }
+        if (!bounded) {
+            return Optional.empty();
+        }
+
+        // Subtrees hold about the same number of rows, spread over their boxes
+        double selectivity = root.get().boxes.stream()
+                .mapToDouble(box -> getOverlap(box, low, high))
+                .average()
+                .orElse(0);
+        if (selectivity > MAX_LOOKUP_FRACTION) {
+            return Optional.empty();
+        }
+
+        List<String> conditions = new ArrayList<>();
+        List<String> columns = root.get().rtree.getColumns();
+        for (int dimension = 0; dimension < dimensions; dimension++) {
+            if (low[dimension] != Double.NEGATIVE_INFINITY) {
+                conditions.add("\"" + columns.get(2 + 2 * dimension) + "\" >= " + low[dimension]);
+            }
+            if (high[dimension] != Double.POSITIVE_INFINITY) {
+                conditions.add("\"" + columns.get(1 + 2 * dimension) + "\" <= " + high[dimension]);
+            }
+        }
+        return Optional.of("ROWID IN (SELECT \"" + columns.get(0) + "\" FROM \"" + index.getRtreeTable() + "\" WHERE " + String.join(" AND ", conditions) + ")");
+    }
+
+    private static boolean isNumeric(Type type)
+    {
+        return type.equals(DOUBLE) || type.equals(BIGINT) || type.equals(INTEGER);
+    }
+
+    private static double toDouble(Object value, boolean roundUp)
+    {
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        // Large integers are not exact as doubles; widen the box rather than lose a row
+        double converted = ((Number) value).doubleValue();
+        return roundUp ? Math.nextUp(converted) : Math.nextDown(converted);
+    }
+
+    /**
+     * Fraction of the box that lies within the bounds.
+     */
+    private static double getOverlap(double[] box, double[] low, double[] high)
+    {
+        double overlap = 1;
+        for (int dimension = 0; dimension < low.length; dimension++) {
+            double min = box[2 * dimension];
+            double max = box[2 * dimension + 1];
+            if (max < low[dimension] || min > high[dimension]) {
+                return 0;
+            }
+            if (max > min) {
+                overlap *= (Math.min(max, high[dimension]) - Math.max(min, low[dimension])) / (max - min);
+            }
+        }
+        return overlap;
+    }
+
+    private Optional<Root> getRoot(String tableName)
+    {
+        try {
+            return roots.get(tableName, () -> loadRoot(tableName));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throwIfUnchecked(e.getCause());
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read R*Tree " + tableName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Optional<Root> loadRoot(String tableName)
+    {
+        try (Connection connection = sqliteClient.getConnection()) {
+            Optional<Rtree> rtree = getRtree(connection, DEFAULT_SCHEMA, tableName);
+            if (!rtree.isPresent()) {
+                return Optional.empty();
+            }
+            String nodeTable = "\"" + tableName + "_node\"";
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT data, (SELECT MAX(nodeno) FROM " + nodeTable + ") FROM " + nodeTable + " WHERE nodeno = 1")) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                return Optional.of(new Root(rtree.get(), ByteBuffer.wrap(rs.getBytes(1)), rs.getLong(2)));
+            }
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read R*Tree " + tableName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Describes the table if it is an R*Tree.
+     */
+    static Optional<Rtree> getRtree(Connection connection, String schemaName, String tableName)
+            throws SQLException
+    {
+        String sql;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT sql FROM " + SqliteMetadata.schemaPrefix(schemaName) + "sqlite_master WHERE type = 'table' AND name = ?")) {
+            statement.setString(1, tableName);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next() || rs.getString(1) == null) {
+                    return Optional.empty();
+                }
+                sql = rs.getString(1);
+            }
+        }
+        Matcher matcher = RTREE_TABLE.matcher(sql);
+        if (!matcher.matches()) {
+            return Optional.empty();
+        }
+        Set<String> auxiliaryColumns = getAuxiliaryColumns(matcher.group(2));
+        ImmutableList.Builder<String> columns = ImmutableList.builder();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA " + SqliteMetadata.schemaPrefix(schemaName) + "table_info(" + SqliteMetadata.quote(tableName) + ")")) {
+            while (rs.next()) {
+                if (!auxiliaryColumns.contains(rs.getString("name"))) {
+                    columns.add(rs.getString("name"));
+                }
+            }
+        }
+        return Optional.of(new Rtree(columns.build(), auxiliaryColumns, matcher.group(1).equalsIgnoreCase("rtree_i32")));
+    }
+
+    /**
+     * Names of the auxiliary columns, declared with a leading {@code +}, in the arguments of
+     * {@code USING rtree(...)}. They are stored apart from the boxes and hold any value.
+     */
+    private static Set<String> getAuxiliaryColumns(String arguments)
+    {
+        Set<String> columns = new HashSet<>();
+        if (arguments == null) {
+            return columns;
+        }
+        for (String argument : arguments.split(",")) {
+            String column = argument.trim();
+            if (!column.startsWith("+")) {
+                continue;
+            }
+            column = column.substring(1).trim();
+            if (column.isEmpty()) {
+                continue;
+            }
+            char quote = column.charAt(0);
+            char closing = quote == '[' ? ']' : quote;
+            int end;
+            if (quote == '"' || quote == '`' || quote == '\'' || quote == '[') {
+                end = column.indexOf(closing, 1);
+                column = column.substring(1, end < 0 ? column.length() : end);
+            }
+            else {
+                column = column.split("\\s+", 2)[0];
+            }
+            columns.add(column);
+        }
+        return columns;
+    }
+
+    static Set<String> getRtreeTables(Connection connection, String schemaName)
+            throws SQLException
+    {
+        Set<String> tables = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT name, sql FROM " + SqliteMetadata.schemaPrefix(schemaName) + "sqlite_master WHERE type = 'table' AND sql LIKE 'CREATE VIRTUAL TABLE%'")) {
+            while (rs.next()) {
+                if (RTREE_TABLE.matcher(rs.getString("sql")).matches()) {
+                    tables.add(rs.getString("name"));
+                }
+            }
+        }
+        return tables;
+    }
+
+    static class Rtree
+    {
+        private final List<String> columns;
+        private final Set<String> auxiliaryColumns;
+        private final boolean integerCoordinates;
+
+        Rtree(List<String> columns, Set<String> auxiliaryColumns, boolean integerCoordinates)
+        {
+            this.columns = columns;
+            this.auxiliaryColumns = auxiliaryColumns;
+            this.integerCoordinates = integerCoordinates;
+        }
+
+        /**
+         * The id column, then the minimum and maximum of each dimension; not the auxiliary columns.
+         */
+        List<String> getColumns()
+        {
+            return columns;
+        }
+
+        /**
+         * Whether the column is an auxiliary column, which is typed like a column of an ordinary table.
+         */
+        boolean isAuxiliary(String column)
+        {
+            return auxiliaryColumns.contains(column);
+        }
+
+        Type getColumnType(int index)
+        {
+            if (index == 0) {
+                return BIGINT;
+            }
+            return integerCoordinates ? INTEGER : DOUBLE;
+        }
+    }
+
+    /**
+     * The root node of an R*Tree: its depth and the boxes of its children, which together cover
+     * the whole table.
+     */
+    private static class Root
+    {
+        private final Rtree rtree;
+        private final int depth;
+        private final List<double[]> boxes;
+        private final long estimatedRows;
+
+        Root(Rtree rtree, ByteBuffer node, long nodeCount)
+        {
+            this.rtree = rtree;
+            // Big-endian: depth of the tree, number of cells, then each cell's 64-bit child
+            // node (or row id in a leaf) and the minimum and maximum of each dimension
+            this.depth = node.getShort(0) & 0xFFFF;
+            int cells = node.getShort(2) & 0xFFFF;
+            int coordinates = rtree.getColumns().size() - 1;
+            int cellSize = 8 + 4 * coordinates;
+            List<double[]> boxes = new ArrayList<>(cells);
+            for (int cell = 0; cell < cells; cell++) {
+                double[] box = new double[coordinates];
+                for (int i = 0; i < coordinates; i++) {
+                    int bits = node.getInt(4 + cell * cellSize + 8 + 4 * i);
+                    box[i] = rtree.integerCoordinates ? bits : Float.intBitsToFloat(bits);
+                }
+                boxes.add(box);
+            }
+            this.boxes = boxes;
+            // Nodes hold between a third and all of their capacity; assume half
+            int capacity = (node.capacity() - 4) / cellSize;
+            this.estimatedRows = depth == 0 ? cells : nodeCount * capacity / 2;
+        }
+
+        int getDimensions()
+        {
+            return (rtree.getColumns().size() - 1) / 2;
+        }
+
+        String toLiteral(double coordinate)
+        {
+            return rtree.integerCoordinates ? String.valueOf((long) coordinate) : String.valueOf(coordinate);
+        }
+    }
+}
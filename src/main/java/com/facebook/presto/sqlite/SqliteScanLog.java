@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Bounded in-memory log of the most recent scans executed on this node, exposed
+ * as {@code system.scan_log}. Scans slower than the configured threshold also carry
+ * the {@code EXPLAIN QUERY PLAN} output of their generated SQL.
+ */
+public class SqliteScanLog
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteScanLog.class);
+
+    private final int capacity;
+    private final long slowScanThresholdMillis;
+    private final Deque<ScanRecord> records = new ArrayDeque<>();
+
+    public SqliteScanLog(int capacity, long slowScanThresholdMillis)
+    {
+        this.capacity = capacity;
+        this.slowScanThresholdMillis = slowScanThresholdMillis;
+    }
+
+    public boolean isEnabled()
+    {
+        return capacity > 0;
+    }
+
+    public boolean isSlow(long durationMillis)
+    {
+        return durationMillis >= slowScanThresholdMillis;
+    }
+
+    public void record(ScanRecord record)
+    {
+        requireNonNull(record, "record is null");
+        if (record.getQueryPlan().isPresent()) {
+            log.warn("Slow SQLite scan ({} ms, {} rows) for query {}: {}\n{}",
+                    record.getDurationMillis(), record.getRowCount(), record.getQueryId(), record.getSql(), record.getQueryPlan().get());
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (records) {
+            if (records.size() >= capacity) {
+                records.removeFirst();
+            }
+            records.addLast(record);
+        }
+    }
+
+    public List<ScanRecord> getRecords()
+    {
+        synchronized (records) {
+            return ImmutableList.copyOf(records);
+        }
+    }
+
+    public static class ScanRecord
+    {
+        private final String queryId;
+        private final String tableName;
+        private final String sql;
+        private final long rowidStart;
+        private final long rowidEnd;
+        private final long startTimeMillis;
+        private final long durationMillis;
+        private final long rowCount;
+        private final Optional<String> queryPlan;
+
+        public ScanRecord(String queryId, String tableName, String sql, long rowidStart, long rowidEnd,
+                long startTimeMillis, long durationMillis, long rowCount, Optional<String> queryPlan)
+        {
+            this.queryId = requireNonNull(queryId, "queryId is null");
+            this.tableName = requireNonNull(tableName, "tableName is null");
+            this.sql = requireNonNull(sql, "sql is null");
+            this.rowidStart = rowidStart;
+            this.rowidEnd = rowidEnd;
+            this.startTimeMillis = startTimeMillis;
+            this.durationMillis = durationMillis;
+            this.rowCount = rowCount;
+            this.queryPlan = requireNonNull(queryPlan, "queryPlan is null");
+        }
+
+        public String getQueryId()
+        {
+            return queryId;
+        }
+
+        public String getTableName()
+        {
+            return tableName;
+        }
+
+        public String getSql()
+        {
+            return sql;
+        }
+
+        public long getRowidStart()
+        {
+            return rowidStart;
+        }
+
+        public long getRowidEnd()
+        {
+            return rowidEnd;
+        }
+
+        public long getStartTimeMillis()
+        {
+            return startTimeMillis;
+        }
+
+        public long getDurationMillis()
+        {
+            return durationMillis;
+        }
+
+        public long getRowCount()
+        {
+            return rowCount;
+        }
+
+        public Optional<String> getQueryPlan()
+        {
+            return queryPlan;
+        }
+    }
+}
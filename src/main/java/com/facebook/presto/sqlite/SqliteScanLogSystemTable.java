@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorTableMetadata;
+import com.facebook.presto.spi.InMemoryRecordSet;
+import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.SystemTable;
+import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+import com.google.common.collect.ImmutableList;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.BooleanType.BOOLEAN;
+import static com.facebook.presto.common.type.DateTimeEncoding.packDateTimeWithZone;
+import static com.facebook.presto.common.type.TimeZoneKey.UTC_KEY;
+import static com.facebook.presto.common.type.TimestampWithTimeZoneType.TIMESTAMP_WITH_TIME_ZONE;
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
+import static java.util.Objects.requireNonNull;
+
+public class SqliteScanLogSystemTable
+        implements SystemTable
+{
+    public static final SchemaTableName NAME = new SchemaTableName("system", "scan_log");
+
+    private static final ConnectorTableMetadata METADATA = new ConnectorTableMetadata(NAME, ImmutableList.of(
+            column("query_id", VARCHAR),
+            column("node_id", VARCHAR),
+            column("table_name", VARCHAR),
+            column("sql", VARCHAR),
+            column("rowid_start", BIGINT),
+            column("rowid_end", BIGINT),
+            column("start_time", TIMESTAMP_WITH_TIME_ZONE),
+            column("duration_ms", BIGINT),
+            column("rows", BIGINT),
+            column("slow", BOOLEAN),
+            column("query_plan", VARCHAR)));
+
+    private final SqliteScanLog scanLog;
+    private final String nodeId;
+
+    public SqliteScanLogSystemTable(SqliteScanLog scanLog, String nodeId)
+    {
+        this.scanLog = requireNonNull(scanLog, "scanLog is null");
+        this.nodeId = requireNonNull(nodeId, "nodeId is null");
+    }
+
+    @Override
+    public Distribution getDistribution()
+    {
+        // Every worker keeps the log of the scans it ran
+        return Distribution.ALL_NODES;
+    }
+
+    @Override
+    public ConnectorTableMetadata getTableMetadata()
+    {
+        return METADATA;
+    }
+
+    @Override
+    public RecordCursor cursor(ConnectorTransactionHandle transactionHandle, ConnectorSession session, TupleDomain<Integer> constraint)
+    {
+        InMemoryRecordSet.Builder table = InMemoryRecordSet.builder(METADATA);
+        for (SqliteScanLog.ScanRecord record : scanLog.getRecords()) {
+            table.addRow(
+                    record.getQueryId(),
+                    nodeId,
+                    record.getTableName(),
+                    record.getSql(),
+                    record.getRowidStart() >= 0 ? record.getRowidStart() : null,
+                    record.getRowidEnd() >= 0 ? record.getRowidEnd() : null,
+                    packDateTimeWithZone(record.getStartTimeMillis(), UTC_KEY),
+                    record.getDurationMillis(),
+                    record.getRowCount(),
+                    scanLog.isSlow(record.getDurationMillis()),
+                    record.getQueryPlan().orElse(null));
+        }
+        return table.build().cursor();
+    }
+
+    private static ColumnMetadata column(String name, Type type)
+    {
+        return ColumnMetadata.builder().setName(name).setType(type).build();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.session.PropertyMetadata;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import static com.facebook.presto.spi.session.PropertyMetadata.booleanProperty;
+
+/**
+ * Per-query settings, set with {@code SET SESSION sqlite.<name> = ...}.
+ */
+public final class SqliteSessionProperties
+{
+    public static final String ORDERED_SCAN = "ordered_scan";
+
+    private final List<PropertyMetadata<?>> sessionProperties;
+
+    public SqliteSessionProperties()
+    {
+        this.sessionProperties = ImmutableList.of(
+                booleanProperty(
+                        ORDERED_SCAN,
+                        "Read tables with a key in a single split in key order, so grouping and merging on the key can stream",
+                        false,
+                        false));
+    }
+
+    public List<PropertyMetadata<?>> getSessionProperties()
+    {
+        return sessionProperties;
+    }
+
+    public static boolean isOrderedScan(ConnectorSession session)
+    {
+        return session.getProperty(ORDERED_SCAN, Boolean.class);
+    }
+}
@@ -13,6 +13,8 @@
  */
 package com.facebook.presto.sqlite;
 
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.ConnectorSplit;
 import com.facebook.presto.spi.HostAddress;
 import com.facebook.presto.spi.NodeProvider;
@@ -22,6 +24,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
 
 import java.util.List;
+import java.util.Optional;
 
 import static com.facebook.presto.spi.schedule.NodeSelectionStrategy.NO_PREFERENCE;
 import static java.util.Objects.requireNonNull;
@@ -29,37 +32,50 @@ import static java.util.Objects.requireNonNull;
 public class SqliteSplit
         implements ConnectorSplit
 {
-    private final String schemaName;
-    private final String tableName;
+    private final SqliteTableHandle table;
     private final String whereClause;
     private final long rowidStart;
     private final long rowidEnd;
+    private final String orderBy;
+    private final int bucket;
+    private final Optional<TupleDomain<ColumnHandle>> constraint;
+    private final Optional<SqliteResidualFilter> residualFilter;
 
     @JsonCreator
     public SqliteSplit(
-            @JsonProperty("schemaName") String schemaName,
-            @JsonProperty("tableName") String tableName,
+            @JsonProperty("table") SqliteTableHandle table,
             @JsonProperty("whereClause") String whereClause,
             @JsonProperty("rowidStart") long rowidStart,
-            @JsonProperty("rowidEnd") long rowidEnd)
+            @JsonProperty("rowidEnd") long rowidEnd,
+            @JsonProperty("orderBy") String orderBy,
+            @JsonProperty("bucket") int bucket,
+            @JsonProperty("constraint") Optional<TupleDomain<ColumnHandle>> constraint,
+            @JsonProperty("residualFilter") Optional<SqliteResidualFilter> residualFilter)
     {
-        this.schemaName = requireNonNull(schemaName, "schemaName is null");
-        this.tableName = requireNonNull(tableName, "tableName is null");
+        this.table = requireNonNull(table, "table is null");
         this.whereClause = whereClause == null ? "" : whereClause;
         this.rowidStart = rowidStart;
         this.rowidEnd = rowidEnd;
+        this.orderBy = orderBy == null ? "" : orderBy;
+        this.bucket = bucket;
+        this.constraint = requireNonNull(constraint, "constraint is null");
+        this.residualFilter = requireNonNull(residualFilter, "residualFilter is null");
     }
 
     @JsonProperty
+    public SqliteTableHandle getTable()
+    {
+        return table;
+    }
+
     public String getSchemaName()
     {
-        return schemaName;
+        return table.getSchemaName();
     }
 
-    @JsonProperty
     public String getTableName()
     {
-        return tableName;
+        return table.getTableName();
     }
 
     @JsonProperty
@@ -80,6 +96,41 @@ public class SqliteSplit
         return rowidEnd;
     }
 
+    @JsonProperty
+    public String getOrderBy()
+    {
+        return orderBy;
+    }
+
+    /**
+     * Bucket of a co-partitioned table this split reads, or -1 if the table is not partitioned.
+     */
+    @JsonProperty
+    public int getBucket()
+    {
+        return bucket;
+    }
+
+    /**
+     * The layout's domains, present only if the split reads its whole ROWID range, or the whole
+     * table, with no filters but the layout's own, so that a columnar copy of the table can
+     * serve it and skip chunks by the domains.
+     */
+    @JsonProperty
+    public Optional<TupleDomain<ColumnHandle>> getConstraint()
+    {
+        return constraint;
+    }
+
+    /**
+     * The layout's residual filter, which the scan applies before reading the other columns.
+     */
+    @JsonProperty
+    public Optional<SqliteResidualFilter> getResidualFilter()
+    {
+        return residualFilter;
+    }
+
     public boolean hasRowidRange()
     {
         return rowidStart >= 0 && rowidEnd >= 0;
@@ -13,33 +13,56 @@
  */
 package com.facebook.presto.sqlite;
 
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.ConnectorSession;
 import com.facebook.presto.spi.ConnectorSplit;
 import com.facebook.presto.spi.ConnectorSplitSource;
 import com.facebook.presto.spi.ConnectorTableLayoutHandle;
 import com.facebook.presto.spi.FixedSplitSource;
+import com.facebook.presto.spi.PrestoException;
 import com.facebook.presto.spi.connector.ConnectorSplitManager;
 import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.UnsignedBytes;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
 
 public class SqliteSplitManager
         implements ConnectorSplitManager
 {
     private static final int SPLIT_TARGET_COUNT = 4;
     private static final long MIN_ROWS_PER_SPLIT = 100_000;
+    // Up to this ratio, seeking each sampled ROWID is faster than stepping through the range and discarding rows
+    private static final double MAX_SEEK_SAMPLE_RATIO = 0.1;
+    // Characters after the common prefix of the smallest and largest key that text key ranges are interpolated over
+    private static final int TEXT_DIGITS = 3;
+    private static final Pattern ROWID_RANGE_PLAN = Pattern.compile("SEARCH \\S+ USING INTEGER PRIMARY KEY \\(rowid>\\? AND rowid<\\?\\)");
 
     private final SqliteClient sqliteClient;
+    private final SqliteRtreeIndex rtreeIndex;
+    private final SqliteWalSnapshots walSnapshots;
 
-    public SqliteSplitManager(SqliteClient sqliteClient)
+    public SqliteSplitManager(SqliteClient sqliteClient, SqliteRtreeIndex rtreeIndex, SqliteWalSnapshots walSnapshots)
     {
         this.sqliteClient = sqliteClient;
+        this.rtreeIndex = rtreeIndex;
+        this.walSnapshots = walSnapshots;
     }
 
     @Override
@@ -52,37 +75,131 @@ public class SqliteSplitManager
         SqliteTableLayoutHandle layoutHandle = (SqliteTableLayoutHandle) layout;
         SqliteTableHandle tableHandle = layoutHandle.getTable();
         String whereClause = layoutHandle.getWhereClause();
+        String orderBy = layoutHandle.getOrderBy();
         String schema = tableHandle.getSchemaName();
         String table = tableHandle.getTableName();
+        String from = tableHandle.getFromSql();
+        String rowidPredicate = layoutHandle.getRowidPredicate();
+        Optional<Double> sampleRatio = layoutHandle.getSampleRatio();
+        // Splits that are not ROWID ranges sample with a random draw per row
+        String sampledWhereClause = sampleRatio.isPresent() ? and(whereClause, getBernoulliPredicate(sampleRatio.get())) : whereClause;
+        // Splits that read their ROWID range with the layout's filters only, which a columnar copy can serve
+        Optional<TupleDomain<ColumnHandle>> columnarConstraint = sampleRatio.isPresent() ? Optional.empty() : Optional.of(layoutHandle.getConstraint());
+        Optional<SqliteResidualFilter> residualFilter = layoutHandle.getResidualFilter();
+
+        if (!orderBy.isEmpty() || layoutHandle.isIndexLookup() || tableHandle.isJoin()) {
+            // Key order only holds within a split, so an ordered scan reads the table in one;
+            // an R*Tree lookup would be repeated for every ROWID range, and so would a join
+            return new FixedSplitSource(ImmutableList.of(new SqliteSplit(tableHandle, sampledWhereClause, -1, -1, orderBy, -1, Optional.empty(), residualFilter)));
+        }
+
+        if (layoutHandle.getPartitioning().isPresent()) {
+            // One split per bucket, so the split-to-bucket mapping matches the other tables of the group
+            SqlitePartitioningHandle partitioning = layoutHandle.getPartitioning().get();
+            String partitionColumn = layoutHandle.getPartitionColumn().get();
+            List<ConnectorSplit> splits = new ArrayList<>();
+            for (int bucket = 0; bucket < partitioning.getBucketCount(); bucket++) {
+                String bucketPredicate = partitioning.getBucketPredicate(partitionColumn, bucket);
+                String bucketWhereClause = sampledWhereClause.isEmpty() || bucketPredicate.isEmpty()
+                        ? sampledWhereClause + bucketPredicate
+                        : sampledWhereClause + " AND " + bucketPredicate;
+                splits.add(new SqliteSplit(tableHandle, bucketWhereClause, -1, -1, orderBy, bucket, Optional.empty(), residualFilter));
+            }
+            return new FixedSplitSource(splits);
+        }
+
+        if (tableHandle.isMainTable() && rtreeIndex.isRtree(table)) {
+            // A ROWID range on an R*Tree walks the whole tree; split it into slabs it can look up
+            List<ConnectorSplit> splits = new ArrayList<>();
+            for (String slabPredicate : rtreeIndex.getSplitPredicates(table, SPLIT_TARGET_COUNT, MIN_ROWS_PER_SPLIT)) {
+                splits.add(new SqliteSplit(tableHandle, and(sampledWhereClause, slabPredicate), -1, -1, orderBy, -1, Optional.empty(), residualFilter));
+            }
+            if (splits.isEmpty()) {
+                splits.add(new SqliteSplit(tableHandle, sampledWhereClause, -1, -1, orderBy, -1, Optional.empty(), residualFilter));
+            }
+            return new FixedSplitSource(splits);
+        }
 
         long minRowid = -1;
         long maxRowid = -1;
+        boolean pinned = false;
+        List<String> keyRangePredicates;
 
         try (Connection conn = sqliteClient.getConnection();
              Statement stmt = conn.createStatement()) {
-            String sql = "SELECT MIN(ROWID), MAX(ROWID) FROM \"" + table + "\"";
-            try (ResultSet rs = stmt.executeQuery(sql)) {
-                if (rs.next()) {
-                    minRowid = rs.getLong(1);
-                    if (rs.wasNull()) {
-                        minRowid = -1;
+            Optional<String> splitColumn = Optional.empty();
+            boolean textRanges = false;
+            boolean hasRowid = false;
+            try (PreparedStatement statement = conn.prepareStatement("SELECT type, sql FROM " + SqliteMetadata.schemaPrefix(schema)
+                    + "sqlite_master WHERE name = ? COLLATE NOCASE AND type IN ('table', 'view')")) {
+                statement.setString(1, table);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        String sql = rs.getString("sql");
+                        if (rs.getString("type").equals("view")) {
+                            splitColumn = getViewRowidColumn(conn, schema, table);
+                        }
+                        else if (sql != null && SqliteMetadata.isWithoutRowid(sql)) {
+                            splitColumn = getLeadingKeyColumn(conn, schema, table);
+                            textRanges = splitColumn.isPresent() && isBinaryTextColumn(conn, schema, table, splitColumn.get());
+                        }
+                        else {
+                            hasRowid = true;
+                        }
                     }
-                    maxRowid = rs.getLong(2);
-                    if (rs.wasNull()) {
-                        maxRowid = -1;
+                }
+            }
+
+            // Every table of the query is read in its ROWID range in the same version of the file
+            Optional<long[]> pinnedRange = hasRowid && walSnapshots.isEnabled() ? walSnapshots.getRowidRange(session.getQueryId(), from, rowidPredicate) : Optional.empty();
+            if (pinnedRange.isPresent()) {
+                minRowid = pinnedRange.get()[0];
+                maxRowid = pinnedRange.get()[1];
+                pinned = true;
+            }
+            else if (hasRowid) {
+                String sql = "SELECT MIN(ROWID), MAX(ROWID) FROM " + from + (rowidPredicate.isEmpty() ? "" : " WHERE " + rowidPredicate);
+                try (ResultSet rs = stmt.executeQuery(sql)) {
+                    if (rs.next()) {
+                        minRowid = rs.getLong(1);
+                        if (rs.wasNull()) {
+                            minRowid = -1;
+                        }
+                        maxRowid = rs.getLong(2);
+                        if (rs.wasNull()) {
+                            maxRowid = -1;
+                        }
                     }
                 }
             }
+            keyRangePredicates = splitColumn.isPresent() ? getKeyRangePredicates(stmt, from, splitColumn.get(), textRanges) : ImmutableList.of();
         }
         catch (SQLException e) {
-            // Fall back to single split if ROWID query fails (e.g., views)
-            ConnectorSplit single = new SqliteSplit(schema, table, whereClause, -1, -1);
-            return new FixedSplitSource(ImmutableList.of(single));
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to split table " + table + ": " + e.getMessage(), e);
+        }
+
+        if (!keyRangePredicates.isEmpty()) {
+            List<ConnectorSplit> splits = new ArrayList<>();
+            for (String keyRangePredicate : keyRangePredicates) {
+                splits.add(new SqliteSplit(tableHandle, and(sampledWhereClause, keyRangePredicate), -1, -1, orderBy, -1, Optional.empty(), residualFilter));
+            }
+            return new FixedSplitSource(splits);
         }
 
         long rowidRange = maxRowid - minRowid + 1;
-        if (minRowid < 0 || maxRowid < 0 || rowidRange < MIN_ROWS_PER_SPLIT * 2) {
-            ConnectorSplit single = new SqliteSplit(schema, table, whereClause, -1, -1);
+        if (pinned && maxRowid < 0) {
+            // Empty in the query's version of the file, whatever has been appended since
+            return new FixedSplitSource(ImmutableList.of(new SqliteSplit(tableHandle, "0", -1, -1, orderBy, -1, Optional.empty(), residualFilter)));
+        }
+        if (minRowid < 0 || maxRowid < 0) {
+            ConnectorSplit single = new SqliteSplit(tableHandle, sampledWhereClause, -1, -1, orderBy, -1, columnarConstraint, residualFilter);
+            return new FixedSplitSource(ImmutableList.of(single));
+        }
+        if (rowidRange < MIN_ROWS_PER_SPLIT * 2) {
+            String singleWhereClause = sampleRatio.isPresent() ? and(whereClause, getSamplePredicate(sampleRatio.get(), minRowid, maxRowid)) : whereClause;
+            ConnectorSplit single = pinned
+                    ? new SqliteSplit(tableHandle, singleWhereClause, minRowid, maxRowid, orderBy, -1, columnarConstraint, residualFilter)
+                    : new SqliteSplit(tableHandle, singleWhereClause, -1, -1, orderBy, -1, columnarConstraint, residualFilter);
             return new FixedSplitSource(ImmutableList.of(single));
         }
 
@@ -94,9 +211,240 @@ public class SqliteSplitManager
         for (int i = 0; i < splitCount; i++) {
             long start = minRowid + (i * rangePerSplit);
             long end = (i == splitCount - 1) ? maxRowid : (start + rangePerSplit - 1);
-            splits.add(new SqliteSplit(schema, table, whereClause, start, end));
+            String splitWhereClause = sampleRatio.isPresent() ? and(whereClause, getSamplePredicate(sampleRatio.get(), start, end)) : whereClause;
+            splits.add(new SqliteSplit(tableHandle, splitWhereClause, start, end, orderBy, -1, columnarConstraint, residualFilter));
         }
 
         return new FixedSplitSource(ImmutableList.copyOf(splits));
     }
+
+    /**
+     * Returns the column of a view that is the ROWID of the one table it selects from, if it
+     * has one. SQLite flattens such a view into the query, so a range of the column is a
+     * ROWID range of the table.
+     */
+    private static Optional<String> getViewRowidColumn(Connection connection, String schema, String view)
+            throws SQLException
+    {
+        List<String> columns = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA " + SqliteMetadata.schemaPrefix(schema) + "table_info(" + SqliteMetadata.quote(view) + ")")) {
+            while (rs.next()) {
+                columns.add(rs.getString("name"));
+            }
+        }
+        for (String column : columns) {
+            List<String> plan = new ArrayList<>();
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("EXPLAIN QUERY PLAN SELECT 1 FROM " + SqliteMetadata.qualify(schema, view) + " WHERE \"" + column + "\" >= 0 AND \"" + column + "\" < 1")) {
+                while (rs.next()) {
+                    plan.add(rs.getString("detail"));
+                }
+            }
+            if (plan.size() == 1 && ROWID_RANGE_PLAN.matcher(plan.get(0)).matches()) {
+                return Optional.of(column);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the first primary key column of a {@code WITHOUT ROWID} table, which orders its B-tree.
+     */
+    private static Optional<String> getLeadingKeyColumn(Connection connection, String schema, String table)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA " + SqliteMetadata.schemaPrefix(schema) + "table_info(" + SqliteMetadata.quote(table) + ")")) {
+            while (rs.next()) {
+                if (rs.getInt("pk") == 1) {
+                    return Optional.of(rs.getString("name"));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Whether a key column compares text as Java does: it has text or no affinity, so text
+     * boundaries are not converted to numbers, and the BINARY collation.
+     */
+    private static boolean isBinaryTextColumn(Connection connection, String schema, String table, String column)
+            throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT c.type, x.coll FROM pragma_table_info(?, ?) c, pragma_index_list(?, ?) i, pragma_index_xinfo(i.name, ?) x "
+                + "WHERE c.name = ? AND i.origin = 'pk' AND x.name = c.name AND x.key = 1")) {
+            String database = SqliteMetadata.databaseName(schema);
+            statement.setString(1, table);
+            statement.setString(2, database);
+            statement.setString(3, table);
+            statement.setString(4, database);
+            statement.setString(5, database);
+            statement.setString(6, column);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                String type = rs.getString(1).toUpperCase(Locale.ENGLISH);
+                boolean textAffinity = !type.contains("INT") && (type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT") || type.contains("BLOB") || type.isEmpty());
+                return textAffinity && "BINARY".equalsIgnoreCase(rs.getString(2));
+            }
+        }
+    }
+
+    /**
+     * Splits the table into ranges of the column, interpolated between its minimum and maximum
+     * like ROWID ranges. The ranges cover every non-NULL value whatever its type, since SQLite
+     * orders all values; the column must not hold NULLs.
+     */
+    private static List<String> getKeyRangePredicates(Statement statement, String relation, String column, boolean textRanges)
+            throws SQLException
+    {
+        String from = " FROM " + relation;
+        long rows;
+        // Counts no further than needed to choose the number of splits
+        try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM (SELECT 1" + from + " LIMIT " + SPLIT_TARGET_COUNT * MIN_ROWS_PER_SPLIT + ")")) {
+            rs.next();
+            rows = rs.getLong(1);
+        }
+        int splitCount = (int) Math.min(SPLIT_TARGET_COUNT, rows / MIN_ROWS_PER_SPLIT);
+        if (splitCount < 2) {
+            return ImmutableList.of();
+        }
+
+        // Separate queries, so each is a seek to one end of the key
+        Object min;
+        Object max;
+        try (ResultSet rs = statement.executeQuery("SELECT MIN(\"" + column + "\")" + from)) {
+            rs.next();
+            min = rs.getObject(1);
+        }
+        try (ResultSet rs = statement.executeQuery("SELECT MAX(\"" + column + "\")" + from)) {
+            rs.next();
+            max = rs.getObject(1);
+        }
+
+        List<String> boundaries = new ArrayList<>();
+        for (int i = 1; i < splitCount; i++) {
+            String boundary;
+            if ((min instanceof Integer || min instanceof Long) && (max instanceof Integer || max instanceof Long)) {
+                long low = ((Number) min).longValue();
+                boundary = String.valueOf(low + (long) (((double) ((Number) max).longValue() - low) * i / splitCount));
+            }
+            else if (min instanceof Number && max instanceof Number) {
+                double low = ((Number) min).doubleValue();
+                boundary = String.valueOf(low + (((Number) max).doubleValue() - low) * i / splitCount);
+            }
+            else if (textRanges && min instanceof String && max instanceof String) {
+                boundary = interpolateText((String) min, (String) max, (double) i / splitCount);
+            }
+            else {
+                return ImmutableList.of();
+            }
+            if (!boundaries.contains(boundary)) {
+                boundaries.add(boundary);
+            }
+        }
+        if (min instanceof String) {
+            // In the order SQLite compares binary text, by UTF-8 bytes; UTF-16 order differs
+            // from it once a boundary holds a character outside the BMP
+            boundaries = boundaries.stream()
+                    .sorted(Comparator.comparing(boundary -> boundary.getBytes(StandardCharsets.UTF_8), UnsignedBytes.lexicographicalComparator()))
+                    .map(boundary -> SqliteMetadata.valueToLiteral(VARCHAR, boundary))
+                    .collect(Collectors.toList());
+        }
+        return getRangePredicates("\"" + column + "\"", boundaries);
+    }
+
+    /**
+     * Returns a string about the given fraction of the way from one string to the other,
+     * interpolating the characters after their common prefix as digits.
+     */
+    static String interpolateText(String min, String max, double fraction)
+    {
+        int prefix = 0;
+        while (prefix < min.length() && prefix < max.length() && min.charAt(prefix) == max.charAt(prefix)) {
+            prefix++;
+        }
+        long low = 0;
+        long high = 0;
+        for (int i = prefix; i < prefix + TEXT_DIGITS; i++) {
+            low = (low << 16) | (i < min.length() ? min.charAt(i) : 0);
+            high = (high << 16) | (i < max.length() ? max.charAt(i) : 0);
+        }
+        long value = low + (long) ((high - low) * fraction);
+
+        StringBuilder boundary = new StringBuilder(min.substring(0, prefix));
+        for (int digit = TEXT_DIGITS - 1; digit >= 0; digit--) {
+            char c = (char) (value >>> (16 * digit));
+            if (Character.isSurrogate(c)) {
+                // Not a character on its own; the next one is still above all of this range
+                boundary.append('\uE000');
+                break;
+            }
+            // SQL text cannot hold NUL
+            boundary.append(c == 0 ? '\u0001' : c);
+        }
+        while (boundary.length() > prefix && boundary.charAt(boundary.length() - 1) == '\u0001') {
+            boundary.setLength(boundary.length() - 1);
+        }
+        return boundary.toString();
+    }
+
+    /**
+     * Predicates that split the values of an expression at the given increasing boundaries,
+     * each value falling in exactly one of them.
+     */
+    static List<String> getRangePredicates(String expression, List<String> boundaries)
+    {
+        if (boundaries.isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<String> predicates = new ArrayList<>();
+        predicates.add(expression + " < " + boundaries.get(0));
+        for (int i = 1; i < boundaries.size(); i++) {
+            predicates.add(expression + " >= " + boundaries.get(i - 1) + " AND " + expression + " < " + boundaries.get(i));
+        }
+        predicates.add(expression + " >= " + boundaries.get(boundaries.size() - 1));
+        return predicates;
+    }
+
+    /**
+     * Keeps each row of the ROWID range independently with the given probability. A small
+     * sample seeks its ROWIDs, drawn with geometrically distributed gaps, so that it costs in
+     * proportion to the sample rather than to the range.
+     */
+    static String getSamplePredicate(double ratio, long startRowid, long endRowid)
+    {
+        if (ratio <= 0 || ratio >= 1 || ratio > MAX_SEEK_SAMPLE_RATIO) {
+            return getBernoulliPredicate(ratio);
+        }
+        // The gap to the next sampled ROWID is floor(ln(u) / ln(1 - ratio)) for u uniform in (0, 1]
+        String gap = "CAST(ln((abs(random() % 4503599627370496) + 1) / 4503599627370496.0) / " + Math.log1p(-ratio) + " AS INTEGER)";
+        return "ROWID IN (WITH RECURSIVE sample(r) AS (SELECT " + startRowid + " + " + gap
+                + " UNION ALL SELECT r + 1 + " + gap + " FROM sample WHERE r < " + endRowid + ") SELECT r FROM sample)";
+    }
+
+    /**
+     * Keeps each row independently with the given probability.
+     */
+    static String getBernoulliPredicate(double ratio)
+    {
+        if (ratio >= 1) {
+            return "";
+        }
+        if (ratio <= 0) {
+            return "0";
+        }
+        // random() is uniform over the 64-bit integers
+        return "random() < " + (long) (Long.MIN_VALUE + ratio * 0x1p64);
+    }
+
+    private static String and(String whereClause, String predicate)
+    {
+        if (whereClause.isEmpty() || predicate.isEmpty()) {
+            return whereClause + predicate;
+        }
+        return whereClause + " AND " + predicate;
+    }
 }
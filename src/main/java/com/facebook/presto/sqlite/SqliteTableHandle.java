@@ -19,6 +19,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.Objects;
 
+import static com.facebook.presto.sqlite.SqliteMetadata.DEFAULT_SCHEMA;
 import static java.util.Objects.requireNonNull;
 
 public class SqliteTableHandle
@@ -26,14 +27,22 @@ public class SqliteTableHandle
 {
     private final String schemaName;
     private final String tableName;
+    private final String relation;
+
+    public SqliteTableHandle(String schemaName, String tableName)
+    {
+        this(schemaName, tableName, "");
+    }
 
     @JsonCreator
     public SqliteTableHandle(
             @JsonProperty("schemaName") String schemaName,
-            @JsonProperty("tableName") String tableName)
+            @JsonProperty("tableName") String tableName,
+            @JsonProperty("relation") String relation)
     {
         this.schemaName = requireNonNull(schemaName, "schemaName is null");
         this.tableName = requireNonNull(tableName, "tableName is null");
+        this.relation = relation == null ? "" : relation;
     }
 
     @JsonProperty
@@ -48,6 +57,38 @@ public class SqliteTableHandle
         return tableName;
     }
 
+    /**
+     * Parenthesized query of a join pushed down into SQLite, which the handle reads instead of
+     * a table; empty for a table. The table name then only describes the join.
+     */
+    @JsonProperty
+    public String getRelation()
+    {
+        return relation;
+    }
+
+    public boolean isJoin()
+    {
+        return !relation.isEmpty();
+    }
+
+    /**
+     * Whether this is a table of the main database file, the only one table settings such as
+     * R*Tree indexes, co-partitioning and warm-up refer to.
+     */
+    public boolean isMainTable()
+    {
+        return !isJoin() && schemaName.equals(DEFAULT_SCHEMA);
+    }
+
+    /**
+     * What a scan selects from: the table, qualified by its attached database, or the join query.
+     */
+    public String getFromSql()
+    {
+        return isJoin() ? relation : SqliteMetadata.qualify(schemaName, tableName);
+    }
+
     @Override
     public String toString()
     {
@@ -57,7 +98,7 @@ public class SqliteTableHandle
     @Override
     public int hashCode()
     {
-        return Objects.hash(schemaName, tableName);
+        return Objects.hash(schemaName, tableName, relation);
     }
 
     @Override
@@ -71,6 +112,7 @@ public class SqliteTableHandle
         }
         SqliteTableHandle other = (SqliteTableHandle) obj;
         return Objects.equals(this.schemaName, other.schemaName) &&
-                Objects.equals(this.tableName, other.tableName);
+                Objects.equals(this.tableName, other.tableName) &&
+                Objects.equals(this.relation, other.relation);
     }
 }
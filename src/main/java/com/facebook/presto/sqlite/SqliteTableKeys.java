@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.PrestoException;
+import com.google.common.collect.ImmutableList;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.facebook.presto.sqlite.SqliteMetadata.quote;
+import static com.facebook.presto.sqlite.SqliteMetadata.schemaPrefix;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The keys that identify every row of a table, which scans advertise as unique, grouped or,
+ * for ordered scans, sorted columns. Looked up with three PRAGMAs per table and cached until
+ * the schema changes or the file is replaced.
+ */
+public class SqliteTableKeys
+{
+    private final SqliteClient sqliteClient;
+    private final Map<String, TableKey> cache = new ConcurrentHashMap<>();
+
+    public SqliteTableKeys(SqliteClient sqliteClient)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+    }
+
+    public void invalidate()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Returns the key of the table, see {@link TableKey}; an empty key for a pushed-down join.
+     */
+    public TableKey getKey(SqliteTableHandle table)
+    {
+        if (table.isJoin()) {
+            return TableKey.NONE;
+        }
+        String schemaPrefix = schemaPrefix(table.getSchemaName());
+        String relation = SqliteMetadata.qualify(table.getSchemaName(), table.getTableName());
+        try (Connection connection = sqliteClient.getConnection();
+                Statement statement = connection.createStatement()) {
+            long schemaVersion;
+            try (ResultSet rs = statement.executeQuery("PRAGMA " + schemaPrefix + "schema_version")) {
+                rs.next();
+                schemaVersion = rs.getLong(1);
+            }
+            TableKey cached = cache.get(relation);
+            if (cached != null && cached.schemaVersion == schemaVersion) {
+                return cached;
+            }
+            TableKey key = lookUpKey(statement, schemaPrefix, table.getTableName(), schemaVersion);
+            cache.put(relation, key);
+            return key;
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to get key of table " + table + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static TableKey lookUpKey(Statement statement, String schemaPrefix, String tableName, long schemaVersion)
+            throws SQLException
+    {
+        List<String> primaryKey = new ArrayList<>();
+        String primaryKeyType = null;
+        Set<String> notNullColumns = new HashSet<>();
+        Map<String, String> declaredTypes = new HashMap<>();
+        try (ResultSet rs = statement.executeQuery("PRAGMA " + schemaPrefix + "table_info(" + quote(tableName) + ")")) {
+            while (rs.next()) {
+                declaredTypes.put(rs.getString("name"), rs.getString("type").toUpperCase().trim());
+                if (rs.getInt("notnull") != 0) {
+                    notNullColumns.add(rs.getString("name"));
+                }
+                if (rs.getInt("pk") > 0) {
+                    primaryKey.add(rs.getString("name"));
+                    primaryKeyType = rs.getString("type");
+                }
+            }
+        }
+
+        List<String> uniqueIndexes = new ArrayList<>();
+        boolean primaryKeyIndex = false;
+        try (ResultSet rs = statement.executeQuery("PRAGMA " + schemaPrefix + "index_list(" + quote(tableName) + ")")) {
+            while (rs.next()) {
+                if ("pk".equals(rs.getString("origin"))) {
+                    primaryKeyIndex = true;
+                }
+                if (rs.getInt("unique") != 0 && rs.getInt("partial") == 0) {
+                    uniqueIndexes.add(rs.getString("name"));
+                }
+            }
+        }
+
+        // Only a lone column declared exactly INTEGER aliases the ROWID; any other primary key gets its own index
+        if (primaryKey.size() == 1 && "INTEGER".equalsIgnoreCase(primaryKeyType) && !primaryKeyIndex) {
+            return new TableKey(schemaVersion, primaryKey, isSortable(primaryKey, declaredTypes));
+        }
+
+        List<String> key = ImmutableList.of();
+        for (String index : uniqueIndexes) {
+            List<String> columns = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery("PRAGMA " + schemaPrefix + "index_info(" + quote(index) + ")")) {
+                while (rs.next()) {
+                    // NULL for ROWID and expression columns
+                    columns.add(rs.getString("name"));
+                }
+            }
+            if (!columns.isEmpty() && notNullColumns.containsAll(columns) && (key.isEmpty() || columns.size() < key.size())) {
+                key = columns;
+            }
+        }
+        return new TableKey(schemaVersion, key, isSortable(key, declaredTypes));
+    }
+
+    private static boolean isSortable(List<String> key, Map<String, String> declaredTypes)
+    {
+        return key.stream()
+                .map(column -> SqliteMetadata.getAffinity(declaredTypes.getOrDefault(column, "")))
+                .allMatch(affinity -> affinity == SqliteColumnHandle.Affinity.INTEGER || affinity == SqliteColumnHandle.Affinity.TEXT);
+    }
+
+    /**
+     * The columns of a key that identifies every row: the {@code INTEGER PRIMARY KEY} (the
+     * ROWID alias) if there is one, otherwise the shortest primary key or unique index whose
+     * columns are all {@code NOT NULL}. SQLite lets unique columns hold any number of NULLs,
+     * so nullable keys are not keys. Empty if there is no such key.
+     */
+    public static class TableKey
+    {
+        static final TableKey NONE = new TableKey(0, ImmutableList.of(), false);
+
+        private final long schemaVersion;
+        private final List<String> columns;
+        private final boolean sortable;
+
+        private TableKey(long schemaVersion, List<String> columns, boolean sortable)
+        {
+            this.schemaVersion = schemaVersion;
+            this.columns = ImmutableList.copyOf(columns);
+            this.sortable = sortable;
+        }
+
+        public List<String> getColumns()
+        {
+            return columns;
+        }
+
+        public boolean isEmpty()
+        {
+            return columns.isEmpty();
+        }
+
+        /**
+         * Whether an ordered scan can advertise the key as sorted: every column has INTEGER or
+         * TEXT affinity, which SQLite orders like Presto, numerically or, with
+         * {@code COLLATE BINARY}, by UTF-8 bytes. Other columns readily mix storage classes,
+         * which SQLite orders by class before value.
+         */
+        public boolean isSortable()
+        {
+            return sortable;
+        }
+    }
+}
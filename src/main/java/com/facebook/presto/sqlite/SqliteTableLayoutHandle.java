@@ -13,10 +13,14 @@
  */
 package com.facebook.presto.sqlite;
 
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.spi.ColumnHandle;
 import com.facebook.presto.spi.ConnectorTableLayoutHandle;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Optional;
+
 import static java.util.Objects.requireNonNull;
 
 public class SqliteTableLayoutHandle
@@ -24,19 +28,43 @@ public class SqliteTableLayoutHandle
 {
     private final SqliteTableHandle table;
     private final String whereClause;
+    private final String rowidPredicate;
+    private final TupleDomain<ColumnHandle> constraint;
+    private final String orderBy;
+    private final Optional<SqlitePartitioningHandle> partitioning;
+    private final Optional<String> partitionColumn;
+    private final boolean indexLookup;
+    private final Optional<Double> sampleRatio;
+    private final Optional<SqliteResidualFilter> residualFilter;
 
     @JsonCreator
     public SqliteTableLayoutHandle(
             @JsonProperty("table") SqliteTableHandle table,
-            @JsonProperty("whereClause") String whereClause)
+            @JsonProperty("whereClause") String whereClause,
+            @JsonProperty("rowidPredicate") String rowidPredicate,
+            @JsonProperty("constraint") TupleDomain<ColumnHandle> constraint,
+            @JsonProperty("orderBy") String orderBy,
+            @JsonProperty("partitioning") Optional<SqlitePartitioningHandle> partitioning,
+            @JsonProperty("partitionColumn") Optional<String> partitionColumn,
+            @JsonProperty("indexLookup") boolean indexLookup,
+            @JsonProperty("sampleRatio") Optional<Double> sampleRatio,
+            @JsonProperty("residualFilter") Optional<SqliteResidualFilter> residualFilter)
     {
         this.table = requireNonNull(table, "table is null");
         this.whereClause = whereClause == null ? "" : whereClause;
+        this.rowidPredicate = rowidPredicate == null ? "" : rowidPredicate;
+        this.constraint = requireNonNull(constraint, "constraint is null");
+        this.orderBy = orderBy == null ? "" : orderBy;
+        this.partitioning = requireNonNull(partitioning, "partitioning is null");
+        this.partitionColumn = requireNonNull(partitionColumn, "partitionColumn is null");
+        this.indexLookup = indexLookup;
+        this.sampleRatio = requireNonNull(sampleRatio, "sampleRatio is null");
+        this.residualFilter = requireNonNull(residualFilter, "residualFilter is null");
     }
 
     public SqliteTableLayoutHandle(SqliteTableHandle table)
     {
-        this(table, "");
+        this(table, "", "", TupleDomain.all(), "", Optional.empty(), Optional.empty(), false, Optional.empty(), Optional.empty());
     }
 
     @JsonProperty
@@ -51,6 +79,79 @@ public class SqliteTableLayoutHandle
         return whereClause;
     }
 
+    /**
+     * The part of the where clause on {@code $rowid}, also applied when the split manager reads
+     * the table's ROWID range so that the splits cover only the rows it selects; empty if none.
+     */
+    @JsonProperty
+    public String getRowidPredicate()
+    {
+        return rowidPredicate;
+    }
+
+    /**
+     * The domains the where clause was built from, before the plan optimizer added filters
+     * that are not domains.
+     */
+    @JsonProperty
+    public TupleDomain<ColumnHandle> getConstraint()
+    {
+        return constraint;
+    }
+
+    /**
+     * ORDER BY list for scans that must return rows in key order; empty for unordered scans.
+     */
+    @JsonProperty
+    public String getOrderBy()
+    {
+        return orderBy;
+    }
+
+    @JsonProperty
+    public Optional<SqlitePartitioningHandle> getPartitioning()
+    {
+        return partitioning;
+    }
+
+    /**
+     * Key column the table is bucketed on when {@link #getPartitioning()} is present.
+     */
+    @JsonProperty
+    public Optional<String> getPartitionColumn()
+    {
+        return partitionColumn;
+    }
+
+    /**
+     * Whether the where clause looks up its rows in an R*Tree. Every ROWID range of the table
+     * would repeat the whole lookup, so such a scan is read as a single split.
+     */
+    @JsonProperty
+    public boolean isIndexLookup()
+    {
+        return indexLookup;
+    }
+
+    /**
+     * Fraction of the rows a {@code TABLESAMPLE BERNOULLI} keeps, each row independently.
+     */
+    @JsonProperty
+    public Optional<Double> getSampleRatio()
+    {
+        return sampleRatio;
+    }
+
+    /**
+     * A filter left in the plan that the scan applies before reading the other columns of a
+     * row, because it keeps few of the rows and they are wide.
+     */
+    @JsonProperty
+    public Optional<SqliteResidualFilter> getResidualFilter()
+    {
+        return residualFilter;
+    }
+
     @Override
     public String toString()
     {
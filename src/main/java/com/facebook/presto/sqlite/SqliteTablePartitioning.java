@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.PrestoException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Key-range partitioning of the tables listed in {@code sqlite.co-partitioned.<group>}. All
+ * tables of a group share one set of bucket boundaries, spread evenly over the combined key
+ * range of the group, so Presto can join them bucket by bucket without an exchange.
+ */
+public class SqliteTablePartitioning
+{
+    // Boundaries only affect how evenly rows spread over buckets, never which rows are read,
+    // so they can be reused across queries for a while
+    private static final long BOUNDARY_REFRESH_MINUTES = 10;
+
+    private final SqliteClient sqliteClient;
+    private final Map<String, Map<String, String>> groups;
+    private final Map<String, String> tableGroups;
+    private final int bucketCount;
+    private final Cache<String, Optional<SqlitePartitioningHandle>> partitionings = CacheBuilder.newBuilder()
+            .expireAfterWrite(BOUNDARY_REFRESH_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    public SqliteTablePartitioning(SqliteClient sqliteClient, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        requireNonNull(config, "config is null");
+        this.groups = config.getCoPartitionedGroups();
+        this.bucketCount = config.getCoPartitionedBucketCount();
+
+        ImmutableMap.Builder<String, String> tableGroups = ImmutableMap.builder();
+        for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+            for (String table : group.getValue().keySet()) {
+                tableGroups.put(table, group.getKey());
+            }
+        }
+        this.tableGroups = tableGroups.build();
+    }
+
+    public void invalidate()
+    {
+        partitionings.invalidateAll();
+    }
+
+    public Optional<String> getPartitionColumn(String tableName)
+    {
+        String group = tableGroups.get(tableName);
+        if (group == null) {
+            return Optional.empty();
+        }
+        return Optional.of(groups.get(group).get(tableName));
+    }
+
+    public Optional<SqlitePartitioningHandle> getPartitioning(String tableName)
+    {
+        String group = tableGroups.get(tableName);
+        if (group == null) {
+            return Optional.empty();
+        }
+        try {
+            return partitionings.get(group, () -> computePartitioning(group));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throwIfUnchecked(e.getCause());
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to partition group " + group + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Optional<SqlitePartitioningHandle> computePartitioning(String group)
+    {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        try (Connection connection = sqliteClient.getConnection();
+                Statement statement = connection.createStatement()) {
+            for (Map.Entry<String, String> table : groups.get(group).entrySet()) {
+                // Separate queries, so each is answered from the key's index when it has one
+                String from = " FROM \"" + table.getKey() + "\"";
+                Optional<Long> low = queryKey(statement, "SELECT MIN(\"" + table.getValue() + "\")" + from);
+                Optional<Long> high = queryKey(statement, "SELECT MAX(\"" + table.getValue() + "\")" + from);
+                if (low.isPresent()) {
+                    min = Math.min(min, low.get());
+                }
+                if (high.isPresent()) {
+                    max = Math.max(max, high.get());
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to compute key range of group " + group + ": " + e.getMessage(), e);
+        }
+        if (min > max) {
+            return Optional.empty();
+        }
+
+        double range = (double) max - (double) min + 1;
+        int buckets = (int) Math.min(bucketCount, range);
+        List<Long> boundaries = new ArrayList<>();
+        for (int i = 1; i < buckets; i++) {
+            long boundary = min + (long) (range * i / buckets);
+            if (boundaries.isEmpty() || boundary > boundaries.get(boundaries.size() - 1)) {
+                boundaries.add(boundary);
+            }
+        }
+        return Optional.of(new SqlitePartitioningHandle(group, boundaries));
+    }
+
+    private static Optional<Long> queryKey(Statement statement, String sql)
+            throws SQLException
+    {
+        try (ResultSet rs = statement.executeQuery(sql)) {
+            if (rs.next()) {
+                Object value = rs.getObject(1);
+                // Text stored in the key column sorts above every number and lands in the last bucket
+                if (value instanceof Number) {
+                    return Optional.of(((Number) value).longValue());
+                }
+            }
+        }
+        return Optional.empty();
+    }
+}
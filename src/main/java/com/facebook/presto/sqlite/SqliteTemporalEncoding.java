@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How a DATE or TIMESTAMP column stores its values. SQLite has no date type; its date
+ * functions accept ISO-8601 text, Julian day numbers (REAL) and unix time (INTEGER).
+ * Values are decoded by their storage class, so a column that mixes encodings still reads
+ * correctly; the detected encoding decides how pushed-down bounds are written, so that
+ * SQLite compares like with like and can answer the predicate from an index. Bounds are only
+ * pushed down on columns whose sample is stored in that encoding alone, as a bound in one
+ * storage class or text form does not order the others. Timestamps are read as UTC wall
+ * time, whatever the session time zone, and bounds are written in the same UTC wall time,
+ * so a pushed-down bound selects the rows Presto's filter keeps.
+ */
+public enum SqliteTemporalEncoding
+{
+    ISO_TEXT,
+    ISO_TEXT_T,
+    JULIAN_DAY,
+    UNIX_SECONDS,
+    UNIX_MILLIS;
+
+    private static final double UNIX_EPOCH_JULIAN_DAY = 2440587.5;
+    private static final long MILLIS_PER_DAY = 86_400_000;
+    private static final DateTimeFormatter SPACE_SEPARATED = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter T_SEPARATED = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    /**
+     * Decodes a stored value to days since 1970-01-01, or null if it is not a date.
+     */
+    public Long decodeDays(Object value)
+    {
+        Long millis = decodeMillis(value);
+        return millis == null ? null : Math.floorDiv(millis, MILLIS_PER_DAY);
+    }
+
+    /**
+     * Decodes a stored value to milliseconds since 1970-01-01 00:00 UTC, or null if it is not a timestamp.
+     */
+    public Long decodeMillis(Object value)
+    {
+        if (value instanceof String) {
+            return parseIsoMillis((String) value);
+        }
+        if (!(value instanceof Number)) {
+            return null;
+        }
+        Number number = (Number) value;
+        switch (this) {
+            case UNIX_SECONDS:
+                return value instanceof Double ? Math.round(number.doubleValue() * 1000) : number.longValue() * 1000;
+            case UNIX_MILLIS:
+                return Math.round(number.doubleValue());
+            case JULIAN_DAY:
+                return Math.round((number.doubleValue() - UNIX_EPOCH_JULIAN_DAY) * MILLIS_PER_DAY);
+            default:
+                // Numbers in a text-encoded column: a REAL is most likely a Julian day, an INTEGER unix seconds
+                return value instanceof Double
+                        ? Math.round((number.doubleValue() - UNIX_EPOCH_JULIAN_DAY) * MILLIS_PER_DAY)
+                        : number.longValue() * 1000;
+        }
+    }
+
+    /**
+     * SQL for {@code lowInclusive <= column < highExclusive} in the column's storage. Bounds are
+     * days for DATE and milliseconds for TIMESTAMP columns; {@code Long.MIN_VALUE} and
+     * {@code Long.MAX_VALUE} mean unbounded. Text and second-based encodings cannot express every
+     * bound exactly, so the predicate may select a few more rows, which Presto filters out.
+     */
+    public String rangeToSql(String quotedName, boolean timestamp, long lowInclusive, long highExclusive)
+    {
+        List<String> parts = new ArrayList<>();
+        if (lowInclusive != Long.MIN_VALUE) {
+            parts.add(quotedName + " >= " + toLiteral(timestamp, lowInclusive, false));
+        }
+        if (highExclusive != Long.MAX_VALUE) {
+            parts.add(quotedName + " < " + toLiteral(timestamp, highExclusive, true));
+        }
+        return String.join(" AND ", parts);
+    }
+
+    private String toLiteral(boolean timestamp, long bound, boolean upper)
+    {
+        long millis = timestamp ? bound : bound * MILLIS_PER_DAY;
+        switch (this) {
+            case ISO_TEXT:
+            case ISO_TEXT_T:
+                if (!timestamp) {
+                    // Also correct for 'YYYY-MM-DD HH:MM:SS' text stored in a DATE column
+                    return "'" + LocalDate.ofEpochDay(bound) + "'";
+                }
+                // Widen to whole seconds: text with and without fractional seconds sorts consistently at that precision
+                long seconds = upper ? Math.floorDiv(millis + 999, 1000) : Math.floorDiv(millis, 1000);
+                LocalDateTime dateTime = LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+                return "'" + (this == ISO_TEXT ? SPACE_SEPARATED : T_SEPARATED).format(dateTime) + "'";
+            case JULIAN_DAY:
+                // Widen by a millisecond to stay clear of floating point rounding
+                return String.valueOf((millis + (upper ? 1 : -1)) / (double) MILLIS_PER_DAY + UNIX_EPOCH_JULIAN_DAY);
+            case UNIX_SECONDS:
+                return String.valueOf(upper ? Math.floorDiv(millis + 999, 1000) : Math.floorDiv(millis, 1000));
+            case UNIX_MILLIS:
+                return String.valueOf(millis);
+            default:
+                throw new IllegalStateException("Unknown encoding " + this);
+        }
+    }
+
+    /**
+     * Parses {@code YYYY-MM-DD[( |T)HH:MM[:SS[.fff]]][Z|(+|-)HH:MM]}, the forms SQLite's date
+     * functions accept, without going through a formatter.
+     */
+    static Long parseIsoMillis(String text)
+    {
+        if (text.length() < 10 || text.charAt(4) != '-' || text.charAt(7) != '-') {
+            return null;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 7);
+        int day = digits(text, 8, 10);
+        if (year < 0 || month < 0 || day < 0) {
+            return null;
+        }
+        long days;
+        try {
+            days = LocalDate.of(year, month, day).toEpochDay();
+        }
+        catch (DateTimeException e) {
+            return null;
+        }
+        long millis = days * MILLIS_PER_DAY;
+        if (text.length() == 10) {
+            return millis;
+        }
+
+        char separator = text.charAt(10);
+        if ((separator != ' ' && separator != 'T') || text.length() < 16 || text.charAt(13) != ':') {
+            return null;
+        }
+        int hour = digits(text, 11, 13);
+        int minute = digits(text, 14, 16);
+        int second = 0;
+        int fraction = 0;
+        int position = 16;
+        if (position < text.length() && text.charAt(position) == ':') {
+            second = digits(text, 17, 19);
+            position = 19;
+            if (position < text.length() && text.charAt(position) == '.') {
+                position++;
+                int scale = 1000;
+                while (position < text.length() && Character.isDigit(text.charAt(position))) {
+                    scale /= 10;
+                    fraction += (text.charAt(position) - '0') * scale;
+                    position++;
+                }
+            }
+        }
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+        millis += ((hour * 60L + minute) * 60 + second) * 1000 + fraction;
+
+        if (position < text.length()) {
+            char zone = text.charAt(position);
+            if (zone == 'Z' && position == text.length() - 1) {
+                return millis;
+            }
+            if ((zone != '+' && zone != '-') || text.length() != position + 6 || text.charAt(position + 3) != ':') {
+                return null;
+            }
+            int offsetHours = digits(text, position + 1, position + 3);
+            int offsetMinutes = digits(text, position + 4, position + 6);
+            if (offsetHours < 0 || offsetMinutes < 0) {
+                return null;
+            }
+            long offset = (offsetHours * 60L + offsetMinutes) * 60_000;
+            return zone == '+' ? millis - offset : millis + offset;
+        }
+        return millis;
+    }
+
+    private static int digits(String text, int start, int end)
+    {
+        if (end > text.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
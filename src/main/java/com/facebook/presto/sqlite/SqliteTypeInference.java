@@ -0,0 +1,429 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.type.Type;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.DecimalType.createDecimalType;
+import static com.facebook.presto.common.type.Decimals.MAX_SHORT_PRECISION;
+import static com.facebook.presto.common.type.DoubleType.DOUBLE;
+import static com.facebook.presto.common.type.TimestampType.TIMESTAMP;
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Infers Presto types for columns without a usable declared type (no type, {@code NUMERIC},
+ * or an unknown type name) from a sample of their stored values. A column becomes numeric
+ * only if every sampled value is an integer, a real, or text in canonical numeric form;
+ * anything else keeps it {@code VARCHAR}. The same sample detects how DATE and TIMESTAMP
+ * columns store their values, and which VARCHAR columns repeat a few distinct values (state
+ * codes, fuel types, status flags). Results are cached until the schema changes.
+ */
+public class SqliteTypeInference
+{
+    // The sample is spread over this many ROWID windows, each found with an index seek
+    private static final int SAMPLE_WINDOWS = 10;
+    // A column is low-cardinality if its sample has at most this many distinct values...
+    private static final int MAX_LOW_CARDINALITY_VALUES = 256;
+    // ...each repeated this many times on average
+    private static final int MIN_LOW_CARDINALITY_REPEATS = 4;
+
+    private final boolean enabled;
+    private final boolean dictionaryEncodingEnabled;
+    private final int sampleRows;
+    private final Map<String, InferredColumns> cache = new ConcurrentHashMap<>();
+
+    public SqliteTypeInference(SqliteConfig config)
+    {
+        requireNonNull(config, "config is null");
+        this.enabled = config.isTypeInferenceEnabled();
+        this.dictionaryEncodingEnabled = config.isDictionaryEncodingEnabled();
+        this.sampleRows = config.getTypeInferenceSampleRows();
+    }
+
+    public void invalidate()
+    {
+        cache.clear();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Samples the given columns of a table: loosely typed columns get a type if their sample is
+     * uniformly numeric, DATE/TIMESTAMP columns get the encoding most of their values use, and
+     * are found uniformly encoded or not,
+     * text columns, like loosely typed ones left VARCHAR, are found low-cardinality or not.
+     */
+    public InferredColumns infer(Connection connection, String schemaName, String tableName, List<String> looselyTyped, Map<String, Type> temporal, List<String> text)
+            throws SQLException
+    {
+        List<String> columns = ImmutableList.<String>builder()
+                .addAll(enabled ? looselyTyped : ImmutableList.of())
+                .addAll(temporal.keySet())
+                .addAll(dictionaryEncodingEnabled ? text : ImmutableList.of())
+                .build();
+        if (columns.isEmpty() || sampleRows == 0) {
+            return new InferredColumns(0, columns, ImmutableMap.of(), ImmutableMap.of(), ImmutableSet.of(), ImmutableSet.of());
+        }
+        long schemaVersion;
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA " + SqliteMetadata.schemaPrefix(schemaName) + "schema_version")) {
+            rs.next();
+            schemaVersion = rs.getLong(1);
+        }
+        String relation = SqliteMetadata.qualify(schemaName, tableName);
+        InferredColumns cached = cache.get(relation);
+        if (cached != null && cached.schemaVersion == schemaVersion && cached.columns.equals(columns)) {
+            return cached;
+        }
+
+        List<ColumnSample> samples = columns.stream()
+                .map(ColumnSample::new)
+                .collect(Collectors.toList());
+        sample(connection, relation, samples);
+
+        ImmutableMap.Builder<String, Type> types = ImmutableMap.builder();
+        ImmutableMap.Builder<String, SqliteTemporalEncoding> encodings = ImmutableMap.builder();
+        ImmutableSet.Builder<String> uniformlyEncoded = ImmutableSet.builder();
+        ImmutableSet.Builder<String> lowCardinality = ImmutableSet.builder();
+        for (ColumnSample sample : samples) {
+            if (temporal.containsKey(sample.column)) {
+                encodings.put(sample.column, sample.getEncoding());
+                if (sample.isUniformlyEncoded(temporal.get(sample.column).equals(TIMESTAMP))) {
+                    uniformlyEncoded.add(sample.column);
+                }
+                continue;
+            }
+            Type type = text.contains(sample.column) ? null : sample.getType();
+            if (type != null) {
+                types.put(sample.column, type);
+            }
+            else if (dictionaryEncodingEnabled && sample.isLowCardinality()) {
+                lowCardinality.add(sample.column);
+            }
+        }
+        InferredColumns inferred = new InferredColumns(schemaVersion, columns, types.build(), encodings.build(), uniformlyEncoded.build(), lowCardinality.build());
+        cache.put(relation, inferred);
+        return inferred;
+    }
+
+    private void sample(Connection connection, String relation, List<ColumnSample> samples)
+            throws SQLException
+    {
+        String select = "SELECT " + samples.stream()
+                .map(sample -> "\"" + sample.column + "\"")
+                .collect(Collectors.joining(", ")) + " FROM " + relation;
+        try (Statement statement = connection.createStatement()) {
+            List<String> queries = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery("SELECT MIN(ROWID), MAX(ROWID) FROM " + relation)) {
+                rs.next();
+                long min = rs.getLong(1);
+                long max = rs.getLong(2);
+                int windowRows = Math.max(1, sampleRows / SAMPLE_WINDOWS);
+                for (int window = 0; window < SAMPLE_WINDOWS; window++) {
+                    long start = min + (long) (((double) max - min) * window / SAMPLE_WINDOWS);
+                    queries.add(select + " WHERE ROWID >= " + start + " LIMIT " + windowRows);
+                }
+            }
+            catch (SQLException e) {
+                // Views and WITHOUT ROWID tables have no ROWID to spread the sample over
+                queries.add(select + " LIMIT " + sampleRows);
+            }
+            for (String query : queries) {
+                try (ResultSet rs = statement.executeQuery(query)) {
+                    while (rs.next()) {
+                        for (int i = 0; i < samples.size(); i++) {
+                            samples.get(i).add(rs.getObject(i + 1));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the value if the text is an integer as SQLite would print it, or null.
+     */
+    static Long parseCanonicalLong(String text)
+    {
+        try {
+            long value = Long.parseLong(text);
+            // Rejects leading zeros and '+', which would be lost (zip codes, identifiers)
+            return String.valueOf(value).equals(text) ? value : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value if the text is a plain decimal number with no leading zeros, or null.
+     */
+    static BigDecimal parseCanonicalDecimal(String text)
+    {
+        try {
+            BigDecimal value = new BigDecimal(text);
+            return value.toPlainString().equals(text) && value.scale() >= 0 ? value : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class ColumnSample
+    {
+        private final String column;
+        private int values;
+        private boolean nonNumeric;
+        private boolean real;
+        private boolean decimalText;
+        private int maxScale;
+        private int maxIntegerDigits;
+
+        private int texts;
+        private int tSeparatedTexts;
+        private int reals;
+        private int integers;
+        private long maxAbsInteger;
+        private int blobs;
+        // The forms of the ISO-8601 texts; null once a text is not a date SQLite's text order can compare
+        private Set<String> textForms = new HashSet<>();
+
+        private int nonNullValues;
+        // Up to one more than the most a low-cardinality column may have
+        private final Set<String> distinctValues = new HashSet<>();
+
+        ColumnSample(String column)
+        {
+            this.column = column;
+        }
+
+        void add(Object value)
+        {
+            if (value != null && !(value instanceof byte[])) {
+                nonNullValues++;
+                if (distinctValues.size() <= MAX_LOW_CARDINALITY_VALUES) {
+                    distinctValues.add(value.toString());
+                }
+            }
+            if (value instanceof String) {
+                texts++;
+                if (((String) value).length() > 10 && ((String) value).charAt(10) == 'T') {
+                    tSeparatedTexts++;
+                }
+                String form = getTextForm((String) value);
+                if (form == null) {
+                    textForms = null;
+                }
+                else if (textForms != null) {
+                    textForms.add(form);
+                }
+            }
+            else if (value instanceof Double) {
+                reals++;
+            }
+            else if (value instanceof Integer || value instanceof Long) {
+                integers++;
+                maxAbsInteger = Math.max(maxAbsInteger, Math.abs(((Number) value).longValue()));
+            }
+            else if (value != null) {
+                blobs++;
+            }
+
+            if (value == null || nonNumeric) {
+                return;
+            }
+            values++;
+            if (value instanceof Integer || value instanceof Long) {
+                maxIntegerDigits = Math.max(maxIntegerDigits, String.valueOf(Math.abs(((Number) value).longValue())).length());
+            }
+            else if (value instanceof Double) {
+                real = true;
+            }
+            else if (value instanceof String && parseCanonicalLong((String) value) != null) {
+                maxIntegerDigits = Math.max(maxIntegerDigits, ((String) value).replace("-", "").length());
+            }
+            else if (value instanceof String && parseCanonicalDecimal((String) value) != null) {
+                BigDecimal decimal = parseCanonicalDecimal((String) value);
+                decimalText = true;
+                maxScale = Math.max(maxScale, decimal.scale());
+                maxIntegerDigits = Math.max(maxIntegerDigits, decimal.precision() - decimal.scale());
+            }
+            else {
+                nonNumeric = true;
+            }
+        }
+
+        Type getType()
+        {
+            if (nonNumeric || values == 0) {
+                return null;
+            }
+            if (real) {
+                return DOUBLE;
+            }
+            if (!decimalText) {
+                return BIGINT;
+            }
+            // Exact decimals stored as text; leave room for integer digits beyond the sample
+            if (maxIntegerDigits + maxScale > MAX_SHORT_PRECISION) {
+                return DOUBLE;
+            }
+            return createDecimalType(MAX_SHORT_PRECISION, maxScale);
+        }
+
+        boolean isLowCardinality()
+        {
+            return nonNullValues > 0
+                    && distinctValues.size() <= MAX_LOW_CARDINALITY_VALUES
+                    && distinctValues.size() * MIN_LOW_CARDINALITY_REPEATS <= nonNullValues;
+        }
+
+        SqliteTemporalEncoding getEncoding()
+        {
+            if (reals > texts && reals >= integers) {
+                return SqliteTemporalEncoding.JULIAN_DAY;
+            }
+            if (integers > texts) {
+                // Unix seconds stay below 10^11 until the year 5138
+                return maxAbsInteger >= 100_000_000_000L ? SqliteTemporalEncoding.UNIX_MILLIS : SqliteTemporalEncoding.UNIX_SECONDS;
+            }
+            return tSeparatedTexts * 2 > texts ? SqliteTemporalEncoding.ISO_TEXT_T : SqliteTemporalEncoding.ISO_TEXT;
+        }
+
+        /**
+         * Whether every sampled value has the storage class of the encoding and, for text, the
+         * same separator and precision and no UTC offset. SQLite compares values of different
+         * storage classes by class, and text by its bytes, so only then does a bound written
+         * in the encoding select the same rows as the decoded values. TIMESTAMP bounds are written
+         * with seconds, which sort after a date or {@code HH:MM} text of the same instant, so
+         * TIMESTAMP text must have seconds too; DATE bounds are dates, a prefix of every form.
+         */
+        boolean isUniformlyEncoded(boolean timestamp)
+        {
+            int classes = (texts > 0 ? 1 : 0) + (reals > 0 ? 1 : 0) + (integers > 0 ? 1 : 0) + (blobs > 0 ? 1 : 0);
+            if (classes != 1 || blobs > 0) {
+                return false;
+            }
+            if (texts == 0) {
+                return true;
+            }
+            if (textForms == null || textForms.size() != 1) {
+                return false;
+            }
+            return !timestamp || getOnlyElement(textForms).endsWith(":ss");
+        }
+
+        /**
+         * The form of an ISO-8601 text: {@code date}, or the separator followed by {@code :ss}
+         * if it has seconds, ignoring fractions of a second, which the bounds are widened over.
+         * Null for other text and for text with a UTC offset.
+         */
+        private static String getTextForm(String text)
+        {
+            if (SqliteTemporalEncoding.parseIsoMillis(text) == null) {
+                return null;
+            }
+            if (text.length() == 10) {
+                return "date";
+            }
+            boolean seconds = text.length() > 16 && text.charAt(16) == ':';
+            int position = seconds ? 19 : 16;
+            if (position < text.length() && text.charAt(position) == '.') {
+                position++;
+                while (position < text.length() && Character.isDigit(text.charAt(position))) {
+                    position++;
+                }
+            }
+            if (position < text.length()) {
+                return null;
+            }
+            return text.charAt(10) + (seconds ? ":ss" : "");
+        }
+    }
+
+    public static class InferredColumns
+    {
+        private final long schemaVersion;
+        private final List<String> columns;
+        private final Map<String, Type> types;
+        private final Map<String, SqliteTemporalEncoding> encodings;
+        private final Set<String> uniformlyEncoded;
+        private final Set<String> lowCardinality;
+
+        InferredColumns(long schemaVersion, List<String> columns, Map<String, Type> types, Map<String, SqliteTemporalEncoding> encodings, Set<String> uniformlyEncoded,
+                Set<String> lowCardinality)
+        {
+            this.schemaVersion = schemaVersion;
+            this.columns = columns;
+            this.types = types;
+            this.encodings = encodings;
+            this.uniformlyEncoded = uniformlyEncoded;
+            this.lowCardinality = lowCardinality;
+        }
+
+        /**
+         * Inferred types of the loosely typed columns whose sample was uniformly numeric.
+         */
+        public Map<String, Type> getTypes()
+        {
+            return types;
+        }
+
+        /**
+         * Storage encoding of each DATE/TIMESTAMP column.
+         */
+        public Map<String, SqliteTemporalEncoding> getEncodings()
+        {
+            return encodings;
+        }
+
+        /**
+         * The DATE/TIMESTAMP columns whose sample is stored in a single form, see
+         * {@link ColumnSample#isUniformlyEncoded(boolean)}, so bounds can be pushed down in it.
+         */
+        public Set<String> getUniformlyEncoded()
+        {
+            return uniformlyEncoded;
+        }
+
+        /**
+         * The VARCHAR columns whose sample repeats a few distinct values.
+         */
+        public Set<String> getLowCardinality()
+        {
+            return lowCardinality;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.PrestoException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+/**
+ * Pins the splits of a query to one version of a database file that another process writes in
+ * WAL mode. The driver cannot open a read transaction on another connection's snapshot, so the
+ * ROWID range of every table a query scans is read in one read transaction, held open for the
+ * query's split generation, and each split reads no ROWID past the end of its table's range.
+ * Rows appended meanwhile are then invisible to the whole query, whichever split or worker reads
+ * them and whenever it runs. Rows updated or deleted meanwhile are not pinned.
+ */
+public class SqliteWalSnapshots
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteWalSnapshots.class);
+
+    // Offsets in the wal-index (-shm) file, whose header is in the writer's native byte order
+    private static final int WAL_INDEX_HEADER_BYTES = 48;
+    private static final int MAX_FRAME_OFFSET = 16;
+    private static final int BACKFILL_OFFSET = 2 * WAL_INDEX_HEADER_BYTES;
+
+    private final SqliteClient sqliteClient;
+    private final boolean enabled;
+    private final Path dbFile;
+    private final Set<String> attachedSchemas;
+    private final Cache<String, Snapshot> snapshots;
+    private final ScheduledExecutorService expirer;
+    private final AtomicBoolean warnedNotWal = new AtomicBoolean();
+
+    public SqliteWalSnapshots(SqliteClient sqliteClient, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        requireNonNull(config, "config is null");
+        this.enabled = config.isWalReaderEnabled();
+        this.dbFile = Paths.get(config.getDbPath());
+        this.attachedSchemas = config.getAttachedDatabases().keySet();
+        this.snapshots = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getWalSnapshotTtlMillis(), TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<String, Snapshot>) notification -> notification.getValue().close())
+                .build();
+        // Expired transactions would otherwise stay open, and hold back checkpoints, until the next query
+        this.expirer = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("sqlite-wal-snapshots-%s")
+                .setDaemon(true)
+                .build());
+        if (enabled) {
+            expirer.scheduleWithFixedDelay(snapshots::cleanUp, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void shutdown()
+    {
+        expirer.shutdownNow();
+        snapshots.invalidateAll();
+    }
+
+    /**
+     * Returns the minimum and maximum ROWID of the table's rows that match the ROWID predicate,
+     * if not empty, in the query's version of the file, each -1 if there are none in it, taking
+     * the version on the query's first call. Empty if the file is not in WAL mode, where a held
+     * read transaction would block the writer.
+     */
+    public Optional<long[]> getRowidRange(String queryId, String relation, String rowidPredicate)
+    {
+        Snapshot snapshot;
+        try {
+            snapshot = snapshots.get(queryId, this::openSnapshot);
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throwIfUnchecked(e.getCause());
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to open a read transaction: " + e.getMessage(), e);
+        }
+        try {
+            return snapshot.getRowidRange(relation, rowidPredicate);
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read the ROWID range of " + relation + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Snapshot openSnapshot()
+            throws SQLException
+    {
+        Connection connection = sqliteClient.openConnection();
+        try {
+            String journalMode;
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("PRAGMA journal_mode")) {
+                rs.next();
+                journalMode = rs.getString(1);
+            }
+            if (!"wal".equalsIgnoreCase(journalMode)) {
+                if (warnedNotWal.compareAndSet(false, true)) {
+                    log.warn("{} is in {} journal mode, not WAL; splits of a query are not pinned to one version of it", dbFile, journalMode);
+                }
+                connection.close();
+                return new Snapshot(Optional.empty());
+            }
+
+            // The read transaction starts at the first read of each file, so read them all at once
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                startRead(statement, "sqlite_master");
+                for (String schema : attachedSchemas) {
+                    startRead(statement, SqliteMetadata.schemaPrefix(schema) + "sqlite_master");
+                }
+            }
+            return new Snapshot(Optional.of(connection));
+        }
+        catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the schema table of a file, which takes the read lock that starts the transaction's
+     * read of the file; only the lock is wanted.
+     */
+    private static void startRead(Statement statement, String schemaTable)
+            throws SQLException
+    {
+        try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + schemaTable)) {
+            rs.next();
+        }
+    }
+
+    /**
+     * State of the file's write-ahead log, read from the wal-index without taking any lock.
+     * Frames the log holds but has not yet checkpointed into the database file, and a growing
+     * log file, mean that checkpoints are held back by readers.
+     */
+    public WalStatus getStatus()
+    {
+        String journalMode;
+        try (Connection connection = sqliteClient.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("PRAGMA journal_mode")) {
+            rs.next();
+            journalMode = rs.getString(1).toLowerCase(Locale.ENGLISH);
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read the journal mode: " + e.getMessage(), e);
+        }
+
+        long walBytes = 0;
+        long frames = 0;
+        long backfilledFrames = 0;
+        try {
+            walBytes = Files.size(Paths.get(dbFile + "-wal"));
+            try (FileChannel channel = FileChannel.open(Paths.get(dbFile + "-shm"))) {
+                ByteBuffer header = ByteBuffer.allocate(BACKFILL_OFFSET + Integer.BYTES).order(ByteOrder.nativeOrder());
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                    // Read the whole header
+                }
+                if (!header.hasRemaining()) {
+                    frames = Integer.toUnsignedLong(header.getInt(MAX_FRAME_OFFSET));
+                    backfilledFrames = Integer.toUnsignedLong(header.getInt(BACKFILL_OFFSET));
+                }
+            }
+        }
+        catch (NoSuchFileException e) {
+            // No log: not in WAL mode, or no connection has the file open
+        }
+        catch (IOException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read the write-ahead log of " + dbFile + ": " + e.getMessage(), e);
+        }
+
+        long now = System.currentTimeMillis();
+        long oldestSnapshotMillis = snapshots.asMap().values().stream()
+                .mapToLong(snapshot -> now - snapshot.openedMillis)
+                .max()
+                .orElse(0);
+        return new WalStatus(journalMode, walBytes, frames, backfilledFrames, snapshots.size(), oldestSnapshotMillis);
+    }
+
+    private static class Snapshot
+    {
+        // Empty when the file is not in WAL mode, so nothing is pinned
+        private final Optional<Connection> connection;
+        private final long openedMillis = System.currentTimeMillis();
+        private boolean closed;
+
+        Snapshot(Optional<Connection> connection)
+        {
+            this.connection = connection;
+        }
+
+        synchronized Optional<long[]> getRowidRange(String relation, String rowidPredicate)
+                throws SQLException
+        {
+            if (!connection.isPresent() || closed) {
+                // Expired during the query's split generation; later tables are read unpinned
+                return Optional.empty();
+            }
+            try (Statement statement = connection.get().createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT MIN(ROWID), MAX(ROWID) FROM " + relation + (rowidPredicate.isEmpty() ? "" : " WHERE " + rowidPredicate))) {
+                rs.next();
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    min = -1;
+                }
+                long max = rs.getLong(2);
+                if (rs.wasNull()) {
+                    max = -1;
+                }
+                return Optional.of(new long[] {min, max});
+            }
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            if (connection.isPresent()) {
+                try {
+                    // Ends the read transaction
+                    connection.get().close();
+                }
+                catch (SQLException e) {
+                    log.warn("Failed to close a read transaction", e);
+                }
+            }
+        }
+    }
+
+    public static class WalStatus
+    {
+        private final String journalMode;
+        private final long walBytes;
+        private final long frames;
+        private final long backfilledFrames;
+        private final long openSnapshots;
+        private final long oldestSnapshotMillis;
+
+        WalStatus(String journalMode, long walBytes, long frames, long backfilledFrames, long openSnapshots, long oldestSnapshotMillis)
+        {
+            this.journalMode = journalMode;
+            this.walBytes = walBytes;
+            this.frames = frames;
+            this.backfilledFrames = backfilledFrames;
+            this.openSnapshots = openSnapshots;
+            this.oldestSnapshotMillis = oldestSnapshotMillis;
+        }
+
+        public String getJournalMode()
+        {
+            return journalMode;
+        }
+
+        public long getWalBytes()
+        {
+            return walBytes;
+        }
+
+        /**
+         * Frames committed to the log since it was last restarted.
+         */
+        public long getFrames()
+        {
+            return frames;
+        }
+
+        /**
+         * Frames of the log already copied back into the database file by a checkpoint.
+         */
+        public long getBackfilledFrames()
+        {
+            return backfilledFrames;
+        }
+
+        public long getOpenSnapshots()
+        {
+            return openSnapshots;
+        }
+
+        public long getOldestSnapshotMillis()
+        {
+            return oldestSnapshotMillis;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.common.predicate.TupleDomain;
+import com.facebook.presto.common.type.Type;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.ConnectorSession;
+import com.facebook.presto.spi.ConnectorTableMetadata;
+import com.facebook.presto.spi.InMemoryRecordSet;
+import com.facebook.presto.spi.RecordCursor;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.SystemTable;
+import com.facebook.presto.spi.connector.ConnectorTransactionHandle;
+import com.google.common.collect.ImmutableList;
+
+import static com.facebook.presto.common.type.BigintType.BIGINT;
+import static com.facebook.presto.common.type.VarcharType.VARCHAR;
+import static java.util.Objects.requireNonNull;
+
+public class SqliteWalStatusSystemTable
+        implements SystemTable
+{
+    public static final SchemaTableName NAME = new SchemaTableName("system", "wal_status");
+
+    private static final ConnectorTableMetadata METADATA = new ConnectorTableMetadata(NAME, ImmutableList.of(
+            column("node_id", VARCHAR),
+            column("journal_mode", VARCHAR),
+            column("wal_bytes", BIGINT),
+            column("wal_frames", BIGINT),
+            column("checkpointed_frames", BIGINT),
+            column("open_snapshots", BIGINT),
+            column("oldest_snapshot_ms", BIGINT)));
+
+    private final SqliteWalSnapshots walSnapshots;
+    private final String nodeId;
+
+    public SqliteWalStatusSystemTable(SqliteWalSnapshots walSnapshots, String nodeId)
+    {
+        this.walSnapshots = requireNonNull(walSnapshots, "walSnapshots is null");
+        this.nodeId = requireNonNull(nodeId, "nodeId is null");
+    }
+
+    @Override
+    public Distribution getDistribution()
+    {
+        // Every node has its own view of the file, and the coordinator holds the snapshots
+        return Distribution.ALL_NODES;
+    }
+
+    @Override
+    public ConnectorTableMetadata getTableMetadata()
+    {
+        return METADATA;
+    }
+
+    @Override
+    public RecordCursor cursor(ConnectorTransactionHandle transactionHandle, ConnectorSession session, TupleDomain<Integer> constraint)
+    {
+        SqliteWalSnapshots.WalStatus status = walSnapshots.getStatus();
+        return InMemoryRecordSet.builder(METADATA)
+                .addRow(
+                        nodeId,
+                        status.getJournalMode(),
+                        status.getWalBytes(),
+                        status.getFrames(),
+                        status.getBackfilledFrames(),
+                        status.getOpenSnapshots(),
+                        status.getOldestSnapshotMillis())
+                .build()
+                .cursor();
+    }
+
+    private static ColumnMetadata column(String name, Type type)
+    {
+        return ColumnMetadata.builder().setName(name).setType(type).build();
+    }
+}
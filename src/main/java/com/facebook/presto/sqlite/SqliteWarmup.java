@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.sqlite;
+
+import com.facebook.presto.spi.PrestoException;
+import com.facebook.presto.spi.procedure.Procedure;
+import com.facebook.presto.spi.procedure.Procedure.Argument;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static com.facebook.presto.spi.StandardErrorCode.GENERIC_INTERNAL_ERROR;
+import static com.facebook.presto.spi.StandardErrorCode.NOT_FOUND;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Pre-reads SQLite B-trees, or the whole database file, into the OS page cache, so that the
+ * first scans after a deploy or restart do not fault a large file in one random page at a
+ * time. A B-tree is walked one level at a time straight from the file: the pages of a level
+ * are read in file order, with nearby pages coalesced into large sequential reads that also
+ * trigger the kernel's own read-ahead. Overflow pages of large values are not followed.
+ */
+public class SqliteWarmup
+{
+    private static final Logger log = LoggerFactory.getLogger(SqliteWarmup.class);
+
+    public static final String ALL_TABLES = "*";
+
+    // Pages at most this far apart are read in one request, the gap included
+    private static final int MAX_GAP_PAGES = 8;
+    private static final int MAX_READ_BYTES = 1024 * 1024;
+    // Deeper than any valid B-tree; stops the walk on a corrupt or concurrently rewritten file
+    private static final int MAX_DEPTH = 32;
+
+    private static final int INTERIOR_INDEX_PAGE = 2;
+    private static final int INTERIOR_TABLE_PAGE = 5;
+
+    private final SqliteClient sqliteClient;
+    private final String dbPath;
+    // A VACUUM moves root pages; a stale entry only makes a prefetch read the wrong pages
+    private final Cache<String, Long> rootPages = CacheBuilder.newBuilder()
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+
+    public SqliteWarmup(SqliteClient sqliteClient, SqliteConfig config)
+    {
+        this.sqliteClient = requireNonNull(sqliteClient, "sqliteClient is null");
+        this.dbPath = requireNonNull(config, "config is null").getDbPath();
+    }
+
+    public void invalidate()
+    {
+        rootPages.invalidateAll();
+    }
+
+    /**
+     * {@code CALL <catalog>.system.warmup('table')} warms a table and its indexes on the
+     * coordinator; {@code '*'} warms the whole file.
+     */
+    public Procedure getProcedure()
+    {
+        try {
+            MethodHandle warmup = MethodHandles.lookup()
+                    .findVirtual(SqliteWarmup.class, "warmup", MethodType.methodType(void.class, String.class))
+                    .bindTo(this);
+            return new Procedure("system", "warmup", ImmutableList.of(new Argument("table_name", "varchar")), warmup);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Warms the named tables, with their indexes, or the whole file for {@link #ALL_TABLES}.
+     * Failures are logged rather than thrown, as this runs in the background at catalog start.
+     */
+    public void warmup(List<String> tables)
+    {
+        for (String table : tables) {
+            try {
+                warmup(table);
+            }
+            catch (RuntimeException e) {
+                log.warn("SQLite warmup of {} failed", table, e);
+            }
+        }
+    }
+
+    public void warmup(String table)
+    {
+        requireNonNull(table, "table is null");
+        long start = System.nanoTime();
+        long bytes;
+        if (table.equals(ALL_TABLES)) {
+            bytes = warmFile();
+        }
+        else {
+            bytes = 0;
+            for (long rootPage : getRootPages(table)) {
+                bytes += warmTree(rootPage, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        }
+        log.info("Warmed up SQLite {} {}: {} MB in {} ms",
+                table.equals(ALL_TABLES) ? "file" : "table",
+                table.equals(ALL_TABLES) ? dbPath : table,
+                bytes / (1024 * 1024),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Reads the pages of a table holding the given ROWID range, ahead of a split that scans it.
+     */
+    public void prefetchRowidRange(String table, long rowidStart, long rowidEnd)
+    {
+        try {
+            Long rootPage = rootPages.getIfPresent(table);
+            if (rootPage == null) {
+                rootPage = getTableRootPage(table);
+                rootPages.put(table, rootPage);
+            }
+            warmTree(rootPage, rowidStart, rowidEnd);
+        }
+        catch (RuntimeException e) {
+            // Only an optimization: the scan reads the pages anyway
+            log.debug("SQLite prefetch of {} failed", table, e);
+        }
+    }
+
+    private long warmFile()
+    {
+        try (FileChannel file = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_READ_BYTES);
+            long position = 0;
+            while (true) {
+                buffer.clear();
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    return position;
+                }
+                position += read;
+            }
+        }
+        catch (IOException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read " + dbPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the B-tree rooted at the given page, level by level. For a table B-tree only the
+     * subtrees that can hold ROWIDs in {@code [rowidStart, rowidEnd]} are followed.
+     */
+    private long warmTree(long rootPage, long rowidStart, long rowidEnd)
+    {
+        try (FileChannel file = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ)) {
+            int pageSize = readPageSize(file);
+            long pageCount = file.size() / pageSize;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(MAX_READ_BYTES, pageSize));
+            long bytes = 0;
+            TreeSet<Long> level = new TreeSet<>();
+            level.add(rootPage);
+            for (int depth = 0; depth < MAX_DEPTH && !level.isEmpty(); depth++) {
+                TreeSet<Long> children = new TreeSet<>();
+                List<Long> pages = new ArrayList<>(level);
+                int first = 0;
+                while (first < pages.size()) {
+                    // Coalesce nearby pages into one read of at most MAX_READ_BYTES
+                    int last = first;
+                    while (last + 1 < pages.size()
+                            && pages.get(last + 1) - pages.get(last) <= MAX_GAP_PAGES
+                            && (pages.get(last + 1) - pages.get(first) + 1) * pageSize <= buffer.capacity()) {
+                        last++;
+                    }
+                    long firstPage = pages.get(first);
+                    buffer.clear();
+                    buffer.limit((int) ((pages.get(last) - firstPage + 1) * pageSize));
+                    readFully(file, buffer, (firstPage - 1) * pageSize);
+                    bytes += buffer.limit();
+                    for (int i = first; i <= last; i++) {
+                        long page = pages.get(i);
+                        addChildren(buffer, (int) ((page - firstPage) * pageSize), page == 1 ? 100 : 0, pageCount, rowidStart, rowidEnd, children);
+                    }
+                    first = last + 1;
+                }
+                level = children;
+            }
+            return bytes;
+        }
+        catch (IOException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to read " + dbPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds the child pages of an interior page; see the B-tree page format in
+     * https://www.sqlite.org/fileformat.html.
+     */
+    private static void addChildren(ByteBuffer buffer, int pageOffset, int headerOffset, long pageCount, long rowidStart, long rowidEnd, TreeSet<Long> children)
+    {
+        int header = pageOffset + headerOffset;
+        int type = buffer.get(header) & 0xFF;
+        if (type != INTERIOR_TABLE_PAGE && type != INTERIOR_INDEX_PAGE) {
+            return;
+        }
+        int cells = buffer.getShort(header + 3) & 0xFFFF;
+        if (header + 12 + cells * 2 > buffer.limit()) {
+            return;
+        }
+        long previousKey = Long.MIN_VALUE;
+        for (int cell = 0; cell < cells; cell++) {
+            int cellOffset = pageOffset + (buffer.getShort(header + 12 + cell * 2) & 0xFFFF);
+            if (cellOffset + 5 > buffer.limit()) {
+                return;
+            }
+            long child = buffer.getInt(cellOffset) & 0xFFFFFFFFL;
+            if (type == INTERIOR_TABLE_PAGE) {
+                // The left child holds the ROWIDs in (previousKey, key]
+                long key = readVarint(buffer, cellOffset + 4);
+                if (key >= rowidStart && previousKey < rowidEnd) {
+                    addPage(children, child, pageCount);
+                }
+                previousKey = key;
+            }
+            else {
+                addPage(children, child, pageCount);
+            }
+        }
+        if (type == INTERIOR_INDEX_PAGE || previousKey < rowidEnd) {
+            addPage(children, buffer.getInt(header + 8) & 0xFFFFFFFFL, pageCount);
+        }
+    }
+
+    private static void addPage(TreeSet<Long> pages, long page, long pageCount)
+    {
+        if (page >= 1 && page <= pageCount) {
+            pages.add(page);
+        }
+    }
+
+    private static long readVarint(ByteBuffer buffer, int offset)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            if (offset + i >= buffer.limit()) {
+                return value;
+            }
+            int b = buffer.get(offset + i) & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return offset + 8 < buffer.limit() ? (value << 8) | (buffer.get(offset + 8) & 0xFF) : value;
+    }
+
+    private static int readPageSize(FileChannel file)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(2);
+        readFully(file, header, 16);
+        int pageSize = header.getShort(0) & 0xFFFF;
+        // Stored as 1 for 65536
+        return pageSize == 1 ? 65536 : pageSize;
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + buffer.position());
+            if (read < 0) {
+                // Past the end of a file that shrank; the rest of the buffer is not used
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                return;
+            }
+        }
+    }
+
+    private List<Long> getRootPages(String table)
+    {
+        List<Long> rootPages = new ArrayList<>();
+        try (Connection connection = sqliteClient.getConnection();
+                PreparedStatement statement = connection.prepareStatement(
+                        "SELECT rootpage FROM sqlite_master WHERE tbl_name = ? AND type IN ('table', 'index') AND rootpage > 0")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    rootPages.add(rs.getLong(1));
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to look up the pages of table " + table + ": " + e.getMessage(), e);
+        }
+        if (rootPages.isEmpty()) {
+            throw new PrestoException(NOT_FOUND, "Table not found: " + table);
+        }
+        return rootPages;
+    }
+
+    private long getTableRootPage(String table)
+    {
+        try (Connection connection = sqliteClient.getConnection();
+                PreparedStatement statement = connection.prepareStatement(
+                        "SELECT rootpage FROM sqlite_master WHERE name = ? AND type = 'table' AND rootpage > 0")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new PrestoException(NOT_FOUND, "Table not found: " + table);
+                }
+                return rs.getLong(1);
+            }
+        }
+        catch (SQLException e) {
+            throw new PrestoException(GENERIC_INTERNAL_ERROR, "Failed to look up the root page of table " + table + ": " + e.getMessage(), e);
+        }
+    }
+}